@@ -19,12 +19,17 @@ package com.sk89q.jnbt;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.Closeable;
-import java.io.DataOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.Nullable;
+
 /**
  * This class writes <strong>NBT</strong>, or <strong>Named Binary Tag</strong>
  * {@code Tag} objects to an underlying {@code OutputStream}.
@@ -34,13 +39,38 @@ import java.util.Map;
  * found at <a href="http://www.minecraft.net/docs/NBT.txt">
  * http://www.minecraft.net/docs/NBT.txt</a>.
  * </p>
+ *
+ * <p>
+ * Output is collected in an internal buffer, and primitive arrays are
+ * copied into it in bulk, so the underlying stream does not need to be
+ * buffered. Data is only guaranteed to reach the underlying stream after
+ * {@link #flush()} or {@link #close()} is called.
+ * </p>
  */
-public final class NBTOutputStream implements Closeable {
+public final class NBTOutputStream implements Closeable, Flushable {
+
+    /**
+     * The size of the internal buffer in bytes.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The output stream, if writing to a stream.
+     */
+    @Nullable
+    private final OutputStream os;
+
+    /**
+     * The channel, if writing to a channel.
+     */
+    @Nullable
+    private final WritableByteChannel channel;
 
     /**
-     * The output stream.
+     * The buffer that output is collected in before it is written out.
      */
-    private final DataOutputStream os;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE)
+        .order(ByteOrder.BIG_ENDIAN);
 
     /**
      * Creates a new {@code NBTOutputStream}, which will write data to the
@@ -52,7 +82,22 @@ public final class NBTOutputStream implements Closeable {
      *                     if an I/O error occurs.
      */
     public NBTOutputStream(OutputStream os) throws IOException {
-        this.os = new DataOutputStream(os);
+        checkNotNull(os);
+        this.os = os;
+        this.channel = null;
+    }
+
+    /**
+     * Creates a new {@code NBTOutputStream}, which will write data to the
+     * specified channel.
+     *
+     * @param channel
+     *                The channel.
+     */
+    public NBTOutputStream(WritableByteChannel channel) {
+        checkNotNull(channel);
+        this.os = null;
+        this.channel = channel;
     }
 
     /**
@@ -68,19 +113,100 @@ public final class NBTOutputStream implements Closeable {
         checkNotNull(tag);
 
         int type = NBTUtils.getTypeCode(tag.getClass());
-        byte[] nameBytes = name.getBytes(NBTConstants.CHARSET);
-
-        os.writeByte(type);
-        os.writeShort(nameBytes.length);
-        os.write(nameBytes);
-
         if (type == NBTConstants.TYPE_END) {
             throw new IOException("Named TAG_End not permitted.");
         }
 
+        writeTagHeader(type, name);
         writeTagPayload(tag);
     }
 
+    /**
+     * Writes the start of a named {@code TAG_Compound}. The entries of the
+     * compound are then written with the other {@code write} methods, and
+     * the compound must be finished with {@link #writeCompoundEnd()}.
+     *
+     * <p>
+     * This allows large structures to be written without first building
+     * them as {@code Tag} objects.
+     * </p>
+     *
+     * @param name
+     *             The name of the compound.
+     * @throws IOException
+     *                     if an I/O error occurs.
+     */
+    public void writeCompoundStart(String name) throws IOException {
+        checkNotNull(name);
+        writeTagHeader(NBTConstants.TYPE_COMPOUND, name);
+    }
+
+    /**
+     * Writes the end of a {@code TAG_Compound} that was started with
+     * {@link #writeCompoundStart(String)}.
+     *
+     * @throws IOException
+     *                     if an I/O error occurs.
+     */
+    public void writeCompoundEnd() throws IOException {
+        writeByte(NBTConstants.TYPE_END);
+    }
+
+    /**
+     * Writes a named {@code TAG_Byte_Array} directly from an array, without
+     * wrapping it in a {@link ByteArrayTag}.
+     *
+     * @param name
+     *             The name of the tag.
+     * @param data
+     *             The array.
+     * @throws IOException
+     *                     if an I/O error occurs.
+     */
+    public void writeByteArrayTag(String name, byte[] data) throws IOException {
+        checkNotNull(name);
+        checkNotNull(data);
+        writeTagHeader(NBTConstants.TYPE_BYTE_ARRAY, name);
+        writeInt(data.length);
+        writeBytes(data, 0, data.length);
+    }
+
+    /**
+     * Writes a named {@code TAG_Int_Array} directly from an array, without
+     * wrapping it in an {@link IntArrayTag}.
+     *
+     * @param name
+     *             The name of the tag.
+     * @param data
+     *             The array.
+     * @throws IOException
+     *                     if an I/O error occurs.
+     */
+    public void writeIntArrayTag(String name, int[] data) throws IOException {
+        checkNotNull(name);
+        checkNotNull(data);
+        writeTagHeader(NBTConstants.TYPE_INT_ARRAY, name);
+        writeInt(data.length);
+        writeInts(data);
+    }
+
+    /**
+     * Writes the type and name of a tag.
+     *
+     * @param type
+     *             The type code.
+     * @param name
+     *             The name.
+     * @throws IOException
+     *                     if an I/O error occurs.
+     */
+    private void writeTagHeader(int type, String name) throws IOException {
+        byte[] nameBytes = name.getBytes(NBTConstants.CHARSET);
+        writeByte(type);
+        writeShort(nameBytes.length);
+        writeBytes(nameBytes, 0, nameBytes.length);
+    }
+
     /**
      * Writes tag payload.
      *
@@ -142,7 +268,7 @@ public final class NBTOutputStream implements Closeable {
      *                     if an I/O error occurs.
      */
     private void writeByteTagPayload(ByteTag tag) throws IOException {
-        os.writeByte(tag.getValue());
+        writeByte(tag.getValue());
     }
 
     /**
@@ -155,8 +281,8 @@ public final class NBTOutputStream implements Closeable {
      */
     private void writeByteArrayTagPayload(ByteArrayTag tag) throws IOException {
         byte[] bytes = tag.getValue();
-        os.writeInt(bytes.length);
-        os.write(bytes);
+        writeInt(bytes.length);
+        writeBytes(bytes, 0, bytes.length);
     }
 
     /**
@@ -172,7 +298,7 @@ public final class NBTOutputStream implements Closeable {
             .entrySet()) {
             writeNamedTag(entry.getKey(), entry.getValue());
         }
-        os.writeByte((byte) 0); // end tag - better way?
+        writeByte(NBTConstants.TYPE_END);
     }
 
     /**
@@ -188,8 +314,8 @@ public final class NBTOutputStream implements Closeable {
         List<Tag> tags = tag.getValue();
         int size = tags.size();
 
-        os.writeByte(NBTUtils.getTypeCode(clazz));
-        os.writeInt(size);
+        writeByte(NBTUtils.getTypeCode(clazz));
+        writeInt(size);
         for (Tag tag1 : tags) {
             writeTagPayload(tag1);
         }
@@ -206,8 +332,8 @@ public final class NBTOutputStream implements Closeable {
     private void writeStringTagPayload(StringTag tag) throws IOException {
         byte[] bytes = tag.getValue()
             .getBytes(NBTConstants.CHARSET);
-        os.writeShort(bytes.length);
-        os.write(bytes);
+        writeShort(bytes.length);
+        writeBytes(bytes, 0, bytes.length);
     }
 
     /**
@@ -219,7 +345,8 @@ public final class NBTOutputStream implements Closeable {
      *                     if an I/O error occurs.
      */
     private void writeDoubleTagPayload(DoubleTag tag) throws IOException {
-        os.writeDouble(tag.getValue());
+        ensureCapacity(8);
+        buffer.putDouble(tag.getValue());
     }
 
     /**
@@ -231,7 +358,8 @@ public final class NBTOutputStream implements Closeable {
      *                     if an I/O error occurs.
      */
     private void writeFloatTagPayload(FloatTag tag) throws IOException {
-        os.writeFloat(tag.getValue());
+        ensureCapacity(4);
+        buffer.putFloat(tag.getValue());
     }
 
     /**
@@ -243,7 +371,8 @@ public final class NBTOutputStream implements Closeable {
      *                     if an I/O error occurs.
      */
     private void writeLongTagPayload(LongTag tag) throws IOException {
-        os.writeLong(tag.getValue());
+        ensureCapacity(8);
+        buffer.putLong(tag.getValue());
     }
 
     /**
@@ -255,7 +384,7 @@ public final class NBTOutputStream implements Closeable {
      *                     if an I/O error occurs.
      */
     private void writeIntTagPayload(IntTag tag) throws IOException {
-        os.writeInt(tag.getValue());
+        writeInt(tag.getValue());
     }
 
     /**
@@ -267,7 +396,7 @@ public final class NBTOutputStream implements Closeable {
      *                     if an I/O error occurs.
      */
     private void writeShortTagPayload(ShortTag tag) throws IOException {
-        os.writeShort(tag.getValue());
+        writeShort(tag.getValue());
     }
 
     /**
@@ -279,17 +408,119 @@ public final class NBTOutputStream implements Closeable {
         /* empty */
     }
 
+    /**
+     * Writes a {@code TAG_Int_Array} tag.
+     *
+     * @param tag
+     *            The tag.
+     * @throws IOException
+     *                     if an I/O error occurs.
+     */
     private void writeIntArrayTagPayload(IntArrayTag tag) throws IOException {
         int[] data = tag.getValue();
-        os.writeInt(data.length);
-        for (int aData : data) {
-            os.writeInt(aData);
+        writeInt(data.length);
+        writeInts(data);
+    }
+
+    private void writeByte(int value) throws IOException {
+        ensureCapacity(1);
+        buffer.put((byte) value);
+    }
+
+    private void writeShort(int value) throws IOException {
+        ensureCapacity(2);
+        buffer.putShort((short) value);
+    }
+
+    private void writeInt(int value) throws IOException {
+        ensureCapacity(4);
+        buffer.putInt(value);
+    }
+
+    /**
+     * Writes a range of bytes, bypassing the buffer for large ranges.
+     */
+    private void writeBytes(byte[] data, int offset, int length) throws IOException {
+        if (length > buffer.remaining()) {
+            drain();
+            if (length >= buffer.capacity()) {
+                write(ByteBuffer.wrap(data, offset, length));
+                return;
+            }
+        }
+        buffer.put(data, offset, length);
+    }
+
+    /**
+     * Writes an array of ints in bulk through an {@code IntBuffer} view of
+     * the buffer.
+     */
+    private void writeInts(int[] data) throws IOException {
+        int offset = 0;
+        while (offset < data.length) {
+            if (buffer.remaining() < 4) {
+                drain();
+            }
+            int count = Math.min(data.length - offset, buffer.remaining() / 4);
+            buffer.asIntBuffer()
+                .put(data, offset, count);
+            buffer.position(buffer.position() + count * 4);
+            offset += count;
+        }
+    }
+
+    private void ensureCapacity(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            drain();
+        }
+    }
+
+    /**
+     * Writes the contents of the buffer to the underlying stream or channel.
+     */
+    private void drain() throws IOException {
+        buffer.flip();
+        write(buffer);
+        buffer.clear();
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+        if (os != null) {
+            os.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+        } else {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+    }
+
+    /**
+     * Writes any buffered data to the underlying stream or channel and
+     * flushes it.
+     *
+     * @throws IOException
+     *                     if an I/O error occurs.
+     */
+    @Override
+    public void flush() throws IOException {
+        drain();
+        if (os != null) {
+            os.flush();
         }
     }
 
     @Override
     public void close() throws IOException {
-        os.close();
+        try {
+            drain();
+        } finally {
+            if (os != null) {
+                os.close();
+            } else {
+                channel.close();
+            }
+        }
     }
 
 }
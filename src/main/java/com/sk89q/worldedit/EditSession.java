@@ -24,7 +24,6 @@ import static com.sk89q.worldedit.regions.Regions.minimumBlockY;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -45,8 +44,10 @@ import com.sk89q.worldedit.extent.ChangeSetExtent;
 import com.sk89q.worldedit.extent.Extent;
 import com.sk89q.worldedit.extent.MaskingExtent;
 import com.sk89q.worldedit.extent.NullExtent;
+import com.sk89q.worldedit.extent.SectionExtent;
 import com.sk89q.worldedit.extent.buffer.ForgetfulExtentBuffer;
 import com.sk89q.worldedit.extent.cache.LastAccessExtentCache;
+import com.sk89q.worldedit.extent.cache.SectionSnapshotExtent;
 import com.sk89q.worldedit.extent.inventory.BlockBag;
 import com.sk89q.worldedit.extent.inventory.BlockBagExtent;
 import com.sk89q.worldedit.extent.reorder.MultiStageReorder;
@@ -61,12 +62,16 @@ import com.sk89q.worldedit.function.RegionMaskingFilter;
 import com.sk89q.worldedit.function.block.BlockReplace;
 import com.sk89q.worldedit.function.block.Counter;
 import com.sk89q.worldedit.function.block.Naturalizer;
+import com.sk89q.worldedit.function.block.SectionCounter;
 import com.sk89q.worldedit.function.generator.GardenPatchGenerator;
+import com.sk89q.worldedit.function.mask.AbstractExtentMask;
 import com.sk89q.worldedit.function.mask.BlockMask;
+import com.sk89q.worldedit.function.mask.BlockTableMask;
 import com.sk89q.worldedit.function.mask.BoundedHeightMask;
 import com.sk89q.worldedit.function.mask.ExistingBlockMask;
 import com.sk89q.worldedit.function.mask.FuzzyBlockMask;
 import com.sk89q.worldedit.function.mask.Mask;
+import com.sk89q.worldedit.function.mask.MaskCompiler;
 import com.sk89q.worldedit.function.mask.MaskIntersection;
 import com.sk89q.worldedit.function.mask.MaskUnion;
 import com.sk89q.worldedit.function.mask.Masks;
@@ -91,6 +96,8 @@ import com.sk89q.worldedit.history.changeset.BlockOptimizedHistory;
 import com.sk89q.worldedit.history.changeset.ChangeSet;
 import com.sk89q.worldedit.internal.expression.Expression;
 import com.sk89q.worldedit.internal.expression.ExpressionException;
+import com.sk89q.worldedit.internal.expression.runtime.EvaluationException;
+import com.sk89q.worldedit.internal.expression.runtime.Interval;
 import com.sk89q.worldedit.internal.expression.runtime.RValue;
 import com.sk89q.worldedit.math.interpolation.Interpolation;
 import com.sk89q.worldedit.math.interpolation.KochanekBartelsInterpolation;
@@ -110,6 +117,7 @@ import com.sk89q.worldedit.regions.shape.RegionShape;
 import com.sk89q.worldedit.regions.shape.WorldEditExpressionEnvironment;
 import com.sk89q.worldedit.util.Countable;
 import com.sk89q.worldedit.util.TreeGenerator;
+import com.sk89q.worldedit.util.collection.BlockBitSet;
 import com.sk89q.worldedit.util.collection.DoubleArrayList;
 import com.sk89q.worldedit.util.eventbus.EventBus;
 import com.sk89q.worldedit.world.NullWorld;
@@ -127,7 +135,7 @@ import com.sk89q.worldedit.world.biome.BaseBiome;
  * </p>
  */
 @SuppressWarnings({ "FieldCanBeLocal", "deprecation" })
-public class EditSession implements Extent {
+public class EditSession implements SectionExtent {
 
     private static final Logger log = Logger.getLogger(EditSession.class.getCanonicalName());
 
@@ -340,7 +348,7 @@ public class EditSession implements Extent {
         if (mask == null) {
             maskingExtent.setMask(Masks.alwaysTrue());
         } else {
-            maskingExtent.setMask(mask);
+            maskingExtent.setMask(MaskCompiler.compile(mask));
         }
     }
 
@@ -459,6 +467,16 @@ public class EditSession implements Extent {
         return world.getBlock(position);
     }
 
+    @Override
+    public boolean isSectionEmpty(int sectionX, int sectionY, int sectionZ) {
+        return world.isSectionEmpty(sectionX, sectionY, sectionZ);
+    }
+
+    @Override
+    public void copySection(int sectionX, int sectionY, int sectionZ, char[] blocks) {
+        world.copySection(sectionX, sectionY, sectionZ, blocks);
+    }
+
     /**
      * Get a block type at the given position.
      *
@@ -617,7 +635,7 @@ public class EditSession implements Extent {
      * @throws MaxChangedBlocksException thrown if too many blocks are changed
      */
     @SuppressWarnings("deprecation")
-    private int setBlocks(Set<Vector> vset, Pattern pattern) throws MaxChangedBlocksException {
+    private int setBlocks(BlockBitSet vset, Pattern pattern) throws MaxChangedBlocksException {
         int affected = 0;
         for (Vector v : vset) {
             affected += setBlock(v, pattern) ? 1 : 0;
@@ -762,7 +780,19 @@ public class EditSession implements Extent {
      * @return the number of blocks that matched the pattern
      */
     public int countBlocks(Region region, Set<BaseBlock> searchBlocks) {
-        FuzzyBlockMask mask = new FuzzyBlockMask(this, searchBlocks);
+        Mask mask = MaskCompiler.compile(new FuzzyBlockMask(this, searchBlocks));
+        if (mask instanceof BlockTableMask && SectionCounter.isSupported()) {
+            BlockTableMask table = (BlockTableMask) mask;
+            int[] histogram = SectionCounter.count(this, region);
+            int count = 0;
+            for (int index = 0; index < histogram.length; ++index) {
+                if (histogram[index] > 0 && table.matches(index >>> 4, index & 15)) {
+                    count += histogram[index];
+                }
+            }
+            return count;
+        }
+
         Counter count = new Counter();
         RegionMaskingFilter filter = new RegionMaskingFilter(mask, count);
         RegionVisitor visitor = new RegionVisitor(region, filter);
@@ -806,12 +836,15 @@ public class EditSession implements Extent {
         checkArgument(radius >= 0, "radius >= 0");
         checkArgument(depth >= 1, "depth >= 1");
 
+        // Lets large fills be tested on worker threads
+        SectionSnapshotExtent snapshot = new SectionSnapshotExtent(this);
+
         MaskIntersection mask = new MaskIntersection(
             new RegionMask(new EllipsoidRegion(null, origin, new Vector(radius, radius, radius))),
             new BoundedHeightMask(
                 Math.max(origin.getBlockY() - depth + 1, 0),
                 Math.min(getWorld().getMaxY(), origin.getBlockY())),
-            Masks.negate(new ExistingBlockMask(this)));
+            Masks.negate(new ExistingBlockMask(snapshot)));
 
         // Want to replace blocks
         BlockReplace replace = new BlockReplace(this, Patterns.wrap(pattern));
@@ -823,6 +856,7 @@ public class EditSession implements Extent {
         } else {
             visitor = new DownwardVisitor(mask, replace, origin.getBlockY());
         }
+        visitor.setParallel(snapshot);
 
         // Start at the origin
         visitor.visit(origin);
@@ -985,7 +1019,7 @@ public class EditSession implements Extent {
         checkNotNull(pattern);
 
         BlockReplace replace = new BlockReplace(this, Patterns.wrap(pattern));
-        RegionMaskingFilter filter = new RegionMaskingFilter(mask, replace);
+        RegionMaskingFilter filter = new RegionMaskingFilter(MaskCompiler.compile(mask), replace);
         RegionVisitor visitor = new RegionVisitor(region, filter);
         Operations.completeLegacy(visitor);
         return visitor.getAffected();
@@ -1301,14 +1335,24 @@ public class EditSession implements Extent {
         checkNotNull(origin);
         checkArgument(radius >= 0, "radius >= 0 required");
 
+        SectionSnapshotExtent snapshot = new SectionSnapshotExtent(this);
+        Mask liquidMask = getWorld().createLiquidMask();
+
         MaskIntersection mask = new MaskIntersection(
             new BoundedHeightMask(0, getWorld().getMaxY()),
             new RegionMask(new EllipsoidRegion(null, origin, new Vector(radius, radius, radius))),
-            getWorld().createLiquidMask());
+            liquidMask);
 
         BlockReplace replace = new BlockReplace(this, new BlockPattern(new BaseBlock(BlockID.AIR)));
         RecursiveVisitor visitor = new RecursiveVisitor(mask, replace);
 
+        // Large pools can be tested on worker threads if the liquid mask
+        // can read from the snapshot
+        if (liquidMask instanceof AbstractExtentMask) {
+            ((AbstractExtentMask) liquidMask).setExtent(snapshot);
+            visitor.setParallel(snapshot);
+        }
+
         // Around the origin in a 3x3 block
         for (BlockVector position : CuboidRegion.fromCenter(origin, 1)) {
             if (mask.test(position)) {
@@ -1335,11 +1379,14 @@ public class EditSession implements Extent {
         checkNotNull(origin);
         checkArgument(radius >= 0, "radius >= 0 required");
 
+        // Lets large areas be tested on worker threads
+        SectionSnapshotExtent snapshot = new SectionSnapshotExtent(this);
+
         // Our origins can only be liquids
-        BlockMask liquidMask = new BlockMask(this, new BaseBlock(moving, -1), new BaseBlock(stationary, -1));
+        BlockMask liquidMask = new BlockMask(snapshot, new BaseBlock(moving, -1), new BaseBlock(stationary, -1));
 
         // But we will also visit air blocks
-        MaskIntersection blockMask = new MaskUnion(liquidMask, new BlockMask(this, new BaseBlock(BlockID.AIR)));
+        MaskIntersection blockMask = new MaskUnion(liquidMask, new BlockMask(snapshot, new BaseBlock(BlockID.AIR)));
 
         // There are boundaries that the routine needs to stay in
         MaskIntersection mask = new MaskIntersection(
@@ -1349,6 +1396,7 @@ public class EditSession implements Extent {
 
         BlockReplace replace = new BlockReplace(this, new BlockPattern(new BaseBlock(stationary)));
         NonRisingVisitor visitor = new NonRisingVisitor(mask, replace);
+        visitor.setParallel(snapshot);
 
         // Around the origin in a 3x3 block
         for (BlockVector position : CuboidRegion.fromCenter(origin, 1)) {
@@ -1416,43 +1464,24 @@ public class EditSession implements Extent {
         final int ceilRadiusX = (int) Math.ceil(radiusX);
         final int ceilRadiusZ = (int) Math.ceil(radiusZ);
 
-        double nextXn = 0;
-        forX: for (int x = 0; x <= ceilRadiusX; ++x) {
-            final double xn = nextXn;
-            nextXn = (x + 1) * invRadiusX;
-            double nextZn = 0;
-            forZ: for (int z = 0; z <= ceilRadiusZ; ++z) {
-                final double zn = nextZn;
-                nextZn = (z + 1) * invRadiusZ;
-
-                double distanceSq = lengthSq(xn, zn);
-                if (distanceSq > 1) {
-                    if (z == 0) {
-                        break forX;
-                    }
-                    break forZ;
-                }
+        // The half-width of each row, with one more row for the shell test
+        final int[] extents = new int[ceilRadiusZ + 2];
+        for (int z = 0; z < extents.length; ++z) {
+            extents[z] = getRowExtent(invRadiusX, 0, z * invRadiusZ, ceilRadiusX);
+        }
 
-                if (!filled) {
-                    if (lengthSq(nextXn, zn) <= 1 && lengthSq(xn, nextZn) <= 1) {
-                        continue;
-                    }
+        final int centerX = pos.getBlockX();
+        final int centerY = pos.getBlockY();
+        final int centerZ = pos.getBlockZ();
+        for (int y = 0; y < height; ++y) {
+            for (int z = -ceilRadiusZ; z <= ceilRadiusZ; ++z) {
+                final int extent = extents[Math.abs(z)];
+                if (extent < 0) {
+                    continue;
                 }
 
-                for (int y = 0; y < height; ++y) {
-                    if (setBlock(pos.add(x, y, z), block)) {
-                        ++affected;
-                    }
-                    if (setBlock(pos.add(-x, y, z), block)) {
-                        ++affected;
-                    }
-                    if (setBlock(pos.add(x, y, -z), block)) {
-                        ++affected;
-                    }
-                    if (setBlock(pos.add(-x, y, -z), block)) {
-                        ++affected;
-                    }
-                }
+                final int inner = filled ? -1 : Math.min(extent - 1, extents[Math.abs(z) + 1]);
+                affected += setRowShell(centerX, centerY + y, centerZ + z, extent, inner, block);
             }
         }
 
@@ -1501,68 +1530,88 @@ public class EditSession implements Extent {
         final int ceilRadiusY = (int) Math.ceil(radiusY);
         final int ceilRadiusZ = (int) Math.ceil(radiusZ);
 
-        double nextXn = 0;
-        forX: for (int x = 0; x <= ceilRadiusX; ++x) {
-            final double xn = nextXn;
-            nextXn = (x + 1) * invRadiusX;
-            double nextYn = 0;
-            forY: for (int y = 0; y <= ceilRadiusY; ++y) {
-                final double yn = nextYn;
-                nextYn = (y + 1) * invRadiusY;
-                double nextZn = 0;
-                forZ: for (int z = 0; z <= ceilRadiusZ; ++z) {
-                    final double zn = nextZn;
-                    nextZn = (z + 1) * invRadiusZ;
-
-                    double distanceSq = lengthSq(xn, yn, zn);
-                    if (distanceSq > 1) {
-                        if (z == 0) {
-                            if (y == 0) {
-                                break forX;
-                            }
-                            break forY;
-                        }
-                        break forZ;
-                    }
-
-                    if (!filled) {
-                        if (lengthSq(nextXn, yn, zn) <= 1 && lengthSq(xn, nextYn, zn) <= 1
-                            && lengthSq(xn, yn, nextZn) <= 1) {
-                            continue;
-                        }
-                    }
+        // The half-width of each row in one octant, with one more row on
+        // each axis for the shell test
+        final int[][] extents = new int[ceilRadiusY + 2][ceilRadiusZ + 2];
+        for (int y = 0; y < extents.length; ++y) {
+            for (int z = 0; z < extents[y].length; ++z) {
+                extents[y][z] = getRowExtent(invRadiusX, y * invRadiusY, z * invRadiusZ, ceilRadiusX);
+            }
+        }
 
-                    if (setBlock(pos.add(x, y, z), block)) {
-                        ++affected;
-                    }
-                    if (setBlock(pos.add(-x, y, z), block)) {
-                        ++affected;
-                    }
-                    if (setBlock(pos.add(x, -y, z), block)) {
-                        ++affected;
-                    }
-                    if (setBlock(pos.add(x, y, -z), block)) {
-                        ++affected;
-                    }
-                    if (setBlock(pos.add(-x, -y, z), block)) {
-                        ++affected;
-                    }
-                    if (setBlock(pos.add(x, -y, -z), block)) {
-                        ++affected;
-                    }
-                    if (setBlock(pos.add(-x, y, -z), block)) {
-                        ++affected;
-                    }
-                    if (setBlock(pos.add(-x, -y, -z), block)) {
-                        ++affected;
-                    }
+        final int centerX = pos.getBlockX();
+        final int centerY = pos.getBlockY();
+        final int centerZ = pos.getBlockZ();
+        for (int y = -ceilRadiusY; y <= ceilRadiusY; ++y) {
+            final int[] rows = extents[Math.abs(y)];
+            final int[] nextRows = extents[Math.abs(y) + 1];
+            for (int z = -ceilRadiusZ; z <= ceilRadiusZ; ++z) {
+                final int extent = rows[Math.abs(z)];
+                if (extent < 0) {
+                    continue;
                 }
+
+                final int inner = filled ? -1
+                    : Math.min(extent - 1, Math.min(nextRows[Math.abs(z)], rows[Math.abs(z) + 1]));
+                affected += setRowShell(centerX, centerY + y, centerZ + z, extent, inner, block);
             }
         }
 
         return affected;
     }
 
+    /**
+     * Get the half-width of a row of an ellipsoid or cylinder, which is the
+     * largest x for which {@code lengthSq(x * invRadiusX, yn, zn) <= 1}.
+     *
+     * @param invRadiusX  the inverse of the radius on the X axis
+     * @param yn          the normalized Y offset of the row
+     * @param zn          the normalized Z offset of the row
+     * @param ceilRadiusX the radius on the X axis, rounded up
+     * @return the half-width, or -1 if the row is empty
+     */
+    private static int getRowExtent(double invRadiusX, double yn, double zn, int ceilRadiusX) {
+        final double remaining = 1 - yn * yn - zn * zn;
+        int x = remaining > 0 ? Math.min(ceilRadiusX, (int) (Math.sqrt(remaining) / invRadiusX)) : 0;
+
+        // Correct the estimate with the exact test, which decides ties
+        while (x >= 0 && lengthSq(x * invRadiusX, yn, zn) > 1) {
+            --x;
+        }
+        while (x < ceilRadiusX && lengthSq((x + 1) * invRadiusX, yn, zn) <= 1) {
+            ++x;
+        }
+        return x;
+    }
+
+    /**
+     * Set the blocks of a row whose distance from {@code centerX} is greater
+     * than {@code inner} and at most {@code extent}, in order of increasing x.
+     *
+     * @param centerX the X coordinate of the center of the row
+     * @param y       the Y coordinate of the row
+     * @param z       the Z coordinate of the row
+     * @param extent  the half-width of the row
+     * @param inner   the half-width of the part to leave out, or -1 to set the whole row
+     * @param pattern the pattern to use
+     * @return number of blocks changed
+     * @throws MaxChangedBlocksException thrown if too many blocks are changed
+     */
+    private int setRowShell(int centerX, int y, int z, int extent, int inner, Pattern pattern)
+        throws MaxChangedBlocksException {
+        int affected = 0;
+        for (int x = centerX - extent; x <= centerX + extent; ++x) {
+            if (x == centerX - inner && inner >= 0) {
+                x = centerX + inner;
+                continue;
+            }
+            if (setBlock(new Vector(x, y, z), pattern)) {
+                ++affected;
+            }
+        }
+        return affected;
+    }
+
     /**
      * Makes a pyramid.
      *
@@ -1882,48 +1931,27 @@ public class EditSession implements Extent {
      */
     public List<Countable<Integer>> getBlockDistribution(Region region) {
         List<Countable<Integer>> distribution = new ArrayList<Countable<Integer>>();
-        Map<Integer, Countable<Integer>> map = new HashMap<Integer, Countable<Integer>>();
-
-        if (region instanceof CuboidRegion) {
-            // Doing this for speed
-            Vector min = region.getMinimumPoint();
-            Vector max = region.getMaximumPoint();
 
-            int minX = min.getBlockX();
-            int minY = min.getBlockY();
-            int minZ = min.getBlockZ();
-            int maxX = max.getBlockX();
-            int maxY = max.getBlockY();
-            int maxZ = max.getBlockZ();
-
-            for (int x = minX; x <= maxX; ++x) {
-                for (int y = minY; y <= maxY; ++y) {
-                    for (int z = minZ; z <= maxZ; ++z) {
-                        Vector pt = new Vector(x, y, z);
-
-                        int id = getBlockType(pt);
-
-                        if (map.containsKey(id)) {
-                            map.get(id)
-                                .increment();
-                        } else {
-                            Countable<Integer> c = new Countable<Integer>(id, 1);
-                            map.put(id, c);
-                            distribution.add(c);
-                        }
-                    }
+        if (SectionCounter.isSupported()) {
+            int[] histogram = SectionCounter.count(this, region);
+            for (int type = 0; type <= BaseBlock.MAX_ID; ++type) {
+                int amount = 0;
+                for (int data = 0; data < 16; ++data) {
+                    amount += histogram[type << 4 | data];
+                }
+                if (amount > 0) {
+                    distribution.add(new Countable<Integer>(type, amount));
                 }
             }
         } else {
-            for (Vector pt : region) {
-                int id = getBlockType(pt);
-
-                if (map.containsKey(id)) {
-                    map.get(id)
-                        .increment();
-                } else {
-                    Countable<Integer> c = new Countable<Integer>(id, 1);
-                    map.put(id, c);
+            int[] amounts = new int[BaseBlock.MAX_ID + 1];
+            for (Countable<BaseBlock> c : SectionCounter.countEach(this, region)) {
+                amounts[c.getID()
+                    .getType()] += c.getAmount();
+            }
+            for (int type = 0; type <= BaseBlock.MAX_ID; ++type) {
+                if (amounts[type] > 0) {
+                    distribution.add(new Countable<Integer>(type, amounts[type]));
                 }
             }
         }
@@ -1940,52 +1968,19 @@ public class EditSession implements Extent {
      * @param region a region
      * @return the results
      */
-    // TODO reduce code duplication - probably during ops-redux
     public List<Countable<BaseBlock>> getBlockDistributionWithData(Region region) {
-        List<Countable<BaseBlock>> distribution = new ArrayList<Countable<BaseBlock>>();
-        Map<BaseBlock, Countable<BaseBlock>> map = new HashMap<BaseBlock, Countable<BaseBlock>>();
-
-        if (region instanceof CuboidRegion) {
-            // Doing this for speed
-            Vector min = region.getMinimumPoint();
-            Vector max = region.getMaximumPoint();
+        if (!SectionCounter.isSupported()) {
+            List<Countable<BaseBlock>> distribution = SectionCounter.countEach(this, region);
+            Collections.sort(distribution);
+            return distribution;
+        }
 
-            int minX = min.getBlockX();
-            int minY = min.getBlockY();
-            int minZ = min.getBlockZ();
-            int maxX = max.getBlockX();
-            int maxY = max.getBlockY();
-            int maxZ = max.getBlockZ();
+        int[] histogram = SectionCounter.count(this, region);
+        List<Countable<BaseBlock>> distribution = new ArrayList<Countable<BaseBlock>>();
 
-            for (int x = minX; x <= maxX; ++x) {
-                for (int y = minY; y <= maxY; ++y) {
-                    for (int z = minZ; z <= maxZ; ++z) {
-                        Vector pt = new Vector(x, y, z);
-
-                        BaseBlock blk = new BaseBlock(getBlockType(pt), getBlockData(pt));
-
-                        if (map.containsKey(blk)) {
-                            map.get(blk)
-                                .increment();
-                        } else {
-                            Countable<BaseBlock> c = new Countable<BaseBlock>(blk, 1);
-                            map.put(blk, c);
-                            distribution.add(c);
-                        }
-                    }
-                }
-            }
-        } else {
-            for (Vector pt : region) {
-                BaseBlock blk = new BaseBlock(getBlockType(pt), getBlockData(pt));
-
-                if (map.containsKey(blk)) {
-                    map.get(blk)
-                        .increment();
-                } else {
-                    Countable<BaseBlock> c = new Countable<BaseBlock>(blk, 1);
-                    map.put(blk, c);
-                }
+        for (int index = 0; index < histogram.length; ++index) {
+            if (histogram[index] > 0) {
+                distribution.add(new Countable<BaseBlock>(new BaseBlock(index >>> 4, index & 15), histogram[index]));
             }
         }
 
@@ -2006,6 +2001,9 @@ public class EditSession implements Extent {
         final WorldEditExpressionEnvironment environment = new WorldEditExpressionEnvironment(this, unit, zero);
         expression.setEnvironment(environment);
 
+        // Evaluations that depend on earlier ones must run in order, and must not be repeated
+        final boolean stateless = expression.isStateless(5, "type", "data");
+
         final ArbitraryShape shape = new ArbitraryShape(region) {
 
             @Override
@@ -2031,6 +2029,105 @@ public class EditSession implements Extent {
                     return null;
                 }
             }
+
+            private final double[][] inputs = new double[5][];
+            private final double[][] outputs = new double[2][];
+            private double[] results;
+
+            @Override
+            protected void getMaterials(int[] x, int[] y, int[] z, BaseBlock[] defaultMaterials, int length,
+                BaseBlock[] materials) {
+                if (!stateless) {
+                    super.getMaterials(x, y, z, defaultMaterials, length, materials);
+                    return;
+                }
+
+                if (results == null || results.length < length) {
+                    for (int i = 0; i < inputs.length; ++i) {
+                        inputs[i] = new double[length];
+                    }
+                    for (int i = 0; i < outputs.length; ++i) {
+                        outputs[i] = new double[length];
+                    }
+                    results = new double[length];
+                }
+
+                for (int i = 0; i < length; ++i) {
+                    inputs[0][i] = (x[i] - zero.getX()) / unit.getX();
+                    inputs[1][i] = (y[i] - zero.getY()) / unit.getY();
+                    inputs[2][i] = (z[i] - zero.getZ()) / unit.getZ();
+                    inputs[3][i] = defaultMaterials[i].getType();
+                    inputs[4][i] = defaultMaterials[i].getData();
+                }
+
+                environment.setCurrentBlocks(x, y, z);
+                try {
+                    expression.evaluateParallel(inputs, length, results, outputs, "type", "data");
+                } catch (EvaluationException e) {
+                    // The expression keeps no state, so the blocks can be evaluated again one by one to find the
+                    // ones that fail
+                    super.getMaterials(x, y, z, defaultMaterials, length, materials);
+                    return;
+                }
+
+                for (int i = 0; i < length; ++i) {
+                    materials[i] = results[i] <= 0 ? null : new BaseBlock((int) outputs[0][i], (int) outputs[1][i]);
+                }
+            }
+
+            // Any material the pattern may return
+            private final Interval anyType = new Interval(0, Integer.MAX_VALUE);
+            private final Interval anyData = new Interval(0, Integer.MAX_VALUE);
+            private final Interval[] materialIntervals = new Interval[2];
+
+            @Override
+            protected Coverage getCoverage(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+                if (!stateless) {
+                    // Skipping or reordering evaluations would change the state they leave behind
+                    return null;
+                }
+
+                final Interval result = expression.evaluateInterval(
+                    new Interval[] { scale(minX, maxX, zero.getX(), unit.getX()),
+                        scale(minY, maxY, zero.getY(), unit.getY()), scale(minZ, maxZ, zero.getZ(), unit.getZ()),
+                        anyType, anyData },
+                    materialIntervals,
+                    "type",
+                    "data");
+                if (result == null) {
+                    return null;
+                }
+
+                if (result.isFalse()) {
+                    return Coverage.NONE;
+                }
+
+                if (!result.isTrue()) {
+                    return Coverage.UNKNOWN;
+                }
+
+                final Interval type = materialIntervals[0];
+                final Interval data = materialIntervals[1];
+                if (type == anyType && data == anyData) {
+                    // The expression keeps the material of the pattern
+                    return Coverage.all(null);
+                }
+
+                if (type.isPoint() && data.isPoint()) {
+                    return Coverage.all(new BaseBlock((int) type.getMin(), (int) data.getMin()));
+                }
+
+                return Coverage.UNKNOWN;
+            }
+
+            private Interval scale(int min, int max, double zero, double unit) {
+                final double scaledMin = (min - zero) / unit;
+                final double scaledMax = (max - zero) / unit;
+                if (Double.isNaN(scaledMin) || Double.isNaN(scaledMax)) {
+                    return Interval.UNBOUNDED;
+                }
+                return new Interval(Math.min(scaledMin, scaledMax), Math.max(scaledMin, scaledMax));
+            }
         };
 
         return shape.generate(this, pattern, hollow);
@@ -2041,33 +2138,37 @@ public class EditSession implements Extent {
         final Expression expression = Expression.compile(expressionString, "x", "y", "z");
         expression.optimize();
 
-        final RValue x = expression.getVariable("x", false);
-        final RValue y = expression.getVariable("y", false);
-        final RValue z = expression.getVariable("z", false);
-
         final WorldEditExpressionEnvironment environment = new WorldEditExpressionEnvironment(this, unit, zero);
         expression.setEnvironment(environment);
 
         final DoubleArrayList<BlockVector, BaseBlock> queue = new DoubleArrayList<BlockVector, BaseBlock>(false);
 
+        // transform the positions in batches
+        final int batchSize = 4096;
+        final BlockVector[] positions = new BlockVector[batchSize];
+        final double[][] inputs = new double[3][batchSize];
+        final double[][] outputs = new double[3][batchSize];
+        final double[] results = new double[batchSize];
+        int length = 0;
+
         for (BlockVector position : region) {
             // offset, scale
             final Vector scaled = position.subtract(zero)
                 .divide(unit);
 
-            // transform
-            expression.evaluate(scaled.getX(), scaled.getY(), scaled.getZ());
-
-            final BlockVector sourcePosition = environment.toWorld(x.getValue(), y.getValue(), z.getValue());
+            positions[length] = position;
+            inputs[0][length] = scaled.getX();
+            inputs[1][length] = scaled.getY();
+            inputs[2][length] = scaled.getZ();
 
-            // read block from world
-            // TODO: use getBlock here once the reflection is out of the way
-            final BaseBlock material = new BaseBlock(
-                world.getBlockType(sourcePosition),
-                world.getBlockData(sourcePosition));
+            if (++length == batchSize) {
+                deformBatch(expression, environment, positions, inputs, outputs, results, length, queue);
+                length = 0;
+            }
+        }
 
-            // queue operation
-            queue.put(position, material);
+        if (length > 0) {
+            deformBatch(expression, environment, positions, inputs, outputs, results, length, queue);
         }
 
         int affected = 0;
@@ -2084,6 +2185,26 @@ public class EditSession implements Extent {
         return affected;
     }
 
+    private void deformBatch(Expression expression, WorldEditExpressionEnvironment environment,
+        BlockVector[] positions, double[][] inputs, double[][] outputs, double[] results, int length,
+        DoubleArrayList<BlockVector, BaseBlock> queue) throws EvaluationException {
+        // transform
+        expression.evaluateParallel(inputs, length, results, outputs, "x", "y", "z");
+
+        for (int i = 0; i < length; ++i) {
+            final BlockVector sourcePosition = environment.toWorld(outputs[0][i], outputs[1][i], outputs[2][i]);
+
+            // read block from world
+            // TODO: use getBlock here once the reflection is out of the way
+            final BaseBlock material = new BaseBlock(
+                world.getBlockType(sourcePosition),
+                world.getBlockData(sourcePosition));
+
+            // queue operation
+            queue.put(positions[i], material);
+        }
+    }
+
     /**
      * Hollows out the region (Semi-well-defined for non-cuboid selections).
      *
@@ -2180,7 +2301,7 @@ public class EditSession implements Extent {
     public int drawLine(Pattern pattern, Vector pos1, Vector pos2, double radius, boolean filled)
         throws MaxChangedBlocksException {
 
-        Set<Vector> vset = new HashSet<Vector>();
+        BlockBitSet vset = new BlockBitSet();
         boolean notdrawn = true;
 
         int x1 = pos1.getBlockX(), y1 = pos1.getBlockY(), z1 = pos1.getBlockZ();
@@ -2189,7 +2310,7 @@ public class EditSession implements Extent {
         int dx = Math.abs(x2 - x1), dy = Math.abs(y2 - y1), dz = Math.abs(z2 - z1);
 
         if (dx + dy + dz == 0) {
-            vset.add(new Vector(tipx, tipy, tipz));
+            vset.add(tipx, tipy, tipz);
             notdrawn = false;
         }
 
@@ -2199,7 +2320,7 @@ public class EditSession implements Extent {
                 tipy = (int) Math.round(y1 + domstep * ((double) dy) / ((double) dx) * (y2 - y1 > 0 ? 1 : -1));
                 tipz = (int) Math.round(z1 + domstep * ((double) dz) / ((double) dx) * (z2 - z1 > 0 ? 1 : -1));
 
-                vset.add(new Vector(tipx, tipy, tipz));
+                vset.add(tipx, tipy, tipz);
             }
             notdrawn = false;
         }
@@ -2210,7 +2331,7 @@ public class EditSession implements Extent {
                 tipx = (int) Math.round(x1 + domstep * ((double) dx) / ((double) dy) * (x2 - x1 > 0 ? 1 : -1));
                 tipz = (int) Math.round(z1 + domstep * ((double) dz) / ((double) dy) * (z2 - z1 > 0 ? 1 : -1));
 
-                vset.add(new Vector(tipx, tipy, tipz));
+                vset.add(tipx, tipy, tipz);
             }
             notdrawn = false;
         }
@@ -2221,14 +2342,14 @@ public class EditSession implements Extent {
                 tipy = (int) Math.round(y1 + domstep * ((double) dy) / ((double) dz) * (y2 - y1 > 0 ? 1 : -1));
                 tipx = (int) Math.round(x1 + domstep * ((double) dx) / ((double) dz) * (x2 - x1 > 0 ? 1 : -1));
 
-                vset.add(new Vector(tipx, tipy, tipz));
+                vset.add(tipx, tipy, tipz);
             }
             notdrawn = false;
         }
 
         vset = getBallooned(vset, radius);
         if (!filled) {
-            vset = getHollowed(vset);
+            vset = vset.getShell();
         }
         return setBlocks(vset, pattern);
     }
@@ -2251,7 +2372,7 @@ public class EditSession implements Extent {
     public int drawSpline(Pattern pattern, List<Vector> nodevectors, double tension, double bias, double continuity,
         double quality, double radius, boolean filled) throws MaxChangedBlocksException {
 
-        Set<Vector> vset = new HashSet<Vector>();
+        BlockBitSet vset = new BlockBitSet();
         List<Node> nodes = new ArrayList<Node>(nodevectors.size());
 
         Interpolation interpol = new KochanekBartelsInterpolation();
@@ -2272,55 +2393,21 @@ public class EditSession implements Extent {
             int tipy = (int) Math.round(tipv.getY());
             int tipz = (int) Math.round(tipv.getZ());
 
-            vset.add(new Vector(tipx, tipy, tipz));
+            vset.add(tipx, tipy, tipz);
         }
 
         vset = getBallooned(vset, radius);
         if (!filled) {
-            vset = getHollowed(vset);
+            vset = vset.getShell();
         }
         return setBlocks(vset, pattern);
     }
 
-    private static double hypot(double... pars) {
-        double sum = 0;
-        for (double d : pars) {
-            sum += Math.pow(d, 2);
-        }
-        return Math.sqrt(sum);
-    }
-
-    private static Set<Vector> getBallooned(Set<Vector> vset, double radius) {
-        Set<Vector> returnset = new HashSet<Vector>();
-        int ceilrad = (int) Math.ceil(radius);
-
-        for (Vector v : vset) {
-            int tipx = v.getBlockX(), tipy = v.getBlockY(), tipz = v.getBlockZ();
-
-            for (int loopx = tipx - ceilrad; loopx <= tipx + ceilrad; loopx++) {
-                for (int loopy = tipy - ceilrad; loopy <= tipy + ceilrad; loopy++) {
-                    for (int loopz = tipz - ceilrad; loopz <= tipz + ceilrad; loopz++) {
-                        if (hypot(loopx - tipx, loopy - tipy, loopz - tipz) <= radius) {
-                            returnset.add(new Vector(loopx, loopy, loopz));
-                        }
-                    }
-                }
-            }
-        }
-        return returnset;
-    }
-
-    private static Set<Vector> getHollowed(Set<Vector> vset) {
-        Set<Vector> returnset = new HashSet<Vector>();
-        for (Vector v : vset) {
-            double x = v.getX(), y = v.getY(), z = v.getZ();
-            if (!(vset.contains(new Vector(x + 1, y, z)) && vset.contains(new Vector(x - 1, y, z))
-                && vset.contains(new Vector(x, y + 1, z))
-                && vset.contains(new Vector(x, y - 1, z))
-                && vset.contains(new Vector(x, y, z + 1))
-                && vset.contains(new Vector(x, y, z - 1)))) {
-                returnset.add(v);
-            }
+    private static BlockBitSet getBallooned(BlockBitSet vset, double radius) {
+        final BlockBitSet returnset = new BlockBitSet();
+        final BlockBitSet.Kernel kernel = BlockBitSet.Kernel.sphere(radius);
+        for (BlockVector v : vset) {
+            returnset.stamp(v.getBlockX(), v.getBlockY(), v.getBlockZ(), kernel);
         }
         return returnset;
     }
@@ -2397,8 +2484,4 @@ public class EditSession implements Extent {
         return (x * x) + (y * y) + (z * z);
     }
 
-    private static double lengthSq(double x, double z) {
-        return (x * x) + (z * z);
-    }
-
 }
@@ -60,6 +60,7 @@ public abstract class LocalConfiguration {
     public int maxPolyhedronPoints = 20;
     public String shellSaveType = "";
     public SnapshotRepository snapshotRepo = null;
+    public int snapshotCacheSize = 64;
     public int maxRadius = -1;
     public int maxSuperPickaxeSize = 5;
     public int maxBrushRadius = 6;
@@ -77,6 +78,7 @@ public abstract class LocalConfiguration {
     public int navigationWand = ItemID.COMPASS;
     public int navigationWandMaxDistance = 50;
     public int scriptTimeout = 3000;
+    public int expressionBufferLimit = 64;
     public Set<Integer> allowedDataCycleBlocks = new HashSet<Integer>();
     public String saveDir = "schematics";
     public String scriptsDir = "craftscripts";
@@ -25,12 +25,11 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
 import com.sk89q.minecraft.util.commands.Command;
 import com.sk89q.minecraft.util.commands.CommandContext;
@@ -39,6 +38,7 @@ import com.sk89q.minecraft.util.commands.CommandPermissions;
 import com.sk89q.worldedit.EditSession;
 import com.sk89q.worldedit.LocalConfiguration;
 import com.sk89q.worldedit.LocalSession;
+import com.sk89q.worldedit.Vector;
 import com.sk89q.worldedit.WorldEdit;
 import com.sk89q.worldedit.WorldEditException;
 import com.sk89q.worldedit.entity.Player;
@@ -48,6 +48,7 @@ import com.sk89q.worldedit.extent.clipboard.Clipboard;
 import com.sk89q.worldedit.extent.clipboard.io.ClipboardFormat;
 import com.sk89q.worldedit.extent.clipboard.io.ClipboardReader;
 import com.sk89q.worldedit.extent.clipboard.io.ClipboardWriter;
+import com.sk89q.worldedit.extent.clipboard.io.SchematicIndex;
 import com.sk89q.worldedit.function.operation.Operations;
 import com.sk89q.worldedit.math.transform.Transform;
 import com.sk89q.worldedit.session.ClipboardHolder;
@@ -68,6 +69,7 @@ public class SchematicCommands {
     private static final int SCHEMATICS_PER_PAGE = 9;
     private static final Logger log = Logger.getLogger(SchematicCommands.class.getCanonicalName());
     private final WorldEdit worldEdit;
+    private SchematicIndex index;
 
     /**
      * Create a new instance.
@@ -250,24 +252,37 @@ public class SchematicCommands {
         desc = "List saved schematics",
         min = 0,
         max = 1,
-        flags = "dnp",
+        flags = "dnsfp",
         help = "List all schematics in the schematics directory\n" + " -d sorts by date, oldest first\n"
             + " -n sorts by date, newest first\n"
+            + " -s sorts by volume, largest first\n"
+            + " -f <filter> only lists schematics whose name contains the filter\n"
             + " -p <page> prints the requested page\n")
     @CommandPermissions("worldedit.schematic.list")
-    public void list(Actor actor, CommandContext args, @Switch('p') @Optional("1") int page) throws WorldEditException {
+    public void list(Actor actor, CommandContext args, @Switch('p') @Optional("1") int page,
+        @Switch('f') @Optional String filter) throws WorldEditException {
         File dir = worldEdit.getWorkingDirectoryFile(worldEdit.getConfiguration().saveDir);
-        List<File> fileList = allFiles(dir);
+        List<SchematicIndex.Entry> entries = getIndex(dir).refresh();
+
+        if (filter != null) {
+            String needle = filter.toLowerCase();
+            List<SchematicIndex.Entry> filtered = new ArrayList<SchematicIndex.Entry>();
+            for (SchematicIndex.Entry entry : entries) {
+                if (entry.getPath()
+                    .toLowerCase()
+                    .contains(needle)) {
+                    filtered.add(entry);
+                }
+            }
+            entries = filtered;
+        }
 
-        if (fileList.isEmpty()) {
+        if (entries.isEmpty()) {
             actor.printError("No schematics found.");
             return;
         }
 
-        File[] files = new File[fileList.size()];
-        fileList.toArray(files);
-
-        int pageCount = files.length / SCHEMATICS_PER_PAGE + 1;
+        int pageCount = (entries.size() - 1) / SCHEMATICS_PER_PAGE + 1;
         if (page < 1) {
             actor.printError("Page must be at least 1");
             return;
@@ -277,40 +292,34 @@ public class SchematicCommands {
             return;
         }
 
-        final int sortType = args.hasFlag('d') ? -1 : args.hasFlag('n') ? 1 : 0;
-        // cleanup file list
-        Arrays.sort(files, new Comparator<File>() {
+        final int sortType = args.hasFlag('d') ? -1 : args.hasFlag('n') ? 1 : args.hasFlag('s') ? 2 : 0;
+        Collections.sort(entries, new Comparator<SchematicIndex.Entry>() {
 
             @Override
-            public int compare(File f1, File f2) {
-                // http://stackoverflow.com/questions/203030/best-way-to-list-files-in-java-sorted-by-date-modified
+            public int compare(SchematicIndex.Entry e1, SchematicIndex.Entry e2) {
                 int res;
-                if (sortType == 0) { // use name by default
-                    int p = f1.getParent()
-                        .compareTo(f2.getParent());
-                    if (p == 0) { // same parent, compare names
-                        res = f1.getName()
-                            .compareTo(f2.getName());
-                    } else { // different parent, sort by that
-                        res = p;
-                    }
+                if (sortType == 0) { // use path by default, which keeps folders together
+                    res = e1.getPath()
+                        .compareTo(e2.getPath());
+                } else if (sortType == 2) {
+                    res = Long.valueOf(e2.getVolume())
+                        .compareTo(e1.getVolume());
                 } else {
-                    res = Long.valueOf(f1.lastModified())
-                        .compareTo(f2.lastModified()); // use date if there is a flag
+                    res = Long.valueOf(e1.getLastModified())
+                        .compareTo(e2.getLastModified()); // use date if there is a flag
                     if (sortType == 1) res = -res; // flip date for newest first instead of oldest first
                 }
                 return res;
             }
         });
 
-        List<String> schematics = listFiles(worldEdit.getConfiguration().saveDir, files);
         int offset = (page - 1) * SCHEMATICS_PER_PAGE;
 
         actor.print("Available schematics (Filename: Format) [" + page + "/" + pageCount + "]:");
         StringBuilder build = new StringBuilder();
-        int limit = Math.min(offset + SCHEMATICS_PER_PAGE, schematics.size());
+        int limit = Math.min(offset + SCHEMATICS_PER_PAGE, entries.size());
         for (int i = offset; i < limit;) {
-            build.append(schematics.get(i));
+            build.append(describe(entries.get(i)));
             if (++i != limit) {
                 build.append("\n");
             }
@@ -319,41 +328,39 @@ public class SchematicCommands {
         actor.print(build.toString());
     }
 
-    private List<File> allFiles(File root) {
-        File[] files = root.listFiles();
-        if (files == null) return null;
-        List<File> fileList = new ArrayList<File>();
-        for (File f : files) {
-            if (f.isDirectory()) {
-                List<File> subFiles = allFiles(f);
-                if (subFiles == null) continue; // empty subdir
-                fileList.addAll(subFiles);
-            } else {
-                fileList.add(f);
-            }
+    /**
+     * Get the schematic index for the given directory, creating it if the
+     * directory changed since the last call.
+     *
+     * @param dir the schematic directory
+     * @return the index
+     */
+    private synchronized SchematicIndex getIndex(File dir) {
+        if (index == null || !index.getDirectory()
+            .equals(dir)) {
+            index = new SchematicIndex(dir);
         }
-        return fileList;
+        return index;
     }
 
-    private List<String> listFiles(String prefix, File[] files) {
-        if (prefix == null) prefix = "";
-        List<String> result = new ArrayList<String>();
-        for (File file : files) {
-            StringBuilder build = new StringBuilder();
-
-            build.append("\u00a72");
-            ClipboardFormat format = ClipboardFormat.findByFile(file);
-            boolean inRoot = file.getParentFile()
-                .getName()
-                .equals(prefix);
-            build.append(
-                inRoot ? file.getName()
-                    : file.getPath()
-                        .split(Pattern.quote(prefix + File.separator))[1])
-                .append(": ")
-                .append(format == null ? "Unknown" : format.name());
-            result.add(build.toString());
+    private String describe(SchematicIndex.Entry entry) {
+        StringBuilder build = new StringBuilder();
+        ClipboardFormat format = entry.getFormat();
+        Vector dimensions = entry.getDimensions();
+
+        build.append("\u00a72")
+            .append(entry.getPath())
+            .append(": ")
+            .append(format == null ? "Unknown" : format.name());
+        if (dimensions != null) {
+            build.append(" (")
+                .append(dimensions.getBlockX())
+                .append("x")
+                .append(dimensions.getBlockY())
+                .append("x")
+                .append(dimensions.getBlockZ())
+                .append(")");
         }
-        return result;
+        return build.toString();
     }
 }
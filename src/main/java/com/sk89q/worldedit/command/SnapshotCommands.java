@@ -26,6 +26,7 @@ import java.util.Calendar;
 import java.util.List;
 import java.util.logging.Logger;
 
+import com.google.common.cache.CacheStats;
 import com.sk89q.minecraft.util.commands.Command;
 import com.sk89q.minecraft.util.commands.CommandContext;
 import com.sk89q.minecraft.util.commands.CommandPermissions;
@@ -37,6 +38,7 @@ import com.sk89q.worldedit.WorldEditException;
 import com.sk89q.worldedit.entity.Player;
 import com.sk89q.worldedit.world.snapshot.InvalidSnapshotException;
 import com.sk89q.worldedit.world.snapshot.Snapshot;
+import com.sk89q.worldedit.world.snapshot.SnapshotChunkCache;
 import com.sk89q.worldedit.world.storage.MissingWorldException;
 
 /**
@@ -276,4 +278,38 @@ public class SnapshotCommands {
         }
     }
 
+    @Command(
+        aliases = { "cache" },
+        desc = "Show statistics of the snapshot chunk cache",
+        flags = "c",
+        help = "Show statistics of the snapshot chunk cache.\n" + "The -c flag clears the cache.",
+        min = 0,
+        max = 0)
+    @CommandPermissions("worldedit.snapshots.cache")
+    public void cache(Player player, CommandContext args) throws WorldEditException {
+        SnapshotChunkCache cache = SnapshotChunkCache.getInstance();
+
+        if (args.hasFlag('c')) {
+            cache.invalidateAll();
+            player.print("Snapshot chunk cache cleared.");
+            return;
+        }
+
+        if (cache.getCapacity() == 0) {
+            player.printError("The snapshot chunk cache is disabled.");
+            return;
+        }
+
+        CacheStats stats = cache.getStats();
+        player.print(
+            String.format(
+                "%d chunk(s) cached (limit %d MB); %d hit(s), %d miss(es), %.1f%% hit rate, %d eviction(s).",
+                cache.getSize(),
+                cache.getCapacity(),
+                stats.hitCount(),
+                stats.missCount(),
+                stats.hitRate() * 100,
+                stats.evictionCount()));
+    }
+
 }
@@ -54,6 +54,9 @@ public class SnapshotUtilCommands {
         aliases = { "restore", "/restore" },
         usage = "[snapshot]",
         desc = "Restore the selection from a snapshot",
+        flags = "d",
+        help = "Restore the selection from a snapshot.\n"
+            + "The -d flag only changes blocks that differ from the snapshot.",
         min = 0,
         max = 1)
     @Logging(REGION)
@@ -128,6 +131,7 @@ public class SnapshotUtilCommands {
         try {
             // Restore snapshot
             SnapshotRestore restore = new SnapshotRestore(chunkStore, editSession, region);
+            restore.setDifferential(args.hasFlag('d'));
             // player.print(restore.getChunksAffected() + " chunk(s) will be loaded.");
 
             restore.restore();
@@ -148,6 +152,9 @@ public class SnapshotUtilCommands {
                             .size(),
                         restore.getErrorChunks()
                             .size()));
+                if (restore.isDifferential()) {
+                    player.print(restore.getUnchangedBlocks() + " block(s) were already the same as the snapshot.");
+                }
             }
         } finally {
             try {
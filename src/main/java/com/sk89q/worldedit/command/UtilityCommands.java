@@ -517,6 +517,23 @@ public class UtilityCommands {
         }
     }
 
+    @Command(
+        aliases = { "/calctree", "/exprtree" },
+        usage = "<expression>",
+        desc = "Print the optimized tree of an expression",
+        help = "Prints the tree of an expression after it was optimized, one node per line.\n"
+            + "The variables x, y, z, type and data can be used as in //generate.")
+    @CommandPermissions("worldedit.calc.tree")
+    public void calcTree(Actor actor, @Text String input) throws CommandException {
+        try {
+            Expression expression = Expression.compile(input, "x", "y", "z", "type", "data");
+            expression.optimize();
+            actor.print(expression.toTreeString());
+        } catch (ExpressionException e) {
+            actor.printError(String.format("'%s' could not be parsed (error: %s)", input, e.getMessage()));
+        }
+    }
+
     @Command(
         aliases = { "/help" },
         usage = "[<command>]",
@@ -16,19 +16,26 @@
 
 package com.sk89q.worldedit.command.tool;
 
-import java.util.HashSet;
-import java.util.Set;
-
-import com.sk89q.worldedit.BlockVector;
 import com.sk89q.worldedit.EditSession;
 import com.sk89q.worldedit.LocalConfiguration;
 import com.sk89q.worldedit.LocalSession;
 import com.sk89q.worldedit.MaxChangedBlocksException;
 import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
 import com.sk89q.worldedit.blocks.BlockID;
 import com.sk89q.worldedit.entity.Player;
 import com.sk89q.worldedit.extension.platform.Actor;
 import com.sk89q.worldedit.extension.platform.Platform;
+import com.sk89q.worldedit.extent.cache.SectionSnapshotExtent;
+import com.sk89q.worldedit.function.block.BlockReplace;
+import com.sk89q.worldedit.function.mask.AbstractMask;
+import com.sk89q.worldedit.function.mask.BlockMask;
+import com.sk89q.worldedit.function.mask.Mask;
+import com.sk89q.worldedit.function.mask.Mask2D;
+import com.sk89q.worldedit.function.mask.MaskIntersection;
+import com.sk89q.worldedit.function.operation.Operations;
+import com.sk89q.worldedit.function.pattern.Patterns;
+import com.sk89q.worldedit.function.visitor.RecursiveVisitor;
 import com.sk89q.worldedit.patterns.Pattern;
 import com.sk89q.worldedit.util.Location;
 import com.sk89q.worldedit.world.World;
@@ -69,16 +76,26 @@ public class FloodFillTool implements BlockTool {
         EditSession editSession = session.createEditSession(player);
 
         try {
-            recurse(
-                server,
-                editSession,
-                world,
-                clicked.toVector()
-                    .toBlockVector(),
-                clicked.toVector(),
-                range,
-                initialType,
-                new HashSet<BlockVector>());
+            final Vector origin = clicked.toVector();
+            SectionSnapshotExtent snapshot = new SectionSnapshotExtent(editSession);
+
+            Mask mask = new MaskIntersection(new AbstractMask() {
+
+                @Override
+                public boolean test(Vector vector) {
+                    return origin.distance(vector) <= range;
+                }
+
+                @Override
+                public Mask2D toMask2D() {
+                    return null;
+                }
+            }, new BlockMask(snapshot, new BaseBlock(initialType, -1)));
+
+            RecursiveVisitor visitor = new RecursiveVisitor(mask, new BlockReplace(editSession, Patterns.wrap(pattern)));
+            visitor.setParallel(snapshot);
+            visitor.visit(origin);
+            Operations.completeLegacy(visitor);
         } catch (MaxChangedBlocksException e) {
             player.printError("Max blocks change limit reached.");
         } finally {
@@ -88,82 +105,4 @@ public class FloodFillTool implements BlockTool {
         return true;
     }
 
-    private void recurse(Platform server, EditSession editSession, World world, BlockVector pos, Vector origin,
-        int size, int initialType, Set<BlockVector> visited) throws MaxChangedBlocksException {
-
-        if (origin.distance(pos) > size || visited.contains(pos)) {
-            return;
-        }
-
-        visited.add(pos);
-
-        if (editSession.getBlock(pos)
-            .getType() == initialType) {
-            editSession.setBlock(pos, pattern.next(pos));
-        } else {
-            return;
-        }
-
-        recurse(
-            server,
-            editSession,
-            world,
-            pos.add(1, 0, 0)
-                .toBlockVector(),
-            origin,
-            size,
-            initialType,
-            visited);
-        recurse(
-            server,
-            editSession,
-            world,
-            pos.add(-1, 0, 0)
-                .toBlockVector(),
-            origin,
-            size,
-            initialType,
-            visited);
-        recurse(
-            server,
-            editSession,
-            world,
-            pos.add(0, 0, 1)
-                .toBlockVector(),
-            origin,
-            size,
-            initialType,
-            visited);
-        recurse(
-            server,
-            editSession,
-            world,
-            pos.add(0, 0, -1)
-                .toBlockVector(),
-            origin,
-            size,
-            initialType,
-            visited);
-        recurse(
-            server,
-            editSession,
-            world,
-            pos.add(0, 1, 0)
-                .toBlockVector(),
-            origin,
-            size,
-            initialType,
-            visited);
-        recurse(
-            server,
-            editSession,
-            world,
-            pos.add(0, -1, 0)
-                .toBlockVector(),
-            origin,
-            size,
-            initialType,
-            visited);
-    }
-
 }
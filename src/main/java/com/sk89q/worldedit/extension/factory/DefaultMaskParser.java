@@ -150,6 +150,7 @@ class DefaultMaskParser extends InputParser<Mask> {
             case '=':
                 try {
                     Expression exp = Expression.compile(component.substring(1), "x", "y", "z");
+                    exp.optimize();
                     WorldEditExpressionEnvironment env = new WorldEditExpressionEnvironment(
                         Request.request()
                             .getEditSession(),
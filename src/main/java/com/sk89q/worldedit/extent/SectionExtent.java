@@ -0,0 +1,62 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.extent;
+
+/**
+ * An extent that can read whole 16x16x16 sections at once, more cheaply
+ * than one block at a time.
+ */
+public interface SectionExtent extends Extent {
+
+    /**
+     * Return whether every block of a section is known to be air.
+     *
+     * <p>
+     * Implementations that can't tell without reading each block should
+     * return false.
+     * </p>
+     *
+     * @param sectionX the X coordinate of the section, which is the block X shifted right by 4
+     * @param sectionY the Y coordinate of the section, which is the block Y shifted right by 4
+     * @param sectionZ the Z coordinate of the section, which is the block Z shifted right by 4
+     * @return true if the section only contains air
+     */
+    boolean isSectionEmpty(int sectionX, int sectionY, int sectionZ);
+
+    /**
+     * Copy the types and data values of the blocks of a section.
+     *
+     * <p>
+     * The block at local coordinates x, y and z is stored at index
+     * {@code y << 8 | z << 4 | x}, as {@code type << 4 | data}. Like
+     * {@link #getLazyBlock(com.sk89q.worldedit.Vector)}, this must be called
+     * from a thread that may read the extent.
+     * </p>
+     *
+     * <p>
+     * Only data values 0 to 15 fit, so callers must not rely on copies if
+     * {@link com.sk89q.worldedit.blocks.BaseBlock#MAX_DATA} is larger.
+     * </p>
+     *
+     * @param sectionX the X coordinate of the section, which is the block X shifted right by 4
+     * @param sectionY the Y coordinate of the section, which is the block Y shifted right by 4
+     * @param sectionZ the Z coordinate of the section, which is the block Z shifted right by 4
+     * @param blocks   an array of at least 4096 entries that receives the blocks
+     */
+    void copySection(int sectionX, int sectionY, int sectionZ, char[] blocks);
+
+}
@@ -0,0 +1,256 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.extent.cache;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.WorldEditException;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.extent.AbstractDelegateExtent;
+import com.sk89q.worldedit.extent.Extent;
+import com.sk89q.worldedit.extent.SectionExtent;
+
+/**
+ * Keeps copies of the types and data values of 16x16x16 sections of an
+ * extent, so that blocks can be read from other threads.
+ *
+ * <p>
+ * Sections are only copied by {@link #load(int, int, int)}, which must be
+ * called from the thread that created this extent while no other thread
+ * reads from it. That thread reads blocks in other sections straight from
+ * the underlying extent. Other threads can only read blocks in sections
+ * that were copied, and get a {@link NotLoadedException} for the rest.
+ * </p>
+ *
+ * <p>
+ * Blocks read from a copy carry no NBT data, and changes that are made to
+ * the underlying extent after a section was copied are not seen, unless
+ * they are made through this extent.
+ * </p>
+ *
+ * <p>
+ * Copies pack the type and data value of a block into 16 bits, leaving
+ * 4 bits for the data value. If data values can be larger, as with
+ * NotEnoughIDs, nothing is copied and every read goes to the underlying
+ * extent; see {@link #isSupported()}.
+ * </p>
+ */
+public class SectionSnapshotExtent extends AbstractDelegateExtent {
+
+    private static final int SECTION_BITS = 4;
+    private static final int SECTION_SIZE = 1 << SECTION_BITS;
+    private static final int SECTION_MASK = SECTION_SIZE - 1;
+
+    /**
+     * The number of sections that are kept before all of them are dropped,
+     * which is 32 MB of copies.
+     */
+    private static final int MAX_SECTIONS = 4096;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final Thread owner;
+    private long[] keys = new long[MIN_CAPACITY];
+    private char[][] sections = new char[MIN_CAPACITY][];
+    private int sectionCount = 0;
+
+    /**
+     * Create a new instance.
+     *
+     * @param extent the extent
+     */
+    public SectionSnapshotExtent(Extent extent) {
+        super(extent);
+        this.owner = Thread.currentThread();
+    }
+
+    /**
+     * Return whether sections can be copied, which is the case if every
+     * data value fits in 4 bits.
+     *
+     * @return true if sections can be copied
+     */
+    public static boolean isSupported() {
+        return BaseBlock.MAX_DATA <= 15;
+    }
+
+    /**
+     * Copy the section that contains a position, if it was not copied yet.
+     * Nothing is copied if sections {@link #isSupported() can't be copied}.
+     *
+     * @param x the X coordinate
+     * @param y the Y coordinate
+     * @param z the Z coordinate
+     */
+    public void load(int x, int y, int z) {
+        if (!isSupported()) {
+            return;
+        }
+
+        final long key = getKey(x >> SECTION_BITS, y >> SECTION_BITS, z >> SECTION_BITS);
+        if (getSection(key) != null) {
+            return;
+        }
+
+        if (sectionCount >= MAX_SECTIONS) {
+            clear();
+        }
+
+        final Extent extent = getExtent();
+        final int minX = x & ~SECTION_MASK;
+        final int minY = y & ~SECTION_MASK;
+        final int minZ = z & ~SECTION_MASK;
+        final char[] section = new char[SECTION_SIZE * SECTION_SIZE * SECTION_SIZE];
+        if (extent instanceof SectionExtent) {
+            ((SectionExtent) extent).copySection(x >> SECTION_BITS, y >> SECTION_BITS, z >> SECTION_BITS, section);
+            putSection(key, section);
+            return;
+        }
+
+        for (int localY = 0; localY < SECTION_SIZE; ++localY) {
+            for (int localZ = 0; localZ < SECTION_SIZE; ++localZ) {
+                for (int localX = 0; localX < SECTION_SIZE; ++localX) {
+                    final BaseBlock block = extent
+                        .getLazyBlock(new BlockVector(minX + localX, minY + localY, minZ + localZ));
+                    section[getIndex(localX, localY, localZ)] = (char) (block.getType() << 4 | block.getData());
+                }
+            }
+        }
+        putSection(key, section);
+    }
+
+    /**
+     * Drop all copied sections.
+     */
+    public void clear() {
+        keys = new long[MIN_CAPACITY];
+        sections = new char[MIN_CAPACITY][];
+        sectionCount = 0;
+    }
+
+    @Override
+    public BaseBlock getBlock(Vector position) {
+        final BaseBlock block = getCopy(position);
+        return block != null ? block : super.getBlock(position);
+    }
+
+    @Override
+    public BaseBlock getLazyBlock(Vector position) {
+        final BaseBlock block = getCopy(position);
+        return block != null ? block : super.getLazyBlock(position);
+    }
+
+    @Override
+    public boolean setBlock(Vector location, BaseBlock block) throws WorldEditException {
+        final int x = location.getBlockX();
+        final int y = location.getBlockY();
+        final int z = location.getBlockZ();
+        final char[] section = getSection(getKey(x >> SECTION_BITS, y >> SECTION_BITS, z >> SECTION_BITS));
+        if (section != null) {
+            section[getIndex(x & SECTION_MASK, y & SECTION_MASK, z & SECTION_MASK)] = (char) (block.getType() << 4
+                | block.getData());
+        }
+        return super.setBlock(location, block);
+    }
+
+    /**
+     * Get a block from the copied sections.
+     *
+     * @param position the position
+     * @return the block, or null if its section was not copied and this is the owning thread
+     * @throws NotLoadedException thrown if the section was not copied and this is another thread
+     */
+    private BaseBlock getCopy(Vector position) {
+        final int x = position.getBlockX();
+        final int y = position.getBlockY();
+        final int z = position.getBlockZ();
+        final char[] section = getSection(getKey(x >> SECTION_BITS, y >> SECTION_BITS, z >> SECTION_BITS));
+        if (section == null) {
+            if (Thread.currentThread() == owner) {
+                return null;
+            }
+            throw NotLoadedException.INSTANCE;
+        }
+
+        final char value = section[getIndex(x & SECTION_MASK, y & SECTION_MASK, z & SECTION_MASK)];
+        return new BaseBlock(value >>> 4, value & 15);
+    }
+
+    private static int getIndex(int localX, int localY, int localZ) {
+        return (localY << (SECTION_BITS * 2)) | (localZ << SECTION_BITS) | localX;
+    }
+
+    private static long getKey(int sectionX, int sectionY, int sectionZ) {
+        return ((long) (sectionX & 0x3FFFFF) << 42) | ((long) (sectionZ & 0x3FFFFF) << 20) | (sectionY & 0xFFFFF);
+    }
+
+    private char[] getSection(long key) {
+        final long[] keys = this.keys;
+        final char[][] sections = this.sections;
+        final int mask = keys.length - 1;
+        for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+            final char[] section = sections[slot];
+            if (section == null || keys[slot] == key) {
+                return section;
+            }
+        }
+    }
+
+    private void putSection(long key, char[] section) {
+        if ((sectionCount + 1) * 2 > keys.length) {
+            // Keep the table at most half full
+            final long[] oldKeys = keys;
+            final char[][] oldSections = sections;
+            keys = new long[oldKeys.length * 2];
+            sections = new char[oldKeys.length * 2][];
+            sectionCount = 0;
+            for (int i = 0; i < oldKeys.length; ++i) {
+                if (oldSections[i] != null) {
+                    putSection(oldKeys[i], oldSections[i]);
+                }
+            }
+        }
+
+        final int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (sections[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        sections[slot] = section;
+        ++sectionCount;
+    }
+
+    private static int hash(long key) {
+        final long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Thrown when a thread other than the owning thread reads a block in a
+     * section that was not copied.
+     */
+    public static final class NotLoadedException extends RuntimeException {
+
+        private static final NotLoadedException INSTANCE = new NotLoadedException();
+
+        private NotLoadedException() {
+            super("The section was not copied", null, false, false);
+        }
+    }
+
+}
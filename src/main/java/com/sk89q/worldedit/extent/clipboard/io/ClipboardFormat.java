@@ -84,6 +84,43 @@ public enum ClipboardFormat {
                 }
             }
         }
+    },
+
+    /**
+     * A format that stores independently compressed 16x16x16 sections behind
+     * an index, so that parts of a schematic can be read without inflating
+     * all of it.
+     *
+     * @see SectionedSchematicReader
+     */
+    SECTIONED("sectioned", "wess") {
+
+        @Override
+        public ClipboardReader getReader(InputStream inputStream) throws IOException {
+            return new SectionedSchematicReader(inputStream);
+        }
+
+        @Override
+        public ClipboardWriter getWriter(OutputStream outputStream) throws IOException {
+            return new SectionedSchematicWriter(outputStream);
+        }
+
+        @Override
+        public boolean isFormat(File file) {
+            InputStream str = null;
+            try {
+                str = new FileInputStream(file);
+                return SectionedSchematicReader.hasMagic(str);
+            } catch (IOException e) {
+                return false;
+            } finally {
+                if (str != null) {
+                    try {
+                        str.close();
+                    } catch (IOException ignored) {}
+                }
+            }
+        }
     };
 
     private static final Map<String, ClipboardFormat> aliasMap = new HashMap<String, ClipboardFormat>();
@@ -0,0 +1,591 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.extent.clipboard.io;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.reflect.TypeToken;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.extent.clipboard.Clipboard;
+import com.sk89q.worldedit.regions.Region;
+import com.sk89q.worldedit.util.concurrency.EvenMoreExecutors;
+import com.sk89q.worldedit.util.gson.GsonUtil;
+import com.sk89q.worldedit.util.io.Closer;
+import com.sk89q.worldedit.world.registry.LegacyWorldData;
+
+/**
+ * A persistent index of metadata about the schematics in a directory.
+ *
+ * <p>
+ * The index is stored as a JSON file next to the schematics. Calling
+ * {@link #refresh()} only reads schematics whose size or modification time
+ * changed since the last refresh, so listing a large library does not
+ * require reading every file.
+ * </p>
+ *
+ * <p>
+ * New and changed schematics are read on a background thread. Until they
+ * have been read, their entries only have the path, size and modification
+ * time of the file.
+ * </p>
+ */
+public class SchematicIndex {
+
+    /**
+     * The name of the index file that is stored in the indexed directory.
+     */
+    public static final String INDEX_FILE_NAME = ".schematic-index.json";
+
+    /**
+     * The number of most common blocks to keep per schematic.
+     */
+    private static final int PALETTE_SUMMARY_SIZE = 10;
+
+    private static final Logger log = Logger.getLogger(SchematicIndex.class.getCanonicalName());
+
+    private static final ExecutorService indexExecutor = EvenMoreExecutors
+        .newDaemonThreadPool(1, "WorldEdit Schematic Indexer #%d");
+
+    private final Gson gson = GsonUtil.createBuilder()
+        .create();
+    private final File dir;
+    private final File indexFile;
+    private final Executor executor;
+    private final Set<String> pending = new HashSet<String>();
+    private boolean dirty;
+    private Map<String, Entry> entries;
+
+    /**
+     * Create a new index for the given directory.
+     *
+     * @param dir the directory containing schematics
+     */
+    public SchematicIndex(File dir) {
+        this(dir, indexExecutor);
+    }
+
+    /**
+     * Create a new index for the given directory.
+     *
+     * @param dir      the directory containing schematics
+     * @param executor the executor that reads new and changed schematics
+     */
+    SchematicIndex(File dir, Executor executor) {
+        checkNotNull(dir);
+        checkNotNull(executor);
+        this.dir = dir;
+        this.indexFile = new File(dir, INDEX_FILE_NAME);
+        this.executor = executor;
+    }
+
+    /**
+     * Get the directory that is indexed.
+     *
+     * @return the directory
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Bring the index up to date with the directory and return the entries.
+     *
+     * <p>
+     * Files whose size and modification time are unchanged are not read.
+     * Other files are hashed on a background thread, and are only parsed
+     * again if their contents actually changed.
+     * </p>
+     *
+     * @return a list of entries, one per file in the directory
+     */
+    public synchronized List<Entry> refresh() {
+        if (entries == null) {
+            entries = load();
+        }
+
+        List<File> files = new ArrayList<File>();
+        collectFiles(dir, files);
+
+        Map<String, Entry> updated = new HashMap<String, Entry>();
+        Map<String, File> stale = new LinkedHashMap<String, File>();
+        boolean changed = false;
+
+        for (File file : files) {
+            String path = getRelativePath(file);
+            Entry entry = entries.get(path);
+
+            if (entry == null) {
+                entry = new Entry();
+                entry.path = path;
+                entry.size = file.length();
+                entry.lastModified = file.lastModified();
+                // Guess the format from the extension until the file has been read
+                ClipboardFormat format = ClipboardFormat.findByAlias(Files.getFileExtension(file.getName()));
+                entry.format = format != null ? format.name() : null;
+                changed = true;
+            }
+
+            if (!entry.indexed || entry.size != file.length() || entry.lastModified != file.lastModified()) {
+                stale.put(path, file);
+            }
+
+            updated.put(path, entry);
+        }
+
+        if (updated.size() != entries.size()) {
+            changed = true;
+        }
+
+        entries = updated;
+
+        if (changed) {
+            save();
+        }
+
+        for (Map.Entry<String, File> entry : stale.entrySet()) {
+            schedule(entry.getValue(), entry.getKey());
+        }
+
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * Read a file on the executor, unless it is already waiting to be read.
+     */
+    private void schedule(final File file, final String path) {
+        if (!pending.add(path)) {
+            return;
+        }
+
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                index(file, path);
+            }
+        });
+    }
+
+    /**
+     * Read a file and replace its entry.
+     */
+    private void index(File file, String path) {
+        Entry previous;
+        synchronized (this) {
+            previous = entries.get(path);
+        }
+
+        // Take the size and time first, so a change while reading is seen next time
+        long size = file.length();
+        long lastModified = file.lastModified();
+        Entry entry = update(file, path, previous);
+        entry.size = size;
+        entry.lastModified = lastModified;
+
+        synchronized (this) {
+            pending.remove(path);
+            if (entries.containsKey(path)) {
+                entries.put(path, entry);
+                dirty = true;
+            }
+
+            // Write the index once all queued files have been read
+            if (dirty && pending.isEmpty()) {
+                save();
+            }
+        }
+    }
+
+    /**
+     * Create a new entry for a file.
+     */
+    private Entry update(File file, String path, @Nullable Entry previous) {
+        String hash;
+        try {
+            hash = Files.hash(file, Hashing.sha1())
+                .toString();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to hash schematic " + file.getPath(), e);
+            hash = null;
+        }
+
+        Entry entry = new Entry();
+        entry.path = path;
+        entry.hash = hash;
+        entry.indexed = true;
+
+        if (previous != null && previous.indexed && hash != null && hash.equals(previous.hash)) {
+            // Only touched, the contents are unchanged
+            entry.format = previous.format;
+            entry.dimensions = previous.dimensions;
+            entry.offset = previous.offset;
+            entry.blockCount = previous.blockCount;
+            entry.distinctBlocks = previous.distinctBlocks;
+            entry.palette = previous.palette;
+        } else {
+            readMetadata(file, entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Read the schematic to fill in the metadata of an entry.
+     */
+    private void readMetadata(File file, Entry entry) {
+        ClipboardFormat format = ClipboardFormat.findByFile(file);
+        if (format == null) {
+            return;
+        }
+
+        entry.format = format.name();
+
+        Closer closer = Closer.create();
+        try {
+            FileInputStream fis = closer.register(new FileInputStream(file));
+            BufferedInputStream bis = closer.register(new BufferedInputStream(fis));
+            ClipboardReader reader = format.getReader(bis);
+            Clipboard clipboard = reader.read(LegacyWorldData.getInstance());
+            Region region = clipboard.getRegion();
+
+            entry.dimensions = toArray(clipboard.getDimensions());
+            entry.offset = toArray(
+                region.getMinimumPoint()
+                    .subtract(clipboard.getOrigin()));
+
+            Map<Integer, Long> counts = new HashMap<Integer, Long>();
+            long blockCount = 0;
+            for (Vector position : region) {
+                BaseBlock block = clipboard.getLazyBlock(position);
+                if (!block.isAir()) {
+                    Long count = counts.get(block.getId());
+                    counts.put(block.getId(), count == null ? 1 : count + 1);
+                    blockCount++;
+                }
+            }
+
+            entry.blockCount = blockCount;
+            entry.distinctBlocks = counts.size();
+            entry.palette = summarize(counts);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to read schematic " + file.getPath() + " for the index", e);
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Failed to read schematic " + file.getPath() + " for the index", e);
+        } finally {
+            try {
+                closer.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Keep only the most common block IDs, in descending order of count.
+     */
+    private static Map<Integer, Long> summarize(Map<Integer, Long> counts) {
+        List<Map.Entry<Integer, Long>> sorted = new ArrayList<Map.Entry<Integer, Long>>(counts.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<Integer, Long>>() {
+
+            @Override
+            public int compare(Map.Entry<Integer, Long> o1, Map.Entry<Integer, Long> o2) {
+                return o2.getValue()
+                    .compareTo(o1.getValue());
+            }
+        });
+
+        Map<Integer, Long> summary = new LinkedHashMap<Integer, Long>();
+        for (int i = 0; i < sorted.size() && i < PALETTE_SUMMARY_SIZE; i++) {
+            summary.put(
+                sorted.get(i)
+                    .getKey(),
+                sorted.get(i)
+                    .getValue());
+        }
+        return summary;
+    }
+
+    private void collectFiles(File root, List<File> result) {
+        File[] files = root.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (f.isDirectory()) {
+                collectFiles(f, result);
+            } else if (!isIndexFile(f)) {
+                result.add(f);
+            }
+        }
+    }
+
+    /**
+     * Return whether the given file is an index file or one of its
+     * temporary files, which should not be listed as schematics.
+     *
+     * @param file the file
+     * @return true if the file belongs to an index
+     */
+    public static boolean isIndexFile(File file) {
+        return file.getName()
+            .startsWith(INDEX_FILE_NAME);
+    }
+
+    private String getRelativePath(File file) {
+        return dir.toURI()
+            .relativize(file.toURI())
+            .getPath();
+    }
+
+    private Map<String, Entry> load() {
+        Closer closer = Closer.create();
+        try {
+            FileReader fr = closer.register(new FileReader(indexFile));
+            BufferedReader br = closer.register(new BufferedReader(fr));
+            Map<String, Entry> loaded = gson.fromJson(br, new TypeToken<Map<String, Entry>>() {}.getType());
+            Map<String, Entry> result = new HashMap<String, Entry>();
+            if (loaded != null) {
+                for (Map.Entry<String, Entry> entry : loaded.entrySet()) {
+                    if (entry.getKey() != null && entry.getValue() != null) {
+                        entry.getValue().path = entry.getKey();
+                        result.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            return result;
+        } catch (FileNotFoundException e) {
+            return new HashMap<String, Entry>();
+        } catch (RuntimeException e) {
+            // Gson reports malformed and mismatched JSON with several exception types
+            log.log(Level.WARNING, "Failed to read the schematic index; it will be rebuilt", e);
+            return new HashMap<String, Entry>();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to read the schematic index; it will be rebuilt", e);
+            return new HashMap<String, Entry>();
+        } finally {
+            try {
+                closer.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void save() {
+        dirty = false;
+        File tempFile = new File(dir, INDEX_FILE_NAME + ".tmp");
+        Closer closer = Closer.create();
+
+        try {
+            FileWriter fw = closer.register(new FileWriter(tempFile));
+            BufferedWriter bw = closer.register(new BufferedWriter(fw));
+            gson.toJson(entries, bw);
+        } catch (JsonIOException e) {
+            log.log(Level.WARNING, "Failed to write the schematic index", e);
+            return;
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to write the schematic index", e);
+            return;
+        } finally {
+            try {
+                closer.close();
+            } catch (IOException ignored) {}
+        }
+
+        if (indexFile.exists()) {
+            if (!indexFile.delete()) {
+                log.log(Level.WARNING, "Failed to delete " + indexFile.getPath() + " so the .tmp file can replace it");
+            }
+        }
+
+        if (!tempFile.renameTo(indexFile)) {
+            log.log(Level.WARNING, "Failed to rename temporary index file to " + indexFile.getPath());
+        }
+    }
+
+    /**
+     * Store a vector as an array of its block coordinates, which Gson can
+     * write and read back without a type adapter.
+     */
+    private static int[] toArray(Vector vector) {
+        return new int[] { vector.getBlockX(), vector.getBlockY(), vector.getBlockZ() };
+    }
+
+    @Nullable
+    private static Vector toVector(@Nullable int[] array) {
+        return array != null && array.length == 3 ? new Vector(array[0], array[1], array[2]) : null;
+    }
+
+    /**
+     * Metadata about a single schematic file.
+     */
+    public static class Entry {
+
+        private String path;
+        private long size;
+        private long lastModified;
+        private String hash;
+        private String format;
+        private boolean indexed;
+        private int[] dimensions;
+        private int[] offset;
+        private long blockCount;
+        private int distinctBlocks;
+        private Map<Integer, Long> palette;
+
+        /**
+         * Get the path of the file relative to the indexed directory, using
+         * forward slashes.
+         *
+         * @return the path
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Get the file size in bytes.
+         *
+         * @return the size
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Get the modification time of the file.
+         *
+         * @return the modification time in milliseconds since the epoch
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Get the SHA-1 hash of the file contents.
+         *
+         * @return the hash, or null if the file could not be read
+         */
+        @Nullable
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Get the detected format.
+         *
+         * @return the format, or null if the file is not a known format
+         */
+        @Nullable
+        public ClipboardFormat getFormat() {
+            if (format == null) {
+                return null;
+            }
+            try {
+                return ClipboardFormat.valueOf(format);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Get the dimensions of the schematic.
+         *
+         * @return the dimensions, or null if the file could not be read
+         */
+        @Nullable
+        public Vector getDimensions() {
+            return toVector(dimensions);
+        }
+
+        /**
+         * Get the offset of the minimum point from the origin.
+         *
+         * @return the offset, or null if the file could not be read
+         */
+        @Nullable
+        public Vector getOffset() {
+            return toVector(offset);
+        }
+
+        /**
+         * Get the volume of the bounding box.
+         *
+         * @return the volume, or 0 if the file could not be read
+         */
+        public long getVolume() {
+            Vector dimensions = getDimensions();
+            if (dimensions == null) {
+                return 0;
+            }
+            return (long) dimensions.getBlockX() * dimensions.getBlockY() * dimensions.getBlockZ();
+        }
+
+        /**
+         * Get the number of blocks that are not air.
+         *
+         * @return the block count
+         */
+        public long getBlockCount() {
+            return blockCount;
+        }
+
+        /**
+         * Get the number of distinct block IDs, not counting air.
+         *
+         * @return the number of distinct blocks
+         */
+        public int getDistinctBlocks() {
+            return distinctBlocks;
+        }
+
+        /**
+         * Get the most common block IDs and their counts, in descending order
+         * of count.
+         *
+         * @return a map of block IDs to counts
+         */
+        public Map<Integer, Long> getPalette() {
+            return palette != null ? Collections.unmodifiableMap(palette) : Collections.<Integer, Long>emptyMap();
+        }
+    }
+
+}
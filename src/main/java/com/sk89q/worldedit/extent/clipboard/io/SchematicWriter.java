@@ -20,6 +20,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -30,7 +31,6 @@ import java.util.function.Consumer;
 import net.minecraft.block.Block;
 import net.minecraft.item.Item;
 
-import com.sk89q.jnbt.ByteArrayTag;
 import com.sk89q.jnbt.CompoundTag;
 import com.sk89q.jnbt.DoubleTag;
 import com.sk89q.jnbt.FloatTag;
@@ -115,6 +115,7 @@ public class SchematicWriter implements ClipboardWriter {
         byte[] blockData = new byte[width * height * length];
         byte[] addData = null;
         List<Tag> tileEntities = new ArrayList<Tag>();
+        BitSet mappedIds = new BitSet();
 
         for (Vector point : region) {
             Vector relative = point.subtract(min);
@@ -145,9 +146,12 @@ public class SchematicWriter implements ClipboardWriter {
                     >> 1] = (byte) (((index & 1) == 0) ? addBlocks2[index >> 1] & 0xF0 | (block.getType() >> 12) & 0xF
                         : addBlocks2[index >> 1] & 0xF | ((block.getType() >> 12) & 0xF) << 4);
             }
-            blockMapping.put(
-                Block.blockRegistry.getNameForObject(Block.getBlockById(block.getId())),
-                new ShortTag((short) block.getId()));
+            if (!mappedIds.get(block.getId())) {
+                mappedIds.set(block.getId());
+                blockMapping.put(
+                    Block.blockRegistry.getNameForObject(Block.getBlockById(block.getId())),
+                    new ShortTag((short) block.getId()));
+            }
 
             blocks[index] = (byte) block.getType();
             blockData[index] = (byte) block.getData();
@@ -279,22 +283,8 @@ public class SchematicWriter implements ClipboardWriter {
             }
         }
 
-        schematic.put("Blocks", new ByteArrayTag(blocks));
-        schematic.put("Data", new ByteArrayTag(blockData));
         schematic.put("TileEntities", new ListTag(CompoundTag.class, tileEntities));
 
-        if (addBlocks != null) {
-            schematic.put("AddBlocks", new ByteArrayTag(addBlocks));
-        }
-
-        if (addBlocks2 != null) {
-            schematic.put("AddBlocks2", new ByteArrayTag(addBlocks2));
-        }
-
-        if (addData != null) {
-            schematic.put("AddData", new ByteArrayTag(addData));
-        }
-
         // ====================================================================
         // Entities
         // ====================================================================
@@ -335,8 +325,30 @@ public class SchematicWriter implements ClipboardWriter {
         // Output
         // ====================================================================
 
-        CompoundTag schematicTag = new CompoundTag(schematic);
-        outputStream.writeNamedTag("Schematic", schematicTag);
+        // The block arrays are written straight from the arrays instead of
+        // being wrapped in a CompoundTag first
+        outputStream.writeCompoundStart("Schematic");
+        for (Map.Entry<String, Tag> entry : schematic.entrySet()) {
+            outputStream.writeNamedTag(entry.getKey(), entry.getValue());
+        }
+
+        outputStream.writeByteArrayTag("Blocks", blocks);
+        outputStream.writeByteArrayTag("Data", blockData);
+
+        if (addBlocks != null) {
+            outputStream.writeByteArrayTag("AddBlocks", addBlocks);
+        }
+
+        if (addBlocks2 != null) {
+            outputStream.writeByteArrayTag("AddBlocks2", addBlocks2);
+        }
+
+        if (addData != null) {
+            outputStream.writeByteArrayTag("AddData", addData);
+        }
+
+        outputStream.writeCompoundEnd();
+        outputStream.flush();
     }
 
     private Tag writeVector(Vector vector, String name) {
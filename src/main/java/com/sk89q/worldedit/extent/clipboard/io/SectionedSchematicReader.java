@@ -0,0 +1,557 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.extent.clipboard.io;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.Nullable;
+
+import net.minecraft.block.Block;
+
+import com.sk89q.jnbt.ByteArrayTag;
+import com.sk89q.jnbt.CompoundTag;
+import com.sk89q.jnbt.IntArrayTag;
+import com.sk89q.jnbt.ListTag;
+import com.sk89q.jnbt.NBTInputStream;
+import com.sk89q.jnbt.NamedTag;
+import com.sk89q.jnbt.ShortTag;
+import com.sk89q.jnbt.Tag;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.WorldEditException;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.entity.BaseEntity;
+import com.sk89q.worldedit.extent.clipboard.BlockArrayClipboard;
+import com.sk89q.worldedit.extent.clipboard.Clipboard;
+import com.sk89q.worldedit.regions.CuboidRegion;
+import com.sk89q.worldedit.regions.Region;
+import com.sk89q.worldedit.util.Location;
+import com.sk89q.worldedit.util.io.ForwardSeekableInputStream;
+import com.sk89q.worldedit.world.registry.WorldData;
+import com.sk89q.worldedit.world.storage.NBTConversions;
+
+/**
+ * Reads clipboards in the sectioned schematic format.
+ *
+ * <p>
+ * The file starts with an uncompressed header:
+ * </p>
+ *
+ * <ul>
+ * <li>magic ({@code int}) and version ({@code short})</li>
+ * <li>width, height and length ({@code int} each)</li>
+ * <li>minimum point and offset from the origin ({@code int} each)</li>
+ * <li>offset ({@code long}) and length ({@code int}) of the block mapping</li>
+ * <li>offset ({@code long}) and length ({@code int}) of the entity list</li>
+ * <li>one offset ({@code long}) and length ({@code int}) per section, ordered
+ * by Y, then Z, then X; a length of zero marks a section of only air</li>
+ * </ul>
+ *
+ * <p>
+ * Every blob the header points to is a deflated named NBT compound. Sections
+ * hold a {@code Palette} of packed {@code id << 16 | data} values,
+ * {@code Blocks} palette indices ordered by Y, then Z, then X, and the
+ * section's {@code TileEntities}.
+ * </p>
+ *
+ * <p>
+ * When created with a {@link FileChannel}, sections can be read in any order
+ * and only the requested ones are inflated. When created with an
+ * {@link InputStream}, only forward reads are possible.
+ * </p>
+ */
+public class SectionedSchematicReader implements ClipboardReader, Closeable {
+
+    static final int MAGIC = 0x57455353; // "WESS"
+    static final short VERSION = 1;
+    static final int SECTION_SHIFT = 4;
+    static final int SECTION_SIZE = 1 << SECTION_SHIFT;
+    static final int SECTION_VOLUME = SECTION_SIZE * SECTION_SIZE * SECTION_SIZE;
+    static final int HEADER_SIZE = 4 + 2 + 9 * 4 + 2 * (8 + 4);
+    static final int INDEX_ENTRY_SIZE = 8 + 4;
+
+    private static final Logger log = Logger.getLogger(SectionedSchematicReader.class.getCanonicalName());
+
+    @Nullable
+    private final FileChannel channel;
+    @Nullable
+    private final ForwardSeekableInputStream stream;
+
+    private boolean headerRead = false;
+    private int width;
+    private int height;
+    private int length;
+    private Vector min;
+    private Vector offset;
+    private int sectionsX;
+    private int sectionsY;
+    private int sectionsZ;
+    private long mappingOffset;
+    private int mappingLength;
+    private long entitiesOffset;
+    private int entitiesLength;
+    private long[] sectionOffsets;
+    private int[] sectionLengths;
+    @Nullable
+    private Map<Integer, Integer> blockConversionMap;
+
+    /**
+     * Create a new reader that can only read forward.
+     *
+     * @param inputStream the input stream to read from
+     */
+    public SectionedSchematicReader(InputStream inputStream) {
+        checkNotNull(inputStream);
+        this.channel = null;
+        this.stream = new ForwardSeekableInputStream(inputStream);
+    }
+
+    /**
+     * Create a new reader that reads sections at random.
+     *
+     * @param channel the file channel to read from
+     */
+    public SectionedSchematicReader(FileChannel channel) {
+        checkNotNull(channel);
+        this.channel = channel;
+        this.stream = null;
+    }
+
+    /**
+     * Return whether the given stream starts with the header of this format.
+     *
+     * @param inputStream the input stream
+     * @return true if the magic number matches
+     * @throws IOException thrown on I/O error
+     */
+    static boolean hasMagic(InputStream inputStream) throws IOException {
+        try {
+            return new DataInputStream(inputStream).readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the region covered by the schematic, which only requires the header.
+     *
+     * @return the region
+     * @throws IOException thrown on I/O error
+     */
+    public Region getRegion() throws IOException {
+        readHeader();
+        return new CuboidRegion(
+            min,
+            min.add(width, height, length)
+                .subtract(Vector.ONE));
+    }
+
+    /**
+     * Get the dimensions of the schematic, which only requires the header.
+     *
+     * @return the dimensions
+     * @throws IOException thrown on I/O error
+     */
+    public Vector getDimensions() throws IOException {
+        readHeader();
+        return new Vector(width, height, length);
+    }
+
+    /**
+     * Get the origin of the schematic, which only requires the header.
+     *
+     * @return the origin
+     * @throws IOException thrown on I/O error
+     */
+    public Vector getOrigin() throws IOException {
+        readHeader();
+        return min.subtract(offset);
+    }
+
+    /**
+     * Get the number of sections along each axis.
+     *
+     * @return the section counts
+     * @throws IOException thrown on I/O error
+     */
+    public Vector getSectionCounts() throws IOException {
+        readHeader();
+        return new Vector(sectionsX, sectionsY, sectionsZ);
+    }
+
+    @Override
+    public Clipboard read(WorldData data) throws IOException {
+        return read(data, null);
+    }
+
+    /**
+     * Read the part of the schematic that falls within the bounding box of the
+     * given region.
+     *
+     * <p>
+     * Only the sections that intersect the bounding box are inflated.
+     * Entities are included if they are located within the bounding box.
+     * </p>
+     *
+     * @param data   the world data space to convert the blocks to
+     * @param bounds the region to read in schematic coordinates, or null to read everything
+     * @return the read clipboard
+     * @throws IOException thrown on I/O error, or if the bounds do not intersect the schematic
+     */
+    public Clipboard read(WorldData data, @Nullable Region bounds) throws IOException {
+        Region region = getRegion();
+        Vector readMin = region.getMinimumPoint();
+        Vector readMax = region.getMaximumPoint();
+
+        if (bounds != null) {
+            readMin = Vector.getMaximum(readMin, bounds.getMinimumPoint());
+            readMax = Vector.getMinimum(readMax, bounds.getMaximumPoint());
+            if (readMin.getBlockX() > readMax.getBlockX() || readMin.getBlockY() > readMax.getBlockY()
+                || readMin.getBlockZ() > readMax.getBlockZ()) {
+                throw new IOException("The requested area does not intersect the schematic");
+            }
+        }
+
+        CuboidRegion readRegion = new CuboidRegion(readMin, readMax);
+        BlockArrayClipboard clipboard = new BlockArrayClipboard(readRegion);
+        clipboard.setOrigin(getOrigin());
+
+        Vector localMin = readMin.subtract(min);
+        Vector localMax = readMax.subtract(min);
+        int minSectionX = localMin.getBlockX() >> SECTION_SHIFT;
+        int minSectionY = localMin.getBlockY() >> SECTION_SHIFT;
+        int minSectionZ = localMin.getBlockZ() >> SECTION_SHIFT;
+        int maxSectionX = localMax.getBlockX() >> SECTION_SHIFT;
+        int maxSectionY = localMax.getBlockY() >> SECTION_SHIFT;
+        int maxSectionZ = localMax.getBlockZ() >> SECTION_SHIFT;
+
+        for (int sy = minSectionY; sy <= maxSectionY; sy++) {
+            for (int sz = minSectionZ; sz <= maxSectionZ; sz++) {
+                for (int sx = minSectionX; sx <= maxSectionX; sx++) {
+                    readSection(clipboard, sx, sy, sz);
+                }
+            }
+        }
+
+        readEntities(clipboard, readRegion);
+
+        return clipboard;
+    }
+
+    /**
+     * Read a single section into its own clipboard, which allows a schematic
+     * to be pasted one section at a time.
+     *
+     * <p>
+     * The clipboard keeps the origin of the whole schematic and does not
+     * contain entities.
+     * </p>
+     *
+     * @param data     the world data space to convert the blocks to
+     * @param sectionX the section X index
+     * @param sectionY the section Y index
+     * @param sectionZ the section Z index
+     * @return the read clipboard
+     * @throws IOException thrown on I/O error
+     */
+    public Clipboard readSection(WorldData data, int sectionX, int sectionY, int sectionZ) throws IOException {
+        readHeader();
+        if (sectionX < 0 || sectionX >= sectionsX
+            || sectionY < 0
+            || sectionY >= sectionsY
+            || sectionZ < 0
+            || sectionZ >= sectionsZ) {
+            throw new IllegalArgumentException("Section index out of bounds");
+        }
+
+        Vector sectionMin = min.add(sectionX << SECTION_SHIFT, sectionY << SECTION_SHIFT, sectionZ << SECTION_SHIFT);
+        Vector sectionMax = Vector.getMinimum(
+            sectionMin.add(SECTION_SIZE - 1, SECTION_SIZE - 1, SECTION_SIZE - 1),
+            min.add(width - 1, height - 1, length - 1));
+
+        BlockArrayClipboard clipboard = new BlockArrayClipboard(new CuboidRegion(sectionMin, sectionMax));
+        clipboard.setOrigin(getOrigin());
+        readSection(clipboard, sectionX, sectionY, sectionZ);
+        return clipboard;
+    }
+
+    /**
+     * Inflate a section and copy the blocks that fall within the target's
+     * region.
+     */
+    private void readSection(BlockArrayClipboard target, int sx, int sy, int sz) throws IOException {
+        int index = (sy * sectionsZ + sz) * sectionsX + sx;
+        if (sectionLengths[index] == 0) {
+            return; // Only air
+        }
+
+        Map<Integer, Integer> conversion = getBlockConversionMap();
+        Map<String, Tag> section = readBlob(sectionOffsets[index], sectionLengths[index], "Section");
+
+        int[] palette = requireTag(section, "Palette", IntArrayTag.class).getValue();
+        Tag blocksTag = section.get("Blocks");
+        byte[] byteIndices = null;
+        int[] intIndices = null;
+        if (blocksTag instanceof ByteArrayTag) {
+            byteIndices = ((ByteArrayTag) blocksTag).getValue();
+        } else if (blocksTag instanceof IntArrayTag) {
+            intIndices = ((IntArrayTag) blocksTag).getValue();
+        } else {
+            throw new IOException("Section is missing a valid 'Blocks' tag");
+        }
+
+        // Resolve the palette once instead of for every block
+        BaseBlock[] blocks = new BaseBlock[palette.length];
+        for (int i = 0; i < palette.length; i++) {
+            int id = palette[i] >>> 16;
+            Integer converted = conversion.get(id);
+            blocks[i] = new BaseBlock(converted != null ? converted : id, palette[i] & 0xFFFF);
+        }
+
+        Map<Vector, CompoundTag> tileEntities = new HashMap<Vector, CompoundTag>();
+        for (Tag tag : requireTag(section, "TileEntities", ListTag.class).getValue()) {
+            if (tag instanceof CompoundTag) {
+                CompoundTag t = (CompoundTag) tag;
+                tileEntities.put(new Vector(t.getInt("x"), t.getInt("y"), t.getInt("z")), t);
+            }
+        }
+
+        Region region = target.getRegion();
+        Vector targetMin = region.getMinimumPoint()
+            .subtract(min);
+        Vector targetMax = region.getMaximumPoint()
+            .subtract(min);
+        int baseX = sx << SECTION_SHIFT;
+        int baseY = sy << SECTION_SHIFT;
+        int baseZ = sz << SECTION_SHIFT;
+        int fromX = Math.max(baseX, targetMin.getBlockX());
+        int fromY = Math.max(baseY, targetMin.getBlockY());
+        int fromZ = Math.max(baseZ, targetMin.getBlockZ());
+        int toX = Math.min(baseX + SECTION_SIZE - 1, targetMax.getBlockX());
+        int toY = Math.min(baseY + SECTION_SIZE - 1, targetMax.getBlockY());
+        int toZ = Math.min(baseZ + SECTION_SIZE - 1, targetMax.getBlockZ());
+
+        // Don't log a torrent of errors
+        int failedBlockSets = 0;
+
+        for (int y = fromY; y <= toY; y++) {
+            for (int z = fromZ; z <= toZ; z++) {
+                for (int x = fromX; x <= toX; x++) {
+                    int i = ((y - baseY) << 8) | ((z - baseZ) << 4) | (x - baseX);
+                    int entry = byteIndices != null ? byteIndices[i] & 0xFF : intIndices[i];
+                    if (entry >= blocks.length) {
+                        throw new IOException("Section references a missing palette entry");
+                    }
+
+                    BaseBlock block = blocks[entry];
+                    Vector relative = new Vector(x, y, z);
+                    CompoundTag nbtData = tileEntities.get(relative);
+                    if (nbtData != null) {
+                        block = new BaseBlock(block.getId(), block.getData(), nbtData);
+                    } else if (block.isAir()) {
+                        continue;
+                    }
+
+                    try {
+                        target.setBlock(min.add(relative), block);
+                    } catch (WorldEditException e) {
+                        if (failedBlockSets++ == 0) {
+                            log.log(Level.WARNING, "Failed to set block on a Clipboard", e);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void readEntities(BlockArrayClipboard target, Region region) throws IOException {
+        Map<String, Tag> entities = readBlob(entitiesOffset, entitiesLength, "Entities");
+        List<Tag> entityTags = requireTag(entities, "Entities", ListTag.class).getValue();
+
+        for (Tag tag : entityTags) {
+            if (tag instanceof CompoundTag) {
+                CompoundTag compound = (CompoundTag) tag;
+                String id = compound.getString("id");
+                Location location = NBTConversions
+                    .toLocation(target, compound.getListTag("Pos"), compound.getListTag("Rotation"));
+
+                if (!id.isEmpty() && region.contains(
+                    location.toVector()
+                        .toBlockPoint())) {
+                    target.createEntity(location, new BaseEntity(id, compound));
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the map of block IDs in the file to block IDs in the running game,
+     * which is built from the block names stored alongside the sections.
+     */
+    private Map<Integer, Integer> getBlockConversionMap() throws IOException {
+        if (blockConversionMap == null) {
+            Map<String, Tag> root = readBlob(mappingOffset, mappingLength, "Mapping");
+            Map<String, Tag> mapping = requireTag(root, "BlockMapping", CompoundTag.class).getValue();
+            Map<Integer, Integer> conversion = new HashMap<Integer, Integer>();
+            for (Map.Entry<String, Tag> entry : mapping.entrySet()) {
+                if (!(entry.getValue() instanceof ShortTag)) continue;
+                int sourceId = ((ShortTag) entry.getValue()).getValue() & 0xFFFF;
+                Block block = Block.getBlockFromName(entry.getKey());
+                if (block != null) {
+                    int targetId = Block.getIdFromBlock(block);
+                    if (targetId != sourceId) {
+                        conversion.put(sourceId, targetId);
+                    }
+                }
+            }
+            blockConversionMap = conversion;
+        }
+        return blockConversionMap;
+    }
+
+    private void readHeader() throws IOException {
+        if (headerRead) {
+            return;
+        }
+
+        if (channel != null) {
+            // Read the fixed part first to learn the size of the index
+            readFixedHeader(new DataInputStream(new ByteArrayInputStream(readBytes(0, HEADER_SIZE).array())));
+            int count = sectionsX * sectionsY * sectionsZ;
+            ByteBuffer index = readBytes(HEADER_SIZE, count * INDEX_ENTRY_SIZE);
+            readIndex(new DataInputStream(new ByteArrayInputStream(index.array())), count);
+        } else {
+            DataInputStream header = new DataInputStream(stream);
+            readFixedHeader(header);
+            readIndex(header, sectionsX * sectionsY * sectionsZ);
+        }
+
+        headerRead = true;
+    }
+
+    private void readFixedHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a sectioned schematic");
+        }
+        short version = in.readShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported sectioned schematic version " + version);
+        }
+
+        width = in.readInt();
+        height = in.readInt();
+        length = in.readInt();
+        if (width <= 0 || height <= 0 || length <= 0) {
+            throw new IOException("Sectioned schematic has invalid dimensions");
+        }
+        min = new Vector(in.readInt(), in.readInt(), in.readInt());
+        offset = new Vector(in.readInt(), in.readInt(), in.readInt());
+        mappingOffset = in.readLong();
+        mappingLength = in.readInt();
+        entitiesOffset = in.readLong();
+        entitiesLength = in.readInt();
+
+        sectionsX = (width + SECTION_SIZE - 1) >> SECTION_SHIFT;
+        sectionsY = (height + SECTION_SIZE - 1) >> SECTION_SHIFT;
+        sectionsZ = (length + SECTION_SIZE - 1) >> SECTION_SHIFT;
+    }
+
+    private void readIndex(DataInputStream in, int count) throws IOException {
+        sectionOffsets = new long[count];
+        sectionLengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            sectionOffsets[i] = in.readLong();
+            sectionLengths[i] = in.readInt();
+        }
+    }
+
+    /**
+     * Read and inflate a blob, returning the value of its root compound tag.
+     */
+    private Map<String, Tag> readBlob(long position, int size, String expectedName) throws IOException {
+        InputStream in;
+        if (channel != null) {
+            in = new ByteArrayInputStream(readBytes(position, size).array());
+        } else {
+            stream.seek(position);
+            byte[] bytes = new byte[size];
+            new DataInputStream(stream).readFully(bytes);
+            in = new ByteArrayInputStream(bytes);
+        }
+
+        NBTInputStream nbtStream = new NBTInputStream(new InflaterInputStream(in));
+        try {
+            NamedTag rootTag = nbtStream.readNamedTag();
+            if (!rootTag.getName()
+                .equals(expectedName) || !(rootTag.getTag() instanceof CompoundTag)) {
+                throw new IOException("Expected a '" + expectedName + "' tag");
+            }
+            return ((CompoundTag) rootTag.getTag()).getValue();
+        } finally {
+            nbtStream.close();
+        }
+    }
+
+    private ByteBuffer readBytes(long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of sectioned schematic");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static <T extends Tag> T requireTag(Map<String, Tag> items, String key, Class<T> expected)
+        throws IOException {
+        if (!items.containsKey(key)) {
+            throw new IOException("Sectioned schematic is missing a \"" + key + "\" tag");
+        }
+
+        Tag tag = items.get(key);
+        if (!expected.isInstance(tag)) {
+            throw new IOException(key + " tag is not of tag type " + expected.getName());
+        }
+
+        return expected.cast(tag);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        } else {
+            stream.close();
+        }
+    }
+
+}
@@ -0,0 +1,310 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.extent.clipboard.io;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+
+import net.minecraft.block.Block;
+
+import com.sk89q.jnbt.ByteArrayTag;
+import com.sk89q.jnbt.CompoundTag;
+import com.sk89q.jnbt.DoubleTag;
+import com.sk89q.jnbt.FloatTag;
+import com.sk89q.jnbt.IntArrayTag;
+import com.sk89q.jnbt.IntTag;
+import com.sk89q.jnbt.ListTag;
+import com.sk89q.jnbt.NBTOutputStream;
+import com.sk89q.jnbt.ShortTag;
+import com.sk89q.jnbt.StringTag;
+import com.sk89q.jnbt.Tag;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.entity.BaseEntity;
+import com.sk89q.worldedit.entity.Entity;
+import com.sk89q.worldedit.extent.clipboard.Clipboard;
+import com.sk89q.worldedit.regions.Region;
+import com.sk89q.worldedit.util.Location;
+import com.sk89q.worldedit.world.registry.WorldData;
+
+/**
+ * Writes clipboards in the sectioned schematic format.
+ *
+ * <p>
+ * The clipboard is split into 16x16x16 sections that are compressed
+ * independently, each with its own palette. A header at the start of the
+ * file records the dimensions and the offset of every section so that
+ * {@link SectionedSchematicReader} can read parts of the file without
+ * inflating the rest.
+ * </p>
+ *
+ * @see SectionedSchematicReader for a description of the layout
+ */
+public class SectionedSchematicWriter implements ClipboardWriter {
+
+    private final DataOutputStream outputStream;
+
+    /**
+     * Create a new writer.
+     *
+     * @param outputStream the output stream to write to
+     */
+    public SectionedSchematicWriter(OutputStream outputStream) {
+        checkNotNull(outputStream);
+        this.outputStream = new DataOutputStream(outputStream);
+    }
+
+    @Override
+    public void write(Clipboard clipboard, WorldData data) throws IOException {
+        Region region = clipboard.getRegion();
+        Vector min = region.getMinimumPoint();
+        Vector offset = min.subtract(clipboard.getOrigin());
+        int width = region.getWidth();
+        int height = region.getHeight();
+        int length = region.getLength();
+
+        int sectionsX = (width + SectionedSchematicReader.SECTION_SIZE - 1) >> SectionedSchematicReader.SECTION_SHIFT;
+        int sectionsY = (height + SectionedSchematicReader.SECTION_SIZE - 1) >> SectionedSchematicReader.SECTION_SHIFT;
+        int sectionsZ = (length + SectionedSchematicReader.SECTION_SIZE - 1) >> SectionedSchematicReader.SECTION_SHIFT;
+        int sectionCount = sectionsX * sectionsY * sectionsZ;
+
+        // ====================================================================
+        // Sections
+        // ====================================================================
+
+        Map<String, Tag> blockMapping = new HashMap<String, Tag>();
+        byte[][] sections = new byte[sectionCount][];
+
+        for (int sy = 0; sy < sectionsY; sy++) {
+            for (int sz = 0; sz < sectionsZ; sz++) {
+                for (int sx = 0; sx < sectionsX; sx++) {
+                    int index = (sy * sectionsZ + sz) * sectionsX + sx;
+                    sections[index] = writeSection(clipboard, min, width, height, length, sx, sy, sz, blockMapping);
+                }
+            }
+        }
+
+        // ====================================================================
+        // Entities
+        // ====================================================================
+
+        List<Tag> entities = new ArrayList<Tag>();
+        for (Entity entity : clipboard.getEntities()) {
+            BaseEntity state = entity.getState();
+
+            if (state != null) {
+                Map<String, Tag> values = new HashMap<String, Tag>();
+
+                CompoundTag rawTag = state.getNbtData();
+                if (rawTag != null) {
+                    values.putAll(rawTag.getValue());
+                }
+
+                values.put("id", new StringTag(state.getTypeId()));
+                values.put(
+                    "Pos",
+                    writeVector(
+                        entity.getLocation()
+                            .toVector()));
+                values.put("Rotation", writeRotation(entity.getLocation()));
+
+                entities.add(new CompoundTag(values));
+            }
+        }
+
+        Map<String, Tag> entitiesValue = new HashMap<String, Tag>();
+        entitiesValue.put("Entities", new ListTag(CompoundTag.class, entities));
+
+        Map<String, Tag> mappingValue = new HashMap<String, Tag>();
+        mappingValue.put("BlockMapping", new CompoundTag(blockMapping));
+
+        byte[] mappingBlob = compress("Mapping", new CompoundTag(mappingValue));
+        byte[] entitiesBlob = compress("Entities", new CompoundTag(entitiesValue));
+
+        // ====================================================================
+        // Output
+        // ====================================================================
+
+        long position = SectionedSchematicReader.HEADER_SIZE
+            + (long) sectionCount * SectionedSchematicReader.INDEX_ENTRY_SIZE;
+
+        outputStream.writeInt(SectionedSchematicReader.MAGIC);
+        outputStream.writeShort(SectionedSchematicReader.VERSION);
+        outputStream.writeInt(width);
+        outputStream.writeInt(height);
+        outputStream.writeInt(length);
+        outputStream.writeInt(min.getBlockX());
+        outputStream.writeInt(min.getBlockY());
+        outputStream.writeInt(min.getBlockZ());
+        outputStream.writeInt(offset.getBlockX());
+        outputStream.writeInt(offset.getBlockY());
+        outputStream.writeInt(offset.getBlockZ());
+
+        outputStream.writeLong(position);
+        outputStream.writeInt(mappingBlob.length);
+        position += mappingBlob.length;
+
+        for (byte[] section : sections) {
+            position += section.length;
+        }
+        outputStream.writeLong(position);
+        outputStream.writeInt(entitiesBlob.length);
+
+        position = SectionedSchematicReader.HEADER_SIZE
+            + (long) sectionCount * SectionedSchematicReader.INDEX_ENTRY_SIZE
+            + mappingBlob.length;
+        for (byte[] section : sections) {
+            outputStream.writeLong(section.length == 0 ? 0 : position);
+            outputStream.writeInt(section.length);
+            position += section.length;
+        }
+
+        outputStream.write(mappingBlob);
+        for (byte[] section : sections) {
+            outputStream.write(section);
+        }
+        outputStream.write(entitiesBlob);
+        outputStream.flush();
+    }
+
+    /**
+     * Build and compress a single section.
+     *
+     * @return the compressed section, or an empty array if it only contains air
+     */
+    private byte[] writeSection(Clipboard clipboard, Vector min, int width, int height, int length, int sx, int sy,
+        int sz, Map<String, Tag> blockMapping) throws IOException {
+        int baseX = sx << SectionedSchematicReader.SECTION_SHIFT;
+        int baseY = sy << SectionedSchematicReader.SECTION_SHIFT;
+        int baseZ = sz << SectionedSchematicReader.SECTION_SHIFT;
+        int maxX = Math.min(width - baseX, SectionedSchematicReader.SECTION_SIZE);
+        int maxY = Math.min(height - baseY, SectionedSchematicReader.SECTION_SIZE);
+        int maxZ = Math.min(length - baseZ, SectionedSchematicReader.SECTION_SIZE);
+
+        Map<Integer, Integer> paletteIndex = new HashMap<Integer, Integer>();
+        int[] palette = new int[16];
+        int paletteSize = 0;
+        int[] indices = new int[SectionedSchematicReader.SECTION_VOLUME];
+        List<Tag> tileEntities = new ArrayList<Tag>();
+        boolean empty = true;
+
+        // Air is always the first palette entry so that padding outside the
+        // clipboard maps to it
+        paletteIndex.put(0, paletteSize);
+        palette[paletteSize++] = 0;
+
+        for (int y = 0; y < maxY; y++) {
+            for (int z = 0; z < maxZ; z++) {
+                for (int x = 0; x < maxX; x++) {
+                    BaseBlock block = clipboard.getBlock(min.add(baseX + x, baseY + y, baseZ + z));
+                    int packed = (block.getId() << 16) | (block.getData() & 0xFFFF);
+
+                    Integer entry = paletteIndex.get(packed);
+                    if (entry == null) {
+                        entry = paletteSize;
+                        paletteIndex.put(packed, entry);
+                        if (paletteSize == palette.length) {
+                            int[] grown = new int[palette.length * 2];
+                            System.arraycopy(palette, 0, grown, 0, palette.length);
+                            palette = grown;
+                        }
+                        palette[paletteSize++] = packed;
+                        String name = Block.blockRegistry.getNameForObject(Block.getBlockById(block.getId()));
+                        if (name != null) { // Unregistered blocks keep their ID
+                            blockMapping.put(name, new ShortTag((short) block.getId()));
+                        }
+                    }
+                    indices[(y << 8) | (z << 4) | x] = entry;
+
+                    if (packed != 0) {
+                        empty = false;
+                    }
+
+                    CompoundTag rawTag = block.getNbtData();
+                    if (rawTag != null) {
+                        Map<String, Tag> values = new HashMap<String, Tag>(rawTag.getValue());
+                        values.put("id", new StringTag(block.getNbtId()));
+                        values.put("x", new IntTag(baseX + x));
+                        values.put("y", new IntTag(baseY + y));
+                        values.put("z", new IntTag(baseZ + z));
+                        tileEntities.add(new CompoundTag(values));
+                        empty = false;
+                    }
+                }
+            }
+        }
+
+        if (empty) {
+            return new byte[0];
+        }
+
+        int[] paletteValue = new int[paletteSize];
+        System.arraycopy(palette, 0, paletteValue, 0, paletteSize);
+
+        Map<String, Tag> section = new HashMap<String, Tag>();
+        section.put("Palette", new IntArrayTag(paletteValue));
+        if (paletteSize <= 256) {
+            byte[] blocks = new byte[indices.length];
+            for (int i = 0; i < indices.length; i++) {
+                blocks[i] = (byte) indices[i];
+            }
+            section.put("Blocks", new ByteArrayTag(blocks));
+        } else {
+            section.put("Blocks", new IntArrayTag(indices));
+        }
+        section.put("TileEntities", new ListTag(CompoundTag.class, tileEntities));
+
+        return compress("Section", new CompoundTag(section));
+    }
+
+    private static byte[] compress(String name, CompoundTag tag) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        NBTOutputStream nbtStream = new NBTOutputStream(new DeflaterOutputStream(bytes));
+        nbtStream.writeNamedTag(name, tag);
+        nbtStream.close();
+        return bytes.toByteArray();
+    }
+
+    private Tag writeVector(Vector vector) {
+        List<DoubleTag> list = new ArrayList<DoubleTag>();
+        list.add(new DoubleTag(vector.getX()));
+        list.add(new DoubleTag(vector.getY()));
+        list.add(new DoubleTag(vector.getZ()));
+        return new ListTag(DoubleTag.class, list);
+    }
+
+    private Tag writeRotation(Location location) {
+        List<FloatTag> list = new ArrayList<FloatTag>();
+        list.add(new FloatTag(location.getYaw()));
+        list.add(new FloatTag(location.getPitch()));
+        return new ListTag(FloatTag.class, list);
+    }
+
+    @Override
+    public void close() throws IOException {
+        outputStream.close();
+    }
+}
@@ -21,6 +21,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
@@ -43,6 +44,7 @@ import net.minecraft.world.World;
 import net.minecraft.world.WorldServer;
 import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.chunk.IChunkProvider;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
 import net.minecraft.world.gen.ChunkProviderServer;
 import net.minecraft.world.gen.feature.WorldGenBigMushroom;
 import net.minecraft.world.gen.feature.WorldGenBigTree;
@@ -430,6 +432,38 @@ public class ForgeWorld extends AbstractWorld {
         }
     }
 
+    @Override
+    public boolean isSectionEmpty(int sectionX, int sectionY, int sectionZ) {
+        ExtendedBlockStorage[] sections = getWorld().getChunkFromChunkCoords(sectionX, sectionZ)
+            .getBlockStorageArray();
+        if (sectionY < 0 || sectionY >= sections.length) {
+            return true; // Blocks outside of the height of the world read as air
+        }
+
+        ExtendedBlockStorage section = sections[sectionY];
+        return section == null || section.isEmpty();
+    }
+
+    @Override
+    public void copySection(int sectionX, int sectionY, int sectionZ, char[] blocks) {
+        ExtendedBlockStorage[] sections = getWorld().getChunkFromChunkCoords(sectionX, sectionZ)
+            .getBlockStorageArray();
+        ExtendedBlockStorage section = sectionY >= 0 && sectionY < sections.length ? sections[sectionY] : null;
+        if (section == null) {
+            Arrays.fill(blocks, 0, 4096, (char) 0);
+            return;
+        }
+
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    int id = Block.getIdFromBlock(section.getBlockByExtId(x, y, z));
+                    blocks[y << 8 | z << 4 | x] = (char) (id << 4 | section.getExtBlockMetadata(x, y, z));
+                }
+            }
+        }
+    }
+
     @Override
     public BaseBlock getLazyBlock(Vector position) {
         World world = getWorld();
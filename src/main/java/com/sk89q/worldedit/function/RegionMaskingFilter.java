@@ -45,6 +45,15 @@ public class RegionMaskingFilter implements RegionFunction {
         this.function = function;
     }
 
+    /**
+     * Get the mask.
+     *
+     * @return the mask
+     */
+    public Mask getMask() {
+        return mask;
+    }
+
     @Override
     public boolean apply(Vector position) throws WorldEditException {
         return mask.test(position) && function.apply(position);
@@ -0,0 +1,285 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.function.block;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.extent.Extent;
+import com.sk89q.worldedit.extent.SectionExtent;
+import com.sk89q.worldedit.regions.CuboidRegion;
+import com.sk89q.worldedit.regions.Region;
+import com.sk89q.worldedit.regions.SpanRegion;
+import com.sk89q.worldedit.util.Countable;
+import com.sk89q.worldedit.util.concurrency.EvenMoreExecutors;
+
+/**
+ * Counts the blocks of a region by type and data value.
+ *
+ * <p>
+ * Whole sections are copied from a {@link SectionExtent} on the calling
+ * thread, and the copies are counted into histograms on a pool of worker
+ * threads, which are then added together. Regions other than cuboids and
+ * {@link SpanRegion}s are tested with {@link Region#contains(Vector)} on the
+ * worker threads, so that must not change the region.
+ * </p>
+ *
+ * <p>
+ * Histograms and copies only have room for data values 0 to 15. If data
+ * values can be larger, as with NotEnoughIDs, {@link #isSupported()} is
+ * false and blocks have to be counted with {@link #countEach(Extent, Region)}
+ * instead.
+ * </p>
+ */
+public final class SectionCounter {
+
+    /**
+     * The number of entries of a histogram, which is 16 data values for
+     * every block type.
+     */
+    public static final int HISTOGRAM_SIZE = (BaseBlock.MAX_ID + 1) << 4;
+
+    /**
+     * The number of threads that count sections.
+     */
+    private static final int PARALLEL_THREADS = Math.max(
+        1,
+        Math.min(
+            8,
+            Runtime.getRuntime()
+                .availableProcessors() - 1));
+
+    /**
+     * The number of sections that are counted by each task, which is 2 MB
+     * of copies.
+     */
+    private static final int BATCH_SECTIONS = 256;
+
+    /**
+     * The number of tasks that may wait for a worker before the calling
+     * thread stops copying sections, which bounds the memory used by copies.
+     */
+    private static final int MAX_PENDING = PARALLEL_THREADS * 2;
+
+    private static final ExecutorService countExecutor = EvenMoreExecutors
+        .newDaemonThreadPool(PARALLEL_THREADS, "WorldEdit Count Worker #%d");
+
+    private SectionCounter() {}
+
+    /**
+     * Return whether blocks can be counted into histograms, which is the
+     * case if every data value fits in 4 bits.
+     *
+     * @return true if {@link #count(SectionExtent, Region)} may be used
+     */
+    public static boolean isSupported() {
+        return BaseBlock.MAX_DATA <= 15;
+    }
+
+    /**
+     * Count the blocks of a region.
+     *
+     * @param extent the extent to read from
+     * @param region the region
+     * @return a histogram of {@link #HISTOGRAM_SIZE} counts, with the count
+     *         of a block at index {@code type << 4 | data}
+     * @throws IllegalStateException if counting is not {@link #isSupported() supported}
+     */
+    public static int[] count(SectionExtent extent, Region region) {
+        checkNotNull(extent);
+        checkNotNull(region);
+        checkState(isSupported(), "Data values don't fit in a histogram");
+
+        final Vector min = region.getMinimumPoint();
+        final Vector max = region.getMaximumPoint();
+        final int minX = min.getBlockX();
+        final int minY = min.getBlockY();
+        final int minZ = min.getBlockZ();
+        final int maxX = max.getBlockX();
+        final int maxY = max.getBlockY();
+        final int maxZ = max.getBlockZ();
+
+        final int[] histogram = new int[HISTOGRAM_SIZE];
+        final Deque<Future<int[]>> pending = new ArrayDeque<Future<int[]>>();
+        Batch batch = new Batch(region);
+
+        for (int sectionZ = minZ >> 4; sectionZ <= maxZ >> 4; ++sectionZ) {
+            for (int sectionY = minY >> 4; sectionY <= maxY >> 4; ++sectionY) {
+                for (int sectionX = minX >> 4; sectionX <= maxX >> 4; ++sectionX) {
+                    extent.copySection(sectionX, sectionY, sectionZ, batch.add(sectionX, sectionY, sectionZ));
+
+                    if (batch.isFull()) {
+                        if (pending.size() >= MAX_PENDING) {
+                            add(histogram, getResult(pending.poll()));
+                        }
+                        pending.add(countExecutor.submit(batch));
+                        batch = new Batch(region);
+                    }
+                }
+            }
+        }
+
+        // The last batch is counted here, while the workers finish theirs
+        add(histogram, batch.call());
+        while (!pending.isEmpty()) {
+            add(histogram, getResult(pending.poll()));
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Count the blocks of a region one at a time on the calling thread,
+     * which works with any data value.
+     *
+     * @param extent the extent to read from
+     * @param region the region
+     * @return the counts, in no particular order, of blocks without NBT data
+     */
+    public static List<Countable<BaseBlock>> countEach(Extent extent, Region region) {
+        checkNotNull(extent);
+        checkNotNull(region);
+
+        Map<BaseBlock, Countable<BaseBlock>> map = new HashMap<BaseBlock, Countable<BaseBlock>>();
+        for (Vector pt : region) {
+            BaseBlock block = extent.getLazyBlock(pt);
+            BaseBlock key = new BaseBlock(block.getType(), block.getData());
+
+            Countable<BaseBlock> c = map.get(key);
+            if (c != null) {
+                c.increment();
+            } else {
+                map.put(key, new Countable<BaseBlock>(key, 1));
+            }
+        }
+
+        return new ArrayList<Countable<BaseBlock>>(map.values());
+    }
+
+    private static int[] getResult(Future<int[]> future) {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private static void add(int[] histogram, int[] counts) {
+        for (int i = 0; i < histogram.length; ++i) {
+            histogram[i] += counts[i];
+        }
+    }
+
+    /**
+     * Copies of sections that are counted together.
+     */
+    private static final class Batch implements Callable<int[]> {
+
+        private final Region region;
+        private final int[] positions = new int[BATCH_SECTIONS * 3];
+        private final char[][] sections = new char[BATCH_SECTIONS][];
+        private int count = 0;
+
+        private Batch(Region region) {
+            this.region = region;
+        }
+
+        /**
+         * Add a section to the batch.
+         *
+         * @param sectionX the X coordinate of the section
+         * @param sectionY the Y coordinate of the section
+         * @param sectionZ the Z coordinate of the section
+         * @return the array that the blocks of the section must be copied to
+         */
+        private char[] add(int sectionX, int sectionY, int sectionZ) {
+            positions[count * 3] = sectionX;
+            positions[count * 3 + 1] = sectionY;
+            positions[count * 3 + 2] = sectionZ;
+            char[] section = new char[4096];
+            sections[count++] = section;
+            return section;
+        }
+
+        private boolean isFull() {
+            return count == BATCH_SECTIONS;
+        }
+
+        @Override
+        public int[] call() {
+            final int[] histogram = new int[HISTOGRAM_SIZE];
+            final Vector min = region.getMinimumPoint();
+            final Vector max = region.getMaximumPoint();
+            final boolean cuboid = region instanceof CuboidRegion;
+            final SpanRegion spans = region instanceof SpanRegion ? (SpanRegion) region : null;
+            final int[] span = new int[2];
+
+            for (int i = 0; i < count; ++i) {
+                final char[] section = sections[i];
+                final int baseX = positions[i * 3] << 4;
+                final int baseY = positions[i * 3 + 1] << 4;
+                final int baseZ = positions[i * 3 + 2] << 4;
+                final int x0 = Math.max(min.getBlockX(), baseX);
+                final int x1 = Math.min(max.getBlockX(), baseX + 15);
+                final int y0 = Math.max(min.getBlockY(), baseY);
+                final int y1 = Math.min(max.getBlockY(), baseY + 15);
+                final int z0 = Math.max(min.getBlockZ(), baseZ);
+                final int z1 = Math.min(max.getBlockZ(), baseZ + 15);
+
+                for (int y = y0; y <= y1; ++y) {
+                    for (int z = z0; z <= z1; ++z) {
+                        final int row = (y - baseY) << 8 | (z - baseZ) << 4;
+                        int from = x0;
+                        int to = x1;
+                        if (spans != null) {
+                            if (!spans.getSpan(y, z, span)) {
+                                continue;
+                            }
+                            from = Math.max(from, span[0]);
+                            to = Math.min(to, span[1]);
+                        }
+
+                        for (int x = from; x <= to; ++x) {
+                            if (cuboid || spans != null || region.contains(new BlockVector(x, y, z))) {
+                                histogram[section[row | (x - baseX)]]++;
+                            }
+                        }
+                    }
+                }
+            }
+
+            return histogram;
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.function.mask;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import javax.annotation.Nullable;
+
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.extent.Extent;
+import com.sk89q.worldedit.extent.SectionExtent;
+import com.sk89q.worldedit.regions.Region;
+
+/**
+ * Tests the type and data value of blocks against a table with one bit for
+ * every combination of the two.
+ *
+ * <p>
+ * These masks are usually made by {@link MaskCompiler} from other block
+ * masks, and only read each block once however many blocks they match.
+ * </p>
+ *
+ * <p>
+ * If the mask doesn't match air and its extent is a {@link SectionExtent},
+ * sections that only contain air are reported as never matching.
+ * </p>
+ */
+public class BlockTableMask extends AbstractExtentMask implements BoundedMask {
+
+    /**
+     * The number of entries of a table, which is 16 data values for every
+     * block type.
+     */
+    public static final int TABLE_SIZE = (BaseBlock.MAX_ID + 1) << 4;
+
+    /**
+     * The number of longs of a table.
+     */
+    public static final int TABLE_WORDS = TABLE_SIZE >>> 6;
+
+    private final long[] table;
+    private final boolean matchesAir;
+
+    /**
+     * Create a new mask.
+     *
+     * @param extent the extent
+     * @param table  a table of {@link #TABLE_WORDS} longs, with the bit for a
+     *               block at index {@code type << 4 | data}
+     */
+    public BlockTableMask(Extent extent, long[] table) {
+        super(extent);
+        checkNotNull(table);
+        checkArgument(table.length == TABLE_WORDS, "table must have " + TABLE_WORDS + " words");
+        this.table = table;
+        this.matchesAir = (table[0] & 0xFFFFL) != 0;
+    }
+
+    /**
+     * Get the table of this mask, which must not be changed.
+     *
+     * @return the table
+     */
+    public long[] getTable() {
+        return table;
+    }
+
+    /**
+     * Return whether a block matches this mask.
+     *
+     * @param type the type of the block
+     * @param data the data value of the block
+     * @return true if the block matches
+     */
+    public boolean matches(int type, int data) {
+        if (type < 0 || type > BaseBlock.MAX_ID || data < 0 || data > 15) {
+            return false;
+        }
+
+        final int index = type << 4 | data;
+        return (table[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Get the number of combinations of type and data value that match this mask.
+     *
+     * @return the number of matching combinations
+     */
+    public int getCount() {
+        int count = 0;
+        for (long word : table) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    @Override
+    public boolean test(Vector vector) {
+        BaseBlock block = getExtent().getLazyBlock(vector);
+        return matches(block.getType(), block.getData());
+    }
+
+    @Nullable
+    @Override
+    public Region getBounds() {
+        return null;
+    }
+
+    @Override
+    public boolean mayMatchSection(int sectionX, int sectionY, int sectionZ) {
+        Extent extent = getExtent();
+        return matchesAir || !(extent instanceof SectionExtent)
+            || !((SectionExtent) extent).isSectionEmpty(sectionX, sectionY, sectionZ);
+    }
+
+    @Nullable
+    @Override
+    public Mask2D toMask2D() {
+        return null;
+    }
+
+}
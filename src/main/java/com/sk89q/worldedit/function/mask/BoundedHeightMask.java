@@ -21,12 +21,14 @@ import static com.google.common.base.Preconditions.checkArgument;
 import javax.annotation.Nullable;
 
 import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.regions.CuboidRegion;
+import com.sk89q.worldedit.regions.Region;
 
 /**
  * Has the criteria where the Y value of passed positions must be within
  * a certain range of Y values (inclusive).
  */
-public class BoundedHeightMask extends AbstractMask {
+public class BoundedHeightMask extends AbstractMask implements BoundedMask {
 
     private final int minY;
     private final int maxY;
@@ -48,6 +50,18 @@ public class BoundedHeightMask extends AbstractMask {
         return vector.getY() >= minY && vector.getY() <= maxY;
     }
 
+    @Override
+    public Region getBounds() {
+        return new CuboidRegion(
+            new Vector(Integer.MIN_VALUE, minY, Integer.MIN_VALUE),
+            new Vector(Integer.MAX_VALUE, maxY, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public boolean mayMatchSection(int sectionX, int sectionY, int sectionZ) {
+        return sectionY << 4 <= maxY && (sectionY << 4) + 15 >= minY;
+    }
+
     @Nullable
     @Override
     public Mask2D toMask2D() {
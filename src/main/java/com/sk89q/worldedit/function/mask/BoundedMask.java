@@ -0,0 +1,57 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.function.mask;
+
+import javax.annotation.Nullable;
+
+import com.sk89q.worldedit.regions.Region;
+
+/**
+ * A mask that can tell where it never matches, so that visitors can skip
+ * whole areas without testing each position in them.
+ */
+public interface BoundedMask extends Mask {
+
+    /**
+     * Get a region outside of which this mask never matches.
+     *
+     * <p>
+     * Only the bounding box of the returned region is used.
+     * </p>
+     *
+     * @return the bounds, or {@code null} if the mask may match anywhere
+     */
+    @Nullable
+    Region getBounds();
+
+    /**
+     * Return whether this mask may match any position of a 16x16x16 section.
+     *
+     * <p>
+     * This is only a hint, so true may be returned for a section that has
+     * no matching positions, but false must never be returned for a section
+     * that has one.
+     * </p>
+     *
+     * @param sectionX the X coordinate of the section, which is the block X shifted right by 4
+     * @param sectionY the Y coordinate of the section, which is the block Y shifted right by 4
+     * @param sectionZ the Z coordinate of the section, which is the block Z shifted right by 4
+     * @return false if no position of the section can match
+     */
+    boolean mayMatchSection(int sectionX, int sectionY, int sectionZ);
+
+}
@@ -0,0 +1,276 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.function.mask;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.blocks.BlockID;
+import com.sk89q.worldedit.blocks.BlockType;
+import com.sk89q.worldedit.extent.Extent;
+
+/**
+ * Rewrites trees of masks into equivalent trees that are faster to test.
+ *
+ * <p>
+ * Block, fuzzy block, solid block and existing block masks become
+ * {@link BlockTableMask}s, and negations, intersections and unions of
+ * table masks over the same extent are folded into a single table, so
+ * that each block is only read once. The remaining children of
+ * intersections and unions are ordered so that the cheapest masks, and
+ * then the ones most likely to decide the result, are tested first.
+ * </p>
+ *
+ * <p>
+ * The compiled mask does not follow later changes to the masks that it was
+ * compiled from.
+ * </p>
+ *
+ * <p>
+ * Tables only hold data values 0 to 15, so no table masks are created if
+ * data values can be larger, as with NotEnoughIDs.
+ * </p>
+ */
+public final class MaskCompiler {
+
+    private static final int COST_POSITION = 0;
+    private static final int COST_REGION = 1;
+    private static final int COST_BLOCK = 2;
+    private static final int COST_UNKNOWN = 3;
+    private static final int COST_EXPRESSION = 4;
+
+    @Nullable
+    private static long[] solidTable;
+
+    private MaskCompiler() {}
+
+    /**
+     * Compile a mask.
+     *
+     * @param mask the mask
+     * @return the compiled mask, which may be the given mask
+     */
+    public static Mask compile(Mask mask) {
+        checkNotNull(mask);
+
+        if (mask instanceof Masks.NegatedMask) {
+            Mask inner = compile(((Masks.NegatedMask) mask).getMask());
+            if (inner instanceof BlockTableMask) {
+                long[] table = ((BlockTableMask) inner).getTable()
+                    .clone();
+                for (int i = 0; i < table.length; ++i) {
+                    table[i] = ~table[i];
+                }
+                return new BlockTableMask(((BlockTableMask) inner).getExtent(), table);
+            }
+            return inner == ((Masks.NegatedMask) mask).getMask() ? mask : Masks.negate(inner);
+        }
+
+        if (mask.getClass() == MaskIntersection.class || mask.getClass() == MaskUnion.class) {
+            return compileCombination((MaskIntersection) mask, mask.getClass() == MaskUnion.class);
+        }
+
+        if (mask.getClass() == OffsetMask.class) {
+            OffsetMask offsetMask = (OffsetMask) mask;
+            Mask inner = compile(offsetMask.getMask());
+            return inner == offsetMask.getMask() ? mask : new OffsetMask(inner, offsetMask.getOffset());
+        }
+
+        long[] table = getTable(mask);
+        if (table != null) {
+            return new BlockTableMask(((AbstractExtentMask) mask).getExtent(), table);
+        }
+
+        return mask;
+    }
+
+    private static Mask compileCombination(MaskIntersection mask, final boolean union) {
+        Collection<Mask> masks = mask.getMasks();
+        if (masks.isEmpty()) {
+            return mask;
+        }
+
+        // Compile the children and merge the tables over each extent
+        List<Mask> children = new ArrayList<Mask>();
+        Map<Extent, BlockTableMask> tables = new IdentityHashMap<Extent, BlockTableMask>();
+        for (Mask child : masks) {
+            child = compile(child);
+
+            // Children of the same kind of combination can be merged into this one
+            if (child.getClass() == mask.getClass() && !((MaskIntersection) child).getMasks()
+                .isEmpty()) {
+                for (Mask grandchild : ((MaskIntersection) child).getMasks()) {
+                    addChild(children, tables, grandchild, union);
+                }
+            } else {
+                addChild(children, tables, child, union);
+            }
+        }
+
+        if (children.size() == 1) {
+            return children.get(0);
+        }
+
+        Collections.sort(children, new Comparator<Mask>() {
+
+            @Override
+            public int compare(Mask first, Mask second) {
+                int firstCost = getCost(first);
+                int secondCost = getCost(second);
+                if (firstCost != secondCost) {
+                    return firstCost < secondCost ? -1 : 1;
+                }
+
+                // Test the table most likely to decide the result first
+                if (first instanceof BlockTableMask && second instanceof BlockTableMask) {
+                    int firstCount = ((BlockTableMask) first).getCount();
+                    int secondCount = ((BlockTableMask) second).getCount();
+                    return union ? secondCount - firstCount : firstCount - secondCount;
+                }
+                return 0;
+            }
+        });
+
+        return union ? new MaskUnion(children) : new MaskIntersection(children);
+    }
+
+    private static void addChild(List<Mask> children, Map<Extent, BlockTableMask> tables, Mask child,
+        boolean union) {
+        if (!(child instanceof BlockTableMask)) {
+            children.add(child);
+            return;
+        }
+
+        BlockTableMask tableMask = (BlockTableMask) child;
+        BlockTableMask existing = tables.get(tableMask.getExtent());
+        if (existing == null) {
+            tables.put(tableMask.getExtent(), tableMask);
+            children.add(tableMask);
+            return;
+        }
+
+        long[] table = existing.getTable()
+            .clone();
+        long[] other = tableMask.getTable();
+        for (int i = 0; i < table.length; ++i) {
+            table[i] = union ? table[i] | other[i] : table[i] & other[i];
+        }
+        BlockTableMask merged = new BlockTableMask(existing.getExtent(), table);
+        tables.put(merged.getExtent(), merged);
+        children.set(children.indexOf(existing), merged);
+    }
+
+    /**
+     * Get the table of a mask that only tests the type and data value of
+     * the block at the position.
+     *
+     * @param mask the mask
+     * @return the table, or null if the mask tests anything else or a
+     *         table can't hold every block it matches
+     */
+    @Nullable
+    private static long[] getTable(Mask mask) {
+        if (mask.getClass() == BlockTableMask.class) {
+            return ((BlockTableMask) mask).getTable()
+                .clone();
+        }
+
+        if (BaseBlock.MAX_DATA > 15) {
+            return null;
+        }
+
+        if (mask.getClass() == BlockMask.class || mask.getClass() == FuzzyBlockMask.class) {
+            // Both match the exact block, or every data value of a block
+            // given with a data value of -1
+            long[] table = new long[BlockTableMask.TABLE_WORDS];
+            for (BaseBlock block : ((BlockMask) mask).getBlocks()) {
+                int type = block.getType();
+                int data = block.getData();
+                if (type < 0 || type > BaseBlock.MAX_ID) {
+                    continue;
+                }
+                if (data == -1) {
+                    table[(type << 4) >>> 6] |= 0xFFFFL << ((type << 4) & 63);
+                } else if (data >= 0 && data <= 15) {
+                    set(table, type << 4 | data);
+                } else if (data > 15) {
+                    return null;
+                }
+            }
+            return table;
+        }
+
+        if (mask.getClass() == SolidBlockMask.class) {
+            return getSolidTable().clone();
+        }
+
+        if (mask.getClass() == ExistingBlockMask.class) {
+            long[] table = new long[BlockTableMask.TABLE_WORDS];
+            for (int i = 0; i < table.length; ++i) {
+                table[i] = -1L;
+            }
+            table[(BlockID.AIR << 4) >>> 6] &= ~(0xFFFFL << ((BlockID.AIR << 4) & 63));
+            return table;
+        }
+
+        return null;
+    }
+
+    private static synchronized long[] getSolidTable() {
+        if (solidTable == null) {
+            long[] table = new long[BlockTableMask.TABLE_WORDS];
+            for (int type = 0; type <= BaseBlock.MAX_ID; ++type) {
+                for (int data = 0; data <= 15; ++data) {
+                    if (!BlockType.canPassThrough(type, data)) {
+                        set(table, type << 4 | data);
+                    }
+                }
+            }
+            solidTable = table;
+        }
+        return solidTable;
+    }
+
+    private static void set(long[] table, int index) {
+        table[index >>> 6] |= 1L << index;
+    }
+
+    private static int getCost(Mask mask) {
+        if (mask instanceof BoundedHeightMask) {
+            return COST_POSITION;
+        } else if (mask instanceof RegionMask) {
+            return COST_REGION;
+        } else if (mask instanceof BlockTableMask) {
+            return COST_BLOCK;
+        } else if (mask instanceof ExpressionMask) {
+            return COST_EXPRESSION;
+        } else {
+            return COST_UNKNOWN;
+        }
+    }
+
+}
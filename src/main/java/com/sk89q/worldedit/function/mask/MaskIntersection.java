@@ -21,22 +21,24 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
 import javax.annotation.Nullable;
 
 import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.regions.CuboidRegion;
+import com.sk89q.worldedit.regions.Region;
 
 /**
  * Combines several masks and requires that all masks return true
  * when a certain position is tested. It serves as a logical AND operation
  * on a list of masks.
  */
-public class MaskIntersection extends AbstractMask {
+public class MaskIntersection extends AbstractMask implements BoundedMask {
 
-    private final Set<Mask> masks = new HashSet<Mask>();
+    private final Set<Mask> masks = new LinkedHashSet<Mask>();
 
     /**
      * Create a new intersection.
@@ -100,6 +102,74 @@ public class MaskIntersection extends AbstractMask {
         return true;
     }
 
+    @Nullable
+    @Override
+    public Region getBounds() {
+        Vector min = null;
+        Vector max = null;
+
+        for (Mask mask : masks) {
+            Region bounds = getBounds(mask);
+            if (bounds == null) {
+                continue;
+            }
+
+            if (min == null) {
+                min = bounds.getMinimumPoint();
+                max = bounds.getMaximumPoint();
+            } else {
+                min = Vector.getMaximum(min, bounds.getMinimumPoint());
+                max = Vector.getMinimum(max, bounds.getMaximumPoint());
+            }
+        }
+
+        // If the bounds don't overlap, the sections of the masks still won't
+        if (min == null || min.getX() > max.getX() || min.getY() > max.getY() || min.getZ() > max.getZ()) {
+            return null;
+        }
+
+        return new CuboidRegion(min, max);
+    }
+
+    @Override
+    public boolean mayMatchSection(int sectionX, int sectionY, int sectionZ) {
+        if (masks.isEmpty()) {
+            return false;
+        }
+
+        for (Mask mask : masks) {
+            if (!mayMatchSection(mask, sectionX, sectionY, sectionZ)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the bounds of a mask.
+     *
+     * @param mask the mask
+     * @return the bounds, or {@code null} if the mask may match anywhere
+     */
+    @Nullable
+    static Region getBounds(Mask mask) {
+        return mask instanceof BoundedMask ? ((BoundedMask) mask).getBounds() : null;
+    }
+
+    /**
+     * Return whether a mask may match any position of a section.
+     *
+     * @param mask     the mask
+     * @param sectionX the X coordinate of the section
+     * @param sectionY the Y coordinate of the section
+     * @param sectionZ the Z coordinate of the section
+     * @return false if no position of the section can match
+     */
+    static boolean mayMatchSection(Mask mask, int sectionX, int sectionY, int sectionZ) {
+        return !(mask instanceof BoundedMask) || ((BoundedMask) mask).mayMatchSection(sectionX, sectionY, sectionZ);
+    }
+
     @Nullable
     @Override
     public Mask2D toMask2D() {
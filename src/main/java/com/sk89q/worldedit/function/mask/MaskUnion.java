@@ -23,6 +23,8 @@ import java.util.List;
 import javax.annotation.Nullable;
 
 import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.regions.CuboidRegion;
+import com.sk89q.worldedit.regions.Region;
 
 /**
  * Combines several masks and requires that one or more masks return true
@@ -62,6 +64,41 @@ public class MaskUnion extends MaskIntersection {
         return false;
     }
 
+    @Nullable
+    @Override
+    public Region getBounds() {
+        Vector min = null;
+        Vector max = null;
+
+        for (Mask mask : getMasks()) {
+            Region bounds = getBounds(mask);
+            if (bounds == null) {
+                return null;
+            }
+
+            if (min == null) {
+                min = bounds.getMinimumPoint();
+                max = bounds.getMaximumPoint();
+            } else {
+                min = Vector.getMinimum(min, bounds.getMinimumPoint());
+                max = Vector.getMaximum(max, bounds.getMaximumPoint());
+            }
+        }
+
+        return min != null ? new CuboidRegion(min, max) : null;
+    }
+
+    @Override
+    public boolean mayMatchSection(int sectionX, int sectionY, int sectionZ) {
+        for (Mask mask : getMasks()) {
+            if (mayMatchSection(mask, sectionX, sectionY, sectionZ)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     @Nullable
     @Override
     public Mask2D toMask2D() {
@@ -69,24 +69,7 @@ public final class Masks {
         }
 
         checkNotNull(mask);
-        return new AbstractMask() {
-
-            @Override
-            public boolean test(Vector vector) {
-                return !mask.test(vector);
-            }
-
-            @Nullable
-            @Override
-            public Mask2D toMask2D() {
-                Mask2D mask2d = mask.toMask2D();
-                if (mask2d != null) {
-                    return negate(mask2d);
-                } else {
-                    return null;
-                }
-            }
-        };
+        return new NegatedMask(mask);
     }
 
     /**
@@ -219,6 +202,43 @@ public final class Masks {
         };
     }
 
+    /**
+     * The negation of a mask, which {@link MaskCompiler} can see through.
+     */
+    static final class NegatedMask extends AbstractMask {
+
+        private final Mask mask;
+
+        private NegatedMask(Mask mask) {
+            this.mask = mask;
+        }
+
+        /**
+         * Get the mask that is negated.
+         *
+         * @return the mask
+         */
+        Mask getMask() {
+            return mask;
+        }
+
+        @Override
+        public boolean test(Vector vector) {
+            return !mask.test(vector);
+        }
+
+        @Nullable
+        @Override
+        public Mask2D toMask2D() {
+            Mask2D mask2d = mask.toMask2D();
+            if (mask2d != null) {
+                return negate(mask2d);
+            } else {
+                return null;
+            }
+        }
+    }
+
     private static class AlwaysTrue implements Mask, Mask2D {
 
         @Override
@@ -26,7 +26,7 @@ import com.sk89q.worldedit.regions.Region;
 /**
  * A mask that tests whether given positions are contained within a region.
  */
-public class RegionMask extends AbstractMask {
+public class RegionMask extends AbstractMask implements BoundedMask {
 
     private Region region;
 
@@ -63,6 +63,20 @@ public class RegionMask extends AbstractMask {
         return region.contains(vector);
     }
 
+    @Override
+    public Region getBounds() {
+        return region;
+    }
+
+    @Override
+    public boolean mayMatchSection(int sectionX, int sectionY, int sectionZ) {
+        Vector min = region.getMinimumPoint();
+        Vector max = region.getMaximumPoint();
+        return sectionX << 4 <= max.getBlockX() && (sectionX << 4) + 15 >= min.getBlockX()
+            && sectionY << 4 <= max.getBlockY() && (sectionY << 4) + 15 >= min.getBlockY()
+            && sectionZ << 4 <= max.getBlockZ() && (sectionZ << 4) + 15 >= min.getBlockZ();
+    }
+
     @Nullable
     @Override
     public Mask2D toMask2D() {
@@ -16,23 +16,34 @@
 
 package com.sk89q.worldedit.function.pattern;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.Nullable;
 
 import com.sk89q.worldedit.Vector;
 import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.util.AliasTable;
 
 /**
  * Uses a random pattern of a weighted list of patterns.
+ *
+ * <p>
+ * Patterns are picked in constant time from an {@link AliasTable} that is
+ * built on first use, with the random number generator of the current
+ * thread, so the pattern may be applied from several threads at once.
+ * </p>
  */
 public class RandomPattern extends AbstractPattern {
 
-    private final Random random = new Random();
     private List<Chance> patterns = new ArrayList<Chance>();
     private double max = 0;
+    @Nullable
+    private volatile AliasTable table;
 
     /**
      * Add a pattern to the weight list of patterns.
@@ -47,24 +58,40 @@ public class RandomPattern extends AbstractPattern {
      */
     public void add(Pattern pattern, double chance) {
         checkNotNull(pattern);
+        checkArgument(chance >= 0, "chance must not be negative");
         patterns.add(new Chance(pattern, chance));
         max += chance;
+        table = null;
     }
 
     @Override
     public BaseBlock apply(Vector position) {
-        double r = random.nextDouble();
-        double offset = 0;
+        if (max <= 0) {
+            throw new RuntimeException("ProportionalFillPattern");
+        }
+
+        return patterns.get(getTable().next(ThreadLocalRandom.current()))
+            .getPattern()
+            .apply(position);
+    }
 
-        for (Chance chance : patterns) {
-            if (r <= (offset + chance.getChance()) / max) {
-                return chance.getPattern()
-                    .apply(position);
+    /**
+     * Get the alias table of the current patterns, building it if required.
+     *
+     * @return the table
+     */
+    private AliasTable getTable() {
+        AliasTable table = this.table;
+        if (table == null) {
+            double[] weights = new double[patterns.size()];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = patterns.get(i)
+                    .getChance();
             }
-            offset += chance.getChance();
+            table = new AliasTable(weights);
+            this.table = table;
         }
-
-        throw new RuntimeException("ProportionalFillPattern");
+        return table;
     }
 
     private static class Chance {
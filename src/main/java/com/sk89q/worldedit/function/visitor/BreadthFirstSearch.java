@@ -18,20 +18,28 @@ package com.sk89q.worldedit.function.visitor;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Queue;
-import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import javax.annotation.Nullable;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.sk89q.worldedit.BlockVector;
 import com.sk89q.worldedit.Vector;
 import com.sk89q.worldedit.WorldEditException;
+import com.sk89q.worldedit.extent.cache.SectionSnapshotExtent;
 import com.sk89q.worldedit.function.RegionFunction;
 import com.sk89q.worldedit.function.operation.Operation;
 import com.sk89q.worldedit.function.operation.RunContext;
+import com.sk89q.worldedit.util.collection.BlockBitSet;
+import com.sk89q.worldedit.util.collection.BlockQueue;
+import com.sk89q.worldedit.util.concurrency.EvenMoreExecutors;
 
 /**
  * Performs a breadth-first search starting from points added with
@@ -45,14 +53,55 @@ import com.sk89q.worldedit.function.operation.RunContext;
  * functionality that starts at certain points and extends outward from
  * those points.
  * </p>
+ *
+ * <p>
+ * Positions waiting to be visited are kept as coordinates in a
+ * {@link BlockQueue} and visited positions in a {@link BlockBitSet}, so
+ * that large searches only need a few bits per block.
+ * </p>
+ *
+ * <p>
+ * With {@link #setParallel(SectionSnapshotExtent)}, large searches test
+ * the positions of each level of the search on a pool of worker threads.
+ * </p>
  */
 public abstract class BreadthFirstSearch implements Operation {
 
+    /**
+     * The number of threads that test positions in parallel searches.
+     */
+    private static final int PARALLEL_THREADS = Math.max(
+        1,
+        Math.min(
+            8,
+            Runtime.getRuntime()
+                .availableProcessors() - 1));
+
+    /**
+     * The number of positions that a level needs before it is tested on the
+     * worker threads, below which this is not worth loading the snapshot.
+     */
+    private static final int MIN_PARALLEL_LEVEL = 2048;
+
+    /**
+     * The number of positions that are tested by each task.
+     */
+    private static final int BATCH_SIZE = 512;
+
+    private static final byte UNTESTED = 0;
+    private static final byte VISITABLE = 1;
+    private static final byte NOT_VISITABLE = 2;
+
+    private static final ExecutorService testExecutor = EvenMoreExecutors
+        .newDaemonThreadPool(PARALLEL_THREADS, "WorldEdit Search Worker #%d");
+
     private final RegionFunction function;
-    private final Queue<BlockVector> queue = new ArrayDeque<BlockVector>();
-    private final Set<BlockVector> visited = new HashSet<BlockVector>();
+    private final BlockQueue queue = new BlockQueue();
+    private final BlockBitSet visited = new BlockBitSet();
     private final List<Vector> directions = new ArrayList<Vector>();
     private int affected = 0;
+    @Nullable
+    private SectionSnapshotExtent snapshot;
 
     /**
      * Create a new instance.
@@ -85,6 +134,31 @@ public abstract class BreadthFirstSearch implements Operation {
         return directions;
     }
 
+    /**
+     * Search level by level, and test the positions of large levels on a
+     * pool of worker threads. The function is still only applied on the
+     * thread that runs this operation.
+     *
+     * <p>
+     * {@link #isVisitable(com.sk89q.worldedit.Vector, com.sk89q.worldedit.Vector)}
+     * is then called from several threads at once, so it must not change
+     * any state and must only read blocks through the given snapshot. The
+     * snapshot is loaded with the sections of each level before the level
+     * is tested. Positions whose test reads from other sections are tested
+     * again on the thread that runs this operation.
+     * </p>
+     *
+     * <p>
+     * If the snapshot {@link SectionSnapshotExtent#isSupported() can't copy
+     * sections}, positions are searched one at a time.
+     * </p>
+     *
+     * @param snapshot the snapshot read by the test, or null to search one position at a time
+     */
+    public void setParallel(@Nullable SectionSnapshotExtent snapshot) {
+        this.snapshot = SectionSnapshotExtent.isSupported() ? snapshot : null;
+    }
+
     /**
      * Add the directions along the axes as directions to visit.
      */
@@ -125,9 +199,11 @@ public abstract class BreadthFirstSearch implements Operation {
      */
     public void visit(Vector position) {
         BlockVector blockVector = position.toBlockVector();
-        if (!visited.contains(blockVector)) {
-            queue.add(blockVector);
-            visited.add(blockVector);
+        int x = blockVector.getBlockX();
+        int y = blockVector.getBlockY();
+        int z = blockVector.getBlockZ();
+        if (visited.add(x, y, z)) {
+            queue.add(x, y, z);
         }
     }
 
@@ -135,14 +211,14 @@ public abstract class BreadthFirstSearch implements Operation {
      * Try to visit the given 'to' location.
      *
      * @param from the origin block
-     * @param to   the block under question
+     * @param x    the X coordinate of the block under question
+     * @param y    the Y coordinate of the block under question
+     * @param z    the Z coordinate of the block under question
      */
-    private void visit(Vector from, Vector to) {
-        BlockVector blockVector = to.toBlockVector();
-        if (!visited.contains(blockVector)) {
-            visited.add(blockVector);
-            if (isVisitable(from, to)) {
-                queue.add(blockVector);
+    private void visit(Vector from, int x, int y, int z) {
+        if (visited.add(x, y, z)) {
+            if (isVisitable(from, new BlockVector(x, y, z))) {
+                queue.add(x, y, z);
             }
         }
     }
@@ -168,21 +244,156 @@ public abstract class BreadthFirstSearch implements Operation {
 
     @Override
     public Operation resume(RunContext run) throws WorldEditException {
-        Vector position;
+        // The directions may have been changed since the last run
+        int[] offsets = new int[directions.size() * 3];
+        int i = 0;
+        for (Vector dir : directions) {
+            offsets[i++] = dir.getBlockX();
+            offsets[i++] = dir.getBlockY();
+            offsets[i++] = dir.getBlockZ();
+        }
+
+        if (snapshot != null) {
+            resumeByLevel(offsets);
+            return null;
+        }
 
-        while ((position = queue.poll()) != null) {
-            if (function.apply(position)) {
+        int[] position = new int[3];
+        while (queue.poll(position)) {
+            int x = position[0];
+            int y = position[1];
+            int z = position[2];
+            BlockVector from = new BlockVector(x, y, z);
+            if (function.apply(from)) {
                 affected++;
             }
 
-            for (Vector dir : directions) {
-                visit(position, position.add(dir));
+            for (i = 0; i < offsets.length; i += 3) {
+                visit(from, x + offsets[i], y + offsets[i + 1], z + offsets[i + 2]);
             }
         }
 
         return null;
     }
 
+    /**
+     * Visit the queue one level at a time. The function is applied to the
+     * whole level first, and then the positions next to it that were not
+     * visited yet are tested together.
+     *
+     * @param offsets the offsets of the directions, as X, Y and Z triples
+     * @throws WorldEditException thrown by the function
+     */
+    private void resumeByLevel(int[] offsets) throws WorldEditException {
+        int[] position = new int[3];
+        BlockVector[] level = new BlockVector[0];
+
+        // The X, Y and Z coordinates of each candidate and the index of the
+        // position of the level that it is next to
+        int[] candidates = new int[0];
+
+        while (!queue.isEmpty()) {
+            int levelSize = queue.size();
+            if (level.length < levelSize) {
+                level = new BlockVector[levelSize];
+            }
+
+            int count = 0;
+            for (int i = 0; i < levelSize; ++i) {
+                queue.poll(position);
+                BlockVector from = new BlockVector(position[0], position[1], position[2]);
+                level[i] = from;
+                if (function.apply(from)) {
+                    affected++;
+                }
+
+                for (int j = 0; j < offsets.length; j += 3) {
+                    int x = position[0] + offsets[j];
+                    int y = position[1] + offsets[j + 1];
+                    int z = position[2] + offsets[j + 2];
+                    if (visited.add(x, y, z)) {
+                        if ((count + 1) * 4 > candidates.length) {
+                            candidates = Arrays.copyOf(candidates, Math.max(256, candidates.length * 2));
+                        }
+                        candidates[count * 4] = x;
+                        candidates[count * 4 + 1] = y;
+                        candidates[count * 4 + 2] = z;
+                        candidates[count * 4 + 3] = i;
+                        ++count;
+                    }
+                }
+            }
+
+            byte[] results = testLevel(level, candidates, count);
+            for (int k = 0; k < count; ++k) {
+                if (results[k] == VISITABLE) {
+                    queue.add(candidates[k * 4], candidates[k * 4 + 1], candidates[k * 4 + 2]);
+                }
+            }
+
+            Arrays.fill(level, 0, levelSize, null);
+        }
+    }
+
+    /**
+     * Test the candidates of a level, on the worker threads if there are
+     * enough of them.
+     *
+     * @param level      the positions of the level
+     * @param candidates the candidates, as described in {@link #resumeByLevel(int[])}
+     * @param count      the number of candidates
+     * @return whether each candidate is visitable
+     */
+    private byte[] testLevel(final BlockVector[] level, final int[] candidates, int count) {
+        final byte[] results = new byte[count];
+
+        if (count >= MIN_PARALLEL_LEVEL) {
+            for (int k = 0; k < count; ++k) {
+                snapshot.load(candidates[k * 4], candidates[k * 4 + 1], candidates[k * 4 + 2]);
+            }
+
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int start = 0; start < count; start += BATCH_SIZE) {
+                final int first = start;
+                final int last = Math.min(count, start + BATCH_SIZE);
+                futures.add(testExecutor.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        for (int k = first; k < last; ++k) {
+                            try {
+                                results[k] = testCandidate(level, candidates, k) ? VISITABLE : NOT_VISITABLE;
+                            } catch (SectionSnapshotExtent.NotLoadedException e) {
+                                // Left untested for the calling thread
+                            }
+                        }
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    Uninterruptibles.getUninterruptibly(future);
+                } catch (ExecutionException e) {
+                    throw Throwables.propagate(e.getCause());
+                }
+            }
+        }
+
+        for (int k = 0; k < count; ++k) {
+            if (results[k] == UNTESTED) {
+                results[k] = testCandidate(level, candidates, k) ? VISITABLE : NOT_VISITABLE;
+            }
+        }
+
+        return results;
+    }
+
+    private boolean testCandidate(BlockVector[] level, int[] candidates, int k) {
+        BlockVector to = new BlockVector(candidates[k * 4], candidates[k * 4 + 1], candidates[k * 4 + 2]);
+        return isVisitable(level[candidates[k * 4 + 3]], to);
+    }
+
     @Override
     public void cancel() {}
 
@@ -18,15 +18,30 @@ package com.sk89q.worldedit.function.visitor;
 
 import java.util.List;
 
+import javax.annotation.Nullable;
+
+import com.sk89q.worldedit.BlockVector;
 import com.sk89q.worldedit.Vector;
 import com.sk89q.worldedit.WorldEditException;
 import com.sk89q.worldedit.function.RegionFunction;
+import com.sk89q.worldedit.function.RegionMaskingFilter;
+import com.sk89q.worldedit.function.mask.BoundedMask;
+import com.sk89q.worldedit.function.mask.Mask;
 import com.sk89q.worldedit.function.operation.Operation;
 import com.sk89q.worldedit.function.operation.RunContext;
+import com.sk89q.worldedit.regions.CuboidRegion;
 import com.sk89q.worldedit.regions.Region;
+import com.sk89q.worldedit.regions.SpanRegion;
 
 /**
  * Utility class to apply region functions to {@link com.sk89q.worldedit.regions.Region}.
+ *
+ * <p>
+ * If the function is a {@link RegionMaskingFilter} with a {@link BoundedMask},
+ * the region is visited one 16x16x16 section at a time and sections that the
+ * mask can't match are skipped. The hints of the mask are taken before each
+ * section is visited.
+ * </p>
  */
 public class RegionVisitor implements Operation {
 
@@ -50,6 +65,17 @@ public class RegionVisitor implements Operation {
 
     @Override
     public Operation resume(RunContext run) throws WorldEditException {
+        BoundedMask mask = getBoundedMask();
+        if (mask != null) {
+            visitSections(mask);
+            return null;
+        }
+
+        if (region instanceof SpanRegion) {
+            visitSpans((SpanRegion) region);
+            return null;
+        }
+
         for (Vector pt : region) {
             if (function.apply(pt)) {
                 affected++;
@@ -59,6 +85,122 @@ public class RegionVisitor implements Operation {
         return null;
     }
 
+    /**
+     * Visit a region one run of blocks at a time, so that the region does
+     * not have to be tested at each position.
+     *
+     * @param region the region
+     * @throws WorldEditException thrown by the function
+     */
+    private void visitSpans(SpanRegion region) throws WorldEditException {
+        final Vector min = region.getMinimumPoint();
+        final Vector max = region.getMaximumPoint();
+        final int[] span = new int[2];
+
+        for (int z = min.getBlockZ(); z <= max.getBlockZ(); ++z) {
+            for (int y = min.getBlockY(); y <= max.getBlockY(); ++y) {
+                if (!region.getSpan(y, z, span)) {
+                    continue;
+                }
+
+                for (int x = span[0]; x <= span[1]; ++x) {
+                    if (function.apply(new BlockVector(x, y, z))) {
+                        affected++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the mask of the function if it can tell where it never matches.
+     *
+     * @return the mask, or {@code null}
+     */
+    @Nullable
+    private BoundedMask getBoundedMask() {
+        if (function instanceof RegionMaskingFilter) {
+            Mask mask = ((RegionMaskingFilter) function).getMask();
+            if (mask instanceof BoundedMask) {
+                return (BoundedMask) mask;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Visit the part of the region within the bounds of a mask, one section
+     * at a time, skipping the sections that the mask can't match.
+     *
+     * @param mask the mask
+     * @throws WorldEditException thrown by the function
+     */
+    private void visitSections(BoundedMask mask) throws WorldEditException {
+        Vector min = region.getMinimumPoint();
+        Vector max = region.getMaximumPoint();
+
+        Region bounds = mask.getBounds();
+        if (bounds != null) {
+            min = Vector.getMaximum(min, bounds.getMinimumPoint());
+            max = Vector.getMinimum(max, bounds.getMaximumPoint());
+        }
+
+        final int minX = min.getBlockX();
+        final int minY = min.getBlockY();
+        final int minZ = min.getBlockZ();
+        final int maxX = max.getBlockX();
+        final int maxY = max.getBlockY();
+        final int maxZ = max.getBlockZ();
+        if (minX > maxX || minY > maxY || minZ > maxZ) {
+            return;
+        }
+
+        // Cuboids fill their bounding box, so positions need no other test
+        final boolean cuboid = region instanceof CuboidRegion;
+        final SpanRegion spans = region instanceof SpanRegion ? (SpanRegion) region : null;
+        final int[] span = new int[2];
+
+        for (int sectionZ = minZ >> 4; sectionZ <= maxZ >> 4; ++sectionZ) {
+            final int z0 = Math.max(minZ, sectionZ << 4);
+            final int z1 = Math.min(maxZ, (sectionZ << 4) + 15);
+
+            for (int sectionY = minY >> 4; sectionY <= maxY >> 4; ++sectionY) {
+                final int y0 = Math.max(minY, sectionY << 4);
+                final int y1 = Math.min(maxY, (sectionY << 4) + 15);
+
+                for (int sectionX = minX >> 4; sectionX <= maxX >> 4; ++sectionX) {
+                    if (!mask.mayMatchSection(sectionX, sectionY, sectionZ)) {
+                        continue;
+                    }
+
+                    final int x0 = Math.max(minX, sectionX << 4);
+                    final int x1 = Math.min(maxX, (sectionX << 4) + 15);
+
+                    for (int z = z0; z <= z1; ++z) {
+                        for (int y = y0; y <= y1; ++y) {
+                            int from = x0;
+                            int to = x1;
+                            if (spans != null) {
+                                if (!spans.getSpan(y, z, span)) {
+                                    continue;
+                                }
+                                from = Math.max(from, span[0]);
+                                to = Math.min(to, span[1]);
+                            }
+
+                            for (int x = from; x <= to; ++x) {
+                                BlockVector pt = new BlockVector(x, y, z);
+                                if ((cuboid || spans != null || region.contains(pt)) && function.apply(pt)) {
+                                    affected++;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
     @Override
     public void cancel() {}
 
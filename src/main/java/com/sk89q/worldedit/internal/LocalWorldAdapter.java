@@ -65,6 +65,16 @@ public class LocalWorldAdapter extends LocalWorld {
         return world.getMaxY();
     }
 
+    @Override
+    public boolean isSectionEmpty(int sectionX, int sectionY, int sectionZ) {
+        return world.isSectionEmpty(sectionX, sectionY, sectionZ);
+    }
+
+    @Override
+    public void copySection(int sectionX, int sectionY, int sectionZ, char[] blocks) {
+        world.copySection(sectionX, sectionY, sectionZ, blocks);
+    }
+
     @Override
     public boolean isValidBlockType(int id) {
         return world.isValidBlockType(id);
@@ -16,20 +16,43 @@
 
 package com.sk89q.worldedit.internal.expression;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import com.sk89q.worldedit.internal.expression.lexer.Lexer;
 import com.sk89q.worldedit.internal.expression.lexer.tokens.Token;
 import com.sk89q.worldedit.internal.expression.parser.Parser;
+import com.sk89q.worldedit.internal.expression.runtime.BatchExpressionEnvironment;
+import com.sk89q.worldedit.internal.expression.runtime.CompiledExpression;
 import com.sk89q.worldedit.internal.expression.runtime.Constant;
 import com.sk89q.worldedit.internal.expression.runtime.EvaluationException;
+import com.sk89q.worldedit.internal.expression.runtime.ExpressionCompiler;
 import com.sk89q.worldedit.internal.expression.runtime.ExpressionEnvironment;
+import com.sk89q.worldedit.internal.expression.runtime.ExpressionOptimizer;
 import com.sk89q.worldedit.internal.expression.runtime.Functions;
+import com.sk89q.worldedit.internal.expression.runtime.Interval;
+import com.sk89q.worldedit.internal.expression.runtime.IntervalEvaluator;
 import com.sk89q.worldedit.internal.expression.runtime.RValue;
 import com.sk89q.worldedit.internal.expression.runtime.ReturnException;
+import com.sk89q.worldedit.internal.expression.runtime.StateScanner;
+import com.sk89q.worldedit.internal.expression.runtime.TreePrinter;
 import com.sk89q.worldedit.internal.expression.runtime.Variable;
 
 /**
@@ -60,7 +83,8 @@ import com.sk89q.worldedit.internal.expression.runtime.Variable;
  * To compile an equation, run
  * {@code Expression.compile("expression here", "var1", "var2"...)}.
  * If you wish to run the equation multiple times, you can then optimize it,
- * by calling {@link #optimize()}. You can then run the equation as many times
+ * by calling {@link #optimize()}, which also compiles it to bytecode where
+ * possible. You can then run the equation as many times
  * as you want by calling {@link #evaluate(double...)}. You do not need to
  * pass values for all variables specified while compiling.
  * To query variables after evaluation, you can use
@@ -72,16 +96,34 @@ import com.sk89q.worldedit.internal.expression.runtime.Variable;
  * Variables are also supported and can be set either by passing values
  * to {@link #evaluate(double...)}.
  * </p>
+ *
+ * <p>
+ * Expressions may be evaluated from several threads. Optimized expressions
+ * that {@link #isReentrant() are reentrant} are evaluated concurrently, each
+ * evaluation with its own copy of the variables, which is written back to the
+ * variables by one thread at a time. Other expressions are evaluated by one
+ * thread at a time.
+ * </p>
  */
 public class Expression {
 
     private static final ThreadLocal<Stack<Expression>> instance = new ThreadLocal<Stack<Expression>>();
 
+    /**
+     * The minimum number of evaluations that a thread is given by
+     * {@link #evaluateParallel}.
+     */
+    private static final int MIN_PARALLEL_RUN = 64;
+
     private final Map<String, RValue> variables = new HashMap<String, RValue>();
     private final String[] variableNames;
     private RValue root;
     private final Functions functions = new Functions();
     private ExpressionEnvironment environment;
+    private volatile CompiledExpression compiled;
+    private volatile Variable[] slotVariables;
+    private volatile IntervalEvaluator intervalEvaluator;
+    private volatile boolean intervalEvaluatorCreated;
 
     public static Expression compile(String expression, String... variableNames) throws ExpressionException {
         return new Expression(expression, variableNames);
@@ -110,21 +152,51 @@ public class Expression {
     }
 
     public double evaluate(double... values) throws EvaluationException {
-        for (int i = 0; i < values.length; ++i) {
-            final String variableName = variableNames[i];
-            final RValue invokable = variables.get(variableName);
-            if (!(invokable instanceof Variable)) {
-                throw new EvaluationException(
-                    invokable.getPosition(),
-                    "Tried to assign constant " + variableName + ".");
+        final CompiledExpression compiled = this.compiled;
+        if (compiled != null && compiled.isReentrant()) {
+            return evaluateCompiled(compiled, values);
+        }
+
+        synchronized (this) {
+            if (compiled != null) {
+                return evaluateCompiled(compiled, values);
             }
 
-            ((Variable) invokable).value = values[i];
+            for (int i = 0; i < values.length; ++i) {
+                final String variableName = variableNames[i];
+                final RValue invokable = variables.get(variableName);
+                if (!(invokable instanceof Variable)) {
+                    throw new EvaluationException(
+                        invokable.getPosition(),
+                        "Tried to assign constant " + variableName + ".");
+                }
+
+                ((Variable) invokable).value = values[i];
+            }
+
+            pushInstance();
+            try {
+                return root.getValue();
+            } catch (ReturnException e) {
+                return e.getValue();
+            } finally {
+                popInstance();
+            }
         }
+    }
+
+    private double evaluateCompiled(CompiledExpression compiled, double... values) throws EvaluationException {
+        checkArgument(values.length <= variableNames.length, "too many values");
+
+        final Variable[] slotVariables = this.slotVariables;
+        final double[] frame = createFrame(slotVariables);
+        System.arraycopy(values, 0, frame, 0, values.length);
 
         pushInstance();
         try {
-            return root.getValue();
+            final double result = compiled.evaluate(frame);
+            writeBack(slotVariables, frame);
+            return result;
         } catch (ReturnException e) {
             return e.getValue();
         } finally {
@@ -132,8 +204,399 @@ public class Expression {
         }
     }
 
-    public void optimize() throws EvaluationException {
-        root = root.optimize();
+    /**
+     * Evaluate the expression for a run of values of its variables.
+     *
+     * <p>
+     * This is equivalent to calling {@link #evaluate(double...)} once for
+     * every index, but the variables are only looked up once per run, which
+     * makes it cheaper to evaluate the expression for a row of blocks.
+     * If the environment is a {@link BatchExpressionEnvironment}, it is told
+     * the index of each evaluation.
+     * </p>
+     *
+     * @param inputs      the values of the variables that were given to
+     *                    {@link #compile(String, String...)}, with
+     *                    {@code inputs[i][j]} being the value of the
+     *                    {@code i}th variable for the {@code j}th evaluation.
+     *                    There may be fewer arrays than variables.
+     * @param length      the number of evaluations
+     * @param results     the array that receives the result of each evaluation
+     * @param outputs     the arrays that receive the values of the output
+     *                    variables after each evaluation
+     * @param outputNames the names of the output variables
+     * @throws EvaluationException thrown on evaluation error
+     */
+    public void evaluate(double[][] inputs, int length, double[] results, double[][] outputs, String... outputNames)
+        throws EvaluationException {
+        final RValue[] outputVariables = checkBatch(inputs, results, outputs, outputNames);
+
+        final CompiledExpression compiled = this.compiled;
+        if (compiled != null && compiled.isReentrant()) {
+            evaluateCompiled(compiled, inputs, 0, length, results, outputs, outputVariables, true);
+            return;
+        }
+
+        synchronized (this) {
+            if (compiled != null) {
+                evaluateCompiled(compiled, inputs, 0, length, results, outputs, outputVariables, true);
+                return;
+            }
+
+            evaluateInterpreted(inputs, length, results, outputs, outputVariables);
+        }
+    }
+
+    /**
+     * Evaluate the expression for a run of values of its variables, using
+     * several threads if the expression {@link #isReentrant() is reentrant}
+     * and keeps no state between evaluations.
+     *
+     * <p>
+     * The results are the same as those of
+     * {@link #evaluate(double[][], int, double[], double[][], String...)}.
+     * Evaluations only run in parallel if every variable other than the
+     * inputs is assigned before it is read, the output variables are either
+     * always or never assigned, and no function such as {@code megabuf} keeps
+     * state of its own. The variables are then written back by the calling
+     * thread from the last evaluation of the last run.
+     * </p>
+     *
+     * @param inputs      the values of the variables that were given to
+     *                    {@link #compile(String, String...)}
+     * @param length      the number of evaluations
+     * @param results     the array that receives the result of each evaluation
+     * @param outputs     the arrays that receive the values of the output
+     *                    variables after each evaluation
+     * @param outputNames the names of the output variables
+     * @throws EvaluationException thrown on evaluation error
+     */
+    public void evaluateParallel(final double[][] inputs, int length, final double[] results,
+        final double[][] outputs, String... outputNames) throws EvaluationException {
+        final CompiledExpression compiled = this.compiled;
+        final int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        if (compiled == null || !compiled.isReentrant() || parallelism < 2 || length < 2 * MIN_PARALLEL_RUN) {
+            evaluate(inputs, length, results, outputs, outputNames);
+            return;
+        }
+
+        final RValue[] outputVariables = checkBatch(inputs, results, outputs, outputNames);
+        if (!isStateless(inputs.length, outputVariables)) {
+            evaluate(inputs, length, results, outputs, outputNames);
+            return;
+        }
+
+        final int runLength = Math.max(MIN_PARALLEL_RUN, (length + 4 * parallelism - 1) / (4 * parallelism));
+        final List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>();
+        for (int start = 0; start < length; start += runLength) {
+            final int from = start;
+            final int to = Math.min(length, start + runLength);
+            tasks.add(new Callable<double[]>() {
+
+                @Override
+                public double[] call() throws EvaluationException {
+                    return evaluateCompiled(compiled, inputs, from, to, results, outputs, outputVariables, false);
+                }
+            });
+        }
+
+        double[] frame = null;
+        for (Future<double[]> future : ForkJoinPool.commonPool()
+            .invokeAll(tasks)) {
+            try {
+                frame = Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                Throwables.propagateIfPossible(e.getCause(), EvaluationException.class);
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+
+        writeBack(slotVariables, frame);
+    }
+
+    /**
+     * Return whether evaluations of the expression only depend on the values
+     * of their inputs, so that they may be repeated or run in any order.
+     *
+     * @param inputCount  the number of variables that are given values, in
+     *                    the order they were given to
+     *                    {@link #compile(String, String...)}
+     * @param outputNames the names of the variables that are read after each
+     *                    evaluation
+     * @return true if the expression keeps no state between evaluations
+     */
+    public synchronized boolean isStateless(int inputCount, String... outputNames) {
+        checkArgument(inputCount <= variableNames.length, "too many inputs");
+        final RValue[] outputVariables = new RValue[outputNames.length];
+        for (int k = 0; k < outputNames.length; ++k) {
+            outputVariables[k] = variables.get(outputNames[k]);
+            checkArgument(outputVariables[k] != null, "unknown variable " + outputNames[k]);
+        }
+        return isStateless(inputCount, outputVariables);
+    }
+
+    /**
+     * Return whether evaluations of the expression only depend on the given
+     * inputs, so that they may run in any order.
+     *
+     * @param inputCount      the number of variables that are given values
+     * @param outputVariables the variables that are read after each evaluation
+     * @return true if the expression keeps no state between evaluations
+     */
+    private boolean isStateless(int inputCount, RValue[] outputVariables) {
+        final List<RValue> inputVariables = new ArrayList<RValue>();
+        for (int i = 0; i < inputCount; ++i) {
+            inputVariables.add(variables.get(variableNames[i]));
+        }
+        return StateScanner.isStateless(root, inputVariables, Arrays.asList(outputVariables));
+    }
+
+    /**
+     * Return whether the expression can be evaluated from several threads at
+     * once. Other expressions are evaluated by one thread at a time.
+     *
+     * @return true if the expression is reentrant
+     */
+    public boolean isReentrant() {
+        final CompiledExpression compiled = this.compiled;
+        return compiled != null && compiled.isReentrant();
+    }
+
+    private RValue[] checkBatch(double[][] inputs, double[] results, double[][] outputs, String... outputNames) {
+        checkNotNull(inputs);
+        checkNotNull(results);
+        checkArgument(inputs.length <= variableNames.length, "too many inputs");
+        checkArgument(
+            outputNames.length == 0 || outputs != null && outputs.length >= outputNames.length,
+            "an output array is required for each output variable");
+
+        final RValue[] outputVariables = new RValue[outputNames.length];
+        for (int k = 0; k < outputNames.length; ++k) {
+            outputVariables[k] = variables.get(outputNames[k]);
+            checkArgument(outputVariables[k] != null, "unknown variable " + outputNames[k]);
+        }
+        return outputVariables;
+    }
+
+    private void evaluateInterpreted(double[][] inputs, int length, double[] results, double[][] outputs,
+        RValue[] outputVariables) throws EvaluationException {
+        final BatchExpressionEnvironment batchEnvironment = getBatchEnvironment();
+
+        final Variable[] inputVariables = new Variable[inputs.length];
+        for (int i = 0; i < inputs.length; ++i) {
+            inputVariables[i] = (Variable) variables.get(variableNames[i]);
+        }
+
+        pushInstance();
+        try {
+            for (int j = 0; j < length; ++j) {
+                for (int i = 0; i < inputVariables.length; ++i) {
+                    inputVariables[i].value = inputs[i][j];
+                }
+                if (batchEnvironment != null) {
+                    batchEnvironment.setBatchIndex(j);
+                }
+
+                try {
+                    results[j] = root.getValue();
+                } catch (ReturnException e) {
+                    results[j] = e.getValue();
+                }
+
+                for (int k = 0; k < outputVariables.length; ++k) {
+                    outputs[k][j] = outputVariables[k].getValue();
+                }
+            }
+        } finally {
+            popInstance();
+        }
+    }
+
+    /**
+     * Evaluate a compiled expression for part of a run.
+     *
+     * @return the frame after the last evaluation
+     */
+    private double[] evaluateCompiled(CompiledExpression compiled, double[][] inputs, int start, int end,
+        double[] results, double[][] outputs, RValue[] outputVariables, boolean writeBack)
+        throws EvaluationException {
+        // Reentrant expressions don't read blocks, so they don't need to know the index
+        final BatchExpressionEnvironment batchEnvironment = compiled.isReentrant() ? null : getBatchEnvironment();
+        final Variable[] slotVariables = this.slotVariables;
+        final double[] frame = createFrame(slotVariables);
+
+        // Output variables that are not used by the expression keep their value
+        final int[] outputSlots = new int[outputVariables.length];
+        for (int k = 0; k < outputVariables.length; ++k) {
+            outputSlots[k] = -1;
+            for (int i = 0; i < slotVariables.length; ++i) {
+                if (slotVariables[i] == outputVariables[k]) {
+                    outputSlots[k] = i;
+                    break;
+                }
+            }
+        }
+
+        pushInstance();
+        try {
+            for (int j = start; j < end; ++j) {
+                for (int i = 0; i < inputs.length; ++i) {
+                    frame[i] = inputs[i][j];
+                }
+                if (batchEnvironment != null) {
+                    batchEnvironment.setBatchIndex(j);
+                }
+
+                results[j] = compiled.evaluate(frame);
+
+                for (int k = 0; k < outputSlots.length; ++k) {
+                    final int slot = outputSlots[k];
+                    outputs[k][j] = slot == -1 ? outputVariables[k].getValue() : frame[slot];
+                }
+            }
+        } finally {
+            if (writeBack) {
+                writeBack(slotVariables, frame);
+            }
+            popInstance();
+        }
+        return frame;
+    }
+
+    /**
+     * Write the values of a frame back to the variables. Reentrant
+     * expressions may be evaluated by several threads at once, so this is
+     * done by one thread at a time.
+     *
+     * @param slotVariables the variables of the slots
+     * @param frame         the frame
+     */
+    private synchronized void writeBack(Variable[] slotVariables, double[] frame) {
+        for (int i = 0; i < frame.length; ++i) {
+            slotVariables[i].value = frame[i];
+        }
+    }
+
+    /**
+     * Create the frame of a compiled evaluation, which holds the values of
+     * the variables while the evaluation runs.
+     *
+     * @param slotVariables the variables of the slots
+     * @return a new frame
+     */
+    private static double[] createFrame(Variable[] slotVariables) {
+        final double[] frame = new double[slotVariables.length];
+        for (int i = 0; i < frame.length; ++i) {
+            frame[i] = slotVariables[i].value;
+        }
+        return frame;
+    }
+
+    @Nullable
+    private BatchExpressionEnvironment getBatchEnvironment() {
+        return environment instanceof BatchExpressionEnvironment ? (BatchExpressionEnvironment) environment : null;
+    }
+
+    /**
+     * Bound the result of the expression over ranges of values of its
+     * variables with interval arithmetic.
+     *
+     * <p>
+     * This makes it possible to tell whether the expression is true or
+     * false for all values in the ranges without evaluating it for each of
+     * them. Variables that are not given a range keep their current value,
+     * unless the expression assigns to them.
+     * </p>
+     *
+     * @param intervals   the ranges of the variables that were given to
+     *                    {@link #compile(String, String...)}. There may be
+     *                    fewer ranges than variables.
+     * @param outputs     the array that receives the ranges of the output
+     *                    variables after the evaluation. The range given for
+     *                    a variable is returned as is if the expression does
+     *                    not assign to it.
+     * @param outputNames the names of the output variables
+     * @return the range of the result, or null if the expression cannot be
+     *         bounded, for example because it contains loops or reads blocks
+     */
+    @Nullable
+    public Interval evaluateInterval(Interval[] intervals, Interval[] outputs, String... outputNames) {
+        checkNotNull(intervals);
+        checkArgument(intervals.length <= variableNames.length, "too many intervals");
+        checkArgument(outputNames.length == 0 || outputs != null && outputs.length >= outputNames.length,
+            "an output array is required for each output variable");
+
+        IntervalEvaluator evaluator;
+        if (intervalEvaluatorCreated) {
+            evaluator = intervalEvaluator;
+        } else {
+            synchronized (this) {
+                evaluator = intervalEvaluator = IntervalEvaluator.create(root);
+                intervalEvaluatorCreated = true;
+            }
+        }
+        if (evaluator == null) {
+            return null;
+        }
+
+        final Map<Variable, Interval> state = new IdentityHashMap<Variable, Interval>();
+        for (int i = 0; i < intervals.length; ++i) {
+            state.put((Variable) variables.get(variableNames[i]), intervals[i]);
+        }
+
+        final Interval result = evaluator.evaluate(state);
+
+        for (int k = 0; k < outputNames.length; ++k) {
+            final RValue variable = variables.get(outputNames[k]);
+            checkArgument(variable != null, "unknown variable " + outputNames[k]);
+            final Interval interval = state.get(variable);
+            if (interval != null) {
+                outputs[k] = interval;
+            } else if (variable instanceof Variable) {
+                outputs[k] = Interval.of(((Variable) variable).value);
+            } else {
+                outputs[k] = Interval.of(((Constant) variable).getValue());
+            }
+        }
+
+        return result;
+    }
+
+    public synchronized void optimize() throws EvaluationException {
+        root = ExpressionOptimizer.optimize(root.optimize(), this);
+        intervalEvaluator = null;
+        intervalEvaluatorCreated = false;
+        compile();
+    }
+
+    /**
+     * Compile the expression to bytecode. The expression is interpreted if
+     * that is not possible.
+     */
+    private void compile() {
+        compiled = null;
+        if (root instanceof Constant) {
+            return;
+        }
+
+        // The variables passed to evaluate() come first
+        final List<Variable> slotVariables = new ArrayList<Variable>();
+        for (String variableName : variableNames) {
+            slotVariables.add((Variable) variables.get(variableName));
+        }
+        for (RValue variable : variables.values()) {
+            if (variable instanceof Variable && !slotVariables.contains(variable)) {
+                slotVariables.add((Variable) variable);
+            }
+        }
+
+        try {
+            this.slotVariables = slotVariables.toArray(new Variable[slotVariables.size()]);
+            compiled = ExpressionCompiler.compile(root, this.slotVariables);
+        } catch (LinkageError e) {
+            // The bytecode library is not available
+            compiled = null;
+        }
     }
 
     @Override
@@ -141,6 +604,17 @@ public class Expression {
         return root.toString();
     }
 
+    /**
+     * Get a description of the tree of the expression with one node per
+     * line, for debugging. Call {@link #optimize()} first to see the tree
+     * that is evaluated.
+     *
+     * @return the tree
+     */
+    public String toTreeString() {
+        return TreePrinter.print(root, variables);
+    }
+
     public RValue getVariable(String name, boolean create) {
         RValue variable = variables.get(name);
         if (variable == null && create) {
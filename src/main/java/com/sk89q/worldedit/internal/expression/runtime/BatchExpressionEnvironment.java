@@ -0,0 +1,34 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.internal.expression.runtime;
+
+/**
+ * An environment that depends on which evaluation of a batch is running,
+ * for example because relative queries are relative to the current block.
+ *
+ * @see com.sk89q.worldedit.internal.expression.Expression#evaluate(double[][], int, double[], double[][], String...)
+ */
+public interface BatchExpressionEnvironment extends ExpressionEnvironment {
+
+    /**
+     * Called before each evaluation of a batch.
+     *
+     * @param index the index of the evaluation in the batch
+     */
+    void setBatchIndex(int index);
+
+}
@@ -0,0 +1,50 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.internal.expression.runtime;
+
+/**
+ * An expression tree that has been compiled to JVM bytecode by
+ * {@link ExpressionCompiler}.
+ */
+public interface CompiledExpression {
+
+    /**
+     * Evaluate the expression.
+     *
+     * <p>
+     * Every variable of the expression has a slot in the given array. The
+     * slots are read when the evaluation starts and the variables are
+     * written back to them when it ends.
+     * </p>
+     *
+     * @param slots the values of the variables
+     * @return the result
+     * @throws EvaluationException thrown on evaluation error
+     */
+    double evaluate(double[] slots) throws EvaluationException;
+
+    /**
+     * Return whether the expression can be evaluated by several threads at
+     * once, given a separate slot array for each evaluation. This is not the
+     * case if parts of the expression are left to the interpreter, which
+     * works on the shared {@link Variable} objects.
+     *
+     * @return true if the expression is reentrant
+     */
+    boolean isReentrant();
+
+}
@@ -24,9 +24,9 @@ import com.sk89q.worldedit.internal.expression.parser.ParserException;
  */
 public class Conditional extends Node {
 
-    private RValue condition;
-    private RValue truePart;
-    private RValue falsePart;
+    RValue condition;
+    RValue truePart;
+    RValue falsePart;
 
     public Conditional(int position, RValue condition, RValue truePart, RValue falsePart) {
         super(position);
@@ -0,0 +1,1000 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.internal.expression.runtime;
+
+import static org.objectweb.asm.Opcodes.AALOAD;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ATHROW;
+import static org.objectweb.asm.Opcodes.BIPUSH;
+import static org.objectweb.asm.Opcodes.D2L;
+import static org.objectweb.asm.Opcodes.DADD;
+import static org.objectweb.asm.Opcodes.DALOAD;
+import static org.objectweb.asm.Opcodes.DASTORE;
+import static org.objectweb.asm.Opcodes.DCMPG;
+import static org.objectweb.asm.Opcodes.DCMPL;
+import static org.objectweb.asm.Opcodes.DCONST_0;
+import static org.objectweb.asm.Opcodes.DCONST_1;
+import static org.objectweb.asm.Opcodes.DDIV;
+import static org.objectweb.asm.Opcodes.DLOAD;
+import static org.objectweb.asm.Opcodes.DMUL;
+import static org.objectweb.asm.Opcodes.DNEG;
+import static org.objectweb.asm.Opcodes.DREM;
+import static org.objectweb.asm.Opcodes.DRETURN;
+import static org.objectweb.asm.Opcodes.DSTORE;
+import static org.objectweb.asm.Opcodes.DSUB;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.DUP2;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.GOTO;
+import static org.objectweb.asm.Opcodes.ICONST_0;
+import static org.objectweb.asm.Opcodes.ICONST_1;
+import static org.objectweb.asm.Opcodes.ICONST_M1;
+import static org.objectweb.asm.Opcodes.IFEQ;
+import static org.objectweb.asm.Opcodes.IFGE;
+import static org.objectweb.asm.Opcodes.IFGT;
+import static org.objectweb.asm.Opcodes.IFLE;
+import static org.objectweb.asm.Opcodes.IFLT;
+import static org.objectweb.asm.Opcodes.IFNE;
+import static org.objectweb.asm.Opcodes.IF_ICMPLE;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.ISTORE;
+import static org.objectweb.asm.Opcodes.L2D;
+import static org.objectweb.asm.Opcodes.L2I;
+import static org.objectweb.asm.Opcodes.LSHL;
+import static org.objectweb.asm.Opcodes.LSHR;
+import static org.objectweb.asm.Opcodes.LXOR;
+import static org.objectweb.asm.Opcodes.NEW;
+import static org.objectweb.asm.Opcodes.POP2;
+import static org.objectweb.asm.Opcodes.PUTFIELD;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.SIPUSH;
+import static org.objectweb.asm.Opcodes.V1_5;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+/**
+ * Compiles optimized expression trees to JVM bytecode.
+ *
+ * <p>
+ * Each compiled expression becomes a class of its own, defined in its own
+ * class loader so that it can be unloaded with the expression. Variables
+ * are kept in local variables of the generated method, and operators and
+ * the functions of {@link Math} are compiled to direct instructions and
+ * calls. Other functions of {@link Functions} that only take values, such as
+ * {@code megabuf} or {@code perlin}, are called directly with their arguments
+ * wrapped in constants. The remaining functions, such as {@code query}, are
+ * evaluated by calling back into their tree nodes.
+ * </p>
+ *
+ * <p>
+ * Trees that cannot be compiled, for example because they contain a
+ * {@code switch}, are left to the interpreter.
+ * </p>
+ */
+public final class ExpressionCompiler {
+
+    private static final Logger logger = Logger.getLogger(ExpressionCompiler.class.getCanonicalName());
+
+    private static final String PACKAGE = "com/sk89q/worldedit/internal/expression/runtime/";
+    private static final String RVALUE = PACKAGE + "RValue";
+    private static final String VARIABLE = PACKAGE + "Variable";
+    private static final String COMPILED_EXPRESSION = PACKAGE + "CompiledExpression";
+    private static final String EVALUATION_EXCEPTION = PACKAGE + "EvaluationException";
+    private static final String BREAK_EXCEPTION = PACKAGE + "BreakException";
+    private static final String COMPILER = PACKAGE + "ExpressionCompiler";
+    private static final String CONSTANT = PACKAGE + "Constant";
+    private static final String FUNCTIONS = PACKAGE + "Functions";
+    private static final String MATH = "java/lang/Math";
+
+    /**
+     * The number of loop iterations after which evaluation is aborted, the
+     * same as in the interpreted loops.
+     */
+    private static final int MAX_ITERATIONS = 256;
+
+    private static final AtomicInteger classCounter = new AtomicInteger();
+    private static volatile boolean available = true;
+
+    private final String className = PACKAGE + "GeneratedExpression" + classCounter.incrementAndGet();
+    private final Variable[] variables;
+    private final Map<Variable, Integer> slots = new IdentityHashMap<Variable, Integer>();
+    private final Map<Variable, Integer> locals = new IdentityHashMap<Variable, Integer>();
+    private final List<RValue> fallbacks = new ArrayList<RValue>();
+    private final Deque<Loop> loops = new ArrayDeque<Loop>();
+    private MethodVisitor mv;
+    private int nextLocal = 2;
+    private int depth = 0;
+
+    private ExpressionCompiler(Variable[] variables) {
+        this.variables = variables;
+        for (int i = 0; i < variables.length; ++i) {
+            slots.put(variables[i], i);
+        }
+    }
+
+    /**
+     * Compile an expression tree.
+     *
+     * @param root      the root of the tree, which should have been optimized
+     * @param variables the variables of the expression, in the order of their
+     *                  slots in {@link CompiledExpression#evaluate(double[])}
+     * @return the compiled expression, or null if the tree cannot be compiled
+     */
+    @Nullable
+    public static CompiledExpression compile(RValue root, Variable[] variables) {
+        if (!available) {
+            return null;
+        }
+
+        try {
+            return new ExpressionCompiler(variables).compileClass(root);
+        } catch (UnsupportedException e) {
+            return null;
+        } catch (LinkageError e) {
+            // ASM is not available, or the generated class was rejected
+            available = false;
+            logger.log(Level.WARNING, "Expressions can't be compiled, falling back to the interpreter", e);
+            return null;
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Failed to compile expression " + root, e);
+            return null;
+        }
+    }
+
+    private CompiledExpression compileClass(RValue root) throws Exception {
+        scan(root, false);
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(
+            V1_5,
+            ACC_PUBLIC | ACC_FINAL | ACC_SUPER,
+            className,
+            null,
+            "java/lang/Object",
+            new String[] { COMPILED_EXPRESSION });
+        cw.visitField(ACC_PRIVATE | ACC_FINAL, "nodes", "[L" + RVALUE + ";", null, null)
+            .visitEnd();
+        cw.visitField(ACC_PRIVATE | ACC_FINAL, "variables", "[L" + VARIABLE + ";", null, null)
+            .visitEnd();
+
+        MethodVisitor init = cw
+            .visitMethod(ACC_PUBLIC, "<init>", "([L" + RVALUE + ";[L" + VARIABLE + ";)V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitVarInsn(ALOAD, 0);
+        init.visitVarInsn(ALOAD, 1);
+        init.visitFieldInsn(PUTFIELD, className, "nodes", "[L" + RVALUE + ";");
+        init.visitVarInsn(ALOAD, 0);
+        init.visitVarInsn(ALOAD, 2);
+        init.visitFieldInsn(PUTFIELD, className, "variables", "[L" + VARIABLE + ";");
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        mv = cw.visitMethod(ACC_PUBLIC, "evaluate", "([D)D", null, new String[] { EVALUATION_EXCEPTION });
+        mv.visitCode();
+
+        // Load the variables from their slots
+        for (Map.Entry<Variable, Integer> entry : locals.entrySet()) {
+            mv.visitVarInsn(ALOAD, 1);
+            pushInt(slots.get(entry.getKey()));
+            mv.visitInsn(DALOAD);
+            mv.visitVarInsn(DSTORE, entry.getValue());
+        }
+
+        emit(root);
+        emitReturn();
+
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        MethodVisitor reentrant = cw.visitMethod(ACC_PUBLIC, "isReentrant", "()Z", null, null);
+        reentrant.visitCode();
+        reentrant.visitInsn(fallbacks.isEmpty() ? ICONST_1 : ICONST_0);
+        reentrant.visitInsn(IRETURN);
+        reentrant.visitMaxs(0, 0);
+        reentrant.visitEnd();
+
+        cw.visitEnd();
+
+        Class<?> type = new GeneratedClassLoader(ExpressionCompiler.class.getClassLoader())
+            .define(className.replace('/', '.'), cw.toByteArray());
+
+        return (CompiledExpression) type.getConstructor(RValue[].class, Variable[].class)
+            .newInstance(fallbacks.toArray(new RValue[fallbacks.size()]), variables);
+    }
+
+    /**
+     * Check that a tree can be compiled and assign local variables to the
+     * variables it uses.
+     *
+     * @param node     the node
+     * @param fallback whether the node is evaluated by the interpreter
+     * @throws UnsupportedException thrown if the tree cannot be compiled
+     */
+    private void scan(@Nullable RValue node, boolean fallback) throws UnsupportedException {
+        if (node == null || node instanceof Constant) {
+            return;
+        }
+
+        if (node instanceof Variable) {
+            Variable variable = (Variable) node;
+            if (!slots.containsKey(variable)) {
+                throw new UnsupportedException();
+            }
+            if (!locals.containsKey(variable)) {
+                locals.put(variable, allocateLocal(2));
+            }
+        } else if (node instanceof Function) {
+            Function function = (Function) node;
+            boolean interpreted = fallback || !isCompilable(function);
+            for (RValue arg : function.args) {
+                scan(arg, interpreted);
+            }
+        } else if (node instanceof Sequence) {
+            for (RValue child : ((Sequence) node).sequence) {
+                scan(child, fallback);
+            }
+        } else if (node instanceof Conditional) {
+            Conditional conditional = (Conditional) node;
+            scan(conditional.condition, fallback);
+            scan(conditional.truePart, fallback);
+            scan(conditional.falsePart, fallback);
+        } else if (node instanceof While) {
+            While loop = (While) node;
+            scan(loop.condition, fallback);
+            scan(loop.body, fallback);
+        } else if (node instanceof For) {
+            For loop = (For) node;
+            scan(loop.init, fallback);
+            scan(loop.condition, fallback);
+            scan(loop.increment, fallback);
+            scan(loop.body, fallback);
+        } else if (node instanceof SimpleFor) {
+            SimpleFor loop = (SimpleFor) node;
+            if (!(loop.counter instanceof Variable) && !fallback) {
+                throw new UnsupportedException();
+            }
+            scan(loop.counter, fallback);
+            scan(loop.first, fallback);
+            scan(loop.last, fallback);
+            scan(loop.body, fallback);
+        } else if (node instanceof Return) {
+            // The interpreter would throw a ReturnException past the
+            // compiled code, which then would not write back its variables
+            if (fallback) {
+                throw new UnsupportedException();
+            }
+            scan(((Return) node).value, false);
+        } else if (node instanceof Break) {
+            // The interpreter would throw a BreakException past the
+            // compiled loops
+            if (fallback) {
+                throw new UnsupportedException();
+            }
+        } else {
+            throw new UnsupportedException();
+        }
+    }
+
+    /**
+     * Return whether a function can be compiled to instructions rather than
+     * being evaluated by the interpreter.
+     *
+     * @param function the function
+     * @return true if it can be compiled
+     */
+    private static boolean isCompilable(Function function) {
+        if (function instanceof LValueFunction) {
+            return false;
+        }
+
+        Method method = function.method;
+        String name = method.getName();
+
+        if (method.getDeclaringClass() == Operators.class) {
+            // Assignments can only be compiled if they assign to a variable
+            Class<?>[] parameters = method.getParameterTypes();
+            if (parameters.length > 0 && parameters[0] == LValue.class) {
+                return function.args[0] instanceof Variable;
+            }
+            return true;
+        } else if (method.getDeclaringClass() == Functions.class) {
+            return getMathMethod(name, function.args.length) != null || isDirectCall(method);
+        }
+
+        return false;
+    }
+
+    /**
+     * Return whether a function of {@link Functions} can be called directly
+     * with its arguments wrapped in constants. The query functions are
+     * excluded, as they assign to their arguments if they are variables.
+     *
+     * @param method the method of the function
+     * @return true if it can be called directly
+     */
+    private static boolean isDirectCall(Method method) {
+        if (!Modifier.isStatic(method.getModifiers()) || method.getReturnType() != double.class
+            || method.getName()
+                .startsWith("query")) {
+            return false;
+        }
+
+        for (Class<?> parameter : method.getParameterTypes()) {
+            if (parameter != RValue.class) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the name of the method of {@link Math} that implements a function
+     * of {@link Functions}.
+     *
+     * @param name  the name of the function
+     * @param arity the number of arguments
+     * @return the name of the method, or null if there is none
+     */
+    @Nullable
+    private static String getMathMethod(String name, int arity) {
+        if (arity == 1) {
+            if (name.equals("sin") || name.equals("cos")
+                || name.equals("tan")
+                || name.equals("asin")
+                || name.equals("acos")
+                || name.equals("atan")
+                || name.equals("sinh")
+                || name.equals("cosh")
+                || name.equals("tanh")
+                || name.equals("sqrt")
+                || name.equals("cbrt")
+                || name.equals("abs")
+                || name.equals("ceil")
+                || name.equals("floor")
+                || name.equals("rint")
+                || name.equals("round")
+                || name.equals("exp")
+                || name.equals("log10")) {
+                return name;
+            } else if (name.equals("ln") || name.equals("log")) {
+                return "log";
+            }
+        } else if (arity == 2) {
+            if (name.equals("atan2") || name.equals("min") || name.equals("max")) {
+                return name;
+            }
+        } else if (arity == 3) {
+            if (name.equals("min") || name.equals("max")) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    private int allocateLocal(int size) {
+        int local = nextLocal;
+        nextLocal += size;
+        return local;
+    }
+
+    /**
+     * Emit the instructions for a node, which leave its value on the
+     * operand stack.
+     *
+     * @param node the node
+     * @throws UnsupportedException thrown if the node cannot be compiled
+     */
+    private void emit(RValue node) throws UnsupportedException {
+        if (node instanceof Constant) {
+            pushDouble(((Constant) node).getValue());
+        } else if (node instanceof Variable) {
+            mv.visitVarInsn(DLOAD, locals.get(node));
+        } else if (node instanceof Function) {
+            Function function = (Function) node;
+            if (isCompilable(function)) {
+                emitFunction(function);
+            } else {
+                emitFallback(function);
+            }
+        } else if (node instanceof Sequence) {
+            RValue[] sequence = ((Sequence) node).sequence;
+            if (sequence.length == 0) {
+                mv.visitInsn(DCONST_0);
+            }
+            for (int i = 0; i < sequence.length; ++i) {
+                emit(sequence[i]);
+                if (i < sequence.length - 1) {
+                    mv.visitInsn(POP2);
+                }
+            }
+        } else if (node instanceof Conditional) {
+            emitConditional((Conditional) node);
+        } else if (node instanceof While) {
+            emitWhile((While) node);
+        } else if (node instanceof For) {
+            emitFor((For) node);
+        } else if (node instanceof SimpleFor) {
+            emitSimpleFor((SimpleFor) node);
+        } else if (node instanceof Return) {
+            emit(((Return) node).value);
+            emitReturn();
+        } else if (node instanceof Break) {
+            emitBreak((Break) node);
+        } else {
+            throw new UnsupportedException();
+        }
+    }
+
+    private void emitFunction(Function function) throws UnsupportedException {
+        String name = function.method.getName();
+        RValue[] args = function.args;
+
+        if (function.method.getDeclaringClass() == Functions.class) {
+            String mathMethod = getMathMethod(name, args.length);
+            if (mathMethod == null) {
+                emitDirectCall(function);
+                return;
+            }
+
+            emitArguments(args);
+            if (args.length == 3) {
+                // min(a, min(b, c)) and max(a, max(b, c))
+                mv.visitMethodInsn(INVOKESTATIC, MATH, mathMethod, "(DD)D", false);
+                mv.visitMethodInsn(INVOKESTATIC, MATH, mathMethod, "(DD)D", false);
+            } else if (args.length == 2) {
+                mv.visitMethodInsn(INVOKESTATIC, MATH, mathMethod, "(DD)D", false);
+            } else if (mathMethod.equals("round")) {
+                mv.visitMethodInsn(INVOKESTATIC, MATH, mathMethod, "(D)J", false);
+                mv.visitInsn(L2D);
+            } else {
+                mv.visitMethodInsn(INVOKESTATIC, MATH, mathMethod, "(D)D", false);
+            }
+            return;
+        }
+
+        if (name.equals("add")) {
+            emitBinary(args, DADD);
+        } else if (name.equals("sub")) {
+            emitBinary(args, DSUB);
+        } else if (name.equals("mul")) {
+            emitBinary(args, DMUL);
+        } else if (name.equals("div")) {
+            emitBinary(args, DDIV);
+        } else if (name.equals("mod")) {
+            emitBinary(args, DREM);
+        } else if (name.equals("pow")) {
+            emitArguments(args);
+            mv.visitMethodInsn(INVOKESTATIC, MATH, "pow", "(DD)D", false);
+        } else if (name.equals("neg")) {
+            emit(args[0]);
+            mv.visitInsn(DNEG);
+        } else if (name.equals("not")) {
+            emit(args[0]);
+            mv.visitInsn(DCONST_0);
+            mv.visitInsn(DCMPL);
+            emitBoolean(IFGT);
+        } else if (name.equals("inv")) {
+            emit(args[0]);
+            mv.visitInsn(D2L);
+            mv.visitLdcInsn(-1L);
+            mv.visitInsn(LXOR);
+            mv.visitInsn(L2D);
+        } else if (name.equals("lth")) {
+            emitComparison(args, DCMPG, IFGE);
+        } else if (name.equals("gth")) {
+            emitComparison(args, DCMPL, IFLE);
+        } else if (name.equals("leq")) {
+            emitComparison(args, DCMPG, IFGT);
+        } else if (name.equals("geq")) {
+            emitComparison(args, DCMPL, IFLT);
+        } else if (name.equals("equ")) {
+            emitComparison(args, DCMPL, IFNE);
+        } else if (name.equals("neq")) {
+            emitComparison(args, DCMPL, IFEQ);
+        } else if (name.equals("near")) {
+            emitArguments(args);
+            mv.visitMethodInsn(INVOKESTATIC, COMPILER, "near", "(DD)D", false);
+        } else if (name.equals("or")) {
+            emitLogical(args, IFGT);
+        } else if (name.equals("and")) {
+            emitLogical(args, IFLE);
+        } else if (name.equals("shl")) {
+            emitShift(args, LSHL);
+        } else if (name.equals("shr")) {
+            emitShift(args, LSHR);
+        } else if (name.equals("fac")) {
+            emit(args[0]);
+            mv.visitMethodInsn(INVOKESTATIC, COMPILER, "fac", "(D)D", false);
+        } else if (name.equals("ass")) {
+            emit(args[1]);
+            storeVariable((Variable) args[0]);
+        } else if (name.equals("aadd")) {
+            emitCompoundAssignment(args, DADD);
+        } else if (name.equals("asub")) {
+            emitCompoundAssignment(args, DSUB);
+        } else if (name.equals("amul")) {
+            emitCompoundAssignment(args, DMUL);
+        } else if (name.equals("adiv")) {
+            emitCompoundAssignment(args, DDIV);
+        } else if (name.equals("amod")) {
+            emitCompoundAssignment(args, DREM);
+        } else if (name.equals("aexp")) {
+            emitCompoundAssignment(args, -1);
+        } else if (name.equals("inc") || name.equals("dec")) {
+            mv.visitVarInsn(DLOAD, locals.get(args[0]));
+            mv.visitInsn(DCONST_1);
+            mv.visitInsn(name.equals("inc") ? DADD : DSUB);
+            storeVariable((Variable) args[0]);
+        } else if (name.equals("postinc") || name.equals("postdec")) {
+            mv.visitVarInsn(DLOAD, locals.get(args[0]));
+            mv.visitInsn(DUP2);
+            mv.visitInsn(DCONST_1);
+            mv.visitInsn(name.equals("postinc") ? DADD : DSUB);
+            mv.visitVarInsn(DSTORE, locals.get(args[0]));
+        } else {
+            emitFallback(function);
+        }
+    }
+
+    /**
+     * Emit the arguments of a function from left to right.
+     */
+    private void emitArguments(RValue[] args) throws UnsupportedException {
+        for (int i = 0; i < args.length; ++i) {
+            emit(args[i]);
+            depth += 2;
+        }
+        depth -= 2 * args.length;
+    }
+
+    /**
+     * Emit a call to a function of {@link Functions} with its arguments
+     * wrapped in constants.
+     */
+    private void emitDirectCall(Function function) throws UnsupportedException {
+        RValue[] args = function.args;
+        StringBuilder descriptor = new StringBuilder("(");
+
+        for (int i = 0; i < args.length; ++i) {
+            mv.visitTypeInsn(NEW, CONSTANT);
+            mv.visitInsn(DUP);
+            mv.visitInsn(ICONST_M1);
+            depth += i + 3;
+            emit(args[i]);
+            depth -= i + 3;
+            mv.visitMethodInsn(INVOKESPECIAL, CONSTANT, "<init>", "(ID)V", false);
+            descriptor.append("L")
+                .append(RVALUE)
+                .append(";");
+        }
+
+        descriptor.append(")D");
+        mv.visitMethodInsn(
+            INVOKESTATIC,
+            FUNCTIONS,
+            function.method.getName(),
+            descriptor.toString(),
+            false);
+    }
+
+    private void emitBinary(RValue[] args, int opcode) throws UnsupportedException {
+        emitArguments(args);
+        mv.visitInsn(opcode);
+    }
+
+    /**
+     * Emit a comparison that results in 1 or 0.
+     *
+     * @param compare     the comparison instruction, which decides the result
+     *                    for NaN
+     * @param jumpIfFalse the jump that is taken if the comparison is false
+     */
+    private void emitComparison(RValue[] args, int compare, int jumpIfFalse) throws UnsupportedException {
+        emitArguments(args);
+        mv.visitInsn(compare);
+        emitBoolean(jumpIfFalse);
+    }
+
+    /**
+     * Push 0 if the given jump is taken on the integer on the stack, and 1
+     * otherwise.
+     */
+    private void emitBoolean(int jumpIfFalse) {
+        Label isFalse = new Label();
+        Label end = new Label();
+        mv.visitJumpInsn(jumpIfFalse, isFalse);
+        mv.visitInsn(DCONST_1);
+        mv.visitJumpInsn(GOTO, end);
+        mv.visitLabel(isFalse);
+        mv.visitInsn(DCONST_0);
+        mv.visitLabel(end);
+    }
+
+    /**
+     * Emit a short-circuiting logical operator.
+     *
+     * @param shortCircuit IFGT for or, IFLE for and
+     */
+    private void emitLogical(RValue[] args, int shortCircuit) throws UnsupportedException {
+        Label decided = new Label();
+        Label end = new Label();
+        for (RValue arg : args) {
+            emit(arg);
+            mv.visitInsn(DCONST_0);
+            mv.visitInsn(DCMPL);
+            mv.visitJumpInsn(shortCircuit, decided);
+        }
+        mv.visitInsn(shortCircuit == IFGT ? DCONST_0 : DCONST_1);
+        mv.visitJumpInsn(GOTO, end);
+        mv.visitLabel(decided);
+        mv.visitInsn(shortCircuit == IFGT ? DCONST_1 : DCONST_0);
+        mv.visitLabel(end);
+    }
+
+    private void emitShift(RValue[] args, int opcode) throws UnsupportedException {
+        emit(args[0]);
+        mv.visitInsn(D2L);
+        depth += 2;
+        emit(args[1]);
+        depth -= 2;
+        mv.visitInsn(D2L);
+        mv.visitInsn(L2I);
+        mv.visitInsn(opcode);
+        mv.visitInsn(L2D);
+    }
+
+    /**
+     * Emit an assignment operator such as +=.
+     *
+     * @param opcode the arithmetic instruction, or -1 for a power
+     */
+    private void emitCompoundAssignment(RValue[] args, int opcode) throws UnsupportedException {
+        Variable variable = (Variable) args[0];
+        mv.visitVarInsn(DLOAD, locals.get(variable));
+        depth += 2;
+        emit(args[1]);
+        depth -= 2;
+        if (opcode == -1) {
+            mv.visitMethodInsn(INVOKESTATIC, MATH, "pow", "(DD)D", false);
+        } else {
+            mv.visitInsn(opcode);
+        }
+        storeVariable(variable);
+    }
+
+    /**
+     * Store the value on the stack in a variable, leaving it on the stack.
+     */
+    private void storeVariable(Variable variable) {
+        mv.visitInsn(DUP2);
+        mv.visitVarInsn(DSTORE, locals.get(variable));
+    }
+
+    /**
+     * Emit a call to the interpreter for a node. The variables are copied to
+     * the {@link Variable} objects before the call, and back afterwards.
+     */
+    private void emitFallback(RValue node) {
+        int index = fallbacks.size();
+        fallbacks.add(node);
+
+        for (Map.Entry<Variable, Integer> entry : locals.entrySet()) {
+            loadVariableObject(entry.getKey());
+            mv.visitVarInsn(DLOAD, entry.getValue());
+            mv.visitFieldInsn(PUTFIELD, VARIABLE, "value", "D");
+        }
+
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, className, "nodes", "[L" + RVALUE + ";");
+        pushInt(index);
+        mv.visitInsn(AALOAD);
+        mv.visitMethodInsn(INVOKEINTERFACE, RVALUE, "getValue", "()D", true);
+
+        for (Map.Entry<Variable, Integer> entry : locals.entrySet()) {
+            loadVariableObject(entry.getKey());
+            mv.visitFieldInsn(GETFIELD, VARIABLE, "value", "D");
+            mv.visitVarInsn(DSTORE, entry.getValue());
+        }
+    }
+
+    private void loadVariableObject(Variable variable) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, className, "variables", "[L" + VARIABLE + ";");
+        pushInt(slots.get(variable));
+        mv.visitInsn(AALOAD);
+    }
+
+    private void emitConditional(Conditional conditional) throws UnsupportedException {
+        Label isFalse = new Label();
+        Label end = new Label();
+
+        emit(conditional.condition);
+        mv.visitInsn(DCONST_0);
+        mv.visitInsn(DCMPL);
+        mv.visitJumpInsn(IFLE, isFalse);
+        emit(conditional.truePart);
+        mv.visitJumpInsn(GOTO, end);
+        mv.visitLabel(isFalse);
+        if (conditional.falsePart == null) {
+            mv.visitInsn(DCONST_0);
+        } else {
+            emit(conditional.falsePart);
+        }
+        mv.visitLabel(end);
+    }
+
+    private void emitWhile(While loop) throws UnsupportedException {
+        Loop context = beginLoop();
+
+        if (loop.footChecked) {
+            Label body = new Label();
+            mv.visitLabel(body);
+            emitIterationCheck(context, loop.getPosition());
+            emit(loop.body);
+            mv.visitVarInsn(DSTORE, context.result);
+            mv.visitLabel(context.continueLabel);
+            emitConditionJump(loop.condition, IFGT, body);
+        } else {
+            mv.visitLabel(context.continueLabel);
+            emitConditionJump(loop.condition, IFLE, context.breakLabel);
+            emitIterationCheck(context, loop.getPosition());
+            emit(loop.body);
+            mv.visitVarInsn(DSTORE, context.result);
+            mv.visitJumpInsn(GOTO, context.continueLabel);
+        }
+
+        endLoop(context);
+    }
+
+    private void emitFor(For loop) throws UnsupportedException {
+        emit(loop.init);
+        mv.visitInsn(POP2);
+
+        Loop context = beginLoop();
+        Label condition = new Label();
+
+        mv.visitLabel(condition);
+        emitConditionJump(loop.condition, IFLE, context.breakLabel);
+        emitIterationCheck(context, loop.getPosition());
+        emit(loop.body);
+        mv.visitVarInsn(DSTORE, context.result);
+        mv.visitLabel(context.continueLabel);
+        emit(loop.increment);
+        mv.visitInsn(POP2);
+        mv.visitJumpInsn(GOTO, condition);
+
+        endLoop(context);
+    }
+
+    private void emitSimpleFor(SimpleFor loop) throws UnsupportedException {
+        int counter = allocateLocal(2);
+        int last = allocateLocal(2);
+
+        emit(loop.first);
+        mv.visitVarInsn(DSTORE, counter);
+        emit(loop.last);
+        mv.visitVarInsn(DSTORE, last);
+
+        Loop context = beginLoop();
+        Label condition = new Label();
+
+        mv.visitLabel(condition);
+        mv.visitVarInsn(DLOAD, counter);
+        mv.visitVarInsn(DLOAD, last);
+        mv.visitInsn(DCMPG);
+        mv.visitJumpInsn(IFGT, context.breakLabel);
+        emitIterationCheck(context, loop.getPosition());
+        mv.visitVarInsn(DLOAD, counter);
+        mv.visitVarInsn(DSTORE, locals.get(loop.counter));
+        emit(loop.body);
+        mv.visitVarInsn(DSTORE, context.result);
+        mv.visitLabel(context.continueLabel);
+        mv.visitVarInsn(DLOAD, counter);
+        mv.visitInsn(DCONST_1);
+        mv.visitInsn(DADD);
+        mv.visitVarInsn(DSTORE, counter);
+        mv.visitJumpInsn(GOTO, condition);
+
+        endLoop(context);
+    }
+
+    /**
+     * Jump if the condition compares to zero as given.
+     *
+     * @param jump IFGT to jump if the condition is true, IFLE to jump if it
+     *             is false
+     */
+    private void emitConditionJump(RValue condition, int jump, Label target) throws UnsupportedException {
+        emit(condition);
+        mv.visitInsn(DCONST_0);
+        mv.visitInsn(DCMPL);
+        mv.visitJumpInsn(jump, target);
+    }
+
+    private Loop beginLoop() {
+        Loop context = new Loop(allocateLocal(2), allocateLocal(1), depth);
+        mv.visitInsn(DCONST_0);
+        mv.visitVarInsn(DSTORE, context.result);
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, context.iterations);
+        loops.push(context);
+        return context;
+    }
+
+    private void endLoop(Loop context) {
+        loops.pop();
+        mv.visitLabel(context.breakLabel);
+        mv.visitVarInsn(DLOAD, context.result);
+    }
+
+    private void emitIterationCheck(Loop context, int position) {
+        Label ok = new Label();
+        mv.visitVarInsn(ILOAD, context.iterations);
+        pushInt(MAX_ITERATIONS);
+        mv.visitJumpInsn(IF_ICMPLE, ok);
+        mv.visitTypeInsn(NEW, EVALUATION_EXCEPTION);
+        mv.visitInsn(DUP);
+        pushInt(position);
+        mv.visitLdcInsn("Loop exceeded " + MAX_ITERATIONS + " iterations.");
+        mv.visitMethodInsn(INVOKESPECIAL, EVALUATION_EXCEPTION, "<init>", "(ILjava/lang/String;)V", false);
+        mv.visitInsn(ATHROW);
+        mv.visitLabel(ok);
+        mv.visitIincInsn(context.iterations, 1);
+    }
+
+    private void emitBreak(Break node) throws UnsupportedException {
+        Loop context = loops.peek();
+
+        if (context == null) {
+            mv.visitTypeInsn(NEW, BREAK_EXCEPTION);
+            mv.visitInsn(DUP);
+            mv.visitInsn(node.doContinue ? ICONST_1 : ICONST_0);
+            mv.visitMethodInsn(INVOKESPECIAL, BREAK_EXCEPTION, "<init>", "(Z)V", false);
+            mv.visitInsn(ATHROW);
+            return;
+        }
+
+        // The operand stack has to be the same at the jump target
+        if (depth != context.depth) {
+            throw new UnsupportedException();
+        }
+
+        mv.visitJumpInsn(GOTO, node.doContinue ? context.continueLabel : context.breakLabel);
+    }
+
+    /**
+     * Write the variables back to their slots and return the value on the
+     * stack.
+     */
+    private void emitReturn() {
+        for (Map.Entry<Variable, Integer> entry : locals.entrySet()) {
+            mv.visitVarInsn(ALOAD, 1);
+            pushInt(slots.get(entry.getKey()));
+            mv.visitVarInsn(DLOAD, entry.getValue());
+            mv.visitInsn(DASTORE);
+        }
+        mv.visitInsn(DRETURN);
+    }
+
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+    private void pushDouble(double value) {
+        if (Double.doubleToRawLongBits(value) == 0L) {
+            mv.visitInsn(DCONST_0);
+        } else if (value == 1.0) {
+            mv.visitInsn(DCONST_1);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+    /**
+     * Called by compiled expressions for the near operator.
+     *
+     * @param lhs the left hand side
+     * @param rhs the right hand side
+     * @return 1 if the values are nearly equal, 0 otherwise
+     */
+    public static double near(double lhs, double rhs) {
+        return Operators.almostEqual2sComplement(lhs, rhs, 450359963L) ? 1.0 : 0.0;
+    }
+
+    /**
+     * Called by compiled expressions for the factorial operator.
+     *
+     * @param x the operand
+     * @return the factorial
+     */
+    public static double fac(double x) {
+        return Operators.factorial((int) x);
+    }
+
+    /**
+     * The jump targets and locals of the innermost loop being compiled.
+     */
+    private static final class Loop {
+
+        private final Label continueLabel = new Label();
+        private final Label breakLabel = new Label();
+        private final int result;
+        private final int iterations;
+        private final int depth;
+
+        private Loop(int result, int iterations, int depth) {
+            this.result = result;
+            this.iterations = iterations;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Thrown if a tree cannot be compiled.
+     */
+    private static final class UnsupportedException extends Exception {}
+
+    /**
+     * Defines the class of a single compiled expression.
+     */
+    private static final class GeneratedClassLoader extends ClassLoader {
+
+        private GeneratedClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        private Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+}
@@ -0,0 +1,497 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.internal.expression.runtime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.sk89q.worldedit.internal.expression.Expression;
+import com.sk89q.worldedit.internal.expression.runtime.Function.Dynamic;
+
+/**
+ * Rewrites constant-folded expression trees into trees that are cheaper to
+ * evaluate.
+ *
+ * <p>
+ * Three passes are run in order:
+ * </p>
+ * <ul>
+ * <li>Strength reduction: {@code x ^ 2} and {@code x ^ 3} become
+ * multiplications and divisions by powers of two become multiplications by
+ * their exact reciprocal.</li>
+ * <li>Loop-invariant hoisting: calls inside {@code for} and {@code while}
+ * loops that only depend on variables the loop does not assign are
+ * evaluated once before the loop.</li>
+ * <li>Common subexpression elimination: calls that appear more than once
+ * and only depend on variables that the expression never assigns are
+ * evaluated once at the start of the expression.</li>
+ * </ul>
+ *
+ * <p>
+ * Only calls of functions without side effects are moved, so they may be
+ * evaluated even if the branch that contains them is not taken. Their
+ * results are kept in temporary variables whose names cannot be written in
+ * an expression. The results of reduced powers may differ from
+ * {@link Math#pow(double, double)} in the last place.
+ * </p>
+ */
+public final class ExpressionOptimizer {
+
+    /**
+     * The prefix of the names of temporary variables, which the lexer does
+     * not accept in identifiers.
+     */
+    private static final String TEMPORARY_PREFIX = "$";
+
+    /**
+     * The largest power that is reduced to multiplications.
+     */
+    private static final int MAX_REDUCED_POWER = 3;
+
+    private final Expression expression;
+    private final Map<Variable, Integer> variableIds = new IdentityHashMap<Variable, Integer>();
+    private int nextTemporary = 0;
+
+    private ExpressionOptimizer(Expression expression) {
+        this.expression = expression;
+    }
+
+    /**
+     * Optimize an expression tree.
+     *
+     * @param root       the root of the tree, after constant folding
+     * @param expression the expression that receives the temporary variables
+     * @return the new root of the tree
+     * @throws EvaluationException thrown if a node cannot be created
+     */
+    public static RValue optimize(RValue root, Expression expression) throws EvaluationException {
+        final ExpressionOptimizer optimizer = new ExpressionOptimizer(expression);
+        root = optimizer.reduceStrength(root);
+        root = optimizer.hoistInvariants(root);
+        return optimizer.eliminateCommonSubexpressions(root);
+    }
+
+    private RValue reduceStrength(RValue root) throws EvaluationException {
+        return new Pass() {
+
+            @Override
+            RValue visit(RValue node) throws EvaluationException {
+                visitChildren(node);
+                if (!isOperator(node)) {
+                    return node;
+                }
+
+                final Function function = (Function) node;
+                final String name = function.method.getName();
+                if (function.args.length != 2 || !(function.args[1] instanceof Constant)) {
+                    return node;
+                }
+
+                final RValue lhs = function.args[0];
+                final double constant = function.args[1].getValue();
+                if (name.equals("pow")) {
+                    if (constant == 1) {
+                        return lhs;
+                    } else if (constant >= 2 && constant <= MAX_REDUCED_POWER && constant == Math.rint(constant)) {
+                        return power(function.getPosition(), lhs, (int) constant);
+                    }
+                } else if (name.equals("div") && hasExactReciprocal(constant)) {
+                    return operator(
+                        function.getPosition(),
+                        "mul",
+                        lhs,
+                        new Constant(function.args[1].getPosition(), 1 / constant));
+                }
+                return node;
+            }
+        }.visit(root);
+    }
+
+    private RValue power(int position, RValue base, int exponent) throws EvaluationException {
+        RValue assignment = null;
+        if (!(base instanceof Variable)) {
+            // Evaluate the base only once
+            final Variable temporary = createTemporary();
+            assignment = operator(position, "ass", temporary, base);
+            base = temporary;
+        }
+
+        RValue product = base;
+        for (int i = 1; i < exponent; ++i) {
+            product = operator(position, "mul", product, base);
+        }
+
+        return assignment == null ? product : new Sequence(position, assignment, product);
+    }
+
+    private static boolean hasExactReciprocal(double value) {
+        if (value == 0 || Double.isInfinite(value) || Double.isNaN(value)) {
+            return false;
+        }
+
+        final int exponent = Math.getExponent(value);
+        return Math.abs(value) == Math.scalb(1.0, exponent) && exponent > Double.MIN_EXPONENT
+            && exponent < Double.MAX_EXPONENT;
+    }
+
+    private RValue hoistInvariants(RValue root) throws EvaluationException {
+        return new Pass() {
+
+            @Override
+            RValue visit(RValue node) throws EvaluationException {
+                // Inner loops first, so that their hoisted calls can move
+                // further out
+                visitChildren(node);
+                if (!(node instanceof While || node instanceof For || node instanceof SimpleFor)) {
+                    return node;
+                }
+
+                final Set<Variable> assigned = getAssignedVariables(node);
+                final Replacer replacer = new Replacer(assigned, false, false) {
+
+                    @Override
+                    boolean shouldReplace(String key, Function function) {
+                        return true;
+                    }
+                };
+
+                if (node instanceof While) {
+                    final While loop = (While) node;
+                    loop.condition = replacer.visit(loop.condition);
+                    loop.body = replacer.visit(loop.body);
+                } else if (node instanceof For) {
+                    final For loop = (For) node;
+                    loop.condition = replacer.visit(loop.condition);
+                    loop.increment = replacer.visit(loop.increment);
+                    loop.body = replacer.visit(loop.body);
+                } else {
+                    final SimpleFor loop = (SimpleFor) node;
+                    loop.body = replacer.visit(loop.body);
+                }
+
+                return prepend(replacer.definitions, node);
+            }
+        }.visit(root);
+    }
+
+    private RValue eliminateCommonSubexpressions(RValue root) throws EvaluationException {
+        final Set<Variable> assigned = getAssignedVariables(root);
+
+        // Count the occurrences, without looking into the repeated
+        // occurrences of a call
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        new Pass() {
+
+            @Override
+            RValue visit(RValue node) throws EvaluationException {
+                final String key = getCandidateKey(node, assigned, true);
+                if (key != null) {
+                    final Integer count = counts.get(key);
+                    counts.put(key, count == null ? 1 : count + 1);
+                    if (count != null) {
+                        return node;
+                    }
+                }
+
+                visitChildren(node);
+                return node;
+            }
+        }.visit(root);
+
+        final Replacer replacer = new Replacer(assigned, true, true) {
+
+            @Override
+            boolean shouldReplace(String key, Function function) {
+                return counts.get(key) > 1;
+            }
+        };
+        root = replacer.visit(root);
+
+        return prepend(replacer.definitions, root);
+    }
+
+    private RValue prepend(List<RValue> definitions, RValue node) {
+        if (definitions.isEmpty()) {
+            return node;
+        }
+
+        final List<RValue> sequence = new ArrayList<RValue>(definitions);
+        if (node instanceof Sequence) {
+            Collections.addAll(sequence, ((Sequence) node).sequence);
+        } else {
+            sequence.add(node);
+        }
+        return new Sequence(node.getPosition(), sequence.toArray(new RValue[sequence.size()]));
+    }
+
+    /**
+     * Get a key that is equal for calls that always return the same value,
+     * or null if the node is not such a call or not worth replacing.
+     *
+     * @param node        the node
+     * @param assigned    the variables whose values may change
+     * @param requireCost whether calls of single operators are skipped
+     * @return the key, or null
+     */
+    @Nullable
+    private String getCandidateKey(RValue node, Set<Variable> assigned, boolean requireCost) {
+        if (!(node instanceof Function)) {
+            return null;
+        }
+
+        final Function function = (Function) node;
+        if (requireCost && isOperator(function)) {
+            boolean nested = false;
+            for (RValue arg : function.args) {
+                nested |= arg instanceof Function;
+            }
+            if (!nested) {
+                // Storing the result costs as much as computing it again
+                return null;
+            }
+        }
+
+        return getKey(node, assigned);
+    }
+
+    @Nullable
+    private String getKey(RValue node, Set<Variable> assigned) {
+        if (node instanceof Constant) {
+            return Long.toHexString(Double.doubleToRawLongBits(((Constant) node).getValue()));
+        } else if (node instanceof Variable) {
+            if (assigned.contains(node)) {
+                return null;
+            }
+            Integer id = variableIds.get(node);
+            if (id == null) {
+                variableIds.put((Variable) node, id = variableIds.size());
+            }
+            return "$" + id;
+        } else if (node instanceof Function && isPure((Function) node)) {
+            final Function function = (Function) node;
+            final StringBuilder key = new StringBuilder(function.method.getName()).append('(');
+            for (RValue arg : function.args) {
+                final String argKey = getKey(arg, assigned);
+                if (argKey == null) {
+                    return null;
+                }
+                key.append(argKey)
+                    .append(',');
+            }
+            return key.append(')')
+                .toString();
+        }
+        return null;
+    }
+
+    private static boolean isPure(Function function) {
+        if (function instanceof LValueFunction || function.method.isAnnotationPresent(Dynamic.class)) {
+            return false;
+        }
+
+        for (Class<?> parameter : function.method.getParameterTypes()) {
+            if (LValue.class.isAssignableFrom(parameter)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isOperator(RValue node) {
+        return node instanceof Function && !(node instanceof LValueFunction)
+            && ((Function) node).method.getDeclaringClass() == Operators.class;
+    }
+
+    /**
+     * Get the variables whose values a tree may change, including the
+     * variables passed to functions that may assign to their arguments.
+     *
+     * @param root the root of the tree
+     * @return the variables
+     * @throws EvaluationException never
+     */
+    private static Set<Variable> getAssignedVariables(RValue root) throws EvaluationException {
+        final Set<Variable> assigned = Collections.newSetFromMap(new IdentityHashMap<Variable, Boolean>());
+        new Pass() {
+
+            @Override
+            RValue visit(RValue node) throws EvaluationException {
+                if (node instanceof Function) {
+                    final Function function = (Function) node;
+                    final Class<?>[] parameters = function.method.getParameterTypes();
+                    final boolean pure = isPure(function);
+                    for (int i = 0; i < function.args.length; ++i) {
+                        if (function.args[i] instanceof Variable
+                            && (!pure || LValue.class.isAssignableFrom(parameters[i]))) {
+                            assigned.add((Variable) function.args[i]);
+                        }
+                    }
+                } else if (node instanceof SimpleFor && ((SimpleFor) node).counter instanceof Variable) {
+                    assigned.add((Variable) ((SimpleFor) node).counter);
+                }
+
+                visitChildren(node);
+                return node;
+            }
+        }.visit(root);
+        return assigned;
+    }
+
+    private Variable createTemporary() {
+        String name;
+        do {
+            name = TEMPORARY_PREFIX + nextTemporary++;
+        } while (expression.getVariable(name, false) != null);
+
+        return (Variable) expression.getVariable(name, true);
+    }
+
+    private static Function operator(int position, String name, RValue lhs, RValue rhs) {
+        try {
+            return Operators.getOperator(position, name, lhs, rhs);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Missing operator " + name, e);
+        }
+    }
+
+    /**
+     * Replaces calls by temporary variables that are assigned in
+     * {@link #definitions}.
+     */
+    private abstract class Replacer extends Pass {
+
+        final List<RValue> definitions = new ArrayList<RValue>();
+        private final Map<String, Variable> temporaries = new HashMap<String, Variable>();
+        private final Set<Variable> assigned;
+        private final boolean requireCost;
+        private final boolean replaceNested;
+
+        Replacer(Set<Variable> assigned, boolean requireCost, boolean replaceNested) {
+            this.assigned = assigned;
+            this.requireCost = requireCost;
+            this.replaceNested = replaceNested;
+        }
+
+        abstract boolean shouldReplace(String key, Function function);
+
+        @Override
+        RValue visit(RValue node) throws EvaluationException {
+            final String key = getCandidateKey(node, assigned, requireCost);
+            if (key == null || !shouldReplace(key, (Function) node)) {
+                visitChildren(node);
+                return node;
+            }
+
+            Variable temporary = temporaries.get(key);
+            if (temporary == null) {
+                if (replaceNested) {
+                    // Replace the calls inside first, so that their
+                    // definitions come before this one
+                    visitChildren(node);
+                }
+                temporary = createTemporary();
+                definitions.add(operator(node.getPosition(), "ass", temporary, node));
+                temporaries.put(key, temporary);
+            }
+            return temporary;
+        }
+    }
+
+    /**
+     * A traversal of a tree that may replace its nodes.
+     */
+    private abstract static class Pass {
+
+        /**
+         * Visit a node.
+         *
+         * @param node the node
+         * @return the node that replaces it
+         * @throws EvaluationException thrown if a node cannot be created
+         */
+        abstract RValue visit(RValue node) throws EvaluationException;
+
+        /**
+         * Visit the children of a node and replace them.
+         *
+         * @param node the node
+         * @throws EvaluationException thrown if a node cannot be created
+         */
+        final void visitChildren(RValue node) throws EvaluationException {
+            if (node instanceof LValueFunction) {
+                // The setter keeps its own copy of the arguments, so they
+                // are only visited
+                for (RValue arg : ((Function) node).args) {
+                    visit(arg);
+                }
+            } else if (node instanceof Function) {
+                final RValue[] args = ((Function) node).args;
+                for (int i = 0; i < args.length; ++i) {
+                    // Variables and other LValues are never replaced
+                    args[i] = visit(args[i]);
+                }
+            } else if (node instanceof Sequence) {
+                final RValue[] sequence = ((Sequence) node).sequence;
+                for (int i = 0; i < sequence.length; ++i) {
+                    sequence[i] = visit(sequence[i]);
+                }
+            } else if (node instanceof Conditional) {
+                final Conditional conditional = (Conditional) node;
+                conditional.condition = visit(conditional.condition);
+                conditional.truePart = visit(conditional.truePart);
+                if (conditional.falsePart != null) {
+                    conditional.falsePart = visit(conditional.falsePart);
+                }
+            } else if (node instanceof While) {
+                final While loop = (While) node;
+                loop.condition = visit(loop.condition);
+                loop.body = visit(loop.body);
+            } else if (node instanceof For) {
+                final For loop = (For) node;
+                loop.init = visit(loop.init);
+                loop.condition = visit(loop.condition);
+                loop.increment = visit(loop.increment);
+                loop.body = visit(loop.body);
+            } else if (node instanceof SimpleFor) {
+                final SimpleFor loop = (SimpleFor) node;
+                loop.first = visit(loop.first);
+                loop.last = visit(loop.last);
+                loop.body = visit(loop.body);
+            } else if (node instanceof Return) {
+                final Return ret = (Return) node;
+                ret.value = visit(ret.value);
+            } else if (node instanceof Switch) {
+                final Switch switchNode = (Switch) node;
+                switchNode.parameter = visit(switchNode.parameter);
+                for (int i = 0; i < switchNode.caseStatements.length; ++i) {
+                    switchNode.caseStatements[i] = visit(switchNode.caseStatements[i]);
+                }
+                if (switchNode.defaultCase != null) {
+                    switchNode.defaultCase = visit(switchNode.defaultCase);
+                }
+            }
+        }
+    }
+
+}
@@ -21,7 +21,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 import com.sk89q.worldedit.Vector;
 import com.sk89q.worldedit.internal.expression.Expression;
@@ -267,54 +267,33 @@ public final class Functions {
         return 0.0;
     }
 
-    private static final Map<Integer, double[]> gmegabuf = new HashMap<Integer, double[]>();
-    private final Map<Integer, double[]> megabuf = new HashMap<Integer, double[]>();
+    private static final MegaBuffer gmegabuf = new MegaBuffer();
+    private final MegaBuffer megabuf = new MegaBuffer();
 
-    public Map<Integer, double[]> getMegabuf() {
+    public MegaBuffer getMegabuf() {
         return megabuf;
     }
 
-    private static double[] getSubBuffer(Map<Integer, double[]> megabuf, Integer key) {
-        double[] ret = megabuf.get(key);
-        if (ret == null) {
-            megabuf.put(key, ret = new double[1024]);
-        }
-        return ret;
-    }
-
-    private static double getBufferItem(final Map<Integer, double[]> megabuf, final int index) {
-        return getSubBuffer(megabuf, index & ~1023)[index & 1023];
-    }
-
-    private static double setBufferItem(final Map<Integer, double[]> megabuf, final int index, double value) {
-        return getSubBuffer(megabuf, index & ~1023)[index & 1023] = value;
-    }
-
     @Dynamic
     public static double gmegabuf(RValue index) throws EvaluationException {
-        return getBufferItem(gmegabuf, (int) index.getValue());
+        return gmegabuf.get((int) index.getValue());
     }
 
     @Dynamic
     public static double gmegabuf(RValue index, double value) throws EvaluationException {
-        return setBufferItem(gmegabuf, (int) index.getValue(), value);
+        return gmegabuf.set((int) index.getValue(), value);
     }
 
     @Dynamic
     public static double megabuf(RValue index) throws EvaluationException {
-        return getBufferItem(
-            Expression.getInstance()
-                .getFunctions().megabuf,
-            (int) index.getValue());
+        return Expression.getInstance()
+            .getFunctions().megabuf.get((int) index.getValue());
     }
 
     @Dynamic
     public static double megabuf(RValue index, double value) throws EvaluationException {
-        return setBufferItem(
-            Expression.getInstance()
-                .getFunctions().megabuf,
-            (int) index.getValue(),
-            value);
+        return Expression.getInstance()
+            .getFunctions().megabuf.set((int) index.getValue(), value);
     }
 
     @Dynamic
@@ -344,15 +323,15 @@ public final class Functions {
             (int) stride.getValue());
     }
 
-    private static double findClosest(Map<Integer, double[]> megabuf, double x, double y, double z, int index,
+    private static double findClosest(MegaBuffer megabuf, double x, double y, double z, int index,
         int count, int stride) {
         int closestIndex = -1;
         double minDistanceSquared = Double.MAX_VALUE;
 
         for (int i = 0; i < count; ++i) {
-            double currentX = getBufferItem(megabuf, index + 0) - x;
-            double currentY = getBufferItem(megabuf, index + 1) - y;
-            double currentZ = getBufferItem(megabuf, index + 2) - z;
+            double currentX = megabuf.get(index + 0) - x;
+            double currentY = megabuf.get(index + 1) - y;
+            double currentZ = megabuf.get(index + 2) - z;
 
             double currentDistanceSquared = currentX * currentX + currentY * currentY + currentZ * currentZ;
 
@@ -367,16 +346,16 @@ public final class Functions {
         return closestIndex;
     }
 
-    private static final Random random = new Random();
-
     @Dynamic
     public static double random() {
-        return random.nextDouble();
+        return ThreadLocalRandom.current()
+            .nextDouble();
     }
 
     @Dynamic
     public static double randint(RValue max) throws EvaluationException {
-        return random.nextInt((int) Math.floor(max.getValue()));
+        return ThreadLocalRandom.current()
+            .nextInt((int) Math.floor(max.getValue()));
     }
 
     private static final ThreadLocal<PerlinNoise> localPerlin = new ThreadLocal<PerlinNoise>() {
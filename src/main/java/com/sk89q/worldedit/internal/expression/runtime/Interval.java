@@ -0,0 +1,151 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.internal.expression.runtime;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A closed range of values that an expression can take, which may also
+ * include NaN.
+ */
+public final class Interval {
+
+    /**
+     * An interval that contains every value.
+     */
+    public static final Interval UNBOUNDED = new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, true);
+
+    /**
+     * The interval of boolean results, 0 and 1.
+     */
+    static final Interval BOOLEAN = new Interval(0, 1, false);
+
+    static final Interval FALSE = new Interval(0, 0, false);
+    static final Interval TRUE = new Interval(1, 1, false);
+
+    private final double min;
+    private final double max;
+    private final boolean nan;
+
+    /**
+     * Create a new instance.
+     *
+     * @param min the minimum value
+     * @param max the maximum value
+     */
+    public Interval(double min, double max) {
+        this(min, max, false);
+    }
+
+    Interval(double min, double max, boolean nan) {
+        checkArgument(min <= max, "min <= max required");
+        this.min = min;
+        this.max = max;
+        this.nan = nan;
+    }
+
+    /**
+     * Create an interval that contains a single value.
+     *
+     * @param value the value
+     * @return an interval
+     */
+    public static Interval of(double value) {
+        if (Double.isNaN(value)) {
+            return UNBOUNDED;
+        }
+        return new Interval(value, value, false);
+    }
+
+    /**
+     * Get the minimum value.
+     *
+     * @return the minimum value
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * Get the maximum value.
+     *
+     * @return the maximum value
+     */
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * Return whether NaN is one of the values.
+     *
+     * @return true if the value may be NaN
+     */
+    public boolean mayBeNaN() {
+        return nan;
+    }
+
+    /**
+     * Return whether the interval contains a single value.
+     *
+     * @return true if the interval is a single value
+     */
+    public boolean isPoint() {
+        return min == max && !nan;
+    }
+
+    /**
+     * Return whether every value is greater than 0, which is how
+     * expressions represent true.
+     *
+     * @return true if every value is true
+     */
+    public boolean isTrue() {
+        return min > 0 && !nan;
+    }
+
+    /**
+     * Return whether no value is greater than 0, which is how expressions
+     * represent false.
+     *
+     * <p>NaN is never considered false here: conditions treat it as false,
+     * but callers that test {@code result <= 0} treat it as true.</p>
+     *
+     * @return true if every value is false
+     */
+    public boolean isFalse() {
+        return max <= 0 && !nan;
+    }
+
+    /**
+     * Get the smallest interval that contains this interval and another.
+     *
+     * @param other the other interval
+     * @return the union
+     */
+    public Interval union(Interval other) {
+        if (other == this) {
+            return this;
+        }
+        return new Interval(Math.min(min, other.min), Math.max(max, other.max), nan || other.nan);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + min + ", " + max + "]" + (nan ? " or NaN" : "");
+    }
+
+}
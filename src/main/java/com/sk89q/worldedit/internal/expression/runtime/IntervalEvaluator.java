@@ -0,0 +1,526 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.internal.expression.runtime;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Bounds the value of an expression tree over ranges of its variables with
+ * interval arithmetic.
+ *
+ * <p>
+ * The bounds are conservative: every value that the interpreter could
+ * return for values of the variables within their ranges is within the
+ * bounds. Loops, {@code switch} statements and functions that read the
+ * world or keep state, such as {@code query} or {@code megabuf}, are not
+ * supported.
+ * </p>
+ */
+public final class IntervalEvaluator {
+
+    private final RValue root;
+    private final Set<Variable> assigned = Sets.newIdentityHashSet();
+
+    private IntervalEvaluator(RValue root) {
+        this.root = root;
+    }
+
+    /**
+     * Create an evaluator for a tree.
+     *
+     * @param root the root of the tree
+     * @return an evaluator, or null if the tree contains unsupported nodes
+     */
+    @Nullable
+    public static IntervalEvaluator create(RValue root) {
+        checkNotNull(root);
+        IntervalEvaluator evaluator = new IntervalEvaluator(root);
+        return evaluator.scan(root) ? evaluator : null;
+    }
+
+    /**
+     * Bound the value of the tree.
+     *
+     * <p>
+     * Variables that are not given an interval keep their current value,
+     * unless the tree assigns to them, in which case their value before the
+     * assignment is unknown.
+     * </p>
+     *
+     * @param variables the intervals of the variables, which receives the
+     *                  intervals of the variables after the evaluation. The
+     *                  given interval of a variable is kept as is if the
+     *                  variable is not assigned.
+     * @return the interval of the result
+     */
+    public Interval evaluate(Map<Variable, Interval> variables) {
+        checkNotNull(variables);
+        for (Variable variable : assigned) {
+            if (!variables.containsKey(variable)) {
+                variables.put(variable, Interval.UNBOUNDED);
+            }
+        }
+        return evaluate(root, variables);
+    }
+
+    /**
+     * Check that every node of a tree is supported and find the variables
+     * that it assigns to.
+     *
+     * @param node the node
+     * @return true if the node is supported
+     */
+    private boolean scan(@Nullable RValue node) {
+        if (node == null || node instanceof Constant || node instanceof Variable) {
+            return true;
+        }
+
+        if (node instanceof Sequence) {
+            for (RValue child : ((Sequence) node).sequence) {
+                if (!scan(child)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (node instanceof Conditional) {
+            Conditional conditional = (Conditional) node;
+            return scan(conditional.condition) && scan(conditional.truePart) && scan(conditional.falsePart);
+        } else if (node.getClass() == Function.class) {
+            Function function = (Function) node;
+            if (!isSupported(function)) {
+                return false;
+            }
+
+            Class<?>[] parameters = function.method.getParameterTypes();
+            for (int i = 0; i < function.args.length; ++i) {
+                if (parameters[i] == LValue.class) {
+                    if (!(function.args[i] instanceof Variable)) {
+                        return false;
+                    }
+                    assigned.add((Variable) function.args[i]);
+                } else if (!scan(function.args[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    private static boolean isSupported(Function function) {
+        String name = function.method.getName();
+
+        if (function.method.getDeclaringClass() == Operators.class) {
+            return !name.equals("inv") && !name.equals("shl") && !name.equals("shr") && !name.equals("fac");
+        } else if (function.method.getDeclaringClass() == Functions.class) {
+            return name.equals("sin") || name.equals("cos")
+                || name.equals("tan")
+                || name.equals("asin")
+                || name.equals("acos")
+                || name.equals("atan")
+                || name.equals("atan2")
+                || name.equals("sinh")
+                || name.equals("cosh")
+                || name.equals("tanh")
+                || name.equals("sqrt")
+                || name.equals("cbrt")
+                || name.equals("abs")
+                || name.equals("min")
+                || name.equals("max")
+                || name.equals("ceil")
+                || name.equals("floor")
+                || name.equals("rint")
+                || name.equals("round")
+                || name.equals("exp")
+                || name.equals("ln")
+                || name.equals("log")
+                || name.equals("log10");
+        }
+
+        return false;
+    }
+
+    private Interval evaluate(@Nullable RValue node, Map<Variable, Interval> variables) {
+        if (node == null) {
+            return Interval.FALSE;
+        } else if (node instanceof Constant) {
+            return Interval.of(((Constant) node).getValue());
+        } else if (node instanceof Variable) {
+            Interval interval = variables.get(node);
+            return interval != null ? interval : Interval.of(((Variable) node).value);
+        } else if (node instanceof Sequence) {
+            Interval result = Interval.FALSE;
+            for (RValue child : ((Sequence) node).sequence) {
+                result = evaluate(child, variables);
+            }
+            return result;
+        } else if (node instanceof Conditional) {
+            Conditional conditional = (Conditional) node;
+            Interval condition = evaluate(conditional.condition, variables);
+            if (condition.isTrue()) {
+                return evaluate(conditional.truePart, variables);
+            } else if (condition.isFalse()) {
+                return evaluate(conditional.falsePart, variables);
+            }
+            return evaluateBoth(conditional.truePart, conditional.falsePart, variables);
+        }
+
+        Function function = (Function) node;
+        if (function.method.getDeclaringClass() == Operators.class) {
+            return evaluateOperator(function.method.getName(), function.args, variables);
+        } else {
+            return evaluateFunction(function.method.getName(), function.args, variables);
+        }
+    }
+
+    /**
+     * Evaluate one of two branches, not knowing which one, and merge the
+     * variables that they assign to.
+     */
+    private Interval evaluateBoth(@Nullable RValue first, @Nullable RValue second, Map<Variable, Interval> variables) {
+        Map<Variable, Interval> firstVariables = new IdentityHashMap<Variable, Interval>(variables);
+        Interval result = evaluate(first, firstVariables);
+        result = result.union(evaluate(second, variables));
+        merge(firstVariables, variables);
+        return result;
+    }
+
+    /**
+     * Evaluate a node that may or may not be evaluated, and merge the
+     * variables that it assigns to.
+     */
+    private Interval evaluateMaybe(RValue node, Map<Variable, Interval> variables) {
+        Map<Variable, Interval> nodeVariables = new IdentityHashMap<Variable, Interval>(variables);
+        Interval result = evaluate(node, nodeVariables);
+        merge(nodeVariables, variables);
+        return result;
+    }
+
+    private static void merge(Map<Variable, Interval> from, Map<Variable, Interval> to) {
+        for (Map.Entry<Variable, Interval> entry : from.entrySet()) {
+            Interval other = to.get(entry.getKey());
+            if (other == null) {
+                other = Interval.of(entry.getKey().value);
+            }
+            to.put(
+                entry.getKey(),
+                entry.getValue()
+                    .union(other));
+        }
+    }
+
+    private Interval evaluateOperator(String name, RValue[] args, Map<Variable, Interval> variables) {
+        if (name.equals("or") || name.equals("and")) {
+            boolean or = name.equals("or");
+            Interval lhs = evaluate(args[0], variables);
+            if (or ? lhs.isTrue() : lhs.isFalse()) {
+                return or ? Interval.TRUE : Interval.FALSE;
+            }
+
+            Interval rhs;
+            if (or ? lhs.isFalse() : lhs.isTrue()) {
+                rhs = evaluate(args[1], variables);
+            } else {
+                // The right hand side may not be evaluated at all
+                rhs = evaluateMaybe(args[1], variables);
+            }
+            if (rhs.isTrue() && (or || lhs.isTrue())) {
+                return Interval.TRUE;
+            } else if (rhs.isFalse() && (!or || lhs.isFalse())) {
+                return Interval.FALSE;
+            }
+            return Interval.BOOLEAN;
+        }
+
+        if (args.length == 1) {
+            if (name.equals("inc") || name.equals("dec")
+                || name.equals("postinc")
+                || name.equals("postdec")) {
+                Variable variable = (Variable) args[0];
+                Interval old = evaluate(variable, variables);
+                Interval updated = name.endsWith("inc") ? add(old, Interval.TRUE) : subtract(old, Interval.TRUE);
+                variables.put(variable, updated);
+                return name.startsWith("post") ? old : updated;
+            }
+
+            Interval x = evaluate(args[0], variables);
+            if (name.equals("neg")) {
+                return new Interval(-x.getMax(), -x.getMin(), x.mayBeNaN());
+            } else if (name.equals("not")) {
+                return x.isTrue() ? Interval.FALSE : x.isFalse() ? Interval.TRUE : Interval.BOOLEAN;
+            }
+            return Interval.UNBOUNDED;
+        }
+
+        if (name.startsWith("a") && !name.equals("add")) {
+            // An assignment
+            Variable variable = (Variable) args[0];
+            Interval rhs = evaluate(args[1], variables);
+            Interval value;
+            if (name.equals("ass")) {
+                value = rhs;
+            } else {
+                value = arithmetic(name.substring(1), evaluate(variable, variables), rhs);
+            }
+            variables.put(variable, value);
+            return value;
+        }
+
+        Interval lhs = evaluate(args[0], variables);
+        if (name.equals("mul") && args[0] == args[1] && args[0] instanceof Variable) {
+            // x * x cannot be negative, unlike the product of two independent intervals
+            return power(lhs, Interval.of(2));
+        }
+        Interval rhs = evaluate(args[1], variables);
+        return arithmetic(name, lhs, rhs);
+    }
+
+    private static Interval arithmetic(String name, Interval lhs, Interval rhs) {
+        if (name.equals("add")) {
+            return add(lhs, rhs);
+        } else if (name.equals("sub")) {
+            return subtract(lhs, rhs);
+        } else if (name.equals("mul")) {
+            return multiply(lhs, rhs);
+        } else if (name.equals("div")) {
+            return divide(lhs, rhs);
+        } else if (name.equals("mod")) {
+            return modulo(lhs, rhs);
+        } else if (name.equals("pow") || name.equals("exp")) {
+            return power(lhs, rhs);
+        } else if (name.equals("lth")) {
+            return compare(lhs.getMax() < rhs.getMin(), lhs.getMin() >= rhs.getMax(), lhs, rhs);
+        } else if (name.equals("gth")) {
+            return compare(lhs.getMin() > rhs.getMax(), lhs.getMax() <= rhs.getMin(), lhs, rhs);
+        } else if (name.equals("leq")) {
+            return compare(lhs.getMax() <= rhs.getMin(), lhs.getMin() > rhs.getMax(), lhs, rhs);
+        } else if (name.equals("geq")) {
+            return compare(lhs.getMin() >= rhs.getMax(), lhs.getMax() < rhs.getMin(), lhs, rhs);
+        } else if (name.equals("equ") || name.equals("neq")) {
+            boolean disjoint = lhs.getMax() < rhs.getMin() || lhs.getMin() > rhs.getMax();
+            boolean same = lhs.isPoint() && rhs.isPoint() && lhs.getMin() == rhs.getMin();
+            return name.equals("equ") ? compare(same, disjoint, lhs, rhs) : compare(disjoint, same, lhs, rhs);
+        } else if (name.equals("near")) {
+            return Interval.BOOLEAN;
+        }
+        return Interval.UNBOUNDED;
+    }
+
+    /**
+     * Get the result of a comparison, which is false for NaN.
+     */
+    private static Interval compare(boolean alwaysTrue, boolean alwaysFalse, Interval lhs, Interval rhs) {
+        boolean nan = lhs.mayBeNaN() || rhs.mayBeNaN();
+        if (alwaysTrue && !nan) {
+            return Interval.TRUE;
+        } else if (alwaysFalse) {
+            return Interval.FALSE;
+        }
+        return Interval.BOOLEAN;
+    }
+
+    private static Interval add(Interval lhs, Interval rhs) {
+        return widen(lhs.getMin() + rhs.getMin(), lhs.getMax() + rhs.getMax(), lhs.mayBeNaN() || rhs.mayBeNaN());
+    }
+
+    private static Interval subtract(Interval lhs, Interval rhs) {
+        return widen(lhs.getMin() - rhs.getMax(), lhs.getMax() - rhs.getMin(), lhs.mayBeNaN() || rhs.mayBeNaN());
+    }
+
+    private static Interval multiply(Interval lhs, Interval rhs) {
+        return corners(
+            lhs.getMin() * rhs.getMin(),
+            lhs.getMin() * rhs.getMax(),
+            lhs.getMax() * rhs.getMin(),
+            lhs.getMax() * rhs.getMax(),
+            lhs.mayBeNaN() || rhs.mayBeNaN());
+    }
+
+    private static Interval divide(Interval lhs, Interval rhs) {
+        if (rhs.getMin() <= 0 && rhs.getMax() >= 0) {
+            return Interval.UNBOUNDED;
+        }
+        return corners(
+            lhs.getMin() / rhs.getMin(),
+            lhs.getMin() / rhs.getMax(),
+            lhs.getMax() / rhs.getMin(),
+            lhs.getMax() / rhs.getMax(),
+            lhs.mayBeNaN() || rhs.mayBeNaN());
+    }
+
+    private static Interval modulo(Interval lhs, Interval rhs) {
+        if (rhs.getMin() <= 0 && rhs.getMax() >= 0 || Double.isInfinite(lhs.getMin())
+            || Double.isInfinite(lhs.getMax())) {
+            return Interval.UNBOUNDED;
+        }
+
+        // The result has the sign of the dividend and is smaller than the divisor
+        double limit = Math.max(Math.abs(rhs.getMin()), Math.abs(rhs.getMax()));
+        double min = lhs.getMin() >= 0 ? 0 : Math.max(lhs.getMin(), -limit);
+        double max = lhs.getMax() <= 0 ? 0 : Math.min(lhs.getMax(), limit);
+        return new Interval(min, max, lhs.mayBeNaN() || rhs.mayBeNaN());
+    }
+
+    private static Interval power(Interval base, Interval exponent) {
+        boolean nan = base.mayBeNaN() || exponent.mayBeNaN();
+
+        if (exponent.isPoint() && exponent.getMin() == Math.rint(exponent.getMin()) && exponent.getMin() > 0) {
+            double n = exponent.getMin();
+            double min = Math.pow(base.getMin(), n);
+            double max = Math.pow(base.getMax(), n);
+            if (n % 2 != 0) {
+                // Odd powers are monotonic
+                return widen(min, max, nan);
+            } else if (base.getMin() >= 0) {
+                return widen(min, max, nan);
+            } else if (base.getMax() <= 0) {
+                return widen(max, min, nan);
+            }
+            return widen(0, Math.max(min, max), nan);
+        }
+
+        if (base.getMin() > 0) {
+            // x^y = exp(y * ln(x)) is extreme at the corners
+            return corners(
+                Math.pow(base.getMin(), exponent.getMin()),
+                Math.pow(base.getMin(), exponent.getMax()),
+                Math.pow(base.getMax(), exponent.getMin()),
+                Math.pow(base.getMax(), exponent.getMax()),
+                nan);
+        }
+
+        return Interval.UNBOUNDED;
+    }
+
+    private Interval evaluateFunction(String name, RValue[] args, Map<Variable, Interval> variables) {
+        Interval[] values = new Interval[args.length];
+        for (int i = 0; i < args.length; ++i) {
+            values[i] = evaluate(args[i], variables);
+        }
+
+        Interval x = values[0];
+        boolean nan = x.mayBeNaN();
+        double min = x.getMin();
+        double max = x.getMax();
+
+        if (name.equals("min") || name.equals("max")) {
+            boolean isMin = name.equals("min");
+            for (int i = 1; i < values.length; ++i) {
+                Interval y = values[i];
+                min = isMin ? Math.min(min, y.getMin()) : Math.max(min, y.getMin());
+                max = isMin ? Math.min(max, y.getMax()) : Math.max(max, y.getMax());
+                nan |= y.mayBeNaN();
+            }
+            return new Interval(min, max, nan);
+        } else if (name.equals("abs")) {
+            if (min >= 0) {
+                return x;
+            } else if (max <= 0) {
+                return new Interval(-max, -min, nan);
+            }
+            return new Interval(0, Math.max(-min, max), nan);
+        } else if (name.equals("sin") || name.equals("cos")) {
+            return new Interval(-1, 1, nan || Double.isInfinite(min) || Double.isInfinite(max));
+        } else if (name.equals("atan2")) {
+            return new Interval(-Math.PI, Math.PI, nan || values[1].mayBeNaN());
+        } else if (name.equals("cosh")) {
+            double lower = min <= 0 && max >= 0 ? 1 : Math.cosh(Math.min(Math.abs(min), Math.abs(max)));
+            return widen(lower, Math.cosh(Math.max(Math.abs(min), Math.abs(max))), nan);
+        } else if (name.equals("sqrt") || name.equals("ln")
+            || name.equals("log")
+            || name.equals("log10")) {
+            if (min < 0) {
+                nan = true;
+                min = 0;
+                if (max < 0) {
+                    return Interval.UNBOUNDED;
+                }
+            }
+        } else if (name.equals("asin") || name.equals("acos")) {
+            if (min < -1 || max > 1) {
+                nan = true;
+                min = Math.max(min, -1);
+                max = Math.min(max, 1);
+                if (min > max) {
+                    return Interval.UNBOUNDED;
+                }
+            }
+        } else if (name.equals("tan")) {
+            return Interval.UNBOUNDED;
+        }
+
+        // The remaining functions are monotonic
+        double lower = apply(name, min);
+        double upper = apply(name, max);
+        if (name.equals("acos")) {
+            return widen(upper, lower, nan);
+        }
+        return widen(lower, upper, nan);
+    }
+
+    private static double apply(String name, double x) {
+        if (name.equals("asin")) return Math.asin(x);
+        if (name.equals("acos")) return Math.acos(x);
+        if (name.equals("atan")) return Math.atan(x);
+        if (name.equals("sinh")) return Math.sinh(x);
+        if (name.equals("tanh")) return Math.tanh(x);
+        if (name.equals("sqrt")) return Math.sqrt(x);
+        if (name.equals("cbrt")) return Math.cbrt(x);
+        if (name.equals("ceil")) return Math.ceil(x);
+        if (name.equals("floor")) return Math.floor(x);
+        if (name.equals("rint")) return Math.rint(x);
+        if (name.equals("round")) return Math.round(x);
+        if (name.equals("exp")) return Math.exp(x);
+        if (name.equals("log10")) return Math.log10(x);
+        checkArgument(name.equals("ln") || name.equals("log"), "unsupported function");
+        return Math.log(x);
+    }
+
+    /**
+     * Get the interval between the smallest and largest of four values.
+     */
+    private static Interval corners(double a, double b, double c, double d, boolean nan) {
+        if (Double.isNaN(a) || Double.isNaN(b) || Double.isNaN(c) || Double.isNaN(d)) {
+            // 0 * infinity or infinity / infinity
+            return Interval.UNBOUNDED;
+        }
+        return widen(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)), nan);
+    }
+
+    /**
+     * Create an interval that is widened by one unit in the last place on
+     * both sides, to make up for rounding errors.
+     */
+    private static Interval widen(double min, double max, boolean nan) {
+        if (Double.isNaN(min) || Double.isNaN(max)) {
+            // infinity - infinity
+            return Interval.UNBOUNDED;
+        }
+        return new Interval(Math.nextDown(min), Math.nextUp(max), nan);
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.internal.expression.runtime;
+
+/**
+ * The storage behind {@code megabuf} and {@code gmegabuf}.
+ *
+ * <p>
+ * Values are stored in pages of 1024 doubles that are allocated when they
+ * are first written to. Reading a value that was never written returns 0.
+ * The pages around index 0 are found through a two-level array directory;
+ * pages far away from it are kept in a sparse hash table instead.
+ * </p>
+ *
+ * <p>
+ * The number of bytes used by the pages of a single buffer is capped by
+ * {@link #setLimit(long)}. Buffers may be read and written by several
+ * threads at once.
+ * </p>
+ */
+public final class MegaBuffer {
+
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final long PAGE_BYTES = PAGE_SIZE * 8L;
+
+    private static final int DIRECTORY_BITS = 10;
+    private static final int DIRECTORY_SIZE = 1 << DIRECTORY_BITS;
+    private static final int DIRECTORY_MASK = DIRECTORY_SIZE - 1;
+
+    /**
+     * The number of pages that can be found through the directory, half of
+     * them below index 0. This covers the indices from -2^24 to 2^24 - 1.
+     */
+    private static final int DIRECT_PAGE_BITS = 15;
+    private static final int DIRECT_PAGE_OFFSET = 1 << (DIRECT_PAGE_BITS - 1);
+
+    private static final int MIN_SPARSE_CAPACITY = 16;
+
+    private static volatile long limit = -1;
+
+    private final double[][][] directory = new double[1 << (DIRECT_PAGE_BITS - DIRECTORY_BITS)][][];
+    private int[] sparseKeys;
+    private double[][] sparsePages;
+    private int sparseSize = 0;
+    private int pageCount = 0;
+
+    /**
+     * Set the maximum number of bytes that the pages of each buffer may use.
+     *
+     * @param limit the limit in bytes, or -1 for no limit
+     */
+    public static void setLimit(long limit) {
+        MegaBuffer.limit = limit;
+    }
+
+    /**
+     * Get the maximum number of bytes that the pages of each buffer may use.
+     *
+     * @return the limit in bytes, or -1 for no limit
+     */
+    public static long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Get a value.
+     *
+     * @param index the index of the value
+     * @return the value, or 0 if it was never set
+     */
+    public double get(int index) {
+        final double[] page = getPage(index >> PAGE_BITS);
+        return page == null ? 0 : page[index & PAGE_MASK];
+    }
+
+    /**
+     * Set a value.
+     *
+     * @param index the index of the value
+     * @param value the value
+     * @return the value
+     * @throws EvaluationException thrown if a new page would exceed the limit
+     */
+    public double set(int index, double value) throws EvaluationException {
+        double[] page = getPage(index >> PAGE_BITS);
+        if (page == null) {
+            page = createPage(index >> PAGE_BITS);
+        }
+        return page[index & PAGE_MASK] = value;
+    }
+
+    /**
+     * Get the number of bytes used by the pages of this buffer.
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getSize() {
+        return pageCount * PAGE_BYTES;
+    }
+
+    private double[] getPage(int pageIndex) {
+        final int directIndex = pageIndex + DIRECT_PAGE_OFFSET;
+        if (directIndex >>> DIRECT_PAGE_BITS == 0) {
+            // A page that is being created may not be seen here, in which
+            // case createPage() finds it
+            final double[][] pages = directory[directIndex >>> DIRECTORY_BITS];
+            return pages == null ? null : pages[directIndex & DIRECTORY_MASK];
+        }
+
+        synchronized (this) {
+            return getSparsePage(pageIndex);
+        }
+    }
+
+    private synchronized double[] createPage(int pageIndex) throws EvaluationException {
+        final int directIndex = pageIndex + DIRECT_PAGE_OFFSET;
+        double[][] pages = null;
+        double[] page;
+        if (directIndex >>> DIRECT_PAGE_BITS == 0) {
+            pages = directory[directIndex >>> DIRECTORY_BITS];
+            if (pages == null) {
+                pages = directory[directIndex >>> DIRECTORY_BITS] = new double[DIRECTORY_SIZE][];
+            }
+            page = pages[directIndex & DIRECTORY_MASK];
+        } else {
+            page = getSparsePage(pageIndex);
+        }
+
+        if (page != null) {
+            // Created by another thread in the meantime
+            return page;
+        }
+
+        final long limit = MegaBuffer.limit;
+        if (limit >= 0 && (pageCount + 1) * PAGE_BYTES > limit) {
+            throw new EvaluationException(
+                -1,
+                "The expression buffer is limited to " + (limit >> 20) + " MB (index " + (pageIndex << PAGE_BITS) + ")");
+        }
+
+        page = new double[PAGE_SIZE];
+        ++pageCount;
+        if (pages != null) {
+            pages[directIndex & DIRECTORY_MASK] = page;
+        } else {
+            putSparsePage(pageIndex, page);
+        }
+        return page;
+    }
+
+    private double[] getSparsePage(int pageIndex) {
+        if (sparseKeys == null) {
+            return null;
+        }
+
+        final int mask = sparseKeys.length - 1;
+        for (int slot = hash(pageIndex) & mask;; slot = (slot + 1) & mask) {
+            final double[] page = sparsePages[slot];
+            if (page == null) {
+                return null;
+            }
+            if (sparseKeys[slot] == pageIndex) {
+                return page;
+            }
+        }
+    }
+
+    private void putSparsePage(int pageIndex, double[] page) {
+        if (sparseKeys == null) {
+            sparseKeys = new int[MIN_SPARSE_CAPACITY];
+            sparsePages = new double[MIN_SPARSE_CAPACITY][];
+        } else if ((sparseSize + 1) * 2 > sparseKeys.length) {
+            // Keep the table at most half full
+            final int[] oldKeys = sparseKeys;
+            final double[][] oldPages = sparsePages;
+            sparseKeys = new int[oldKeys.length * 2];
+            sparsePages = new double[oldKeys.length * 2][];
+            sparseSize = 0;
+            for (int i = 0; i < oldKeys.length; ++i) {
+                if (oldPages[i] != null) {
+                    putSparsePage(oldKeys[i], oldPages[i]);
+                }
+            }
+        }
+
+        final int mask = sparseKeys.length - 1;
+        int slot = hash(pageIndex) & mask;
+        while (sparsePages[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        sparseKeys[slot] = pageIndex;
+        sparsePages[slot] = page;
+        ++sparseSize;
+    }
+
+    private static int hash(int key) {
+        final int hash = key * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+}
@@ -181,8 +181,10 @@ public final class Operators {
     }
 
     public static double fac(RValue x) throws EvaluationException {
-        final int n = (int) x.getValue();
+        return factorial((int) x.getValue());
+    }
 
+    static double factorial(int n) {
         if (n < 0) {
             return 0;
         }
@@ -195,7 +197,7 @@ public final class Operators {
     }
 
     // Usable AlmostEqual function, based on http://www.cygnus-software.com/papers/comparingfloats/comparingfloats.htm
-    private static boolean almostEqual2sComplement(double a, double b, long maxUlps) {
+    static boolean almostEqual2sComplement(double a, double b, long maxUlps) {
         // Make sure maxUlps is non-negative and small enough that the
         // default NAN won't compare as equal to anything.
         // assert(maxUlps > 0 && maxUlps < 4 * 1024 * 1024); // this is for floats, not doubles
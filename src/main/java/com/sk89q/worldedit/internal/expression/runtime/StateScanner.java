@@ -0,0 +1,195 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.sk89q.worldedit.internal.expression.runtime;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collection;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Finds out whether an expression tree carries state from one evaluation to
+ * the next.
+ *
+ * <p>
+ * A tree is stateless if every variable other than the inputs is assigned
+ * before it is read, on every path through the tree, and it calls no
+ * {@link Function.Dynamic dynamic} function such as {@code megabuf}. The
+ * result of each evaluation of such a tree then only depends on its inputs,
+ * so evaluations can run in any order. The analysis is conservative: loops
+ * are assumed to run zero times and {@code switch} statements are not
+ * supported.
+ * </p>
+ */
+public final class StateScanner {
+
+    private final Set<Variable> assigned = Sets.newIdentityHashSet();
+
+    private StateScanner() {
+    }
+
+    /**
+     * Return whether a tree is stateless.
+     *
+     * @param root    the root of the tree
+     * @param inputs  the variables that are given a value before each evaluation
+     * @param outputs the variables that are read after each evaluation, which
+     *                must either be assigned on every path or not at all
+     * @return true if the tree is stateless
+     */
+    public static boolean isStateless(RValue root, Collection<? extends RValue> inputs,
+        Collection<? extends RValue> outputs) {
+        checkNotNull(root);
+        checkNotNull(inputs);
+        checkNotNull(outputs);
+
+        StateScanner scanner = new StateScanner();
+        Set<Variable> definite = Sets.newIdentityHashSet();
+        for (RValue input : inputs) {
+            if (input instanceof Variable) {
+                definite.add((Variable) input);
+            }
+        }
+
+        if (!scanner.scan(root, definite)) {
+            return false;
+        }
+
+        for (RValue output : outputs) {
+            if (scanner.assigned.contains(output) && !definite.contains(output)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check a node.
+     *
+     * @param node     the node
+     * @param definite the variables that are assigned before the node, which
+     *                 receives the variables that are assigned after it
+     * @return true if the node reads no variable before it is assigned
+     */
+    private boolean scan(@Nullable RValue node, Set<Variable> definite) {
+        if (node == null || node instanceof Constant || node instanceof Break) {
+            return true;
+        } else if (node instanceof Variable) {
+            return definite.contains(node);
+        } else if (node instanceof Sequence) {
+            for (RValue child : ((Sequence) node).sequence) {
+                if (!scan(child, definite)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (node instanceof Conditional) {
+            Conditional conditional = (Conditional) node;
+            if (!scan(conditional.condition, definite)) {
+                return false;
+            }
+            Set<Variable> falseDefinite = Sets.newIdentityHashSet();
+            falseDefinite.addAll(definite);
+            if (!scan(conditional.truePart, definite) || !scan(conditional.falsePart, falseDefinite)) {
+                return false;
+            }
+            definite.retainAll(falseDefinite);
+            return true;
+        } else if (node instanceof Return) {
+            return scan(((Return) node).value, definite);
+        } else if (node instanceof While) {
+            While loop = (While) node;
+            if (!scan(loop.condition, definite)) {
+                return false;
+            }
+            return scanMaybe(loop.body, definite);
+        } else if (node instanceof For) {
+            For loop = (For) node;
+            if (!scan(loop.init, definite) || !scan(loop.condition, definite)) {
+                return false;
+            }
+            Set<Variable> bodyDefinite = Sets.newIdentityHashSet();
+            bodyDefinite.addAll(definite);
+            return scan(loop.body, bodyDefinite) && scan(loop.increment, bodyDefinite);
+        } else if (node instanceof SimpleFor) {
+            SimpleFor loop = (SimpleFor) node;
+            if (!(loop.counter instanceof Variable) || !scan(loop.first, definite) || !scan(loop.last, definite)) {
+                return false;
+            }
+            Set<Variable> bodyDefinite = Sets.newIdentityHashSet();
+            bodyDefinite.addAll(definite);
+            bodyDefinite.add((Variable) loop.counter);
+            assigned.add((Variable) loop.counter);
+            return scan(loop.body, bodyDefinite);
+        } else if (node.getClass() == Function.class) {
+            return scanFunction((Function) node, definite);
+        }
+
+        return false;
+    }
+
+    /**
+     * Check a node that may not be evaluated, such as the body of a loop.
+     */
+    private boolean scanMaybe(@Nullable RValue node, Set<Variable> definite) {
+        Set<Variable> nodeDefinite = Sets.newIdentityHashSet();
+        nodeDefinite.addAll(definite);
+        return scan(node, nodeDefinite);
+    }
+
+    private boolean scanFunction(Function function, Set<Variable> definite) {
+        if (function.method.isAnnotationPresent(Function.Dynamic.class)) {
+            return false;
+        }
+
+        String name = function.method.getName();
+        if (function.method.getDeclaringClass() == Operators.class && (name.equals("or") || name.equals("and"))) {
+            // The right hand side may not be evaluated
+            return scan(function.args[0], definite) && scanMaybe(function.args[1], definite);
+        }
+
+        Class<?>[] parameters = function.method.getParameterTypes();
+        boolean plainAssignment = function.method.getDeclaringClass() == Operators.class && name.equals("ass");
+        for (int i = 0; i < function.args.length; ++i) {
+            if (parameters[i] == LValue.class) {
+                if (!(function.args[i] instanceof Variable)) {
+                    return false;
+                }
+                // Only a plain assignment doesn't read the variable first
+                if (!plainAssignment && !definite.contains(function.args[i])) {
+                    return false;
+                }
+            } else if (!scan(function.args[i], definite)) {
+                return false;
+            }
+        }
+
+        for (int i = 0; i < function.args.length; ++i) {
+            if (parameters[i] == LValue.class) {
+                definite.add((Variable) function.args[i]);
+                assigned.add((Variable) function.args[i]);
+            }
+        }
+        return true;
+    }
+
+}
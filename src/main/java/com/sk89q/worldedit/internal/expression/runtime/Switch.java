@@ -31,10 +31,10 @@ import com.sk89q.worldedit.internal.expression.parser.ParserException;
  */
 public class Switch extends Node implements RValue {
 
-    private RValue parameter;
+    RValue parameter;
     private final Map<Double, Integer> valueMap;
-    private final RValue[] caseStatements;
-    private RValue defaultCase;
+    final RValue[] caseStatements;
+    RValue defaultCase;
 
     public Switch(int position, RValue parameter, List<Double> values, List<RValue> caseStatements,
         RValue defaultCase) {
@@ -0,0 +1,113 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.internal.expression.runtime;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Prints expression trees with one node per line, indented by depth and
+ * with the names of the variables, for debugging.
+ */
+public final class TreePrinter {
+
+    private static final String INDENT = "  ";
+
+    private final Map<RValue, String> names = new IdentityHashMap<RValue, String>();
+    private final StringBuilder builder = new StringBuilder();
+
+    private TreePrinter(Map<String, RValue> variables) {
+        for (Entry<String, RValue> entry : variables.entrySet()) {
+            names.put(entry.getValue(), entry.getKey());
+        }
+    }
+
+    /**
+     * Print a tree.
+     *
+     * @param root      the root of the tree
+     * @param variables the variables of the expression by name
+     * @return the lines of the tree, separated by line breaks
+     */
+    public static String print(RValue root, Map<String, RValue> variables) {
+        final TreePrinter printer = new TreePrinter(variables);
+        printer.print(root, 0);
+        return printer.builder.toString();
+    }
+
+    private void print(RValue node, int depth) {
+        if (builder.length() > 0) {
+            builder.append('\n');
+        }
+        for (int i = 0; i < depth; ++i) {
+            builder.append(INDENT);
+        }
+
+        if (node == null) {
+            builder.append("(none)");
+        } else if (node instanceof Variable || node instanceof Constant) {
+            final String name = names.get(node);
+            builder.append(name != null ? name : node.toString());
+        } else if (node instanceof Function) {
+            final Function function = (Function) node;
+            builder.append(function.method.getName());
+            for (RValue arg : function.args) {
+                print(arg, depth + 1);
+            }
+        } else if (node instanceof Sequence) {
+            builder.append("seq");
+            for (RValue child : ((Sequence) node).sequence) {
+                print(child, depth + 1);
+            }
+        } else if (node instanceof Conditional) {
+            final Conditional conditional = (Conditional) node;
+            builder.append("if");
+            print(conditional.condition, depth + 1);
+            print(conditional.truePart, depth + 1);
+            if (conditional.falsePart != null) {
+                print(conditional.falsePart, depth + 1);
+            }
+        } else if (node instanceof While) {
+            final While loop = (While) node;
+            builder.append(loop.footChecked ? "do-while" : "while");
+            print(loop.condition, depth + 1);
+            print(loop.body, depth + 1);
+        } else if (node instanceof For) {
+            final For loop = (For) node;
+            builder.append("for");
+            print(loop.init, depth + 1);
+            print(loop.condition, depth + 1);
+            print(loop.increment, depth + 1);
+            print(loop.body, depth + 1);
+        } else if (node instanceof SimpleFor) {
+            final SimpleFor loop = (SimpleFor) node;
+            builder.append("for");
+            print(loop.counter, depth + 1);
+            print(loop.first, depth + 1);
+            print(loop.last, depth + 1);
+            print(loop.body, depth + 1);
+        } else if (node instanceof Return) {
+            builder.append("return");
+            print(((Return) node).value, depth + 1);
+        } else {
+            // Switch, break and continue
+            builder.append(node.toString());
+        }
+    }
+
+}
@@ -28,14 +28,14 @@ import com.sk89q.worldedit.Vector;
 import com.sk89q.worldedit.Vector2D;
 import com.sk89q.worldedit.extent.Extent;
 import com.sk89q.worldedit.math.geom.Polygons;
-import com.sk89q.worldedit.regions.iterator.FlatRegion3DIterator;
 import com.sk89q.worldedit.regions.iterator.FlatRegionIterator;
+import com.sk89q.worldedit.regions.iterator.SpanRegionIterator;
 import com.sk89q.worldedit.world.World;
 
 /**
  * Represents a cylindrical region.
  */
-public class CylinderRegion extends AbstractRegion implements FlatRegion {
+public class CylinderRegion extends AbstractRegion implements FlatRegion, SpanRegion {
 
     private Vector2D center;
     private Vector2D radius;
@@ -320,6 +320,54 @@ public class CylinderRegion extends AbstractRegion implements FlatRegion {
             .lengthSq() <= 1;
     }
 
+    @Override
+    public boolean getSpan(int y, int z, int[] span) {
+        if (y < minY || y > maxY) {
+            return false;
+        }
+
+        final int minX = getMinimumPoint().getBlockX();
+        final int maxX = getMaximumPoint().getBlockX();
+        final double dz = (z - center.getZ()) / radius.getZ();
+
+        // The column closest to the center is in the row if any column is
+        int x = Math.max(minX, Math.min(maxX, (int) Math.floor(center.getX() + 0.5)));
+        if (!contains(x, dz)) {
+            return false;
+        }
+
+        // Start from the exact bounds and correct them for rounding errors
+        final double remaining = 1 - dz * dz;
+        final double half = remaining > 0 ? radius.getX() * Math.sqrt(remaining) : 0;
+        int lowX = Math.max(minX, Math.min(x, (int) Math.ceil(center.getX() - half)));
+        int highX = Math.min(maxX, Math.max(x, (int) Math.floor(center.getX() + half)));
+        while (lowX < x && !contains(lowX, dz)) {
+            ++lowX;
+        }
+        while (lowX > minX && contains(lowX - 1, dz)) {
+            --lowX;
+        }
+        while (highX > x && !contains(highX, dz)) {
+            --highX;
+        }
+        while (highX < maxX && contains(highX + 1, dz)) {
+            ++highX;
+        }
+
+        span[0] = lowX;
+        span[1] = highX;
+        return true;
+    }
+
+    /**
+     * Check a column the same way as {@link #contains(Vector)}, with the Z
+     * offset already divided by the radius.
+     */
+    private boolean contains(int x, double dz) {
+        final double dx = (x - center.getX()) / radius.getX();
+        return dx * dx + dz * dz <= 1;
+    }
+
     /**
      * Sets the height of the cylinder to fit the specified Y.
      *
@@ -345,7 +393,7 @@ public class CylinderRegion extends AbstractRegion implements FlatRegion {
 
     @Override
     public Iterator<BlockVector> iterator() {
-        return new FlatRegion3DIterator(this);
+        return new SpanRegionIterator(this);
     }
 
     @Override
@@ -17,6 +17,7 @@
 package com.sk89q.worldedit.regions;
 
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
 
 import com.sk89q.worldedit.BlockVector;
@@ -24,13 +25,14 @@ import com.sk89q.worldedit.BlockVector2D;
 import com.sk89q.worldedit.LocalWorld;
 import com.sk89q.worldedit.Vector;
 import com.sk89q.worldedit.Vector2D;
+import com.sk89q.worldedit.regions.iterator.SpanRegionIterator;
 import com.sk89q.worldedit.world.World;
 import com.sk89q.worldedit.world.storage.ChunkStore;
 
 /**
  * Represents an ellipsoid region.
  */
-public class EllipsoidRegion extends AbstractRegion {
+public class EllipsoidRegion extends AbstractRegion implements SpanRegion {
 
     /**
      * Stores the center.
@@ -187,14 +189,16 @@ public class EllipsoidRegion extends AbstractRegion {
         final Vector min = getMinimumPoint();
         final Vector max = getMaximumPoint();
         final int centerY = getCenter().getBlockY();
+        final int[] span = new int[2];
 
-        for (int x = min.getBlockX(); x <= max.getBlockX(); ++x) {
-            for (int z = min.getBlockZ(); z <= max.getBlockZ(); ++z) {
-                if (!contains(new BlockVector(x, centerY, z))) {
-                    continue;
-                }
+        for (int z = min.getBlockZ(); z <= max.getBlockZ(); ++z) {
+            if (!getSpan(centerY, z, span)) {
+                continue;
+            }
 
-                chunks.add(new BlockVector2D(x >> ChunkStore.CHUNK_SHIFTS, z >> ChunkStore.CHUNK_SHIFTS));
+            final int chunkZ = z >> ChunkStore.CHUNK_SHIFTS;
+            for (int chunkX = span[0] >> ChunkStore.CHUNK_SHIFTS; chunkX <= span[1] >> ChunkStore.CHUNK_SHIFTS; ++chunkX) {
+                chunks.add(new BlockVector2D(chunkX, chunkZ));
             }
         }
 
@@ -208,6 +212,56 @@ public class EllipsoidRegion extends AbstractRegion {
             .lengthSq() <= 1;
     }
 
+    @Override
+    public boolean getSpan(int y, int z, int[] span) {
+        final int minX = getMinimumPoint().getBlockX();
+        final int maxX = getMaximumPoint().getBlockX();
+        final double dy = (y - center.getY()) / radius.getY();
+        final double dz = (z - center.getZ()) / radius.getZ();
+
+        // The column closest to the center is in the row if any column is
+        int x = Math.max(minX, Math.min(maxX, (int) Math.floor(center.getX() + 0.5)));
+        if (!contains(x, dy, dz)) {
+            return false;
+        }
+
+        // Start from the exact bounds and correct them for rounding errors
+        final double remaining = 1 - dy * dy - dz * dz;
+        final double half = remaining > 0 ? radius.getX() * Math.sqrt(remaining) : 0;
+        int lowX = Math.max(minX, Math.min(x, (int) Math.ceil(center.getX() - half)));
+        int highX = Math.min(maxX, Math.max(x, (int) Math.floor(center.getX() + half)));
+        while (lowX < x && !contains(lowX, dy, dz)) {
+            ++lowX;
+        }
+        while (lowX > minX && contains(lowX - 1, dy, dz)) {
+            --lowX;
+        }
+        while (highX > x && !contains(highX, dy, dz)) {
+            --highX;
+        }
+        while (highX < maxX && contains(highX + 1, dy, dz)) {
+            ++highX;
+        }
+
+        span[0] = lowX;
+        span[1] = highX;
+        return true;
+    }
+
+    /**
+     * Check a position the same way as {@link #contains(Vector)}, with the
+     * Y and Z offsets already divided by the radius.
+     */
+    private boolean contains(int x, double dy, double dz) {
+        final double dx = (x - center.getX()) / radius.getX();
+        return dx * dx + dy * dy + dz * dz <= 1;
+    }
+
+    @Override
+    public Iterator<BlockVector> iterator() {
+        return new SpanRegionIterator(this);
+    }
+
     /**
      * Returns string representation in the format
      * "(centerX, centerY, centerZ) - (radiusX, radiusY, radiusZ)".
@@ -0,0 +1,38 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.regions;
+
+/**
+ * A region whose blocks in every row along the X axis form a single run,
+ * which allows it to be walked without testing each position.
+ */
+public interface SpanRegion extends Region {
+
+    /**
+     * Get the run of blocks of this region in a row along the X axis.
+     *
+     * <p>
+     * The run never extends past the bounding box of the region.
+     * </p>
+     *
+     * @param y    the Y coordinate of the row
+     * @param z    the Z coordinate of the row
+     * @param span an array that receives the lowest and highest X coordinate of the run
+     * @return false if the row contains no blocks
+     */
+    public boolean getSpan(int y, int z, int[] span);
+}
@@ -0,0 +1,99 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.regions.iterator;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.regions.SpanRegion;
+
+/**
+ * Iterates over a {@link SpanRegion} row by row, in the same order as
+ * {@link RegionIterator} but without testing each position.
+ */
+public class SpanRegionIterator implements Iterator<BlockVector> {
+
+    private final SpanRegion region;
+    private final int minY;
+    private final int maxY;
+    private final int maxZ;
+    private final int[] span = new int[2];
+    private int nextX;
+    private int nextY;
+    private int nextZ;
+
+    public SpanRegionIterator(SpanRegion region) {
+        checkNotNull(region);
+
+        this.region = region;
+
+        Vector min = region.getMinimumPoint();
+        Vector max = region.getMaximumPoint();
+        this.minY = min.getBlockY();
+        this.maxY = max.getBlockY();
+        this.maxZ = max.getBlockZ();
+
+        this.nextY = minY - 1;
+        this.nextZ = min.getBlockZ();
+
+        forwardRow();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextX != Integer.MIN_VALUE;
+    }
+
+    @Override
+    public BlockVector next() {
+        if (!hasNext()) throw new java.util.NoSuchElementException();
+
+        BlockVector answer = new BlockVector(nextX, nextY, nextZ);
+
+        if (nextX++ == span[1]) {
+            forwardRow();
+        }
+
+        return answer;
+    }
+
+    private void forwardRow() {
+        while (nextZ <= maxZ) {
+            if (++nextY > maxY) {
+                nextY = minY;
+                if (++nextZ > maxZ) {
+                    break;
+                }
+            }
+
+            if (region.getSpan(nextY, nextZ, span)) {
+                nextX = span[0];
+                return;
+            }
+        }
+        nextX = Integer.MIN_VALUE;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -16,6 +16,13 @@
 
 package com.sk89q.worldedit.regions.shape;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
 import com.sk89q.worldedit.BlockVector;
 import com.sk89q.worldedit.EditSession;
 import com.sk89q.worldedit.MaxChangedBlocksException;
@@ -30,14 +37,26 @@ import com.sk89q.worldedit.regions.Region;
  */
 public abstract class ArbitraryShape {
 
+    /**
+     * The number of blocks whose materials are requested at once when
+     * generating a solid shape.
+     */
+    private static final int BATCH_SIZE = 4096;
+
+    /**
+     * The cache of the hollow mode is split into tiles of 16x16x16 blocks,
+     * which line up with chunk sections.
+     */
+    private static final int TILE_BITS = 4;
+    private static final int TILE_SIZE = 1 << TILE_BITS;
+    private static final int TILE_MASK = TILE_SIZE - 1;
+
     protected final Region extent;
-    private int cacheOffsetX;
-    private int cacheOffsetY;
-    private int cacheOffsetZ;
-    @SuppressWarnings("FieldCanBeLocal")
-    private int cacheSizeX;
-    private int cacheSizeY;
-    private int cacheSizeZ;
+    private final int cacheTileX;
+    private final int cacheTileY;
+    private final int cacheTileZ;
+    private final int cacheTilesY;
+    private final int cacheTilesZ;
 
     public ArbitraryShape(Region extent) {
         this.extent = extent;
@@ -45,15 +64,16 @@ public abstract class ArbitraryShape {
         Vector min = extent.getMinimumPoint();
         Vector max = extent.getMaximumPoint();
 
-        cacheOffsetX = min.getBlockX() - 1;
-        cacheOffsetY = min.getBlockY() - 1;
-        cacheOffsetZ = min.getBlockZ() - 1;
+        // The cache also covers the blocks next to the extent
+        cacheTileX = (min.getBlockX() - 1) >> TILE_BITS;
+        cacheTileY = (min.getBlockY() - 1) >> TILE_BITS;
+        cacheTileZ = (min.getBlockZ() - 1) >> TILE_BITS;
 
-        cacheSizeX = (int) (max.getX() - cacheOffsetX + 2);
-        cacheSizeY = (int) (max.getY() - cacheOffsetY + 2);
-        cacheSizeZ = (int) (max.getZ() - cacheOffsetZ + 2);
+        final int cacheTilesX = ((max.getBlockX() + 1) >> TILE_BITS) - cacheTileX + 1;
+        cacheTilesY = ((max.getBlockY() + 1) >> TILE_BITS) - cacheTileY + 1;
+        cacheTilesZ = ((max.getBlockZ() + 1) >> TILE_BITS) - cacheTileZ + 1;
 
-        cache = new short[cacheSizeX * cacheSizeY * cacheSizeZ];
+        cache = new int[cacheTilesX][][];
     }
 
     protected Region getExtent() {
@@ -61,13 +81,21 @@ public abstract class ArbitraryShape {
     }
 
     /**
+     * Tiles of cache entries, by tile X coordinate and then by tile Y and Z
+     * coordinates. Tiles are allocated when they are first used.
      * Cache entries:
      * 0 = unknown
      * -1 = outside
-     * -2 = inside but type and data 0
-     * > 0 = inside, value = (type | (data << 8)), not handling data < 0
+     * > 0 = inside, value = 1 + index of the material in {@link #materials}
+     */
+    private final int[][][] cache;
+
+    /**
+     * The distinct materials of the cached blocks. Materials with NBT data
+     * are stored once per block, as {@link BaseBlock#equals} ignores NBT data.
      */
-    private final short[] cache;
+    private final List<BaseBlock> materials = new ArrayList<BaseBlock>();
+    private final Map<BaseBlock, Integer> materialIndices = new HashMap<BaseBlock, Integer>();
 
     /**
      * Override this function to specify the shape to generate.
@@ -80,47 +108,79 @@ public abstract class ArbitraryShape {
      */
     protected abstract BaseBlock getMaterial(int x, int y, int z, BaseBlock defaultMaterial);
 
-    private BaseBlock getMaterialCached(int x, int y, int z, Pattern pattern) {
-        final int index = (y - cacheOffsetY) + (z - cacheOffsetZ) * cacheSizeY
-            + (x - cacheOffsetX) * cacheSizeY * cacheSizeZ;
+    /**
+     * Override this function to compute the materials of several blocks at
+     * once. By default, {@link #getMaterial} is called for each block.
+     *
+     * @param x                X coordinates to be queried
+     * @param y                Y coordinates to be queried
+     * @param z                Z coordinates to be queried
+     * @param defaultMaterials The materials returned by the pattern for the blocks.
+     * @param length           The number of blocks.
+     * @param materials        Receives the materials to place, or null to not place anything.
+     */
+    protected void getMaterials(int[] x, int[] y, int[] z, BaseBlock[] defaultMaterials, int length,
+        BaseBlock[] materials) {
+        for (int i = 0; i < length; ++i) {
+            materials[i] = getMaterial(x[i], y[i], z[i], defaultMaterials[i]);
+        }
+    }
 
-        final short cacheEntry = cache[index];
-        switch (cacheEntry) {
-            case 0:
-                // unknown, fetch material
-                final BaseBlock material = getMaterial(x, y, z, pattern.next(new BlockVector(x, y, z)));
-                if (material == null) {
-                    // outside
-                    cache[index] = -1;
-                    return null;
-                }
+    private int[] getTile(int x, int y, int z) {
+        int[][] slab = cache[(x >> TILE_BITS) - cacheTileX];
+        if (slab == null) {
+            slab = cache[(x >> TILE_BITS) - cacheTileX] = new int[cacheTilesY * cacheTilesZ][];
+        }
 
-                short newCacheEntry = (short) (material.getType() | ((material.getData() + 1) << 8));
-                if (newCacheEntry == 0) {
-                    // type and data 0
-                    newCacheEntry = -2;
-                }
+        final int index = ((y >> TILE_BITS) - cacheTileY) + ((z >> TILE_BITS) - cacheTileZ) * cacheTilesY;
+        int[] tile = slab[index];
+        if (tile == null) {
+            tile = slab[index] = new int[TILE_SIZE * TILE_SIZE * TILE_SIZE];
+        }
+        return tile;
+    }
+
+    private static int getTileIndex(int x, int y, int z) {
+        return (y & TILE_MASK) | ((z & TILE_MASK) << TILE_BITS) | ((x & TILE_MASK) << (TILE_BITS * 2));
+    }
 
-                cache[index] = newCacheEntry;
-                return material;
+    private BaseBlock getMaterialCached(int x, int y, int z, Pattern pattern) {
+        final int[] tile = getTile(x, y, z);
+        final int index = getTileIndex(x, y, z);
 
-            case -1:
+        final int cacheEntry = tile[index];
+        if (cacheEntry == 0) {
+            // unknown, fetch material
+            final BaseBlock material = getMaterial(x, y, z, pattern.next(new BlockVector(x, y, z)));
+            if (material == null) {
                 // outside
+                tile[index] = -1;
                 return null;
+            }
 
-            case -2:
-                // type and data 0
-                return new BaseBlock(0, 0);
+            Integer materialIndex = material.hasNbtData() ? null : materialIndices.get(material);
+            if (materialIndex == null) {
+                final BaseBlock copy = new BaseBlock(material);
+                materialIndex = materials.size();
+                materials.add(copy);
+                if (!copy.hasNbtData()) {
+                    materialIndices.put(copy, materialIndex);
+                }
+            }
+
+            tile[index] = materialIndex + 1;
+            return material;
+        } else if (cacheEntry == -1) {
+            // outside
+            return null;
         }
 
-        return new BaseBlock(cacheEntry & 255, ((cacheEntry >> 8) - 1) & 15);
+        // Blocks are mutable, so every position gets its own
+        return new BaseBlock(materials.get(cacheEntry - 1));
     }
 
     private boolean isInsideCached(int x, int y, int z, Pattern pattern) {
-        final int index = (y - cacheOffsetY) + (z - cacheOffsetZ) * cacheSizeY
-            + (x - cacheOffsetX) * cacheSizeY * cacheSizeZ;
-
-        switch (cache[index]) {
+        switch (getTile(x, y, z)[getTileIndex(x, y, z)]) {
             case 0:
                 // unknown block, meaning they must be outside the extent at this stage, but might still be inside the
                 // shape
@@ -146,65 +206,282 @@ public abstract class ArbitraryShape {
      * @throws MaxChangedBlocksException
      */
     public int generate(EditSession editSession, Pattern pattern, boolean hollow) throws MaxChangedBlocksException {
+        if (!hollow) {
+            return generateSolid(editSession, pattern);
+        }
+
         int affected = 0;
 
-        for (BlockVector position : getExtent()) {
-            int x = position.getBlockX();
-            int y = position.getBlockY();
-            int z = position.getBlockZ();
+        // Go through the blocks in slabs of tiles along the X axis, so that
+        // the tiles that no block needs any more can be freed
+        final Vector min = extent.getMinimumPoint();
+        final Vector max = extent.getMaximumPoint();
+        for (int x = min.getBlockX(); x <= max.getBlockX(); ++x) {
+            final int slab = (x >> TILE_BITS) - cacheTileX;
+            if (slab >= 2 && (x & TILE_MASK) == 0) {
+                cache[slab - 2] = null;
+            }
 
-            if (!hollow) {
-                final BaseBlock material = getMaterial(x, y, z, pattern.next(position));
-                if (material != null && editSession.setBlock(position, material)) {
-                    ++affected;
+            for (int z = min.getBlockZ(); z <= max.getBlockZ(); ++z) {
+                for (int y = min.getBlockY(); y <= max.getBlockY(); ++y) {
+                    final BlockVector position = new BlockVector(x, y, z);
+                    if (!extent.contains(position)) {
+                        continue;
+                    }
+
+                    if (placeHollow(editSession, pattern, position)) {
+                        ++affected;
+                    }
                 }
+            }
+        }
+
+        return affected;
+    }
+
+    /**
+     * Places a block of a hollow shape if one of its neighbours is outside
+     * the shape.
+     */
+    private boolean placeHollow(EditSession editSession, Pattern pattern, BlockVector position)
+        throws MaxChangedBlocksException {
+        final int x = position.getBlockX();
+        final int y = position.getBlockY();
+        final int z = position.getBlockZ();
+
+        final BaseBlock material = getMaterialCached(x, y, z, pattern);
+        if (material == null) {
+            return false;
+        }
+
+        if (isInsideCached(x + 1, y, z, pattern) && isInsideCached(x - 1, y, z, pattern)
+            && isInsideCached(x, y, z + 1, pattern)
+            && isInsideCached(x, y, z - 1, pattern)
+            && isInsideCached(x, y + 1, z, pattern)
+            && isInsideCached(x, y - 1, z, pattern)) {
+            return false;
+        }
+
+        return editSession.setBlock(position, material);
+    }
+
+    /**
+     * Override this function to let solid shapes skip or fill whole boxes of
+     * blocks without requesting the material of each block. The box is
+     * split into smaller boxes as long as its coverage is unknown.
+     *
+     * @param minX minimum X coordinate of the box
+     * @param minY minimum Y coordinate of the box
+     * @param minZ minimum Z coordinate of the box
+     * @param maxX maximum X coordinate of the box
+     * @param maxY maximum Y coordinate of the box
+     * @param maxZ maximum Z coordinate of the box
+     * @return how much of the box the shape covers, or null if the shape
+     *         cannot tell for any box
+     */
+    @Nullable
+    protected Coverage getCoverage(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        return null;
+    }
 
-                continue;
+    /**
+     * Generates a solid shape, requesting the materials of the blocks in
+     * batches.
+     *
+     * @param editSession The EditSession to use.
+     * @param pattern     The pattern to generate default materials from.
+     * @return number of affected blocks.
+     * @throws MaxChangedBlocksException
+     */
+    private int generateSolid(EditSession editSession, Pattern pattern) throws MaxChangedBlocksException {
+        final SolidGenerator generator = new SolidGenerator(editSession, pattern);
+
+        final Vector min = extent.getMinimumPoint();
+        final Vector max = extent.getMaximumPoint();
+        final Coverage coverage = getCoverage(
+            min.getBlockX(),
+            min.getBlockY(),
+            min.getBlockZ(),
+            max.getBlockX(),
+            max.getBlockY(),
+            max.getBlockZ());
+
+        if (coverage == null) {
+            for (BlockVector position : getExtent()) {
+                generator.add(position);
             }
+        } else {
+            generator.generate(
+                min.getBlockX(),
+                min.getBlockY(),
+                min.getBlockZ(),
+                max.getBlockX(),
+                max.getBlockY(),
+                max.getBlockZ(),
+                coverage);
+        }
 
-            final BaseBlock material = getMaterialCached(x, y, z, pattern);
-            if (material == null) {
-                continue;
+        generator.flush();
+        return generator.affected;
+    }
+
+    /**
+     * Describes how much of a box of blocks a shape covers.
+     */
+    protected static final class Coverage {
+
+        /**
+         * No block of the box is part of the shape.
+         */
+        public static final Coverage NONE = new Coverage(false, null);
+
+        /**
+         * The blocks of the box have to be checked one by one.
+         */
+        public static final Coverage UNKNOWN = new Coverage(false, null);
+
+        private static final Coverage ALL = new Coverage(true, null);
+
+        private final boolean all;
+        @Nullable
+        private final BaseBlock material;
+
+        private Coverage(boolean all, @Nullable BaseBlock material) {
+            this.all = all;
+            this.material = material;
+        }
+
+        /**
+         * Every block of the box is part of the shape.
+         *
+         * @param material the material of every block, or null to use the
+         *                 material returned by the pattern for each block
+         * @return a coverage
+         */
+        public static Coverage all(@Nullable BaseBlock material) {
+            return material == null ? ALL : new Coverage(true, material);
+        }
+    }
+
+    /**
+     * Places the blocks of a solid shape, requesting their materials in
+     * batches.
+     */
+    private final class SolidGenerator {
+
+        /**
+         * Boxes of at most this size are not split any further.
+         */
+        private static final int MIN_BOX_SIZE = 4;
+
+        private final EditSession editSession;
+        private final Pattern pattern;
+        private final BlockVector[] positions = new BlockVector[BATCH_SIZE];
+        private final int[] x = new int[BATCH_SIZE];
+        private final int[] y = new int[BATCH_SIZE];
+        private final int[] z = new int[BATCH_SIZE];
+        private final BaseBlock[] defaultMaterials = new BaseBlock[BATCH_SIZE];
+        private final BaseBlock[] materials = new BaseBlock[BATCH_SIZE];
+        private int length = 0;
+        private int affected = 0;
+
+        private SolidGenerator(EditSession editSession, Pattern pattern) {
+            this.editSession = editSession;
+            this.pattern = pattern;
+        }
+
+        private void generate(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, Coverage coverage)
+            throws MaxChangedBlocksException {
+            if (coverage == Coverage.NONE) {
+                return;
             }
 
-            boolean draw = false;
-            do {
-                if (!isInsideCached(x + 1, y, z, pattern)) {
-                    draw = true;
-                    break;
-                }
-                if (!isInsideCached(x - 1, y, z, pattern)) {
-                    draw = true;
-                    break;
-                }
-                if (!isInsideCached(x, y, z + 1, pattern)) {
-                    draw = true;
-                    break;
-                }
-                if (!isInsideCached(x, y, z - 1, pattern)) {
-                    draw = true;
-                    break;
-                }
-                if (!isInsideCached(x, y + 1, z, pattern)) {
-                    draw = true;
-                    break;
+            if (coverage.all) {
+                fill(minX, minY, minZ, maxX, maxY, maxZ, coverage.material);
+                return;
+            }
+
+            if (maxX - minX < MIN_BOX_SIZE && maxY - minY < MIN_BOX_SIZE && maxZ - minZ < MIN_BOX_SIZE) {
+                for (int x = minX; x <= maxX; ++x) {
+                    for (int y = minY; y <= maxY; ++y) {
+                        for (int z = minZ; z <= maxZ; ++z) {
+                            final BlockVector position = new BlockVector(x, y, z);
+                            if (extent.contains(position)) {
+                                add(position);
+                            }
+                        }
+                    }
                 }
-                if (!isInsideCached(x, y - 1, z, pattern)) {
-                    draw = true;
-                    break;
+                return;
+            }
+
+            // Split the box in halves along each axis that is long enough
+            final int midX = maxX - minX < MIN_BOX_SIZE ? maxX : (minX + maxX) >> 1;
+            final int midY = maxY - minY < MIN_BOX_SIZE ? maxY : (minY + maxY) >> 1;
+            final int midZ = maxZ - minZ < MIN_BOX_SIZE ? maxZ : (minZ + maxZ) >> 1;
+
+            for (int i = 0; i < 8; ++i) {
+                final int fromX = (i & 1) == 0 ? minX : midX + 1;
+                final int toX = (i & 1) == 0 ? midX : maxX;
+                final int fromY = (i & 2) == 0 ? minY : midY + 1;
+                final int toY = (i & 2) == 0 ? midY : maxY;
+                final int fromZ = (i & 4) == 0 ? minZ : midZ + 1;
+                final int toZ = (i & 4) == 0 ? midZ : maxZ;
+                if (fromX > toX || fromY > toY || fromZ > toZ) {
+                    continue;
                 }
-            } while (false);
 
-            if (!draw) {
-                continue;
+                Coverage childCoverage = getCoverage(fromX, fromY, fromZ, toX, toY, toZ);
+                generate(fromX, fromY, fromZ, toX, toY, toZ, childCoverage == null ? Coverage.UNKNOWN : childCoverage);
+            }
+        }
+
+        private void fill(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, @Nullable BaseBlock material)
+            throws MaxChangedBlocksException {
+            for (int x = minX; x <= maxX; ++x) {
+                for (int y = minY; y <= maxY; ++y) {
+                    for (int z = minZ; z <= maxZ; ++z) {
+                        final BlockVector position = new BlockVector(x, y, z);
+                        if (!extent.contains(position)) {
+                            continue;
+                        }
+
+                        final BaseBlock block = material != null ? new BaseBlock(material) : pattern.next(position);
+                        if (editSession.setBlock(position, block)) {
+                            ++affected;
+                        }
+                    }
+                }
             }
+        }
+
+        private void add(BlockVector position) throws MaxChangedBlocksException {
+            positions[length] = position;
+            x[length] = position.getBlockX();
+            y[length] = position.getBlockY();
+            z[length] = position.getBlockZ();
+            defaultMaterials[length] = pattern.next(position);
 
-            if (editSession.setBlock(position, material)) {
-                ++affected;
+            if (++length == BATCH_SIZE) {
+                flush();
             }
         }
 
-        return affected;
+        private void flush() throws MaxChangedBlocksException {
+            if (length == 0) {
+                return;
+            }
+
+            getMaterials(x, y, z, defaultMaterials, length, materials);
+
+            for (int i = 0; i < length; ++i) {
+                if (materials[i] != null && editSession.setBlock(positions[i], materials[i])) {
+                    ++affected;
+                }
+            }
+
+            length = 0;
+        }
     }
 
 }
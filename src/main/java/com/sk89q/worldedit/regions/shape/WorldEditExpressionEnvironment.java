@@ -19,13 +19,17 @@ package com.sk89q.worldedit.regions.shape;
 import com.sk89q.worldedit.BlockVector;
 import com.sk89q.worldedit.EditSession;
 import com.sk89q.worldedit.Vector;
-import com.sk89q.worldedit.internal.expression.runtime.ExpressionEnvironment;
+import com.sk89q.worldedit.internal.expression.runtime.BatchExpressionEnvironment;
 
-public class WorldEditExpressionEnvironment implements ExpressionEnvironment {
+public class WorldEditExpressionEnvironment implements BatchExpressionEnvironment {
 
     private final Vector unit;
     private final Vector zero2;
     private Vector current = new Vector();
+    private int[] currentX;
+    private int[] currentY;
+    private int[] currentZ;
+    private int batchIndex;
     private EditSession editSession;
 
     public WorldEditExpressionEnvironment(EditSession editSession, Vector unit, Vector zero) {
@@ -42,6 +46,9 @@ public class WorldEditExpressionEnvironment implements ExpressionEnvironment {
     }
 
     public Vector toWorldRel(double x, double y, double z) {
+        if (currentX != null) {
+            return new Vector(currentX[batchIndex] + x, currentY[batchIndex] + y, currentZ[batchIndex] + z);
+        }
         return current.add(x, y, z);
     }
 
@@ -77,6 +84,29 @@ public class WorldEditExpressionEnvironment implements ExpressionEnvironment {
 
     public void setCurrentBlock(Vector current) {
         this.current = current;
+        this.currentX = null;
+        this.currentY = null;
+        this.currentZ = null;
+    }
+
+    /**
+     * Set the current blocks of a batch evaluation, which are selected by
+     * {@link #setBatchIndex(int)}.
+     *
+     * @param x the X coordinates
+     * @param y the Y coordinates
+     * @param z the Z coordinates
+     */
+    public void setCurrentBlocks(int[] x, int[] y, int[] z) {
+        this.currentX = x;
+        this.currentY = y;
+        this.currentZ = z;
+        this.batchIndex = 0;
+    }
+
+    @Override
+    public void setBatchIndex(int index) {
+        this.batchIndex = index;
     }
 
 }
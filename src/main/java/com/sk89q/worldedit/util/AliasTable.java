@@ -0,0 +1,124 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Random;
+
+/**
+ * Picks indices at random in proportion to a list of weights, in constant
+ * time whatever the number of weights, using Vose's alias method.
+ *
+ * <p>
+ * Instances are immutable and may be shared between threads, as long as
+ * every thread passes its own {@link Random}.
+ * </p>
+ */
+public final class AliasTable {
+
+    private final double[] probability;
+    private final int[] alias;
+
+    /**
+     * Create a new table.
+     *
+     * @param weights the weights, which must not be negative and must not all be zero
+     */
+    public AliasTable(double[] weights) {
+        checkNotNull(weights);
+        checkArgument(weights.length > 0, "at least one weight is required");
+
+        final int n = weights.length;
+        double sum = 0;
+        for (double weight : weights) {
+            checkArgument(weight >= 0 && weight < Double.POSITIVE_INFINITY, "weights must be finite and not negative");
+            sum += weight;
+        }
+        checkArgument(sum > 0, "at least one weight must be positive");
+
+        probability = new double[n];
+        alias = new int[n];
+
+        // Scale the weights so that they average 1, then pair each weight
+        // below 1 with a weight above 1 that fills the rest of its column
+        final double[] scaled = new double[n];
+        final int[] small = new int[n];
+        final int[] large = new int[n];
+        int smallCount = 0;
+        int largeCount = 0;
+
+        for (int i = 0; i < n; i++) {
+            scaled[i] = weights[i] * n / sum;
+            if (scaled[i] < 1) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+
+            probability[less] = scaled[less];
+            alias[less] = more;
+
+            scaled[more] = (scaled[more] + scaled[less]) - 1;
+            if (scaled[more] < 1) {
+                small[smallCount++] = more;
+            } else {
+                large[largeCount++] = more;
+            }
+        }
+
+        // Whatever is left over is 1 give or take rounding errors
+        while (largeCount > 0) {
+            int more = large[--largeCount];
+            probability[more] = 1;
+            alias[more] = more;
+        }
+
+        while (smallCount > 0) {
+            int less = small[--smallCount];
+            probability[less] = 1;
+            alias[less] = less;
+        }
+    }
+
+    /**
+     * Get the number of weights of this table.
+     *
+     * @return the number of weights
+     */
+    public int size() {
+        return probability.length;
+    }
+
+    /**
+     * Pick an index at random.
+     *
+     * @param random the source of randomness
+     * @return an index from 0 to {@link #size()} - 1
+     */
+    public int next(Random random) {
+        int index = random.nextInt(probability.length);
+        return random.nextDouble() < probability[index] ? index : alias[index];
+    }
+
+}
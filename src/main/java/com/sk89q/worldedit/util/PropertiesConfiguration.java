@@ -34,6 +34,8 @@ import java.util.logging.Logger;
 import com.sk89q.util.StringUtil;
 import com.sk89q.worldedit.LocalConfiguration;
 import com.sk89q.worldedit.LocalSession;
+import com.sk89q.worldedit.internal.expression.runtime.MegaBuffer;
+import com.sk89q.worldedit.world.snapshot.SnapshotChunkCache;
 import com.sk89q.worldedit.world.snapshot.SnapshotRepository;
 
 /**
@@ -102,6 +104,8 @@ public class PropertiesConfiguration extends LocalConfiguration {
         navigationWandMaxDistance = getInt("nav-wand-distance", navigationWandMaxDistance);
         navigationUseGlass = getBool("nav-use-glass", navigationUseGlass);
         scriptTimeout = getInt("scripting-timeout", scriptTimeout);
+        expressionBufferLimit = getInt("expression-buffer-limit", expressionBufferLimit);
+        MegaBuffer.setLimit(expressionBufferLimit < 0 ? -1 : (long) expressionBufferLimit << 20);
         saveDir = getString("schematic-save-dir", saveDir);
         scriptsDir = getString("craftscript-dir", scriptsDir);
         butcherDefaultRadius = getInt("butcher-default-radius", butcherDefaultRadius);
@@ -115,6 +119,10 @@ public class PropertiesConfiguration extends LocalConfiguration {
             snapshotRepo = new SnapshotRepository(snapshotsDir);
         }
 
+        snapshotCacheSize = Math.max(0, getInt("snapshot-cache-size", snapshotCacheSize));
+        SnapshotChunkCache.getInstance()
+            .setCapacity(snapshotCacheSize);
+
         OutputStream output = null;
         path.getParentFile()
             .mkdirs();
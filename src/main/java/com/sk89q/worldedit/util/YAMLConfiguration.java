@@ -24,7 +24,9 @@ import java.util.logging.Logger;
 import com.sk89q.util.yaml.YAMLProcessor;
 import com.sk89q.worldedit.LocalConfiguration;
 import com.sk89q.worldedit.LocalSession;
+import com.sk89q.worldedit.internal.expression.runtime.MegaBuffer;
 import com.sk89q.worldedit.session.SessionManager;
+import com.sk89q.worldedit.world.snapshot.SnapshotChunkCache;
 import com.sk89q.worldedit.world.snapshot.SnapshotRepository;
 
 /**
@@ -94,6 +96,9 @@ public class YAMLConfiguration extends LocalConfiguration {
         scriptTimeout = config.getInt("scripting.timeout", scriptTimeout);
         scriptsDir = config.getString("scripting.dir", scriptsDir);
 
+        expressionBufferLimit = config.getInt("expressions.buffer-limit", expressionBufferLimit);
+        MegaBuffer.setLimit(expressionBufferLimit < 0 ? -1 : (long) expressionBufferLimit << 20);
+
         saveDir = config.getString("saving.dir", saveDir);
 
         allowSymlinks = config.getBoolean("files.allow-symbolic-links", false);
@@ -107,6 +112,10 @@ public class YAMLConfiguration extends LocalConfiguration {
             snapshotRepo = new SnapshotRepository(snapshotsDir);
         }
 
+        snapshotCacheSize = Math.max(0, config.getInt("snapshots.cache-size", snapshotCacheSize));
+        SnapshotChunkCache.getInstance()
+            .setCapacity(snapshotCacheSize);
+
         String type = config.getString("shell-save-type", "")
             .trim();
         shellSaveType = type.equals("") ? null : type;
@@ -0,0 +1,395 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.util.collection;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.sk89q.worldedit.BlockVector;
+
+/**
+ * A set of block positions, stored as bits in tiles of 16x16x16 blocks that
+ * line up with chunk sections. Tiles are only allocated where positions
+ * were added.
+ *
+ * <p>
+ * Within a tile, the 16 blocks of each column along the Y axis are stored
+ * in adjacent bits, so that spans of blocks can be added and neighbours can
+ * be compared a column at a time.
+ * </p>
+ */
+public class BlockBitSet implements Iterable<BlockVector> {
+
+    private static final int TILE_BITS = 4;
+    private static final int TILE_SIZE = 1 << TILE_BITS;
+    private static final int TILE_MASK = TILE_SIZE - 1;
+    private static final int TILE_WORDS = TILE_SIZE * TILE_SIZE * TILE_SIZE / 64;
+    private static final int COLUMN_MASK = (1 << TILE_SIZE) - 1;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys = new long[MIN_CAPACITY];
+    private long[][] tiles = new long[MIN_CAPACITY][];
+    private int tileCount = 0;
+
+    private long lastKey;
+    private long[] lastTile;
+
+    /**
+     * Add a position.
+     *
+     * @param x the X coordinate
+     * @param y the Y coordinate
+     * @param z the Z coordinate
+     * @return true if the position was not in the set yet
+     */
+    public boolean add(int x, int y, int z) {
+        final long[] tile = getTile(x >> TILE_BITS, y >> TILE_BITS, z >> TILE_BITS, true);
+        final int word = getWord(x, z);
+        final long bit = 1L << getBit(y, z);
+        if ((tile[word] & bit) != 0) {
+            return false;
+        }
+        tile[word] |= bit;
+        return true;
+    }
+
+    /**
+     * Return whether a position is in the set.
+     *
+     * @param x the X coordinate
+     * @param y the Y coordinate
+     * @param z the Z coordinate
+     * @return true if the position was added
+     */
+    public boolean contains(int x, int y, int z) {
+        final long[] tile = getTile(x >> TILE_BITS, y >> TILE_BITS, z >> TILE_BITS, false);
+        return tile != null && (tile[getWord(x, z)] & (1L << getBit(y, z))) != 0;
+    }
+
+    /**
+     * Add the positions from {@code minY} to {@code maxY} of a column.
+     *
+     * @param x    the X coordinate
+     * @param minY the minimum Y coordinate
+     * @param maxY the maximum Y coordinate
+     * @param z    the Z coordinate
+     */
+    public void addColumn(int x, int minY, int maxY, int z) {
+        final int word = getWord(x, z);
+        final int shift = (z & 3) << TILE_BITS;
+        for (int y = minY; y <= maxY;) {
+            final int tileEnd = (y | TILE_MASK) > maxY ? maxY : (y | TILE_MASK);
+            final long span = (long) (COLUMN_MASK >>> (TILE_MASK - (tileEnd - y))) << (y & TILE_MASK);
+            getTile(x >> TILE_BITS, y >> TILE_BITS, z >> TILE_BITS, true)[word] |= span << shift;
+            y = tileEnd + 1;
+        }
+    }
+
+    /**
+     * Add the positions of a kernel centered on a position.
+     *
+     * @param x      the X coordinate of the center
+     * @param y      the Y coordinate of the center
+     * @param z      the Z coordinate of the center
+     * @param kernel the kernel
+     */
+    public void stamp(int x, int y, int z, Kernel kernel) {
+        for (int i = 0; i < kernel.offsetsX.length; ++i) {
+            addColumn(x + kernel.offsetsX[i], y - kernel.halfHeights[i], y + kernel.halfHeights[i], z + kernel.offsetsZ[i]);
+        }
+    }
+
+    /**
+     * Get the positions of this set that have at least one of their six
+     * neighbours outside of the set.
+     *
+     * @return a new set
+     */
+    public BlockBitSet getShell() {
+        final BlockBitSet shell = new BlockBitSet();
+        for (int slot = 0; slot < tiles.length; ++slot) {
+            final long[] tile = tiles[slot];
+            if (tile == null) {
+                continue;
+            }
+
+            final long key = keys[slot];
+            final int tileX = getTileX(key);
+            final int tileY = getTileY(key);
+            final int tileZ = getTileZ(key);
+            final long[] above = getTile(tileX, tileY + 1, tileZ, false);
+            final long[] below = getTile(tileX, tileY - 1, tileZ, false);
+            long[] shellTile = null;
+
+            for (int localX = 0; localX < TILE_SIZE; ++localX) {
+                for (int localZ = 0; localZ < TILE_SIZE; ++localZ) {
+                    final int column = getColumn(tile, localX, localZ);
+                    if (column == 0) {
+                        continue;
+                    }
+
+                    final int x = (tileX << TILE_BITS) | localX;
+                    final int z = (tileZ << TILE_BITS) | localZ;
+                    final int up = (column >>> 1) | ((getColumn(above, localX, localZ) & 1) << TILE_MASK);
+                    final int down = ((column << 1) & COLUMN_MASK) | (getColumn(below, localX, localZ) >>> TILE_MASK);
+                    final int east = localX < TILE_MASK ? getColumn(tile, localX + 1, localZ)
+                        : getColumn(x + 1, tileY, z);
+                    final int west = localX > 0 ? getColumn(tile, localX - 1, localZ) : getColumn(x - 1, tileY, z);
+                    final int south = localZ < TILE_MASK ? getColumn(tile, localX, localZ + 1)
+                        : getColumn(x, tileY, z + 1);
+                    final int north = localZ > 0 ? getColumn(tile, localX, localZ - 1) : getColumn(x, tileY, z - 1);
+
+                    final int surface = column & ~(up & down & east & west & south & north);
+                    if (surface == 0) {
+                        continue;
+                    }
+
+                    if (shellTile == null) {
+                        shellTile = shell.getTile(tileX, tileY, tileZ, true);
+                    }
+                    shellTile[getWord(localX, localZ)] |= (long) surface << ((localZ & 3) << TILE_BITS);
+                }
+            }
+        }
+        return shell;
+    }
+
+    /**
+     * Get the number of positions in the set.
+     *
+     * @return the number of positions
+     */
+    public int size() {
+        int size = 0;
+        for (long[] tile : tiles) {
+            if (tile != null) {
+                for (long word : tile) {
+                    size += Long.bitCount(word);
+                }
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public Iterator<BlockVector> iterator() {
+        return new Iterator<BlockVector>() {
+
+            private int slot = -1;
+            private int word = TILE_WORDS;
+            private long bits = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (bits == 0) {
+                    if (++word >= TILE_WORDS) {
+                        do {
+                            if (++slot >= tiles.length) {
+                                return false;
+                            }
+                        } while (tiles[slot] == null);
+                        word = 0;
+                    }
+                    bits = tiles[slot][word];
+                }
+                return true;
+            }
+
+            @Override
+            public BlockVector next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                final int bit = Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+
+                final long key = keys[slot];
+                final int localX = word >>> 2;
+                final int localZ = ((word & 3) << 2) | (bit >>> TILE_BITS);
+                final int localY = bit & TILE_MASK;
+                return new BlockVector(
+                    (getTileX(key) << TILE_BITS) | localX,
+                    (getTileY(key) << TILE_BITS) | localY,
+                    (getTileZ(key) << TILE_BITS) | localZ);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static int getWord(int x, int z) {
+        return ((x & TILE_MASK) << 2) | ((z & TILE_MASK) >>> 2);
+    }
+
+    private static int getBit(int y, int z) {
+        return ((z & 3) << TILE_BITS) | (y & TILE_MASK);
+    }
+
+    private static int getColumn(long[] tile, int localX, int localZ) {
+        if (tile == null) {
+            return 0;
+        }
+        return (int) (tile[getWord(localX, localZ)] >>> ((localZ & 3) << TILE_BITS)) & COLUMN_MASK;
+    }
+
+    private int getColumn(int x, int tileY, int z) {
+        return getColumn(getTile(x >> TILE_BITS, tileY, z >> TILE_BITS, false), x, z);
+    }
+
+    private static long getKey(int tileX, int tileY, int tileZ) {
+        return ((long) (tileX & 0x3FFFFF) << 42) | ((long) (tileZ & 0x3FFFFF) << 20) | (tileY & 0xFFFFF);
+    }
+
+    private static int getTileX(long key) {
+        return (int) (key >> 42);
+    }
+
+    private static int getTileY(long key) {
+        return (int) (key << 44 >> 44);
+    }
+
+    private static int getTileZ(long key) {
+        return (int) (key << 22 >> 42);
+    }
+
+    private long[] getTile(int tileX, int tileY, int tileZ, boolean create) {
+        final long key = getKey(tileX, tileY, tileZ);
+        if (lastTile != null && lastKey == key) {
+            return lastTile;
+        }
+
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (tiles[slot] != null) {
+            if (keys[slot] == key) {
+                lastKey = key;
+                return lastTile = tiles[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (!create) {
+            return null;
+        }
+
+        if ((tileCount + 1) * 2 > keys.length) {
+            grow();
+            mask = keys.length - 1;
+            slot = hash(key) & mask;
+            while (tiles[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        keys[slot] = key;
+        tiles[slot] = new long[TILE_WORDS];
+        ++tileCount;
+        lastKey = key;
+        return lastTile = tiles[slot];
+    }
+
+    private void grow() {
+        final long[] oldKeys = keys;
+        final long[][] oldTiles = tiles;
+        keys = new long[oldKeys.length * 2];
+        tiles = new long[oldKeys.length * 2][];
+
+        final int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldTiles[i] == null) {
+                continue;
+            }
+            int slot = hash(oldKeys[i]) & mask;
+            while (tiles[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            tiles[slot] = oldTiles[i];
+        }
+    }
+
+    private static int hash(long key) {
+        final long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * A shape made of columns of positions around a center, which can be
+     * added to a set many times with {@link #stamp(int, int, int, Kernel)}.
+     */
+    public static final class Kernel {
+
+        private final int[] offsetsX;
+        private final int[] offsetsZ;
+        private final int[] halfHeights;
+
+        private Kernel(int[] offsetsX, int[] offsetsZ, int[] halfHeights) {
+            this.offsetsX = offsetsX;
+            this.offsetsZ = offsetsZ;
+            this.halfHeights = halfHeights;
+        }
+
+        /**
+         * Create a kernel of the positions whose distance to the center is
+         * at most the given radius.
+         *
+         * @param radius the radius
+         * @return a kernel
+         */
+        public static Kernel sphere(double radius) {
+            final int ceilRadius = (int) Math.ceil(radius);
+            final int size = 2 * ceilRadius + 1;
+            final int[] offsetsX = new int[size * size];
+            final int[] offsetsZ = new int[size * size];
+            final int[] halfHeights = new int[size * size];
+            int count = 0;
+
+            for (int x = -ceilRadius; x <= ceilRadius; ++x) {
+                for (int z = -ceilRadius; z <= ceilRadius; ++z) {
+                    if (Math.sqrt(x * x + z * z) > radius) {
+                        continue;
+                    }
+
+                    int halfHeight = 0;
+                    while (halfHeight < ceilRadius
+                        && Math.sqrt(x * x + (halfHeight + 1) * (halfHeight + 1) + z * z) <= radius) {
+                        ++halfHeight;
+                    }
+
+                    offsetsX[count] = x;
+                    offsetsZ[count] = z;
+                    halfHeights[count] = halfHeight;
+                    ++count;
+                }
+            }
+
+            return new Kernel(copyOf(offsetsX, count), copyOf(offsetsZ, count), copyOf(halfHeights, count));
+        }
+
+        private static int[] copyOf(int[] array, int length) {
+            final int[] copy = new int[length];
+            System.arraycopy(array, 0, copy, 0, length);
+            return copy;
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.util.collection;
+
+/**
+ * A first-in, first-out queue of block positions, stored as triples of
+ * ints in a ring buffer that grows as needed.
+ */
+public class BlockQueue {
+
+    private static final int MIN_CAPACITY = 64;
+
+    private int[] elements = new int[MIN_CAPACITY * 3];
+    private int mask = MIN_CAPACITY - 1;
+    private int head = 0;
+    private int size = 0;
+
+    /**
+     * Add a position to the end of the queue.
+     *
+     * @param x the X coordinate
+     * @param y the Y coordinate
+     * @param z the Z coordinate
+     */
+    public void add(int x, int y, int z) {
+        if (size > mask) {
+            grow();
+        }
+
+        final int index = ((head + size) & mask) * 3;
+        elements[index] = x;
+        elements[index + 1] = y;
+        elements[index + 2] = z;
+        ++size;
+    }
+
+    /**
+     * Remove the position at the front of the queue.
+     *
+     * @param position an array that receives the X, Y and Z coordinates
+     * @return false if the queue was empty
+     */
+    public boolean poll(int[] position) {
+        if (size == 0) {
+            return false;
+        }
+
+        final int index = head * 3;
+        position[0] = elements[index];
+        position[1] = elements[index + 1];
+        position[2] = elements[index + 2];
+        head = (head + 1) & mask;
+        --size;
+        return true;
+    }
+
+    /**
+     * Return whether the queue is empty.
+     *
+     * @return true if there are no positions in the queue
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Get the number of positions in the queue.
+     *
+     * @return the number of positions
+     */
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        final int capacity = mask + 1;
+        final int[] grown = new int[capacity * 2 * 3];
+
+        // Unwrap the ring so that the front of the queue is at the start
+        final int front = capacity - head;
+        System.arraycopy(elements, head * 3, grown, 0, front * 3);
+        System.arraycopy(elements, 0, grown, front * 3, head * 3);
+
+        elements = grown;
+        mask = capacity * 2 - 1;
+        head = 0;
+    }
+
+}
@@ -18,9 +18,12 @@ package com.sk89q.worldedit.util.concurrency;
 
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * Even more {@code ExecutorService} factory methods.
  */
@@ -49,4 +52,33 @@ public final class EvenMoreExecutors {
         return threadPoolExecutor;
     }
 
+    /**
+     * Creates a thread pool of daemon threads for background work that
+     * must not keep the server from shutting down.
+     *
+     * <p>
+     * Threads are created as needed up to the given maximum and exit after
+     * being idle for a minute. Submissions beyond the maximum are queued
+     * without a bound, so callers are expected to limit how much work they
+     * submit at once.
+     * </p>
+     *
+     * @param maxThreads the maximum number of threads to have at a given time
+     * @param nameFormat the thread name format, which may contain {@code %d} for the thread number
+     * @return the newly created thread pool
+     */
+    public static ExecutorService newDaemonThreadPool(int maxThreads, String nameFormat) {
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
+            maxThreads,
+            maxThreads,
+            60L,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat(nameFormat)
+                .build());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return threadPoolExecutor;
+    }
+
 }
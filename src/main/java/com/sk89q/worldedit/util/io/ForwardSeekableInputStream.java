@@ -31,7 +31,9 @@ public class ForwardSeekableInputStream extends InputStream {
     @Override
     public int read() throws IOException {
         int ret = parent.read();
-        ++position;
+        if (ret >= 0) {
+            ++position;
+        }
         return ret;
     }
 
@@ -57,15 +59,19 @@ public class ForwardSeekableInputStream extends InputStream {
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        int read = super.read(b, off, len);
-        position += read;
+        int read = parent.read(b, off, len);
+        if (read > 0) {
+            position += read;
+        }
         return read;
     }
 
     @Override
     public int read(byte[] b) throws IOException {
         int read = parent.read(b);
-        position += read;
+        if (read > 0) {
+            position += read;
+        }
         return read;
     }
 
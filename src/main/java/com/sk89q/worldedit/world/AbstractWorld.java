@@ -20,6 +20,7 @@ import java.util.PriorityQueue;
 
 import javax.annotation.Nullable;
 
+import com.sk89q.worldedit.BlockVector;
 import com.sk89q.worldedit.BlockVector2D;
 import com.sk89q.worldedit.EditSession;
 import com.sk89q.worldedit.MaxChangedBlocksException;
@@ -85,6 +86,24 @@ public abstract class AbstractWorld implements World {
         return getMaximumPoint().getBlockY();
     }
 
+    @Override
+    public boolean isSectionEmpty(int sectionX, int sectionY, int sectionZ) {
+        return false;
+    }
+
+    @Override
+    public void copySection(int sectionX, int sectionY, int sectionZ, char[] blocks) {
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    BaseBlock block = getLazyBlock(
+                        new BlockVector((sectionX << 4) + x, (sectionY << 4) + y, (sectionZ << 4) + z));
+                    blocks[y << 8 | z << 4 | x] = (char) (block.getType() << 4 | block.getData());
+                }
+            }
+        }
+    }
+
     @Override
     public boolean isValidBlockType(int type) {
         return BlockType.fromID(type) != null;
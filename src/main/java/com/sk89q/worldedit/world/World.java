@@ -26,6 +26,7 @@ import com.sk89q.worldedit.blocks.BaseItem;
 import com.sk89q.worldedit.blocks.BaseItemStack;
 import com.sk89q.worldedit.extension.platform.Platform;
 import com.sk89q.worldedit.extent.Extent;
+import com.sk89q.worldedit.extent.SectionExtent;
 import com.sk89q.worldedit.function.mask.Mask;
 import com.sk89q.worldedit.regions.Region;
 import com.sk89q.worldedit.util.Direction;
@@ -36,7 +37,7 @@ import com.sk89q.worldedit.world.registry.WorldData;
 /**
  * Represents a world (dimension).
  */
-public interface World extends Extent {
+public interface World extends SectionExtent {
 
     /**
      * Get the name of the world.
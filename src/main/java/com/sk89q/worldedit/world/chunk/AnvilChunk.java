@@ -16,6 +16,7 @@
 
 package com.sk89q.worldedit.world.chunk;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -37,16 +38,37 @@ import com.sk89q.worldedit.world.DataException;
 import com.sk89q.worldedit.world.World;
 import com.sk89q.worldedit.world.storage.InvalidFormatException;
 
+/**
+ * A chunk in the Anvil format.
+ *
+ * <p>
+ * Sections and tile entities are decoded when they are first accessed,
+ * so reading a few layers of a chunk does not pay for the whole column.
+ * Sections that are not stored share a single empty section.
+ * </p>
+ */
 public class AnvilChunk implements Chunk {
 
+    private static final int SECTION_COUNT = 16;
+    private static final int SECTION_VOLUME = 16 * 16 * 16;
+
+    /**
+     * The section that is used for sections that are not stored, which
+     * only contains air. It must never be modified.
+     */
+    private static final Section EMPTY_SECTION = new Section(
+        new byte[SECTION_VOLUME],
+        new byte[SECTION_VOLUME / 2],
+        new byte[SECTION_VOLUME / 2]);
+
     private CompoundTag rootTag;
-    private byte[][] blocks;
-    private byte[][] blocksAdd;
-    private byte[][] data;
+    private final CompoundTag[] sectionTags = new CompoundTag[SECTION_COUNT];
+    private final Section[] sections = new Section[SECTION_COUNT];
     private int rootX;
     private int rootZ;
 
-    private Map<BlockVector, Map<String, Tag>> tileEntities;
+    private List<CompoundTag>[] rawTileEntities;
+    private final Map<BlockVector, Map<String, Tag>>[] tileEntities;
     @SuppressWarnings("unused")
     private World world; // TODO: remove if stays unused.
 
@@ -57,6 +79,7 @@ public class AnvilChunk implements Chunk {
      * @param tag   the tag to read
      * @throws DataException on a data error
      */
+    @SuppressWarnings("unchecked")
     public AnvilChunk(World world, CompoundTag tag) throws DataException {
         rootTag = tag;
         this.world = world;
@@ -66,14 +89,13 @@ public class AnvilChunk implements Chunk {
         rootZ = NBTUtils.getChildTag(rootTag.getValue(), "zPos", IntTag.class)
             .getValue();
 
-        blocks = new byte[16][16 * 16 * 16];
-        blocksAdd = new byte[16][16 * 16 * 8];
-        data = new byte[16][16 * 16 * 8];
+        tileEntities = new Map[SECTION_COUNT];
 
-        List<Tag> sections = NBTUtils.getChildTag(rootTag.getValue(), "Sections", ListTag.class)
+        List<Tag> sectionList = NBTUtils.getChildTag(rootTag.getValue(), "Sections", ListTag.class)
             .getValue();
 
-        for (Tag rawSectionTag : sections) {
+        // Only find the sections here, they are decoded when they are used
+        for (Tag rawSectionTag : sectionList) {
             if (!(rawSectionTag instanceof CompoundTag)) {
                 continue;
             }
@@ -86,56 +108,103 @@ public class AnvilChunk implements Chunk {
 
             int y = NBTUtils.getChildTag(sectionTag.getValue(), "Y", ByteTag.class)
                 .getValue();
-            if (y < 0 || y >= 16) {
+            if (y < 0 || y >= SECTION_COUNT) {
                 continue;
             }
 
-            blocks[y] = NBTUtils.getChildTag(sectionTag.getValue(), "Blocks", ByteArrayTag.class)
-                .getValue();
-            data[y] = NBTUtils.getChildTag(sectionTag.getValue(), "Data", ByteArrayTag.class)
-                .getValue();
+            sectionTags[y] = sectionTag;
+        }
+    }
 
-            // 4096 ID block support
-            if (sectionTag.getValue()
-                .containsKey("Add")) {
-                blocksAdd[y] = NBTUtils.getChildTag(sectionTag.getValue(), "Add", ByteArrayTag.class)
-                    .getValue();
+    /**
+     * Get the number of sections that are stored in the chunk.
+     *
+     * @return the number of sections
+     */
+    public int getSectionCount() {
+        int count = 0;
+        for (CompoundTag sectionTag : sectionTags) {
+            if (sectionTag != null) {
+                count++;
             }
         }
+        return count;
+    }
 
-        int sectionsize = 16 * 16 * 16;
-        for (byte[] block : blocks) {
-            if (block.length != sectionsize) {
-                throw new InvalidFormatException(
-                    "Chunk blocks byte array expected " + "to be " + sectionsize + " bytes; found " + block.length);
-            }
+    /**
+     * Get a section, decoding it if it has not been decoded yet.
+     *
+     * @param section the index of the section
+     * @param position the position that is accessed, for error messages
+     * @return the section
+     * @throws DataException thrown if the section does not exist or is invalid
+     */
+    private Section getSection(int section, Vector position) throws DataException {
+        if (section < 0 || section >= SECTION_COUNT) {
+            throw new DataException("Chunk does not contain position " + position);
         }
 
-        for (byte[] aData : data) {
-            if (aData.length != (sectionsize / 2)) {
-                throw new InvalidFormatException(
-                    "Chunk block data byte array " + "expected to be " + sectionsize + " bytes; found " + aData.length);
-            }
+        Section decoded = sections[section];
+        if (decoded == null) {
+            decoded = decodeSection(sectionTags[section]);
+            sections[section] = decoded;
         }
+        return decoded;
     }
 
-    @Override
-    public int getBlockID(Vector position) throws DataException {
+    private static Section decodeSection(@Nullable CompoundTag sectionTag) throws DataException {
+        if (sectionTag == null) {
+            return EMPTY_SECTION;
+        }
+
+        byte[] blocks = NBTUtils.getChildTag(sectionTag.getValue(), "Blocks", ByteArrayTag.class)
+            .getValue();
+        byte[] data = NBTUtils.getChildTag(sectionTag.getValue(), "Data", ByteArrayTag.class)
+            .getValue();
+        byte[] blocksAdd = EMPTY_SECTION.blocksAdd;
+
+        // 4096 ID block support
+        if (sectionTag.getValue()
+            .containsKey("Add")) {
+            blocksAdd = NBTUtils.getChildTag(sectionTag.getValue(), "Add", ByteArrayTag.class)
+                .getValue();
+        }
+
+        if (blocks.length != SECTION_VOLUME) {
+            throw new InvalidFormatException(
+                "Chunk blocks byte array expected " + "to be " + SECTION_VOLUME + " bytes; found " + blocks.length);
+        }
+
+        if (data.length != (SECTION_VOLUME / 2)) {
+            throw new InvalidFormatException(
+                "Chunk block data byte array " + "expected to be " + SECTION_VOLUME + " bytes; found " + data.length);
+        }
+
+        return new Section(blocks, blocksAdd, data);
+    }
+
+    /**
+     * Get the index of a position within its section.
+     *
+     * @param position the position
+     * @return the index
+     * @throws DataException thrown if the position is not in this chunk
+     */
+    private int getIndex(Vector position) throws DataException {
         int x = position.getBlockX() - rootX * 16;
-        int y = position.getBlockY();
         int z = position.getBlockZ() - rootZ * 16;
 
-        int section = y >> 4;
-        if (section < 0 || section >= blocks.length) {
+        if (((x | z) & ~0x0F) != 0) {
             throw new DataException("Chunk does not contain position " + position);
         }
 
-        int yindex = y & 0x0F;
-        if (yindex < 0 || yindex >= 16) {
-            throw new DataException("Chunk does not contain position " + position);
-        }
+        return x + (z * 16 + ((position.getBlockY() & 0x0F) * 16 * 16));
+    }
 
-        int index = x + (z * 16 + (yindex * 16 * 16));
+    @Override
+    public int getBlockID(Vector position) throws DataException {
+        Section section = getSection(position.getBlockY() >> 4, position);
+        int index = getIndex(position);
 
         try {
             int addId = 0;
@@ -145,12 +214,12 @@ public class AnvilChunk implements Chunk {
             // 'Add' stores the highest 4 bits of the ID. The first block is stored
             // in the lowest nibble in the Add byte array.
             if (index % 2 == 0) {
-                addId = (blocksAdd[section][index >> 1] & 0x0F) << 8;
+                addId = (section.blocksAdd[index >> 1] & 0x0F) << 8;
             } else {
-                addId = (blocksAdd[section][index >> 1] & 0xF0) << 4;
+                addId = (section.blocksAdd[index >> 1] & 0xF0) << 4;
             }
 
-            return (blocks[section][index] & 0xFF) + addId;
+            return (section.blocks[index] & 0xFF) + addId;
         } catch (IndexOutOfBoundsException e) {
             throw new DataException("Chunk does not contain position " + position);
         }
@@ -158,54 +227,70 @@ public class AnvilChunk implements Chunk {
 
     @Override
     public int getBlockData(Vector position) throws DataException {
-        int x = position.getBlockX() - rootX * 16;
-        int y = position.getBlockY();
-        int z = position.getBlockZ() - rootZ * 16;
-
-        int section = y >> 4;
-        int yIndex = y & 0x0F;
-
-        if (section < 0 || section >= blocks.length) {
-            throw new DataException("Chunk does not contain position " + position);
-        }
-
-        if (yIndex < 0 || yIndex >= 16) {
-            throw new DataException("Chunk does not contain position " + position);
-        }
-
-        int index = x + (z * 16 + (yIndex * 16 * 16));
+        Section section = getSection(position.getBlockY() >> 4, position);
+        int index = getIndex(position);
         boolean shift = index % 2 == 0;
         index /= 2;
 
-        try {
-            if (!shift) {
-                return (data[section][index] & 0xF0) >> 4;
-            } else {
-                return data[section][index] & 0xF;
-            }
-        } catch (IndexOutOfBoundsException e) {
-            throw new DataException("Chunk does not contain position " + position);
+        if (!shift) {
+            return (section.data[index] & 0xF0) >> 4;
+        } else {
+            return section.data[index] & 0xF;
         }
     }
 
     /**
-     * Used to load the tile entities.
+     * Sort the tile entities by section, without decoding them yet.
      *
      * @throws DataException
      */
-    private void populateTileEntities() throws DataException {
+    @SuppressWarnings("unchecked")
+    private void sortTileEntities() throws DataException {
         List<Tag> tags = NBTUtils.getChildTag(rootTag.getValue(), "TileEntities", ListTag.class)
             .getValue();
 
-        tileEntities = new HashMap<BlockVector, Map<String, Tag>>();
+        List<CompoundTag>[] sorted = new List[SECTION_COUNT];
 
         for (Tag tag : tags) {
             if (!(tag instanceof CompoundTag)) {
                 throw new InvalidFormatException("CompoundTag expected in TileEntities");
             }
 
-            CompoundTag t = (CompoundTag) tag;
+            Tag y = ((CompoundTag) tag).getValue()
+                .get("y");
+            int section = y instanceof IntTag ? ((IntTag) y).getValue() >> 4 : 0;
+            if (section < 0 || section >= SECTION_COUNT) {
+                continue;
+            }
+
+            if (sorted[section] == null) {
+                sorted[section] = new ArrayList<CompoundTag>();
+            }
+            sorted[section].add((CompoundTag) tag);
+        }
+
+        rawTileEntities = sorted;
+    }
 
+    /**
+     * Used to load the tile entities of a section.
+     *
+     * @param section the index of the section
+     * @return the tile entities in the section
+     * @throws DataException
+     */
+    private Map<BlockVector, Map<String, Tag>> populateTileEntities(int section) throws DataException {
+        if (rawTileEntities == null) {
+            sortTileEntities();
+        }
+
+        Map<BlockVector, Map<String, Tag>> sectionTileEntities = new HashMap<BlockVector, Map<String, Tag>>();
+        List<CompoundTag> tags = rawTileEntities[section];
+        if (tags == null) {
+            return sectionTileEntities;
+        }
+
+        for (CompoundTag t : tags) {
             int x = 0;
             int y = 0;
             int z = 0;
@@ -235,8 +320,10 @@ public class AnvilChunk implements Chunk {
             }
 
             BlockVector vec = new BlockVector(x, y, z);
-            tileEntities.put(vec, values);
+            sectionTileEntities.put(vec, values);
         }
+
+        return sectionTileEntities;
     }
 
     /**
@@ -249,12 +336,17 @@ public class AnvilChunk implements Chunk {
      * @throws DataException thrown if there is a data error
      */
     @Nullable
-    private CompoundTag getBlockTileEntity(Vector position) throws DataException {
-        if (tileEntities == null) {
-            populateTileEntities();
+    private synchronized CompoundTag getBlockTileEntity(Vector position) throws DataException {
+        int section = position.getBlockY() >> 4;
+        if (section < 0 || section >= SECTION_COUNT) {
+            return null;
+        }
+
+        if (tileEntities[section] == null) {
+            tileEntities[section] = populateTileEntities(section);
         }
 
-        Map<String, Tag> values = tileEntities.get(new BlockVector(position));
+        Map<String, Tag> values = tileEntities[section].get(new BlockVector(position));
         if (values == null) {
             return null;
         }
@@ -294,4 +386,20 @@ public class AnvilChunk implements Chunk {
         return block;
     }
 
+    /**
+     * A decoded section of 16x16x16 blocks.
+     */
+    private static final class Section {
+
+        private final byte[] blocks;
+        private final byte[] blocksAdd;
+        private final byte[] data;
+
+        private Section(byte[] blocks, byte[] blocksAdd, byte[] data) {
+            this.blocks = blocks;
+            this.blocksAdd = blocksAdd;
+            this.data = data;
+        }
+    }
+
 }
@@ -174,7 +174,7 @@ public class OldChunk implements Chunk {
      * @return a tag
      * @throws DataException
      */
-    private CompoundTag getBlockTileEntity(Vector position) throws DataException {
+    private synchronized CompoundTag getBlockTileEntity(Vector position) throws DataException {
         if (tileEntities == null) {
             populateTileEntities();
         }
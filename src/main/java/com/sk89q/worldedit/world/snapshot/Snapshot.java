@@ -27,10 +27,12 @@ import java.util.zip.ZipFile;
 import com.sk89q.worldedit.world.DataException;
 import com.sk89q.worldedit.world.storage.ChunkStore;
 import com.sk89q.worldedit.world.storage.FileLegacyChunkStore;
-import com.sk89q.worldedit.world.storage.FileMcRegionChunkStore;
+import com.sk89q.worldedit.world.storage.MappedMcRegionChunkStore;
 import com.sk89q.worldedit.world.storage.TrueZipLegacyChunkStore;
 import com.sk89q.worldedit.world.storage.TrueZipMcRegionChunkStore;
 import com.sk89q.worldedit.world.storage.ZippedLegacyChunkStore;
+import com.sk89q.worldedit.world.storage.ZipEntryIndex;
+import com.sk89q.worldedit.world.storage.ZipFilePool;
 import com.sk89q.worldedit.world.storage.ZippedMcRegionChunkStore;
 
 /**
@@ -64,6 +66,8 @@ public class Snapshot implements Comparable<Snapshot> {
      */
     public ChunkStore getChunkStore() throws IOException, DataException {
         ChunkStore chunkStore = internalGetChunkStore();
+        chunkStore = SnapshotChunkCache.getInstance()
+            .wrap(file, chunkStore);
 
         logger.info(
             "WorldEdit: Using " + chunkStore.getClass()
@@ -87,6 +91,7 @@ public class Snapshot implements Comparable<Snapshot> {
                 ChunkStore chunkStore = new TrueZipMcRegionChunkStore(file);
 
                 if (!chunkStore.isValid()) {
+                    chunkStore.close();
                     return new TrueZipLegacyChunkStore(file);
                 }
 
@@ -95,6 +100,7 @@ public class Snapshot implements Comparable<Snapshot> {
                 ChunkStore chunkStore = new ZippedMcRegionChunkStore(file);
 
                 if (!chunkStore.isValid()) {
+                    chunkStore.close();
                     return new ZippedLegacyChunkStore(file);
                 }
 
@@ -113,6 +119,7 @@ public class Snapshot implements Comparable<Snapshot> {
                         ChunkStore chunkStore = new TrueZipMcRegionChunkStore(file);
 
                         if (!chunkStore.isValid()) {
+                            chunkStore.close();
                             return new TrueZipLegacyChunkStore(file);
                         }
 
@@ -121,7 +128,7 @@ public class Snapshot implements Comparable<Snapshot> {
                         throw new DataException("TrueZIP is required for .tar support");
                     }
                 } else {
-                    ChunkStore chunkStore = new FileMcRegionChunkStore(file);
+                    ChunkStore chunkStore = new MappedMcRegionChunkStore(file);
 
                     if (!chunkStore.isValid()) {
                         return new FileLegacyChunkStore(file);
@@ -141,8 +148,13 @@ public class Snapshot implements Comparable<Snapshot> {
             if (file.getName()
                 .toLowerCase()
                 .endsWith(".zip")) {
-                ZipFile entry = new ZipFile(file);
-                return (entry.getEntry(worldname) != null || entry.getEntry(worldname + "/level.dat") != null);
+                ZipFilePool.Handle<ZipFile> handle = ZipFilePool.acquire(file, ZipFilePool.ZIP_FILES);
+                try {
+                    ZipEntryIndex index = handle.getIndex();
+                    return index.contains(worldname) || index.contains(worldname + "/level.dat");
+                } finally {
+                    handle.close();
+                }
             } else if (file.getName()
                 .toLowerCase()
                 .endsWith(".tar.bz2")
@@ -153,9 +165,14 @@ public class Snapshot implements Comparable<Snapshot> {
                     .toLowerCase()
                     .endsWith(".tar")) {
                         try {
-                            de.schlichtherle.util.zip.ZipFile entry = new de.schlichtherle.util.zip.ZipFile(file);
-
-                            return entry.getEntry(worldname) != null;
+                            ZipFilePool.Handle<de.schlichtherle.util.zip.ZipFile> handle = ZipFilePool
+                                .acquire(file, TrueZipMcRegionChunkStore.OPENER);
+                            try {
+                                return handle.getIndex()
+                                    .contains(worldname);
+                            } finally {
+                                handle.close();
+                            }
                         } catch (NoClassDefFoundError e) {
                             throw new DataException("TrueZIP is required for .tar support");
                         }
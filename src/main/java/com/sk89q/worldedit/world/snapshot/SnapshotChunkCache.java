@@ -0,0 +1,290 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.world.snapshot;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.sk89q.jnbt.CompoundTag;
+import com.sk89q.worldedit.Vector2D;
+import com.sk89q.worldedit.world.DataException;
+import com.sk89q.worldedit.world.World;
+import com.sk89q.worldedit.world.chunk.AnvilChunk;
+import com.sk89q.worldedit.world.chunk.Chunk;
+import com.sk89q.worldedit.world.storage.ChunkStore;
+
+/**
+ * A server-wide cache of chunks that have been decoded from snapshots, so
+ * that restoring overlapping areas from the same snapshot does not read and
+ * decode the same chunks again.
+ *
+ * <p>
+ * The size of the cache is bounded by the estimated memory used by the
+ * cached chunks. Chunks are keyed by the snapshot file and its modification
+ * time, so chunks of a snapshot that is replaced are not returned.
+ * </p>
+ */
+public class SnapshotChunkCache {
+
+    private static final SnapshotChunkCache instance = new SnapshotChunkCache();
+
+    /**
+     * The estimated size of an Anvil section in kilobytes, with its block,
+     * add and data arrays.
+     */
+    private static final int ANVIL_SECTION_WEIGHT = 8;
+
+    /**
+     * The estimated size of a chunk in the old format in kilobytes.
+     */
+    private static final int OLD_CHUNK_WEIGHT = 80;
+
+    /**
+     * The estimated size of the rest of a chunk in kilobytes, such as its
+     * height map, biomes and entities.
+     */
+    private static final int CHUNK_BASE_WEIGHT = 2;
+
+    private volatile Cache<Key, Chunk> cache;
+    private volatile int capacity;
+
+    private SnapshotChunkCache() {
+        setCapacity(64);
+    }
+
+    /**
+     * Get the server-wide instance.
+     *
+     * @return the instance
+     */
+    public static SnapshotChunkCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Get the maximum estimated size of the cached chunks in megabytes.
+     *
+     * @return the capacity, or 0 if caching is disabled
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Set the maximum estimated size of the cached chunks. Changing the
+     * capacity discards all cached chunks.
+     *
+     * @param megabytes the capacity in megabytes, or 0 to disable caching
+     */
+    public synchronized void setCapacity(int megabytes) {
+        checkArgument(megabytes >= 0, "megabytes >= 0 required");
+        if (cache != null && megabytes == capacity) {
+            return;
+        }
+
+        capacity = megabytes;
+        cache = CacheBuilder.newBuilder()
+            .maximumWeight(megabytes * 1024L)
+            .weigher(new Weigher<Key, Chunk>() {
+
+                @Override
+                public int weigh(Key key, Chunk chunk) {
+                    return getWeight(chunk);
+                }
+            })
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * Get the hit and miss statistics of the cache since its capacity was
+     * last set.
+     *
+     * @return the statistics
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Get the number of cached chunks.
+     *
+     * @return the number of chunks
+     */
+    public long getSize() {
+        return cache.size();
+    }
+
+    /**
+     * Discard all cached chunks.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Wrap a snapshot's chunk store so that its chunks are cached, unless
+     * caching is disabled.
+     *
+     * @param file       the snapshot file
+     * @param chunkStore the chunk store of the snapshot
+     * @return a chunk store
+     */
+    ChunkStore wrap(File file, ChunkStore chunkStore) {
+        checkNotNull(file);
+        checkNotNull(chunkStore);
+
+        if (capacity == 0) {
+            return chunkStore;
+        }
+
+        return new CachingChunkStore(file.getAbsolutePath(), file.lastModified(), chunkStore);
+    }
+
+    /**
+     * Estimate the memory used by a chunk in kilobytes.
+     *
+     * @param chunk the chunk
+     * @return the estimated size
+     */
+    private static int getWeight(Chunk chunk) {
+        if (chunk instanceof AnvilChunk) {
+            return CHUNK_BASE_WEIGHT + ((AnvilChunk) chunk).getSectionCount() * ANVIL_SECTION_WEIGHT;
+        } else {
+            return CHUNK_BASE_WEIGHT + OLD_CHUNK_WEIGHT;
+        }
+    }
+
+    /**
+     * A chunk store that loads chunks through the cache.
+     */
+    private class CachingChunkStore extends ChunkStore {
+
+        private final String path;
+        private final long lastModified;
+        private final ChunkStore delegate;
+
+        private CachingChunkStore(String path, long lastModified, ChunkStore delegate) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Chunk getChunk(final Vector2D position, final World world) throws DataException, IOException {
+            Key key = new Key(path, lastModified, world.getName(), position.getBlockX(), position.getBlockZ());
+
+            try {
+                return cache.get(key, new Callable<Chunk>() {
+
+                    @Override
+                    public Chunk call() throws Exception {
+                        if (delegate.isThreadSafe()) {
+                            return delegate.getChunk(position, world);
+                        }
+
+                        synchronized (delegate) {
+                            return delegate.getChunk(position, world);
+                        }
+                    }
+                });
+            } catch (ExecutionException e) {
+                Throwables.propagateIfPossible(e.getCause(), DataException.class, IOException.class);
+                throw Throwables.propagate(e.getCause());
+            } catch (UncheckedExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+
+        @Override
+        public CompoundTag getChunkTag(Vector2D position, World world) throws DataException, IOException {
+            if (delegate.isThreadSafe()) {
+                return delegate.getChunkTag(position, world);
+            }
+
+            synchronized (delegate) {
+                return delegate.getChunkTag(position, world);
+            }
+        }
+
+        @Override
+        public boolean isValid() {
+            return delegate.isValid();
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+
+    private static final class Key {
+
+        private final String path;
+        private final long lastModified;
+        private final String worldName;
+        private final int x;
+        private final int z;
+
+        private Key(String path, long lastModified, String worldName, int x, int z) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.worldName = worldName;
+            this.x = x;
+            this.z = z;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            Key key = (Key) o;
+            return lastModified == key.lastModified && x == key.x
+                && z == key.z
+                && path.equals(key.path)
+                && worldName.equals(key.worldName);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = path.hashCode();
+            result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+            result = 31 * result + worldName.hashCode();
+            result = 31 * result + x;
+            result = 31 * result + z;
+            return result;
+        }
+    }
+
+}
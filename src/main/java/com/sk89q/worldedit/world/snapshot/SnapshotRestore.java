@@ -17,10 +17,24 @@
 package com.sk89q.worldedit.world.snapshot;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import com.sk89q.worldedit.BlockVector2D;
 import com.sk89q.worldedit.EditSession;
@@ -28,25 +42,58 @@ import com.sk89q.worldedit.MaxChangedBlocksException;
 import com.sk89q.worldedit.Vector;
 import com.sk89q.worldedit.Vector2D;
 import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.function.mask.Mask;
 import com.sk89q.worldedit.regions.CuboidRegion;
 import com.sk89q.worldedit.regions.Region;
+import com.sk89q.worldedit.util.concurrency.EvenMoreExecutors;
 import com.sk89q.worldedit.world.DataException;
+import com.sk89q.worldedit.world.World;
 import com.sk89q.worldedit.world.chunk.Chunk;
 import com.sk89q.worldedit.world.storage.ChunkStore;
 import com.sk89q.worldedit.world.storage.MissingChunkException;
-import com.sk89q.worldedit.world.storage.MissingWorldException;
 
 /**
  * A snapshot restore operation.
  */
 public class SnapshotRestore {
 
-    private final Map<BlockVector2D, ArrayList<Vector>> neededChunks = new LinkedHashMap<BlockVector2D, ArrayList<Vector>>();
+    /**
+     * The number of threads that read and decode chunks, shared by all
+     * restores.
+     */
+    private static final int DECODE_THREADS = Math.max(
+        1,
+        Math.min(
+            4,
+            Runtime.getRuntime()
+                .availableProcessors() - 1));
+
+    /**
+     * The maximum number of chunks that are decoded ahead of the chunk
+     * being restored, which bounds the memory used by decoded chunks.
+     */
+    private static final int PREFETCH_CHUNKS = DECODE_THREADS * 2;
+
+    private static final ExecutorService decodeExecutor = EvenMoreExecutors
+        .newDaemonThreadPool(DECODE_THREADS, "WorldEdit Snapshot Decoder #%d");
+
+    /**
+     * The chunks to restore, mapped to a bitmap of the positions that are
+     * needed from each chunk, or to null if every position of the chunk
+     * within {@link #min} and {@link #max} is needed.
+     *
+     * @see #getPositionIndex(int, int, int)
+     */
+    private final Map<BlockVector2D, BitSet> neededChunks = new LinkedHashMap<BlockVector2D, BitSet>();
+    private final Vector min;
+    private final Vector max;
     private final ChunkStore chunkStore;
     private final EditSession editSession;
     private ArrayList<Vector2D> missingChunks;
     private ArrayList<Vector2D> errorChunks;
     private String lastErrorMessage;
+    private boolean differential = false;
+    private int unchangedBlocks;
 
     /**
      * Construct the snapshot restore operation.
@@ -58,6 +105,8 @@ public class SnapshotRestore {
     public SnapshotRestore(ChunkStore chunkStore, EditSession editSession, Region region) {
         this.chunkStore = chunkStore;
         this.editSession = editSession;
+        this.min = region.getMinimumPoint();
+        this.max = region.getMaximumPoint();
 
         if (region instanceof CuboidRegion) {
             findNeededCuboidChunks(region);
@@ -69,20 +118,17 @@ public class SnapshotRestore {
     /**
      * Find needed chunks in the axis-aligned bounding box of the region.
      *
+     * <p>
+     * No positions are stored, as every position of a chunk that lies
+     * within the bounding box is needed.
+     * </p>
+     *
      * @param region The {@link Region} to iterate
      */
     private void findNeededCuboidChunks(Region region) {
-        Vector min = region.getMinimumPoint();
-        Vector max = region.getMaximumPoint();
-
-        // First, we need to group points by chunk so that we only need
-        // to keep one chunk in memory at any given moment
-        for (int x = min.getBlockX(); x <= max.getBlockX(); ++x) {
-            for (int y = min.getBlockY(); y <= max.getBlockY(); ++y) {
-                for (int z = min.getBlockZ(); z <= max.getBlockZ(); ++z) {
-                    Vector pos = new Vector(x, y, z);
-                    checkAndAddBlock(pos);
-                }
+        for (int cx = min.getBlockX() >> 4; cx <= max.getBlockX() >> 4; ++cx) {
+            for (int cz = min.getBlockZ() >> 4; cz <= max.getBlockZ() >> 4; ++cz) {
+                neededChunks.put(new BlockVector2D(cx, cz), null);
             }
         }
     }
@@ -96,23 +142,29 @@ public class SnapshotRestore {
         // First, we need to group points by chunk so that we only need
         // to keep one chunk in memory at any given moment
         for (Vector pos : region) {
-            checkAndAddBlock(pos);
-        }
-    }
+            BlockVector2D chunkPos = ChunkStore.toChunk(pos);
+            BitSet positions = neededChunks.get(chunkPos);
 
-    private void checkAndAddBlock(Vector pos) {
-        if (editSession.getMask() != null && !editSession.getMask()
-            .test(pos)) return;
-
-        BlockVector2D chunkPos = ChunkStore.toChunk(pos);
+            // Unidentified chunk
+            if (positions == null) {
+                positions = new BitSet();
+                neededChunks.put(chunkPos, positions);
+            }
 
-        // Unidentified chunk
-        if (!neededChunks.containsKey(chunkPos)) {
-            neededChunks.put(chunkPos, new ArrayList<Vector>());
+            positions.set(getPositionIndex(pos.getBlockX(), pos.getBlockY(), pos.getBlockZ()));
         }
+    }
 
-        neededChunks.get(chunkPos)
-            .add(pos);
+    /**
+     * Get the index of a position in a chunk's position bitmap.
+     *
+     * @param x the X coordinate
+     * @param y the Y coordinate
+     * @param z the Z coordinate
+     * @return the index
+     */
+    private int getPositionIndex(int x, int y, int z) {
+        return ((y - min.getBlockY()) << 8) | ((z & 15) << 4) | (x & 15);
     }
 
     /**
@@ -124,49 +176,184 @@ public class SnapshotRestore {
         return neededChunks.size();
     }
 
+    /**
+     * Get whether only blocks that differ from the snapshot are written.
+     *
+     * @return true if the restore is differential
+     */
+    public boolean isDifferential() {
+        return differential;
+    }
+
+    /**
+     * Set whether only blocks that differ from the snapshot are written.
+     *
+     * <p>
+     * A differential restore compares every block with the block in the
+     * world first, so that blocks that are already the same are neither
+     * changed nor recorded in the history of the edit session.
+     * </p>
+     *
+     * @param differential true to only write blocks that differ
+     */
+    public void setDifferential(boolean differential) {
+        this.differential = differential;
+    }
+
     /**
      * Restores to world.
      *
+     * <p>
+     * Chunks are read and decoded on a pool of worker threads, a limited
+     * number of chunks ahead of the chunk whose blocks are being applied.
+     * Blocks are only applied on the calling thread, in chunk order.
+     * </p>
+     *
      * @throws MaxChangedBlocksException
      */
     public void restore() throws MaxChangedBlocksException {
 
         missingChunks = new ArrayList<Vector2D>();
         errorChunks = new ArrayList<Vector2D>();
+        unchangedBlocks = 0;
 
-        // Now let's start restoring!
-        for (Map.Entry<BlockVector2D, ArrayList<Vector>> entry : neededChunks.entrySet()) {
-            BlockVector2D chunkPos = entry.getKey();
-            Chunk chunk;
+        Iterator<Map.Entry<BlockVector2D, BitSet>> it = neededChunks.entrySet()
+            .iterator();
+        Deque<PendingChunk> pending = new ArrayDeque<PendingChunk>();
 
-            try {
-                chunk = chunkStore.getChunk(chunkPos, editSession.getWorld());
-                // Good, the chunk could be at least loaded
+        try {
+            while (pending.size() < PREFETCH_CHUNKS && it.hasNext()) {
+                pending.add(decode(it.next()));
+            }
+
+            // Now let's start restoring!
+            while (!pending.isEmpty()) {
+                PendingChunk next = pending.poll();
+                if (it.hasNext()) {
+                    pending.add(decode(it.next()));
+                }
 
+                BlockVector2D chunkPos = next.entry.getKey();
+                Chunk chunk;
+
+                try {
+                    chunk = Uninterruptibles.getUninterruptibly(next.future);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof MissingChunkException) {
+                        missingChunks.add(chunkPos);
+                    } else if (cause instanceof DataException || cause instanceof IOException) {
+                        errorChunks.add(chunkPos);
+                        lastErrorMessage = cause.getMessage();
+                    } else {
+                        throw Throwables.propagate(cause);
+                    }
+                    continue;
+                }
+
+                // Good, the chunk could be at least loaded
                 // Now just copy blocks!
-                for (Vector pos : entry.getValue()) {
-                    try {
-                        BaseBlock block = chunk.getBlock(pos);
-                        editSession.setBlock(pos, block);
-                    } catch (DataException e) {
-                        // this is a workaround: just ignore for now
+                BitSet positions = next.entry.getValue();
+                if (positions == null) {
+                    int minX = Math.max(min.getBlockX(), chunkPos.getBlockX() << 4);
+                    int maxX = Math.min(max.getBlockX(), (chunkPos.getBlockX() << 4) + 15);
+                    int minZ = Math.max(min.getBlockZ(), chunkPos.getBlockZ() << 4);
+                    int maxZ = Math.min(max.getBlockZ(), (chunkPos.getBlockZ() << 4) + 15);
+
+                    for (int y = min.getBlockY(); y <= max.getBlockY(); ++y) {
+                        for (int z = minZ; z <= maxZ; ++z) {
+                            for (int x = minX; x <= maxX; ++x) {
+                                restoreBlock(chunk, new Vector(x, y, z));
+                            }
+                        }
+                    }
+                } else {
+                    int baseX = chunkPos.getBlockX() << 4;
+                    int baseZ = chunkPos.getBlockZ() << 4;
+
+                    for (int i = positions.nextSetBit(0); i >= 0; i = positions.nextSetBit(i + 1)) {
+                        restoreBlock(
+                            chunk,
+                            new Vector(baseX + (i & 15), min.getBlockY() + (i >> 8), baseZ + ((i >> 4) & 15)));
                     }
                 }
-            } catch (MissingChunkException me) {
-                missingChunks.add(chunkPos);
-            } catch (MissingWorldException me) {
-                errorChunks.add(chunkPos);
-                lastErrorMessage = me.getMessage();
-            } catch (DataException de) {
-                errorChunks.add(chunkPos);
-                lastErrorMessage = de.getMessage();
-            } catch (IOException ioe) {
-                errorChunks.add(chunkPos);
-                lastErrorMessage = ioe.getMessage();
+            }
+        } finally {
+            // The caller may close the chunk store once this returns
+            for (PendingChunk unused : pending) {
+                unused.cancel();
             }
         }
     }
 
+    /**
+     * Copy a block from a snapshot chunk to the world, if it passes the
+     * edit session's mask.
+     *
+     * @param chunk the chunk
+     * @param pos   the position
+     * @throws MaxChangedBlocksException thrown if too many blocks are changed
+     */
+    private void restoreBlock(Chunk chunk, Vector pos) throws MaxChangedBlocksException {
+        Mask mask = editSession.getMask();
+        if (mask != null && !mask.test(pos)) {
+            return;
+        }
+
+        try {
+            BaseBlock block = chunk.getBlock(pos);
+
+            // Blocks with tile entities are always written, as comparing
+            // their NBT data would be more expensive than writing them
+            if (differential && !block.hasNbtData() && block.equals(editSession.getLazyBlock(pos))) {
+                unchangedBlocks++;
+                return;
+            }
+
+            editSession.setBlock(pos, block);
+        } catch (DataException e) {
+            // this is a workaround: just ignore for now
+        }
+    }
+
+    /**
+     * Submit a chunk to be read and decoded on the worker pool.
+     *
+     * @param entry the chunk and the positions needed from it
+     * @return the pending chunk
+     */
+    private PendingChunk decode(Map.Entry<BlockVector2D, BitSet> entry) {
+        final BlockVector2D chunkPos = entry.getKey();
+        final World world = editSession.getWorld();
+        final PendingChunk pending = new PendingChunk(entry);
+
+        pending.future = decodeExecutor.submit(new Callable<Chunk>() {
+
+            @Override
+            public Chunk call() throws Exception {
+                if (!pending.started.compareAndSet(false, true)) {
+                    // The restore ended before this chunk was needed
+                    throw new CancellationException();
+                }
+
+                try {
+                    if (chunkStore.isThreadSafe()) {
+                        return chunkStore.getChunk(chunkPos, world);
+                    }
+
+                    // The chunk store may only be used by one thread at a time
+                    synchronized (chunkStore) {
+                        return chunkStore.getChunk(chunkPos, world);
+                    }
+                } finally {
+                    pending.finished.countDown();
+                }
+            }
+        });
+
+        return pending;
+    }
+
     /**
      * Get a list of the missing chunks. restore() must have been called
      * already.
@@ -206,4 +393,41 @@ public class SnapshotRestore {
         return lastErrorMessage;
     }
 
+    /**
+     * Get the number of blocks that were skipped by a differential restore
+     * because they were already the same as in the snapshot. restore() must
+     * have been called already.
+     *
+     * @return a number of blocks
+     */
+    public int getUnchangedBlocks() {
+        return unchangedBlocks;
+    }
+
+    /**
+     * A chunk that has been submitted for decoding.
+     */
+    private static class PendingChunk {
+
+        private final Map.Entry<BlockVector2D, BitSet> entry;
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private Future<Chunk> future;
+
+        PendingChunk(Map.Entry<BlockVector2D, BitSet> entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * Stop the chunk from being decoded, or wait for it if it is already
+         * being decoded.
+         */
+        void cancel() {
+            future.cancel(false);
+            if (!started.compareAndSet(false, true)) {
+                Uninterruptibles.awaitUninterruptibly(finished);
+            }
+        }
+    }
+
 }
@@ -83,6 +83,17 @@ public abstract class ChunkStore {
         return new OldChunk(world, tag);
     }
 
+    /**
+     * Returns whether {@link #getChunkTag(Vector2D, World)} and
+     * {@link #getChunk(Vector2D, World)} may be called from several threads
+     * at once.
+     *
+     * @return true if the chunk store can be read concurrently
+     */
+    public boolean isThreadSafe() {
+        return false;
+    }
+
     /**
      * Close resources.
      *
@@ -0,0 +1,332 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.world.storage;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import com.sk89q.jnbt.CompoundTag;
+import com.sk89q.jnbt.NBTInputStream;
+import com.sk89q.worldedit.Vector2D;
+import com.sk89q.worldedit.world.DataException;
+import com.sk89q.worldedit.world.World;
+
+/**
+ * Reads McRegion and Anvil region files from a directory by memory-mapping
+ * them.
+ *
+ * <p>
+ * Unlike {@link FileMcRegionChunkStore}, which opens and reads a region file
+ * again for every chunk, this store keeps the most recently used region
+ * files mapped, and inflates chunks straight from the mapping with
+ * reusable {@link Inflater}s.
+ * </p>
+ *
+ * <p>
+ * Chunks can be read from several threads at once. Each concurrent reader
+ * borrows its own inflater and buffers from a pool.
+ * </p>
+ */
+public class MappedMcRegionChunkStore extends ChunkStore {
+
+    /**
+     * The maximum number of region files that are kept mapped.
+     */
+    private static final int MAX_MAPPED_REGIONS = 8;
+
+    private static final Pattern REGION_FILE = Pattern.compile(".*\\.mc[ra]$");
+
+    private final File path;
+    private final Map<String, MappedRegion> regions = new LinkedHashMap<String, MappedRegion>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MappedRegion> eldest) {
+            return size() > MAX_MAPPED_REGIONS;
+        }
+    };
+    private Map<String, File> regionFiles;
+    private final Deque<Decoder> idleDecoders = new ArrayDeque<Decoder>();
+    private boolean closed = false;
+
+    /**
+     * Create an instance. The passed path is the folder to read the
+     * chunk files from.
+     *
+     * @param path a path
+     */
+    public MappedMcRegionChunkStore(File path) {
+        checkNotNull(path);
+        this.path = path;
+    }
+
+    @Override
+    public CompoundTag getChunkTag(Vector2D position, World world) throws DataException, IOException {
+        ByteBuffer data;
+        synchronized (this) {
+            data = getRegion(McRegionChunkStore.getFilename(position)).getChunkData(position);
+        }
+
+        byte version = data.get();
+
+        if (version == McRegionReader.VERSION_DEFLATE) {
+            Decoder decoder = borrowDecoder();
+            try {
+                int length = decoder.inflate(data);
+                return McRegionChunkStore
+                    .readLevelTag(new NBTInputStream(new ByteArrayInputStream(decoder.outputBuffer, 0, length)));
+            } finally {
+                releaseDecoder(decoder);
+            }
+        } else if (version == McRegionReader.VERSION_GZIP) {
+            byte[] compressed = new byte[data.remaining()];
+            data.get(compressed);
+            return McRegionChunkStore
+                .readLevelTag(new NBTInputStream(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+        } else {
+            throw new DataException("MCRegion chunk at " + position + " has an unsupported version of " + version);
+        }
+    }
+
+    private Decoder borrowDecoder() {
+        synchronized (idleDecoders) {
+            Decoder decoder = idleDecoders.poll();
+            return decoder != null ? decoder : new Decoder();
+        }
+    }
+
+    private void releaseDecoder(Decoder decoder) {
+        synchronized (idleDecoders) {
+            if (closed) {
+                decoder.inflater.end();
+            } else {
+                idleDecoders.push(decoder);
+            }
+        }
+    }
+
+    /**
+     * Get a mapped region file, mapping it if it is not mapped yet.
+     *
+     * @param filename the normalized filename of the region
+     * @return the region
+     * @throws IOException           thrown on I/O error
+     * @throws MissingChunkException thrown if the region file does not exist
+     */
+    private MappedRegion getRegion(String filename) throws IOException, DataException {
+        MappedRegion region = regions.get(filename);
+        if (region != null) {
+            return region;
+        }
+
+        File file = getRegionFiles().get(filename.toLowerCase());
+        if (file == null || !file.isFile()) {
+            // The directory may have changed since it was listed
+            regionFiles = null;
+            file = getRegionFiles().get(filename.toLowerCase());
+            if (file == null) {
+                throw new MissingChunkException();
+            }
+        }
+
+        region = new MappedRegion(file);
+        regions.put(filename, region);
+        return region;
+    }
+
+    /**
+     * Get a map of normalized, lower case region file names to files.
+     *
+     * <p>
+     * The directory is listed once instead of once per chunk.
+     * </p>
+     */
+    private Map<String, File> getRegionFiles() throws MissingChunkException {
+        if (regionFiles == null) {
+            File[] files = new File(path, "region").listFiles();
+            if (files == null) {
+                throw new MissingChunkException();
+            }
+
+            Map<String, File> found = new HashMap<String, File>();
+            for (File f : files) {
+                if (REGION_FILE.matcher(f.getName())
+                    .matches()) {
+                    // allow either file extension, both work the same
+                    found.put(
+                        f.getName()
+                            .replaceFirst("mcr$", "mca")
+                            .toLowerCase(),
+                        f);
+                }
+            }
+            regionFiles = found;
+        }
+        return regionFiles;
+    }
+
+    @Override
+    public boolean isValid() {
+        return new File(path, "region").isDirectory()
+            || new File(path, "DIM-1" + File.separator + "region").isDirectory();
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        // Mappings are released when they are garbage collected
+        regions.clear();
+
+        synchronized (idleDecoders) {
+            closed = true;
+            for (Decoder decoder : idleDecoders) {
+                decoder.inflater.end();
+            }
+            idleDecoders.clear();
+        }
+    }
+
+    /**
+     * An inflater with its buffers, which is used by one thread at a time.
+     */
+    private static class Decoder {
+
+        private final Inflater inflater = new Inflater();
+        private final byte[] inputBuffer = new byte[16 * 1024];
+        private byte[] outputBuffer = new byte[64 * 1024];
+
+        /**
+         * Inflate the remaining bytes of the buffer into {@link #outputBuffer},
+         * growing it if needed.
+         *
+         * @return the number of inflated bytes
+         */
+        int inflate(ByteBuffer data) throws DataException {
+            inflater.reset();
+            int length = 0;
+
+            try {
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        if (!data.hasRemaining()) {
+                            throw new DataException("Chunk data ended before the end of the compressed stream");
+                        }
+                        int count = Math.min(data.remaining(), inputBuffer.length);
+                        data.get(inputBuffer, 0, count);
+                        inflater.setInput(inputBuffer, 0, count);
+                    }
+
+                    if (length == outputBuffer.length) {
+                        byte[] grown = new byte[outputBuffer.length * 2];
+                        System.arraycopy(outputBuffer, 0, grown, 0, length);
+                        outputBuffer = grown;
+                    }
+
+                    int inflated = inflater.inflate(outputBuffer, length, outputBuffer.length - length);
+                    if (inflated == 0 && inflater.needsDictionary()) {
+                        throw new DataException("Chunk data requires a preset dictionary");
+                    }
+                    length += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new DataException("Failed to inflate chunk: " + e.getMessage());
+            }
+
+            return length;
+        }
+    }
+
+    /**
+     * A region file that has been mapped into memory.
+     */
+    private static class MappedRegion {
+
+        private final ByteBuffer buffer;
+
+        MappedRegion(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                // The mapping stays valid after the channel is closed
+                FileChannel channel = raf.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * Get a buffer over the chunk's version byte and compressed data.
+         *
+         * @param position the chunk position
+         * @return a new buffer positioned at the version byte
+         * @throws DataException thrown if the chunk does not exist or is corrupt
+         */
+        ByteBuffer getChunkData(Vector2D position) throws DataException {
+            int x = position.getBlockX() & 31;
+            int z = position.getBlockZ() & 31;
+
+            if (buffer.capacity() < McRegionReader.SECTOR_BYTES) {
+                throw new DataException("MCRegion file is too short to contain a header");
+            }
+
+            int offset = buffer.getInt(4 * (x + z * 32));
+
+            // The chunk hasn't been generated
+            if (offset == 0) {
+                throw new DataException("The chunk at " + x + "," + z + " is not generated");
+            }
+
+            long start = (long) (offset >>> 8) * McRegionReader.SECTOR_BYTES;
+            int numSectors = offset & 0xFF;
+
+            if (start + McRegionReader.CHUNK_HEADER_SIZE > buffer.capacity()) {
+                throw new DataException("MCRegion chunk at " + x + "," + z + " lies outside of the file");
+            }
+
+            int length = buffer.getInt((int) start);
+
+            if (length < 1 || length > McRegionReader.SECTOR_BYTES * numSectors
+                || start + 4 + length > buffer.capacity()) {
+                throw new DataException("MCRegion chunk at " + x + "," + z + " has an invalid length of " + length);
+            }
+
+            ByteBuffer data = buffer.duplicate();
+            data.limit((int) start + 4 + length);
+            data.position((int) start + 4);
+            return data;
+        }
+    }
+
+}
@@ -67,7 +67,18 @@ public abstract class McRegionChunkStore extends ChunkStore {
         McRegionReader reader = getReader(position, world.getName());
 
         InputStream stream = reader.getChunkInputStream(position);
-        NBTInputStream nbt = new NBTInputStream(stream);
+        return readLevelTag(new NBTInputStream(stream));
+    }
+
+    /**
+     * Read a chunk's NBT data and return its 'Level' tag.
+     *
+     * @param nbt the stream of uncompressed chunk data, which is closed afterwards
+     * @return the 'Level' tag
+     * @throws ChunkStoreException thrown if the data is not structured as expected
+     * @throws IOException         thrown on I/O error
+     */
+    static CompoundTag readLevelTag(NBTInputStream nbt) throws ChunkStoreException, IOException {
         Tag tag;
 
         try {
@@ -21,8 +21,9 @@ package com.sk89q.worldedit.world.storage;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.regex.Pattern;
+import java.util.List;
 import java.util.zip.ZipException;
 
 import com.sk89q.worldedit.world.DataException;
@@ -36,9 +37,38 @@ import de.schlichtherle.util.zip.ZipFile;
  */
 public class TrueZipMcRegionChunkStore extends McRegionChunkStore {
 
+    /**
+     * Opens archives with TrueZip.
+     */
+    public static final ZipFilePool.Opener<ZipFile> OPENER = new ZipFilePool.Opener<ZipFile>() {
+
+        @Override
+        public ZipFile open(File file) throws IOException {
+            return new ZipFile(file);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public List<String> getEntryNames(ZipFile archive) {
+            List<String> names = new ArrayList<String>();
+            for (Enumeration<? extends ZipEntry> e = archive.entries(); e.hasMoreElements();) {
+                names.add(
+                    e.nextElement()
+                        .getName());
+            }
+            return names;
+        }
+
+        @Override
+        public void close(ZipFile archive) throws IOException {
+            archive.close();
+        }
+    };
+
     protected File zipFile;
     protected ZipFile zip;
     protected String folder;
+    private final ZipFilePool.Handle<ZipFile> handle;
 
     /**
      * Create an instance. The folder argument lets you choose a folder or
@@ -54,7 +84,8 @@ public class TrueZipMcRegionChunkStore extends McRegionChunkStore {
         this.zipFile = zipFile;
         this.folder = folder;
 
-        zip = new ZipFile(zipFile);
+        handle = ZipFilePool.acquire(zipFile, OPENER);
+        zip = handle.getArchive();
     }
 
     /**
@@ -68,7 +99,8 @@ public class TrueZipMcRegionChunkStore extends McRegionChunkStore {
     public TrueZipMcRegionChunkStore(File zipFile) throws IOException, ZipException {
         this.zipFile = zipFile;
 
-        zip = new ZipFile(zipFile);
+        handle = ZipFilePool.acquire(zipFile, OPENER);
+        zip = handle.getArchive();
     }
 
     /**
@@ -81,7 +113,6 @@ public class TrueZipMcRegionChunkStore extends McRegionChunkStore {
      * @throws DataException
      */
     @Override
-    @SuppressWarnings("unchecked")
     protected InputStream getInputStream(String name, String worldName) throws IOException, DataException {
         // Detect subfolder for the world's files
         if (folder != null) {
@@ -89,26 +120,14 @@ public class TrueZipMcRegionChunkStore extends McRegionChunkStore {
                 name = folder + "/" + name;
             }
         } else {
-            Pattern pattern = Pattern.compile(".*\\.mc[ra]$");
-            // World pattern
-            Pattern worldPattern = Pattern.compile(worldName + "\\$");
-            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
-                ZipEntry testEntry = e.nextElement();
-                // Check for world
-                if (worldPattern.matcher(worldName)
-                    .matches()) {
-                    // Check for file
-                    if (pattern.matcher(testEntry.getName())
-                        .matches()) {
-                        folder = testEntry.getName()
-                            .substring(
-                                0,
-                                testEntry.getName()
-                                    .lastIndexOf("/"));
-                        name = folder + "/" + name;
-                        break;
-                    }
-                }
+            folder = handle.getIndex()
+                .findRegionFolder(worldName);
+            if (folder == null) {
+                folder = handle.getIndex()
+                    .getFirstRegionFolder();
+            }
+            if (folder != null) {
+                name = folder + "/" + name;
             }
 
             // Check if world is found
@@ -132,37 +151,27 @@ public class TrueZipMcRegionChunkStore extends McRegionChunkStore {
      * Get an entry from the ZIP, trying both types of slashes.
      *
      * @param file the file
-     * @return an entry
+     * @return an entry, or null if there is no such entry
      */
     private ZipEntry getEntry(String file) {
-        ZipEntry entry = zip.getEntry(file);
-        if (entry != null) {
-            return entry;
-        }
-        return zip.getEntry(file.replace("/", "\\"));
+        String name = handle.getIndex()
+            .getEntryName(file);
+        return name != null ? zip.getEntry(name) : null;
     }
 
     @Override
     public void close() throws IOException {
-        zip.close();
+        try {
+            super.close();
+        } finally {
+            handle.close();
+        }
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public boolean isValid() {
-        for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
-
-            ZipEntry testEntry = e.nextElement();
-
-            if (testEntry.getName()
-                .matches(".*\\.mcr$")
-                || testEntry.getName()
-                    .matches(".*\\.mca$")) { // TODO: does this need a separate class?
-                return true;
-            }
-        }
-
-        return false;
+        return handle.getIndex()
+            .hasRegionFiles();
     }
 
 }
@@ -0,0 +1,134 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.world.storage;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+/**
+ * An index of the entry names in an archive, built once so that entries
+ * and world folders can be found without enumerating the archive's central
+ * directory again.
+ *
+ * <p>
+ * Names are looked up with forward slashes, whichever type of slash the
+ * archive uses.
+ * </p>
+ */
+public class ZipEntryIndex {
+
+    private static final Pattern REGION_FILE = Pattern.compile(".*\\.mc[ra]$");
+
+    private final Map<String, String> entries = new HashMap<String, String>();
+    private final List<String> regionFolders = new ArrayList<String>();
+
+    /**
+     * Create a new index.
+     *
+     * @param names the names of the entries in the archive
+     */
+    public ZipEntryIndex(Iterable<String> names) {
+        checkNotNull(names);
+
+        for (String name : names) {
+            String normalized = name.replace("\\", "/");
+            if (!entries.containsKey(normalized)) {
+                entries.put(normalized, name);
+            }
+
+            if (REGION_FILE.matcher(normalized)
+                .matches()) {
+                // allow either file extension, both work the same
+                String alias = normalized.replaceFirst("mcr$", "mca");
+                if (!entries.containsKey(alias)) {
+                    entries.put(alias, name);
+                }
+
+                int slash = normalized.lastIndexOf("/");
+                String folder = slash == -1 ? "" : normalized.substring(0, slash);
+                if (!regionFolders.contains(folder)) {
+                    regionFolders.add(folder);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the name of an entry as it is stored in the archive.
+     *
+     * @param name the name of the entry, with forward slashes
+     * @return the stored name, or null if there is no such entry
+     */
+    @Nullable
+    public String getEntryName(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Return whether the archive contains the given file or directory.
+     *
+     * @param name the name of the file or directory, with forward slashes
+     * @return true if the archive contains it
+     */
+    public boolean contains(String name) {
+        return entries.containsKey(name) || entries.containsKey(name + "/");
+    }
+
+    /**
+     * Return whether the archive contains any McRegion or Anvil region files.
+     *
+     * @return true if there are region files
+     */
+    public boolean hasRegionFiles() {
+        return !regionFolders.isEmpty();
+    }
+
+    /**
+     * Find the folder containing the region files of a world, which is
+     * the first folder within the world's folder with region files.
+     *
+     * @param worldName the name of the world
+     * @return the folder, or null if it was not found
+     */
+    @Nullable
+    public String findRegionFolder(String worldName) {
+        for (String folder : regionFolders) {
+            if (folder.startsWith(worldName + "/")) {
+                return folder;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the first folder in the archive that contains region files.
+     *
+     * @return the folder, or null if there are no region files
+     */
+    @Nullable
+    public String getFirstRegionFolder() {
+        return regionFolders.isEmpty() ? null : regionFolders.get(0);
+    }
+
+}
@@ -0,0 +1,282 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.world.storage;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Keeps archives open between uses, along with an index of their entries.
+ *
+ * <p>
+ * Opening a large archive means reading its central directory, which can
+ * take a long time for big backups. Handles that are released are kept
+ * open for a while so that the next command that uses the same archive
+ * can skip that. An archive is opened again if its size or modification
+ * time has changed since it was opened.
+ * </p>
+ */
+public final class ZipFilePool {
+
+    private static final Logger logger = Logger.getLogger(ZipFilePool.class.getCanonicalName());
+
+    /**
+     * The maximum number of archives that are kept open while unused.
+     */
+    private static final int MAX_IDLE = 4;
+
+    /**
+     * The time after which an unused archive is closed.
+     */
+    private static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Opens archives with {@link java.util.zip}.
+     */
+    public static final Opener<ZipFile> ZIP_FILES = new Opener<ZipFile>() {
+
+        @Override
+        public ZipFile open(File file) throws IOException {
+            return new ZipFile(file);
+        }
+
+        @Override
+        public List<String> getEntryNames(ZipFile archive) {
+            List<String> names = new ArrayList<String>(archive.size());
+            for (Enumeration<? extends ZipEntry> e = archive.entries(); e.hasMoreElements();) {
+                names.add(
+                    e.nextElement()
+                        .getName());
+            }
+            return names;
+        }
+
+        @Override
+        public void close(ZipFile archive) throws IOException {
+            archive.close();
+        }
+    };
+
+    private static final Map<String, PooledArchive<?>> archives = new LinkedHashMap<String, PooledArchive<?>>();
+
+    private ZipFilePool() {}
+
+    /**
+     * Get a handle to an archive, opening it if it is not already open or
+     * if it has changed since it was opened.
+     *
+     * <p>
+     * The handle must be closed once it is no longer needed.
+     * </p>
+     *
+     * @param file   the archive
+     * @param opener the opener of the archive
+     * @param <T>    the type of archive
+     * @return a handle
+     * @throws IOException thrown if the archive cannot be opened
+     */
+    public static synchronized <T> Handle<T> acquire(File file, Opener<T> opener) throws IOException {
+        checkNotNull(file);
+        checkNotNull(opener);
+
+        long now = System.currentTimeMillis();
+        closeIdle(now);
+
+        String key = opener.getClass()
+            .getName() + ":"
+            + file.getAbsolutePath();
+
+        @SuppressWarnings("unchecked")
+        PooledArchive<T> archive = (PooledArchive<T>) archives.get(key);
+
+        if (archive != null && (archive.lastModified != file.lastModified() || archive.length != file.length())) {
+            archives.remove(key);
+            archive.stale = true;
+            if (archive.references == 0) {
+                archive.close();
+            }
+            archive = null;
+        }
+
+        if (archive == null) {
+            archive = new PooledArchive<T>(file, opener);
+            archives.put(key, archive);
+        }
+
+        archive.references++;
+        return new Handle<T>(archive);
+    }
+
+    private static synchronized void release(PooledArchive<?> archive) {
+        archive.references--;
+        if (archive.references == 0) {
+            archive.lastUsed = System.currentTimeMillis();
+            if (archive.stale) {
+                archive.close();
+            } else {
+                closeIdle(archive.lastUsed);
+            }
+        }
+    }
+
+    /**
+     * Close archives that have not been used for a while, and the least
+     * recently used archives beyond the limit of unused archives.
+     *
+     * @param now the current time
+     */
+    private static void closeIdle(long now) {
+        int idle = 0;
+        for (PooledArchive<?> archive : archives.values()) {
+            if (archive.references == 0) {
+                idle++;
+            }
+        }
+
+        Iterator<PooledArchive<?>> it = archives.values()
+            .iterator();
+        while (it.hasNext()) {
+            PooledArchive<?> archive = it.next();
+            if (archive.references == 0 && (idle > MAX_IDLE || now - archive.lastUsed > IDLE_TIMEOUT)) {
+                it.remove();
+                archive.close();
+                idle--;
+            }
+        }
+    }
+
+    /**
+     * Opens, indexes and closes one type of archive.
+     *
+     * @param <T> the type of archive
+     */
+    public interface Opener<T> {
+
+        /**
+         * Open an archive.
+         *
+         * @param file the file
+         * @return the archive
+         * @throws IOException thrown on I/O error
+         */
+        T open(File file) throws IOException;
+
+        /**
+         * Get the names of all entries in an archive.
+         *
+         * @param archive the archive
+         * @return a list of names
+         */
+        List<String> getEntryNames(T archive);
+
+        /**
+         * Close an archive.
+         *
+         * @param archive the archive
+         * @throws IOException thrown on I/O error
+         */
+        void close(T archive) throws IOException;
+
+    }
+
+    /**
+     * A handle to a pooled archive. Closing the handle returns the
+     * archive to the pool.
+     *
+     * @param <T> the type of archive
+     */
+    public static final class Handle<T> implements Closeable {
+
+        private final PooledArchive<T> archive;
+        private boolean closed = false;
+
+        private Handle(PooledArchive<T> archive) {
+            this.archive = archive;
+        }
+
+        /**
+         * Get the archive, which may be shared with other handles.
+         *
+         * @return the archive
+         */
+        public T getArchive() {
+            return archive.archive;
+        }
+
+        /**
+         * Get the index of the archive's entries.
+         *
+         * @return the index
+         */
+        public ZipEntryIndex getIndex() {
+            return archive.index;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                release(archive);
+            }
+        }
+    }
+
+    private static final class PooledArchive<T> {
+
+        private final File file;
+        private final Opener<T> opener;
+        private final T archive;
+        private final ZipEntryIndex index;
+        private final long lastModified;
+        private final long length;
+        private int references = 0;
+        private long lastUsed;
+        private boolean stale = false;
+
+        private PooledArchive(File file, Opener<T> opener) throws IOException {
+            this.file = file;
+            this.opener = opener;
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            this.archive = opener.open(file);
+            this.index = new ZipEntryIndex(opener.getEntryNames(archive));
+        }
+
+        private void close() {
+            try {
+                opener.close(archive);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to close " + file.getAbsolutePath(), e);
+            }
+        }
+    }
+
+}
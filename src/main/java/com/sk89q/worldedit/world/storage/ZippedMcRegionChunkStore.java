@@ -21,8 +21,6 @@ package com.sk89q.worldedit.world.storage;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Enumeration;
-import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
@@ -37,6 +35,7 @@ public class ZippedMcRegionChunkStore extends McRegionChunkStore {
     protected File zipFile;
     protected ZipFile zip;
     protected String folder;
+    private final ZipFilePool.Handle<ZipFile> handle;
 
     /**
      * Create an instance. The folder argument lets you choose a folder or
@@ -52,7 +51,8 @@ public class ZippedMcRegionChunkStore extends McRegionChunkStore {
         this.zipFile = zipFile;
         this.folder = folder;
 
-        zip = new ZipFile(zipFile);
+        handle = ZipFilePool.acquire(zipFile, ZipFilePool.ZIP_FILES);
+        zip = handle.getArchive();
     }
 
     /**
@@ -66,7 +66,8 @@ public class ZippedMcRegionChunkStore extends McRegionChunkStore {
     public ZippedMcRegionChunkStore(File zipFile) throws IOException, ZipException {
         this.zipFile = zipFile;
 
-        zip = new ZipFile(zipFile);
+        handle = ZipFilePool.acquire(zipFile, ZipFilePool.ZIP_FILES);
+        zip = handle.getArchive();
     }
 
     @Override
@@ -77,24 +78,10 @@ public class ZippedMcRegionChunkStore extends McRegionChunkStore {
                 name = folder + "/" + name;
             }
         } else {
-            Pattern pattern = Pattern.compile(".*\\.mc[ra]$");
-            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
-                ZipEntry testEntry = e.nextElement();
-                // Check for world
-                if (testEntry.getName()
-                    .startsWith(worldName + "/")) {
-                    if (pattern.matcher(testEntry.getName())
-                        .matches()) { // does entry end in .mca
-                        folder = testEntry.getName()
-                            .substring(
-                                0,
-                                testEntry.getName()
-                                    .lastIndexOf("/"));
-                        name = folder + "/" + name;
-                        break;
-                    }
-
-                }
+            folder = handle.getIndex()
+                .findRegionFolder(worldName);
+            if (folder != null) {
+                name = folder + "/" + name;
             }
 
             // Check if world is found
@@ -118,35 +105,27 @@ public class ZippedMcRegionChunkStore extends McRegionChunkStore {
      * Get an entry from the ZIP, trying both types of slashes.
      *
      * @param file the file
-     * @return a ZIP entry
+     * @return an entry, or null if there is no such entry
      */
     private ZipEntry getEntry(String file) {
-        ZipEntry entry = zip.getEntry(file);
-        if (entry != null) {
-            return entry;
-        }
-        return zip.getEntry(file.replace("/", "\\"));
+        String name = handle.getIndex()
+            .getEntryName(file);
+        return name != null ? zip.getEntry(name) : null;
     }
 
     @Override
     public void close() throws IOException {
-        zip.close();
+        try {
+            super.close();
+        } finally {
+            handle.close();
+        }
     }
 
     @Override
     public boolean isValid() {
-        for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
-
-            ZipEntry testEntry = e.nextElement();
-
-            if (testEntry.getName()
-                .matches(".*\\.mcr$")
-                || testEntry.getName()
-                    .matches(".*\\.mca$")) { // TODO: does this need a separate class?
-                return true;
-            }
-        }
-
-        return false;
+        return handle.getIndex()
+            .hasRegionFiles();
     }
+
 }
@@ -0,0 +1,94 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.jnbt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class NBTOutputStreamTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        int[] ints = new int[100000];
+        byte[] bytes = new byte[200000];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = i * 31 - 7;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+
+        Map<String, Tag> values = new HashMap<String, Tag>();
+        values.put("Ints", new IntArrayTag(ints));
+        values.put("Bytes", new ByteArrayTag(bytes));
+        values.put("Long", new LongTag(Long.MIN_VALUE + 3));
+        values.put("Double", new DoubleTag(Math.PI));
+        values.put("Name", new StringTag("test"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NBTOutputStream nbtStream = new NBTOutputStream(out);
+        nbtStream.writeNamedTag("Root", new CompoundTag(values));
+        nbtStream.close();
+
+        CompoundTag root = read(out.toByteArray(), "Root");
+        assertArrayEquals(ints, root.getIntArray("Ints"));
+        assertArrayEquals(bytes, root.getByteArray("Bytes"));
+        assertEquals(Long.MIN_VALUE + 3, root.getLong("Long"));
+        assertEquals(Math.PI, root.getDouble("Double"), 0);
+        assertEquals("test", root.getString("Name"));
+    }
+
+    @Test
+    public void testStreamedCompound() throws IOException {
+        int[] ints = { 1, -2, 3 };
+        byte[] bytes = { 4, 5, -6 };
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NBTOutputStream nbtStream = new NBTOutputStream(out);
+        nbtStream.writeCompoundStart("Root");
+        nbtStream.writeNamedTag("Value", new IntTag(42));
+        nbtStream.writeIntArrayTag("Ints", ints);
+        nbtStream.writeByteArrayTag("Bytes", bytes);
+        nbtStream.writeCompoundEnd();
+        nbtStream.flush();
+
+        CompoundTag root = read(out.toByteArray(), "Root");
+        assertEquals(42, root.getInt("Value"));
+        assertArrayEquals(ints, root.getIntArray("Ints"));
+        assertArrayEquals(bytes, root.getByteArray("Bytes"));
+    }
+
+    private static CompoundTag read(byte[] data, String expectedName) throws IOException {
+        NBTInputStream in = new NBTInputStream(new ByteArrayInputStream(data));
+        try {
+            NamedTag tag = in.readNamedTag();
+            assertEquals(expectedName, tag.getName());
+            return (CompoundTag) tag.getTag();
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.sk89q.worldedit.extent.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.extent.NullExtent;
+
+/**
+ * Tests {@link SectionSnapshotExtent}.
+ */
+public class SectionSnapshotExtentTest {
+
+    /**
+     * Blocks whose type and data value depend on their position.
+     */
+    private static final NullExtent BLOCKS = new NullExtent() {
+
+        @Override
+        public BaseBlock getBlock(Vector position) {
+            return new BaseBlock(
+                position.getBlockX() & 255,
+                (position.getBlockY() + position.getBlockZ()) % (BaseBlock.MAX_DATA + 1));
+        }
+
+        @Override
+        public BaseBlock getLazyBlock(Vector position) {
+            return getBlock(position);
+        }
+    };
+
+    @Test
+    public void testLoad() throws Exception {
+        final SectionSnapshotExtent snapshot = new SectionSnapshotExtent(BLOCKS);
+        snapshot.load(20, 40, -3);
+
+        // Copied sections can be read from other threads
+        assertEquals(BLOCKS.getBlock(new Vector(17, 35, -9)), readOnOtherThread(snapshot, new Vector(17, 35, -9)));
+        assertEquals(BLOCKS.getBlock(new Vector(31, 47, -1)), readOnOtherThread(snapshot, new Vector(31, 47, -1)));
+    }
+
+    @Test
+    public void testWideData() throws Exception {
+        final int maxData = BaseBlock.MAX_DATA;
+        BaseBlock.MAX_DATA = (1 << 16) - 1;
+        try {
+            // Data values that don't fit in 4 bits are read from the extent
+            final SectionSnapshotExtent snapshot = new SectionSnapshotExtent(BLOCKS);
+            snapshot.load(0, 0, 0);
+            for (int i = 0; i < 16; ++i) {
+                final Vector position = new Vector(i, i, 15);
+                final BaseBlock block = snapshot.getLazyBlock(position);
+                assertEquals(i, block.getType());
+                assertEquals(i + 15, block.getData());
+            }
+        } finally {
+            BaseBlock.MAX_DATA = maxData;
+        }
+    }
+
+    private static BaseBlock readOnOtherThread(final SectionSnapshotExtent snapshot, final Vector position)
+        throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            return executor.submit(new Callable<BaseBlock>() {
+
+                @Override
+                public BaseBlock call() {
+                    return snapshot.getLazyBlock(position);
+                }
+            })
+                .get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
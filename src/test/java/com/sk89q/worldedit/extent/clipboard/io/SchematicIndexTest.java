@@ -0,0 +1,206 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.sk89q.worldedit.extent.clipboard.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.blocks.BlockID;
+import com.sk89q.worldedit.extent.clipboard.BlockArrayClipboard;
+import com.sk89q.worldedit.regions.CuboidRegion;
+import com.sk89q.worldedit.world.registry.LegacyWorldData;
+
+/**
+ * Tests {@link SchematicIndex}.
+ */
+public class SchematicIndexTest {
+
+    /**
+     * Runs tasks on the calling thread.
+     */
+    private static final Executor CALLER = new Executor() {
+
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Fails if an index tries to read any file.
+     */
+    private static final Executor UNUSED = new Executor() {
+
+        @Override
+        public void execute(Runnable command) {
+            fail("An unchanged schematic was read again");
+        }
+    };
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        writeSchematic(new File(dir, "house.wess"));
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            assertTrue(file.delete());
+        }
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        assertIndexed(new SchematicIndex(dir, CALLER).refresh());
+    }
+
+    @Test
+    public void testRefreshInBackground() throws Exception {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        SchematicIndex index = new SchematicIndex(dir, queue(tasks));
+
+        // Until the file has been read, only what the directory says is known
+        List<SchematicIndex.Entry> entries = index.refresh();
+        assertEquals(1, entries.size());
+        assertEquals("house.wess", entries.get(0).getPath());
+        assertEquals(ClipboardFormat.SECTIONED, entries.get(0).getFormat());
+        assertNull(entries.get(0).getDimensions());
+
+        // A file waiting to be read is not queued twice
+        index.refresh();
+        assertEquals(1, tasks.size());
+
+        tasks.get(0).run();
+        assertIndexed(index.refresh());
+    }
+
+    @Test
+    public void testSaveOnce() throws Exception {
+        writeSchematic(new File(dir, "tower.wess"));
+        File indexFile = new File(dir, SchematicIndex.INDEX_FILE_NAME);
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        SchematicIndex index = new SchematicIndex(dir, queue(tasks));
+        index.refresh();
+        assertEquals(2, tasks.size());
+        String unindexed = Files.toString(indexFile, Charsets.UTF_8);
+
+        // The index is only written once the last queued file has been read
+        tasks.get(0).run();
+        assertEquals(unindexed, Files.toString(indexFile, Charsets.UTF_8));
+        tasks.get(1).run();
+
+        List<SchematicIndex.Entry> entries = new SchematicIndex(dir, UNUSED).refresh();
+        assertEquals(2, entries.size());
+        for (SchematicIndex.Entry entry : entries) {
+            assertEquals(new Vector(3, 2, 4), entry.getDimensions());
+        }
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        new SchematicIndex(dir, CALLER).refresh();
+        assertIndexed(new SchematicIndex(dir, UNUSED).refresh());
+    }
+
+    @Test
+    public void testLoadCorrupt() throws Exception {
+        writeIndex("{\"house.wess\": {");
+        assertIndexed(new SchematicIndex(dir, CALLER).refresh());
+
+        // Vectors used to be written as objects, which couldn't be read back
+        writeIndex("{\"house.wess\":{\"path\":\"house.wess\",\"dimensions\":{\"x\":3.0,\"y\":2.0,\"z\":4.0}}}");
+        assertIndexed(new SchematicIndex(dir, CALLER).refresh());
+
+        writeIndex("{\"house.wess\":null}");
+        assertIndexed(new SchematicIndex(dir, CALLER).refresh());
+    }
+
+    private static Executor queue(final List<Runnable> tasks) {
+        return new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+    }
+
+    private static void assertIndexed(List<SchematicIndex.Entry> entries) {
+        assertEquals(1, entries.size());
+        SchematicIndex.Entry entry = entries.get(0);
+        assertEquals("house.wess", entry.getPath());
+        assertEquals(ClipboardFormat.SECTIONED, entry.getFormat());
+        assertEquals(new Vector(3, 2, 4), entry.getDimensions());
+        assertEquals(new Vector(-1, 0, -2), entry.getOffset());
+        assertEquals(24, entry.getVolume());
+        assertEquals(5, entry.getBlockCount());
+        assertEquals(2, entry.getDistinctBlocks());
+        assertEquals(Long.valueOf(4), entry.getPalette().get(BlockID.STONE));
+        assertEquals(Long.valueOf(1), entry.getPalette().get(BlockID.GLASS));
+        assertFalse(entry.getHash().isEmpty());
+    }
+
+    private void writeIndex(String json) throws IOException {
+        FileWriter writer = new FileWriter(new File(dir, SchematicIndex.INDEX_FILE_NAME));
+        try {
+            writer.write(json);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void writeSchematic(File file) throws Exception {
+        BlockArrayClipboard clipboard = new BlockArrayClipboard(
+            new CuboidRegion(new Vector(10, 64, 20), new Vector(12, 65, 23)));
+        clipboard.setOrigin(new Vector(11, 64, 22));
+        for (int z = 20; z < 24; z++) {
+            clipboard.setBlock(new Vector(10, 64, z), new BaseBlock(BlockID.STONE));
+        }
+        clipboard.setBlock(new Vector(12, 65, 23), new BaseBlock(BlockID.GLASS));
+
+        SectionedSchematicWriter writer = new SectionedSchematicWriter(new FileOutputStream(file));
+        try {
+            writer.write(clipboard, LegacyWorldData.getInstance());
+        } finally {
+            writer.close();
+        }
+    }
+}
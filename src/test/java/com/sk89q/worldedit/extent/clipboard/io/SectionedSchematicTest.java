@@ -0,0 +1,217 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.extent.clipboard.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.sk89q.jnbt.CompoundTag;
+import com.sk89q.jnbt.StringTag;
+import com.sk89q.jnbt.Tag;
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.blocks.BlockID;
+import com.sk89q.worldedit.extent.clipboard.BlockArrayClipboard;
+import com.sk89q.worldedit.extent.clipboard.Clipboard;
+import com.sk89q.worldedit.regions.CuboidRegion;
+import com.sk89q.worldedit.regions.Region;
+import com.sk89q.worldedit.world.registry.LegacyWorldData;
+import com.sk89q.worldedit.world.registry.WorldData;
+
+/**
+ * Tests {@link SectionedSchematicWriter} and {@link SectionedSchematicReader}.
+ */
+public class SectionedSchematicTest {
+
+    private static final WorldData DATA = LegacyWorldData.getInstance();
+
+    /**
+     * The minimum point of the test clipboard, which isn't aligned to sections.
+     */
+    private static final Vector MIN = new Vector(-7, 60, 5);
+
+    /**
+     * The size of the test clipboard, which is 3 x 3 x 2 sections with the
+     * topmost layer of sections only holding air.
+     */
+    private static final Vector SIZE = new Vector(35, 40, 18);
+
+    private static final Vector ORIGIN = new Vector(2, 64, 9);
+
+    @Test
+    public void testRead() throws Exception {
+        Clipboard clipboard = createClipboard();
+        Clipboard read = new SectionedSchematicReader(new ByteArrayInputStream(write(clipboard))).read(DATA);
+
+        assertEquals(clipboard.getRegion().getMinimumPoint(), read.getRegion().getMinimumPoint());
+        assertEquals(clipboard.getRegion().getMaximumPoint(), read.getRegion().getMaximumPoint());
+        assertEquals(ORIGIN, read.getOrigin());
+        assertSameBlocks(clipboard, read);
+    }
+
+    @Test
+    public void testReadBounds() throws Exception {
+        Clipboard clipboard = createClipboard();
+        Region bounds = new CuboidRegion(MIN.add(10, -5, 3), MIN.add(20, 17, 30));
+        Clipboard read = new SectionedSchematicReader(new ByteArrayInputStream(write(clipboard))).read(DATA, bounds);
+
+        assertEquals(MIN.add(10, 0, 3), read.getRegion().getMinimumPoint());
+        assertEquals(MIN.add(20, 17, SIZE.getBlockZ() - 1), read.getRegion().getMaximumPoint());
+        assertEquals(ORIGIN, read.getOrigin());
+        assertSameBlocks(clipboard, read);
+    }
+
+    @Test
+    public void testReadSection() throws Exception {
+        Clipboard clipboard = createClipboard();
+        byte[] bytes = write(clipboard);
+        File file = File.createTempFile("sectioned", ".wess");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+
+            // Sections can be read in any order from a file
+            SectionedSchematicReader reader = new SectionedSchematicReader(
+                new RandomAccessFile(file, "r").getChannel());
+            try {
+                assertEquals(new Vector(3, 3, 2), reader.getSectionCounts());
+                for (int sy = 2; sy >= 0; sy--) {
+                    for (int sz = 1; sz >= 0; sz--) {
+                        for (int sx = 2; sx >= 0; sx--) {
+                            assertSection(clipboard, reader.readSection(DATA, sx, sy, sz), sx, sy, sz);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            assertTrue(file.delete());
+        }
+
+        // Streams can only be read forward
+        SectionedSchematicReader reader = new SectionedSchematicReader(new ByteArrayInputStream(bytes));
+        assertSection(clipboard, reader.readSection(DATA, 1, 0, 0), 1, 0, 0);
+        assertSection(clipboard, reader.readSection(DATA, 2, 1, 1), 2, 1, 1);
+        assertSection(clipboard, reader.readSection(DATA, 0, 2, 1), 0, 2, 1);
+    }
+
+    @Test
+    public void testEmptySections() throws Exception {
+        BlockArrayClipboard clipboard = new BlockArrayClipboard(new CuboidRegion(MIN, MIN.add(SIZE).subtract(Vector.ONE)));
+        clipboard.setOrigin(ORIGIN);
+        clipboard.setBlock(MIN.add(17, 3, 1), new BaseBlock(BlockID.STONE));
+        byte[] bytes = write(clipboard);
+
+        // Sections of only air take no space beyond their index entry
+        assertTrue(bytes.length < write(createClipboard()).length / 10);
+
+        Clipboard read = new SectionedSchematicReader(new ByteArrayInputStream(bytes)).read(DATA);
+        assertSameBlocks(clipboard, read);
+
+        Clipboard section = new SectionedSchematicReader(new ByteArrayInputStream(bytes)).readSection(DATA, 0, 0, 0);
+        assertSection(clipboard, section, 0, 0, 0);
+        for (BlockVector pt : section.getRegion()) {
+            assertTrue(section.getBlock(pt).isAir());
+        }
+    }
+
+    private static void assertSection(Clipboard expected, Clipboard section, int sx, int sy, int sz) {
+        Vector sectionMin = MIN.add(sx * 16, sy * 16, sz * 16);
+        Vector sectionMax = Vector.getMinimum(sectionMin.add(15, 15, 15), MIN.add(SIZE).subtract(Vector.ONE));
+        assertEquals(sectionMin, section.getRegion().getMinimumPoint());
+        assertEquals(sectionMax, section.getRegion().getMaximumPoint());
+        assertEquals(ORIGIN, section.getOrigin());
+        assertSameBlocks(expected, section);
+    }
+
+    /**
+     * Check that the blocks within the region of a read clipboard match the
+     * clipboard that was written.
+     */
+    private static void assertSameBlocks(Clipboard expected, Clipboard actual) {
+        for (BlockVector pt : actual.getRegion()) {
+            BaseBlock expectedBlock = expected.getBlock(pt);
+            BaseBlock actualBlock = actual.getBlock(pt);
+            assertEquals(pt.toString(), expectedBlock.getType(), actualBlock.getType());
+            assertEquals(pt.toString(), expectedBlock.getData(), actualBlock.getData());
+            assertEquals(pt.toString(), expectedBlock.hasNbtData(), actualBlock.hasNbtData());
+            if (expectedBlock.hasNbtData()) {
+                assertEquals(expectedBlock.getNbtId(), actualBlock.getNbtId());
+                assertEquals(
+                    expectedBlock.getNbtData().getString("CustomName"),
+                    actualBlock.getNbtData().getString("CustomName"));
+            }
+        }
+    }
+
+    private static byte[] write(Clipboard clipboard) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SectionedSchematicWriter writer = new SectionedSchematicWriter(bytes);
+        writer.write(clipboard, DATA);
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Create a clipboard with enough different blocks that some sections
+     * need more than 256 palette entries, a few chests with NBT data, and
+     * only air in the topmost layer of sections.
+     */
+    private static Clipboard createClipboard() throws Exception {
+        BlockArrayClipboard clipboard = new BlockArrayClipboard(new CuboidRegion(MIN, MIN.add(SIZE).subtract(Vector.ONE)));
+        clipboard.setOrigin(ORIGIN);
+
+        for (int y = 0; y < 32; y++) {
+            for (int z = 0; z < SIZE.getBlockZ(); z++) {
+                for (int x = 0; x < SIZE.getBlockX(); x++) {
+                    if ((x + y + z) % 5 != 0) {
+                        clipboard.setBlock(MIN.add(x, y, z), new BaseBlock(1 + (x * 3 + z * 7) % 40, y & 15));
+                    }
+                }
+            }
+        }
+
+        clipboard.setBlock(MIN.add(3, 4, 5), createChest("first"));
+        clipboard.setBlock(MIN.add(20, 17, 16), createChest("second"));
+        clipboard.setBlock(MIN.add(34, 31, 17), createChest("third"));
+        return clipboard;
+    }
+
+    private static BaseBlock createChest(String name) {
+        Map<String, Tag> values = new HashMap<String, Tag>();
+        values.put("id", new StringTag("Chest"));
+        values.put("CustomName", new StringTag(name));
+        return new BaseBlock(BlockID.CHEST, 3, new CompoundTag(values));
+    }
+
+}
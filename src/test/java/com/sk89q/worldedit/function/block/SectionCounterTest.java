@@ -0,0 +1,145 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.function.block;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.sk89q.worldedit.BlockVector2D;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.extent.NullExtent;
+import com.sk89q.worldedit.extent.SectionExtent;
+import com.sk89q.worldedit.regions.CuboidRegion;
+import com.sk89q.worldedit.regions.EllipsoidRegion;
+import com.sk89q.worldedit.regions.Polygonal2DRegion;
+import com.sk89q.worldedit.regions.Region;
+import com.sk89q.worldedit.util.Countable;
+import com.sk89q.worldedit.world.World;
+
+/**
+ * Tests {@link SectionCounter}.
+ */
+public class SectionCounterTest {
+
+    /**
+     * An extent with types from 0 to 49 and data values from 0 to 15 mixed
+     * along every axis.
+     */
+    private static final SectionExtent EXTENT = new MixedExtent(15);
+
+    @Test
+    public void testCount() throws Exception {
+        // Enough sections for several batches on the worker threads
+        assertCounts(new CuboidRegion(new Vector(-40, -5, -30), new Vector(260, 40, 170)));
+        assertCounts(new CuboidRegion(new Vector(3, 4, 5), new Vector(3, 4, 5)));
+        assertCounts(new EllipsoidRegion(new Vector(10, 20, -7), new Vector(45, 18, 30)));
+        assertCounts(
+            new Polygonal2DRegion(
+                (World) null,
+                Arrays.asList(
+                    new BlockVector2D(-20, -20),
+                    new BlockVector2D(60, -5),
+                    new BlockVector2D(10, 70),
+                    new BlockVector2D(-35, 30)),
+                -3,
+                25));
+    }
+
+    @Test
+    public void testWideData() throws Exception {
+        final int maxData = BaseBlock.MAX_DATA;
+        BaseBlock.MAX_DATA = (1 << 16) - 1;
+        try {
+            assertEquals(false, SectionCounter.isSupported());
+
+            final MixedExtent extent = new MixedExtent(63);
+            final Region region = new CuboidRegion(new Vector(-10, 0, -10), new Vector(30, 20, 30));
+            final Map<BaseBlock, Integer> expected = new HashMap<BaseBlock, Integer>();
+            for (Vector pt : region) {
+                final BaseBlock block = extent.getLazyBlock(pt);
+                final Integer amount = expected.get(block);
+                expected.put(block, amount == null ? 1 : amount + 1);
+            }
+
+            final Map<BaseBlock, Integer> actual = new HashMap<BaseBlock, Integer>();
+            for (Countable<BaseBlock> c : SectionCounter.countEach(extent, region)) {
+                assertEquals(null, actual.put(c.getID(), c.getAmount()));
+            }
+            assertEquals(expected, actual);
+        } finally {
+            BaseBlock.MAX_DATA = maxData;
+        }
+    }
+
+    private static void assertCounts(Region region) {
+        int[] expected = new int[SectionCounter.HISTOGRAM_SIZE];
+        for (Vector pt : region) {
+            BaseBlock block = EXTENT.getLazyBlock(pt);
+            expected[block.getType() << 4 | block.getData()]++;
+        }
+
+        assertArrayEquals(expected, SectionCounter.count(EXTENT, region));
+    }
+
+    private static class MixedExtent extends NullExtent implements SectionExtent {
+
+        private final int dataMask;
+
+        private MixedExtent(int dataMask) {
+            this.dataMask = dataMask;
+        }
+
+        @Override
+        public boolean isSectionEmpty(int sectionX, int sectionY, int sectionZ) {
+            return false;
+        }
+
+        @Override
+        public void copySection(int sectionX, int sectionY, int sectionZ, char[] blocks) {
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        BaseBlock block = getLazyBlock(
+                            new Vector((sectionX << 4) + x, (sectionY << 4) + y, (sectionZ << 4) + z));
+                        blocks[y << 8 | z << 4 | x] = (char) (block.getType() << 4 | block.getData());
+                    }
+                }
+            }
+        }
+
+        @Override
+        public BaseBlock getBlock(Vector position) {
+            int x = position.getBlockX();
+            int y = position.getBlockY();
+            int z = position.getBlockZ();
+            return new BaseBlock(Math.abs(x * 7 + y * 3 + z) % 50, (x + 5 * z + y) & dataMask);
+        }
+
+        @Override
+        public BaseBlock getLazyBlock(Vector position) {
+            return getBlock(position);
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.function.mask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.blocks.BlockID;
+import com.sk89q.worldedit.extent.NullExtent;
+
+/**
+ * Tests {@link MaskCompiler}.
+ */
+public class MaskCompilerTest {
+
+    /**
+     * An extent with a different block at every position, with types from
+     * 0 to 39 along X and data values from 0 to 15 along Z.
+     */
+    private static final NullExtent EXTENT = new NullExtent() {
+
+        @Override
+        public BaseBlock getBlock(Vector position) {
+            return new BaseBlock(position.getBlockX(), position.getBlockZ());
+        }
+
+        @Override
+        public BaseBlock getLazyBlock(Vector position) {
+            return getBlock(position);
+        }
+    };
+
+    @Test
+    public void testBlockMasks() throws Exception {
+        final Mask ores = new BlockMask(
+            EXTENT,
+            new BaseBlock(BlockID.GOLD_ORE),
+            new BaseBlock(BlockID.IRON_ORE, -1),
+            new BaseBlock(BlockID.CLOTH, 14));
+        final Mask fuzzy = new FuzzyBlockMask(EXTENT, new BaseBlock(BlockID.STONE, -1), new BaseBlock(BlockID.DIRT, 2));
+
+        assertCompiled(ores, true);
+        assertCompiled(fuzzy, true);
+        assertCompiled(new SolidBlockMask(EXTENT), true);
+        assertCompiled(new ExistingBlockMask(EXTENT), true);
+        assertCompiled(Masks.negate(ores), true);
+        assertCompiled(new MaskUnion(ores, fuzzy, new MaskIntersection(new SolidBlockMask(EXTENT))), true);
+        assertCompiled(new MaskIntersection(new ExistingBlockMask(EXTENT), Masks.negate(new MaskUnion(ores, fuzzy))), true);
+    }
+
+    @Test
+    public void testMixedMasks() throws Exception {
+        final Mask ores = new BlockMask(EXTENT, new BaseBlock(BlockID.COAL_ORE), new BaseBlock(BlockID.CLOTH, -1));
+        final Mask intersection = new MaskIntersection(
+            new OffsetMask(ores, new Vector(1, 0, 0)),
+            new SolidBlockMask(EXTENT),
+            new BoundedHeightMask(1, 2),
+            Masks.negate(ores));
+        assertCompiled(intersection, false);
+
+        final Mask compiled = MaskCompiler.compile(intersection);
+        final Iterator<Mask> children = ((MaskIntersection) compiled).getMasks()
+            .iterator();
+        assertTrue(children.next() instanceof BoundedHeightMask);
+        assertTrue(children.next() instanceof BlockTableMask);
+        assertTrue(children.next() instanceof OffsetMask);
+        assertEquals(false, children.hasNext());
+
+        assertCompiled(new MaskUnion(new BoundedHeightMask(0, 0), ores, new MaskIntersection()), false);
+    }
+
+    @Test
+    public void testWideData() throws Exception {
+        final int maxData = BaseBlock.MAX_DATA;
+        BaseBlock.MAX_DATA = (1 << 16) - 1;
+        try {
+            final Vector position = new Vector(BlockID.CLOTH, 0, 20);
+            final Mask existing = MaskCompiler.compile(new ExistingBlockMask(EXTENT));
+            final Mask cloth = MaskCompiler.compile(new BlockMask(EXTENT, new BaseBlock(BlockID.CLOTH, 20)));
+
+            assertEquals(false, existing instanceof BlockTableMask);
+            assertEquals(false, cloth instanceof BlockTableMask);
+            assertTrue(existing.test(position));
+            assertTrue(cloth.test(position));
+        } finally {
+            BaseBlock.MAX_DATA = maxData;
+        }
+    }
+
+    private static void assertCompiled(Mask mask, boolean table) {
+        final Mask compiled = MaskCompiler.compile(mask);
+        assertEquals(table, compiled instanceof BlockTableMask);
+        for (int x = 0; x < 40; ++x) {
+            for (int y = 0; y < 3; ++y) {
+                for (int z = 0; z < 16; ++z) {
+                    final Vector position = new Vector(x, y, z);
+                    assertEquals(position.toString(), mask.test(position), compiled.test(position));
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.function.visitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.WorldEditException;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.blocks.BlockID;
+import com.sk89q.worldedit.extent.NullExtent;
+import com.sk89q.worldedit.extent.cache.SectionSnapshotExtent;
+import com.sk89q.worldedit.function.RegionFunction;
+import com.sk89q.worldedit.function.mask.BlockMask;
+import com.sk89q.worldedit.function.operation.Operations;
+
+/**
+ * Tests {@link BreadthFirstSearch}.
+ */
+public class BreadthFirstSearchTest {
+
+    /**
+     * A hollow ball of water with a hole in its shell and stone around it.
+     */
+    private static final NullExtent LAKE = new NullExtent() {
+
+        @Override
+        public BaseBlock getBlock(Vector position) {
+            final double distance = position.length();
+            if (distance <= 24 || (distance <= 26 && position.getBlockY() > 20)) {
+                return new BaseBlock(BlockID.STATIONARY_WATER);
+            }
+            if (distance <= 30 && position.getBlockX() > 0) {
+                return new BaseBlock(BlockID.STATIONARY_WATER);
+            }
+            return new BaseBlock(BlockID.STONE);
+        }
+
+        @Override
+        public BaseBlock getLazyBlock(Vector position) {
+            return getBlock(position);
+        }
+    };
+
+    @Test
+    public void testParallel() throws Exception {
+        final Set<BlockVector> sequential = search(false);
+        final Set<BlockVector> parallel = search(true);
+        assertTrue(sequential.size() > 50000);
+        assertEquals(sequential, parallel);
+    }
+
+    private static Set<BlockVector> search(boolean parallel) throws WorldEditException {
+        final SectionSnapshotExtent snapshot = new SectionSnapshotExtent(LAKE);
+        final Set<BlockVector> visited = new HashSet<BlockVector>();
+        final RecursiveVisitor visitor = new RecursiveVisitor(
+            new BlockMask(snapshot, new BaseBlock(BlockID.STATIONARY_WATER)),
+            new RegionFunction() {
+
+                @Override
+                public boolean apply(Vector position) throws WorldEditException {
+                    assertTrue(visited.add(position.toBlockVector()));
+                    return true;
+                }
+            });
+        if (parallel) {
+            visitor.setParallel(snapshot);
+        }
+        visitor.visit(new Vector(0, 0, 0));
+        Operations.completeLegacy(visitor);
+
+        assertEquals(visited.size(), visitor.getAffected());
+        return visited;
+    }
+
+}
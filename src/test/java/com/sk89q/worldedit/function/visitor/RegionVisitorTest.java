@@ -0,0 +1,128 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.function.visitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.blocks.BlockID;
+import com.sk89q.worldedit.extent.NullExtent;
+import com.sk89q.worldedit.extent.SectionExtent;
+import com.sk89q.worldedit.function.RegionMaskingFilter;
+import com.sk89q.worldedit.function.block.Counter;
+import com.sk89q.worldedit.function.mask.BlockMask;
+import com.sk89q.worldedit.function.mask.BoundedHeightMask;
+import com.sk89q.worldedit.function.mask.Mask;
+import com.sk89q.worldedit.function.mask.MaskCompiler;
+import com.sk89q.worldedit.function.mask.MaskIntersection;
+import com.sk89q.worldedit.function.operation.Operations;
+import com.sk89q.worldedit.regions.CuboidRegion;
+import com.sk89q.worldedit.regions.EllipsoidRegion;
+import com.sk89q.worldedit.regions.Region;
+
+/**
+ * Tests {@link RegionVisitor}.
+ */
+public class RegionVisitorTest {
+
+    @Test
+    public void testBoundedMask() throws Exception {
+        assertSkips(new CuboidRegion(new Vector(-20, 0, -20), new Vector(40, 70, 35)));
+        assertSkips(new EllipsoidRegion(new Vector(5, 30, 3), new Vector(30, 35, 20)));
+    }
+
+    private static void assertSkips(Region region) throws Exception {
+        final SectionTestExtent extent = new SectionTestExtent();
+        final Mask mask = MaskCompiler.compile(new MaskIntersection(
+            new BoundedHeightMask(5, 60),
+            new BlockMask(extent, new BaseBlock(BlockID.STONE))));
+
+        int expected = 0;
+        for (Vector pt : region) {
+            if (mask.test(pt)) {
+                expected++;
+            }
+        }
+        assertTrue(expected > 0);
+        extent.read.clear();
+
+        Counter counter = new Counter();
+        RegionVisitor visitor = new RegionVisitor(region, new RegionMaskingFilter(mask, counter));
+        Operations.complete(visitor);
+        assertEquals(expected, counter.getCount());
+
+        for (BlockVector pt : extent.read) {
+            assertTrue(pt.getBlockY() >= 5 && pt.getBlockY() <= 60);
+            assertTrue(!extent.isSectionEmpty(pt.getBlockX() >> 4, pt.getBlockY() >> 4, pt.getBlockZ() >> 4));
+        }
+    }
+
+    /**
+     * An extent where sections with odd coordinates only hold air, and
+     * the other sections hold stone at every third position.
+     */
+    private static class SectionTestExtent extends NullExtent implements SectionExtent {
+
+        private final Set<BlockVector> read = new HashSet<BlockVector>();
+
+        @Override
+        public boolean isSectionEmpty(int sectionX, int sectionY, int sectionZ) {
+            return ((sectionX | sectionY | sectionZ) & 1) != 0;
+        }
+
+        @Override
+        public void copySection(int sectionX, int sectionY, int sectionZ, char[] blocks) {
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        blocks[y << 8 | z << 4 | x] = (char) (getType(
+                            (sectionX << 4) + x,
+                            (sectionY << 4) + y,
+                            (sectionZ << 4) + z) << 4);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public BaseBlock getBlock(Vector position) {
+            read.add(position.toBlockVector());
+            return new BaseBlock(getType(position.getBlockX(), position.getBlockY(), position.getBlockZ()));
+        }
+
+        private int getType(int x, int y, int z) {
+            if (isSectionEmpty(x >> 4, y >> 4, z >> 4) || Math.abs(x + y + z) % 3 != 0) {
+                return BlockID.AIR;
+            }
+            return BlockID.STONE;
+        }
+
+        @Override
+        public BaseBlock getLazyBlock(Vector position) {
+            return getBlock(position);
+        }
+    }
+
+}
@@ -19,6 +19,8 @@ package com.sk89q.worldedit.internal.expression;
 import static java.lang.Math.atan2;
 import static java.lang.Math.sin;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 import org.junit.Test;
@@ -27,6 +29,8 @@ import com.sk89q.worldedit.internal.expression.lexer.LexerException;
 import com.sk89q.worldedit.internal.expression.parser.ParserException;
 import com.sk89q.worldedit.internal.expression.runtime.EvaluationException;
 import com.sk89q.worldedit.internal.expression.runtime.ExpressionEnvironment;
+import com.sk89q.worldedit.internal.expression.runtime.Interval;
+import com.sk89q.worldedit.internal.expression.runtime.MegaBuffer;
 
 public class ExpressionTest {
 
@@ -203,6 +207,217 @@ public class ExpressionTest {
         assertEquals(1, simpleEval("!queryRel(3,4,5,100,200)"), 0);
     }
 
+    @Test
+    public void testCompiled() throws ExpressionException {
+        final String[] expressions = { "x * y - x / y + x % y + x ^ 2", "-x + ~y + !x + !(x - x)",
+            "(x < y) + (x > y) * 2 + (x <= y) * 4 + (x >= y) * 8 + (x == y) * 16 + (x != y) * 32",
+            "(x ~= x) + (x || 0) + (0 && y) + (y << 2) + (y >> 1) + y!", "a = x; a += y; a *= 2; a -= 1; a /= 3; a %= 4; a ^= 2",
+            "a = x; ++a; --a; ++a + --a + a", "min(x, y) + max(x, y, 3) + sqrt(y) + floor(x / y) + round(y / x) + abs(-x)",
+            "a = 0; for (i = 0; i < 10; ++i) { if (i == 3) continue; if (i == 7) break; a += i; } a",
+            "a = 0; for (i = x, y) { a = a * 10 + i; } a", "a = 0; while (1) { if (++a > 4) break; } a",
+            "a = 0; do { a += 2; } while (a < y); a", "if (x > y) { return x; } y", "a = x; a + megabuf(a + 2) + randint(1)",
+            "a = 1 + ((x < y) ? y : x); a" };
+
+        for (String expressionString : expressions) {
+            final Expression interpreted = Expression.compile(expressionString, "x", "y");
+            final Expression compiled = compile(expressionString, "x", "y");
+            for (double x = -2; x <= 2; ++x) {
+                assertEquals(expressionString, interpreted.evaluate(x, 5), compiled.evaluate(x, 5), 0);
+            }
+        }
+
+        try {
+            compile("a = 0; while (1) { ++a; } a").evaluate();
+            fail("Error expected");
+        } catch (EvaluationException e) {
+            assertEquals("Error position", 7, e.getPosition());
+        }
+    }
+
+    @Test
+    public void testBatch() throws ExpressionException {
+        final double[][] inputs = { { 1, 2, 3 }, { 4, 5, 6 } };
+        final double[] results = new double[3];
+        final double[][] outputs = new double[2][3];
+
+        for (boolean optimize : new boolean[] { false, true }) {
+            final Expression expression = Expression.compile("c = x * y; n += 1; x + y", "x", "y");
+            if (optimize) {
+                expression.optimize();
+            }
+
+            expression.evaluate(inputs, 3, results, outputs, "c", "n");
+            assertEquals(5, results[0], 0);
+            assertEquals(9, results[2], 0);
+            assertEquals(10, outputs[0][1], 0);
+            assertEquals(18, outputs[0][2], 0);
+            assertEquals(3, outputs[1][2], 0);
+            assertEquals(
+                3,
+                expression.getVariable("n", false)
+                    .getValue(),
+                0);
+        }
+    }
+
+    @Test
+    public void testParallel() throws ExpressionException {
+        final Expression expression = compile("a = x * 2; megabuf(1) + a + sqrt(x)", "x");
+        assertEquals(true, expression.isReentrant());
+        assertEquals(false, compile("query(x, 0, 0, 0, 0)", "x").isReentrant());
+
+        final int length = 10000;
+        final double[] x = new double[length];
+        for (int i = 0; i < length; ++i) {
+            x[i] = i;
+        }
+        final double[] results = new double[length];
+        final double[][] outputs = new double[1][length];
+
+        expression.evaluateParallel(new double[][] { x }, length, results, outputs, "a");
+        for (int i = 0; i < length; ++i) {
+            assertEquals(i * 2 + Math.sqrt(i), results[i], 0);
+            assertEquals(i * 2, outputs[0][i], 0);
+        }
+    }
+
+    @Test
+    public void testStateless() throws ExpressionException {
+        assertEquals(true, compile("a = x * 2; a + y", "x", "y").isStateless(2));
+        assertEquals(false, compile("a = x * 2; a + y", "x", "y").isStateless(1));
+        assertEquals(false, compile("n += 1; x + n", "x").isStateless(1));
+        assertEquals(true, compile("if (x > 0) { a = 1; } else { a = 2; } a", "x").isStateless(1));
+        assertEquals(false, compile("if (x > 0) { a = 1; } a", "x").isStateless(1));
+        assertEquals(false, compile("x > 0 && (a = 1); a", "x").isStateless(1));
+        assertEquals(true, compile("for (i = 0; i < x; ++i) { a = i; } i", "x").isStateless(1));
+        assertEquals(false, compile("for (i = 0; i < x; ++i) { a = i; } a", "x").isStateless(1));
+        assertEquals(false, compile("megabuf(x)", "x").isStateless(1));
+
+        // Outputs must be assigned on every path or not at all
+        assertEquals(true, compile("x > 0", "x", "type").isStateless(1, "type"));
+        assertEquals(false, compile("if (x > 0) { type = 1; } x", "x", "type").isStateless(1, "type"));
+        assertEquals(true, compile("if (x > 0) { type = 1; } x", "x", "type").isStateless(2, "type"));
+    }
+
+    @Test
+    public void testParallelState() throws ExpressionException {
+        final int length = 10000;
+        final double[] x = new double[length];
+        for (int i = 0; i < length; ++i) {
+            x[i] = i;
+        }
+        final double[] results = new double[length];
+        final double[][] outputs = new double[1][length];
+
+        // n is read before it is assigned, so each evaluation depends on the previous one
+        final Expression counting = compile("n += 1; x + n", "x", "n");
+        assertEquals(true, counting.isReentrant());
+        counting.evaluateParallel(new double[][] { x }, length, results, outputs, "n");
+        for (int i = 0; i < length; ++i) {
+            assertEquals(i + i + 1, results[i], 0);
+            assertEquals(i + 1, outputs[0][i], 0);
+        }
+
+        // a is only assigned on some paths, so it keeps its value from earlier evaluations
+        final Expression conditional = compile("if (x % 2 == 0) { a = x; } a", "x", "a");
+        conditional.evaluateParallel(new double[][] { x }, length, results, outputs, "a");
+        for (int i = 0; i < length; ++i) {
+            assertEquals(i - i % 2, results[i], 0);
+        }
+
+        // The variables of a stateless expression are written back after the last evaluation
+        final Expression stateless = compile("a = x * 2; if (a > 10) { b = 1; } else { b = 2; } a + b", "x");
+        stateless.evaluateParallel(new double[][] { x }, length, results, outputs, "b");
+        for (int i = 0; i < length; ++i) {
+            assertEquals(i * 2 + (i * 2 > 10 ? 1 : 2), results[i], 0);
+        }
+        assertEquals((length - 1) * 2, stateless.getVariable("a", false).getValue(), 0);
+    }
+
+    @Test
+    public void testInterval() throws ExpressionException {
+        final Expression expression = compile("x * x + y * y < 4", "x", "y", "type");
+        final Interval type = new Interval(0, 255);
+        final Interval[] outputs = new Interval[1];
+
+        Interval result = expression
+            .evaluateInterval(new Interval[] { new Interval(-1, 1), new Interval(-1, 1), type }, outputs, "type");
+        assertEquals(true, result.isTrue());
+        assertSame(type, outputs[0]);
+
+        result = expression
+            .evaluateInterval(new Interval[] { new Interval(2.5, 3), new Interval(-1, 1), type }, outputs, "type");
+        assertEquals(true, result.isFalse());
+
+        result = expression
+            .evaluateInterval(new Interval[] { new Interval(0, 3), new Interval(-1, 1), type }, outputs, "type");
+        assertEquals(false, result.isTrue());
+        assertEquals(false, result.isFalse());
+
+        final Expression assigning = compile("type = 5; x > 0", "x", "type");
+        assigning.evaluateInterval(new Interval[] { new Interval(1, 2), type }, outputs, "type");
+        assertEquals(true, outputs[0].isPoint());
+        assertEquals(5, outputs[0].getMin(), 0);
+
+        assertNull(compile("while (x < 5) x = x + 1", "x").evaluateInterval(new Interval[] { type }, outputs));
+    }
+
+    @Test
+    public void testIntervalNaN() throws ExpressionException {
+        // -sqrt(x) - 1 is never positive, but it is NaN for negative x, which makeShape places a block for
+        final Expression expression = compile("-sqrt(x) - 1", "x");
+        assertEquals(true, Double.isNaN(expression.evaluate(-1)));
+        assertEquals(false, expression.evaluate(-1) <= 0);
+
+        final Interval result = expression.evaluateInterval(new Interval[] { new Interval(-4, 4) }, new Interval[0]);
+        assertEquals(true, result.mayBeNaN());
+        assertEquals(false, result.isFalse());
+        assertEquals(false, result.isTrue());
+    }
+
+    @Test
+    public void testOptimize() throws ExpressionException {
+        final String[] expressions = { "sqrt(x*x+z*z) < 5 && sqrt(x*x+z*z) > 2", "x^2 + (y+1)^3 + z/4",
+            "a = 0; for (i = 0; i < 10; i++) { a += sin(x) * cos(z) * i; } a",
+            "a = 0; while (a < 100) { a += abs(x) + 1; } a + y^2", "x = x * 2; sqrt(x*x+z*z) + sqrt(x*x+z*z)" };
+        for (String expressionString : expressions) {
+            final Expression plain = Expression.compile(expressionString, "x", "y", "z");
+            final Expression optimized = compile(expressionString, "x", "y", "z");
+            for (double x = -3; x <= 3; x += 1.5) {
+                assertEquals(expressionString, plain.evaluate(x, 2, x - 1), optimized.evaluate(x, 2, x - 1), 1e-12);
+            }
+        }
+
+        final Expression common = compile("sqrt(x*x+z*z) < 5 && sqrt(x*x+z*z) > 2", "x", "z");
+        assertEquals(true, common.toTreeString().startsWith("seq\n  ass\n    $0\n    sqrt"));
+    }
+
+    @Test
+    public void testMegabuf() throws ExpressionException {
+        final Expression expression = compile("megabuf(x)", "x");
+        final MegaBuffer megabuf = expression.getFunctions().getMegabuf();
+        megabuf.set(-5000, 3);
+        megabuf.set(40000000, 4);
+        assertEquals(3, expression.evaluate(-5000), 0);
+        assertEquals(4, expression.evaluate(40000000), 0);
+        assertEquals(0, expression.evaluate(123456), 0);
+        assertEquals(2 * 8192, megabuf.getSize());
+
+        final long limit = MegaBuffer.getLimit();
+        MegaBuffer.setLimit(8192);
+        try {
+            final MegaBuffer limited = new MegaBuffer();
+            limited.set(0, 1);
+            limited.set(1023, 2);
+            try {
+                limited.set(1024, 3);
+                fail("Buffer limit not enforced");
+            } catch (EvaluationException ignored) {}
+        } finally {
+            MegaBuffer.setLimit(limit);
+        }
+    }
+
     private double simpleEval(String expressionString) throws ExpressionException {
         final Expression expression = compile(expressionString);
 
@@ -0,0 +1,71 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.regions;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.Vector2D;
+import com.sk89q.worldedit.world.World;
+
+/**
+ * Tests the row spans of {@link EllipsoidRegion} and {@link CylinderRegion}.
+ */
+public class SpanRegionTest {
+
+    @Test
+    public void testEllipsoid() throws Exception {
+        assertSpans(new EllipsoidRegion((World) null, new Vector(0, 64, 0), new Vector(5, 5, 5)));
+        assertSpans(new EllipsoidRegion((World) null, new Vector(-3.5, 10, 7.5), new Vector(4, 2.5, 7)));
+        assertSpans(new EllipsoidRegion((World) null, new Vector(100, -4, -31), new Vector(0, 1, 12)));
+    }
+
+    @Test
+    public void testCylinder() throws Exception {
+        assertSpans(new CylinderRegion(new Vector(0, 0, 0), new Vector2D(5, 5), 0, 3));
+        assertSpans(new CylinderRegion(new Vector(17.5, 0, -2), new Vector2D(3, 9.5), -2, 2));
+        assertSpans(new CylinderRegion(new Vector(-40, 0, 8), new Vector2D(0, 0), 10, 10));
+    }
+
+    private static void assertSpans(SpanRegion region) {
+        final List<BlockVector> expected = new ArrayList<BlockVector>();
+        final Vector min = region.getMinimumPoint();
+        final Vector max = region.getMaximumPoint();
+        for (int z = min.getBlockZ(); z <= max.getBlockZ(); ++z) {
+            for (int y = min.getBlockY(); y <= max.getBlockY(); ++y) {
+                for (int x = min.getBlockX(); x <= max.getBlockX(); ++x) {
+                    if (region.contains(new Vector(x, y, z))) {
+                        expected.add(new BlockVector(x, y, z));
+                    }
+                }
+            }
+        }
+
+        final List<BlockVector> actual = new ArrayList<BlockVector>();
+        for (BlockVector position : region) {
+            actual.add(position);
+        }
+        assertEquals(expected, actual);
+    }
+
+}
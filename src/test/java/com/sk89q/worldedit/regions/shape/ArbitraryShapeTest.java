@@ -0,0 +1,121 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.sk89q.worldedit.regions.shape;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.sk89q.jnbt.CompoundTag;
+import com.sk89q.jnbt.StringTag;
+import com.sk89q.jnbt.Tag;
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.EditSession;
+import com.sk89q.worldedit.LocalWorld;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.blocks.BlockID;
+import com.sk89q.worldedit.patterns.SingleBlockPattern;
+import com.sk89q.worldedit.regions.CuboidRegion;
+
+/**
+ * Tests {@link ArbitraryShape}.
+ */
+public class ArbitraryShapeTest {
+
+    private static final CuboidRegion REGION = new CuboidRegion(new Vector(0, 0, 0), new Vector(2, 2, 2));
+
+    @Test
+    public void testHollowNbt() throws Exception {
+        // Every block is a chest named after its position
+        ArbitraryShape shape = new ArbitraryShape(REGION) {
+
+            @Override
+            protected BaseBlock getMaterial(int x, int y, int z, BaseBlock defaultMaterial) {
+                if (!REGION.contains(new Vector(x, y, z))) {
+                    return null;
+                }
+                Map<String, Tag> values = new HashMap<String, Tag>();
+                values.put("CustomName", new StringTag(x + "," + y + "," + z));
+                return new BaseBlock(BlockID.CHEST, 0, new CompoundTag(values));
+            }
+        };
+
+        Recorder recorder = new Recorder();
+        assertEquals(26, shape.generate(recorder, new SingleBlockPattern(new BaseBlock(BlockID.STONE)), true));
+        assertEquals(26, recorder.blocks.size());
+
+        for (Map.Entry<BlockVector, BaseBlock> entry : recorder.blocks.entrySet()) {
+            Vector position = entry.getKey();
+            CompoundTag nbt = entry.getValue()
+                .getNbtData();
+            assertEquals(
+                position.getBlockX() + "," + position.getBlockY() + "," + position.getBlockZ(),
+                nbt.getString("CustomName"));
+        }
+    }
+
+    @Test
+    public void testHollowCopies() throws Exception {
+        ArbitraryShape shape = new ArbitraryShape(REGION) {
+
+            @Override
+            protected BaseBlock getMaterial(int x, int y, int z, BaseBlock defaultMaterial) {
+                return REGION.contains(new Vector(x, y, z)) ? new BaseBlock(BlockID.GLASS) : null;
+            }
+        };
+
+        Recorder recorder = new Recorder();
+        shape.generate(recorder, new SingleBlockPattern(new BaseBlock(BlockID.STONE)), true);
+
+        // Blocks of the same type share a palette entry, but not an instance
+        List<BaseBlock> blocks = new ArrayList<BaseBlock>(recorder.blocks.values());
+        assertEquals(26, blocks.size());
+        for (int i = 0; i < blocks.size(); ++i) {
+            assertEquals(new BaseBlock(BlockID.GLASS), blocks.get(i));
+            for (int j = i + 1; j < blocks.size(); ++j) {
+                assertNotSame(blocks.get(i), blocks.get(j));
+            }
+        }
+    }
+
+    /**
+     * Records the blocks that are set instead of placing them.
+     */
+    private static class Recorder extends EditSession {
+
+        private final Map<BlockVector, BaseBlock> blocks = new HashMap<BlockVector, BaseBlock>();
+
+        @SuppressWarnings("deprecation")
+        private Recorder() {
+            super((LocalWorld) null, -1);
+        }
+
+        @Override
+        public boolean setBlock(Vector position, BaseBlock block) {
+            blocks.put(position.toBlockVector(), block);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link AliasTable}.
+ */
+public class AliasTableTest {
+
+    @Test
+    public void testDistribution() throws Exception {
+        double[] weights = new double[23];
+        double sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = i % 7 == 3 ? 0 : (i * 37 % 11) + 0.5;
+            sum += weights[i];
+        }
+
+        AliasTable table = new AliasTable(weights);
+        assertEquals(weights.length, table.size());
+
+        Random random = new Random(1234);
+        int[] counts = new int[weights.length];
+        int samples = 1000000;
+        for (int i = 0; i < samples; i++) {
+            counts[table.next(random)]++;
+        }
+
+        for (int i = 0; i < weights.length; i++) {
+            assertEquals(weights[i] / sum, counts[i] / (double) samples, 0.002);
+            if (weights[i] == 0) {
+                assertEquals(0, counts[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testSingleWeight() throws Exception {
+        AliasTable table = new AliasTable(new double[] { 0, 0, 3, 0 });
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(2, table.next(random));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoWeights() throws Exception {
+        new AliasTable(new double[] { 0, 0 });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeWeight() throws Exception {
+        new AliasTable(new double[] { 1, -1 });
+    }
+
+}
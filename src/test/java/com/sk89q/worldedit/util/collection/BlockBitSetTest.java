@@ -0,0 +1,102 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.util.collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.sk89q.worldedit.BlockVector;
+
+/**
+ * Tests {@link BlockBitSet}.
+ */
+public class BlockBitSetTest {
+
+    @Test
+    public void testAddContains() throws Exception {
+        final BlockBitSet set = new BlockBitSet();
+        assertTrue(set.add(0, 0, 0));
+        assertEquals(false, set.add(0, 0, 0));
+        set.add(-1, 255, -17);
+        set.add(29999999, 12, -29999999);
+        set.addColumn(5, -3, 40, 7);
+
+        assertTrue(set.contains(-1, 255, -17));
+        assertTrue(set.contains(29999999, 12, -29999999));
+        assertTrue(set.contains(5, -3, 7) && set.contains(5, 15, 7) && set.contains(5, 40, 7));
+        assertEquals(false, set.contains(5, 41, 7));
+        assertEquals(false, set.contains(1, 0, 0));
+        assertEquals(3 + 44, set.size());
+
+        final Set<BlockVector> positions = new HashSet<BlockVector>();
+        for (BlockVector position : set) {
+            positions.add(position);
+        }
+        assertEquals(47, positions.size());
+        assertTrue(positions.contains(new BlockVector(29999999, 12, -29999999)));
+    }
+
+    @Test
+    public void testStampAndShell() throws Exception {
+        final double radius = 4.5;
+        final int[][] centers = { { 0, 0, 0 }, { 3, 14, -2 }, { -20, 16, 9 } };
+
+        final BlockBitSet set = new BlockBitSet();
+        final BlockBitSet.Kernel kernel = BlockBitSet.Kernel.sphere(radius);
+        final Set<BlockVector> expected = new HashSet<BlockVector>();
+        for (int[] center : centers) {
+            set.stamp(center[0], center[1], center[2], kernel);
+            for (int x = -5; x <= 5; ++x) {
+                for (int y = -5; y <= 5; ++y) {
+                    for (int z = -5; z <= 5; ++z) {
+                        if (Math.sqrt(x * x + y * y + z * z) <= radius) {
+                            expected.add(new BlockVector(center[0] + x, center[1] + y, center[2] + z));
+                        }
+                    }
+                }
+            }
+        }
+        assertEquals(expected, toSet(set));
+
+        final Set<BlockVector> expectedShell = new HashSet<BlockVector>();
+        for (BlockVector v : expected) {
+            final int x = v.getBlockX(), y = v.getBlockY(), z = v.getBlockZ();
+            if (!(expected.contains(new BlockVector(x + 1, y, z)) && expected.contains(new BlockVector(x - 1, y, z))
+                && expected.contains(new BlockVector(x, y + 1, z))
+                && expected.contains(new BlockVector(x, y - 1, z))
+                && expected.contains(new BlockVector(x, y, z + 1))
+                && expected.contains(new BlockVector(x, y, z - 1)))) {
+                expectedShell.add(v);
+            }
+        }
+        assertEquals(expectedShell, toSet(set.getShell()));
+    }
+
+    private static Set<BlockVector> toSet(BlockBitSet set) {
+        final Set<BlockVector> positions = new HashSet<BlockVector>();
+        for (BlockVector position : set) {
+            positions.add(position);
+        }
+        return positions;
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.util.collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link BlockQueue}.
+ */
+public class BlockQueueTest {
+
+    @Test
+    public void testOrder() throws Exception {
+        final BlockQueue queue = new BlockQueue();
+        final int[] position = new int[3];
+        assertEquals(false, queue.poll(position));
+
+        // Wrap around the ring before it has to grow
+        int next = 0;
+        for (int i = 0; i < 50; ++i) {
+            queue.add(i, -i, i * 2);
+        }
+        for (int i = 0; i < 40; ++i) {
+            assertTrue(queue.poll(position));
+            assertEquals(next++, position[0]);
+        }
+        for (int i = 50; i < 1000; ++i) {
+            queue.add(i, -i, i * 2);
+        }
+        assertEquals(960, queue.size());
+
+        while (queue.poll(position)) {
+            assertEquals(next, position[0]);
+            assertEquals(-next, position[1]);
+            assertEquals(next * 2, position[2]);
+            ++next;
+        }
+        assertEquals(1000, next);
+        assertTrue(queue.isEmpty());
+    }
+
+}